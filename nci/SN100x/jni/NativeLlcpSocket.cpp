@@ -110,20 +110,28 @@ static jboolean nativeLlcpSocket_doClose(JNIEnv* e, jobject o) {
 **                  e: JVM environment.
 **                  o: Java object.
 **                  data: Buffer of data.
+**                  offset: Offset of the data to send in the buffer.
+**                  length: Length of the data to send.
 **
 ** Returns:         True if sent ok.
 **
 *******************************************************************************/
-static jboolean nativeLlcpSocket_doSend(JNIEnv* e, jobject o, jbyteArray data) {
+static jboolean nativeLlcpSocket_doSend(JNIEnv* e, jobject o, jbyteArray data,
+                                        jint offset, jint length) {
   DLOG_IF(INFO, nfc_debug_enabled) << StringPrintf("%s: enter", __func__);
 
   ScopedByteArrayRO bytes(e, data);
+  if (offset < 0 || length < 0 ||
+      (size_t)offset + (size_t)length > bytes.size()) {
+    LOG(ERROR) << StringPrintf("%s: invalid range", __func__);
+    return JNI_FALSE;
+  }
 
   PeerToPeer::tJNI_HANDLE jniHandle =
       (PeerToPeer::tJNI_HANDLE)nfc_jni_get_nfc_socket_handle(e, o);
   uint8_t* raw_ptr = const_cast<uint8_t*>(reinterpret_cast<const uint8_t*>(
       &bytes[0]));  // TODO: API bug: send should take const*!
-  bool stat = PeerToPeer::getInstance().send(jniHandle, raw_ptr, bytes.size());
+  bool stat = PeerToPeer::getInstance().send(jniHandle, raw_ptr + offset, length);
 
   DLOG_IF(INFO, nfc_debug_enabled) << StringPrintf("%s: exit", __func__);
   return stat ? JNI_TRUE : JNI_FALSE;
@@ -219,7 +227,7 @@ static JNINativeMethod gMethods[] = {
     {"doConnectBy", "(Ljava/lang/String;)Z",
      (void*)nativeLlcpSocket_doConnectBy},
     {"doClose", "()Z", (void*)nativeLlcpSocket_doClose},
-    {"doSend", "([B)Z", (void*)nativeLlcpSocket_doSend},
+    {"doSend", "([BII)Z", (void*)nativeLlcpSocket_doSend},
     {"doReceive", "([B)I", (void*)nativeLlcpSocket_doReceive},
     {"doGetRemoteSocketMiu", "()I",
      (void*)nativeLlcpSocket_doGetRemoteSocketMIU},
@@ -56,10 +56,18 @@ public class NativeLlcpSocket implements DeviceHost.LlcpSocket {
         }
     }
 
-    private native boolean doSend(byte[] data);
+    private native boolean doSend(byte[] data, int offset, int length);
     @Override
     public void send(byte[] data) throws IOException {
-        if (!doSend(data)) {
+        send(data, 0, data.length);
+    }
+
+    @Override
+    public void send(byte[] data, int offset, int length) throws IOException {
+        if (offset < 0 || length < 0 || offset > data.length - length) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (!doSend(data, offset, length)) {
             throw new IOException();
         }
     }
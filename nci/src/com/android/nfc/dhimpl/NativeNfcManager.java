@@ -43,8 +43,10 @@ import android.util.Log;
 import com.android.nfc.DeviceHost;
 import com.android.nfc.LlcpException;
 import com.android.nfc.NfcDiscoveryParameters;
+import com.android.nfc.R;
 
 import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -105,6 +107,8 @@ public class NativeNfcManager implements DeviceHost {
         mMposMgr = new NativeNfcMposManager();
         mT4tNfceeMgr = new NativeT4tNfceeManager();
         mExtFieldMgr = new NativeExtFieldDetectManager();
+        PresenceCheckScheduler.getInstance().getPolicy().setTunables(
+                context.getResources().getIntArray(R.array.presence_check_tunables));
     }
 
     //Static function to getChip-ID
@@ -605,7 +609,11 @@ public class NativeNfcManager implements DeviceHost {
 
     private native void doDump(FileDescriptor fd);
     @Override
-    public void dump(FileDescriptor fd) {
+    public void dump(PrintWriter pw, FileDescriptor fd) {
+        PresenceCheckScheduler.getInstance().dump(pw);
+        NdefReadCache.getInstance().dump(pw);
+        NdefDiscoveryPlanner.getInstance().dump(pw);
+        pw.flush();
         doDump(fd);
     }
 
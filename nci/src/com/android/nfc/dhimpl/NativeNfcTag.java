@@ -41,6 +41,7 @@ import com.android.nfc.DeviceHost.TagEndpoint;
 
 import android.nfc.FormatException;
 import android.nfc.NdefMessage;
+import android.nfc.NdefRecord;
 import android.nfc.tech.IsoDep;
 import android.nfc.tech.MifareClassic;
 import android.nfc.tech.MifareUltralight;
@@ -54,6 +55,10 @@ import android.nfc.tech.TagTechnology;
 import android.os.Bundle;
 import android.util.Log;
 
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.LinkedBlockingQueue;
+
 /**
  * Native interface to the NFC tag functions
  */
@@ -88,90 +93,138 @@ public class NativeNfcTag implements TagEndpoint {
 
     private boolean mIsPresent; // Whether the tag is known to be still present
 
-    private PresenceCheckWatchdog mWatchdog;
-    class PresenceCheckWatchdog extends Thread {
-
-        private final int watchdogTimeout;
-        private DeviceHost.TagDisconnectedCallback tagDisconnectedCallback;
+    private PresenceCheckScheduler.Entry mPresenceCheck;
 
-        private boolean isPresent = true;
-        private boolean isStopped = false;
-        private boolean isPaused = false;
-        private boolean doCheck = true;
+    // Runs on the presence check threads
+    class PresenceCheckTarget implements PresenceCheckScheduler.Target {
+        private final DeviceHost.TagDisconnectedCallback tagDisconnectedCallback;
 
-        public PresenceCheckWatchdog(int presenceCheckDelay,
-                                     @Nullable DeviceHost.TagDisconnectedCallback callback) {
-            watchdogTimeout = presenceCheckDelay;
+        public PresenceCheckTarget(@Nullable DeviceHost.TagDisconnectedCallback callback) {
             tagDisconnectedCallback = callback;
         }
 
-        public synchronized void pause() {
-            isPaused = true;
-            doCheck = false;
-            this.notifyAll();
-        }
-
-        public synchronized void doResume() {
-            isPaused = false;
-            // We don't want to resume presence checking immediately,
-            // but go through at least one more wait period.
-            doCheck = false;
-            this.notifyAll();
-        }
-
-        public synchronized void end(boolean disableCallback) {
-            isStopped = true;
-            doCheck = false;
-            if (disableCallback) {
-                tagDisconnectedCallback = null;
+        @Override
+        public boolean checkPresence() {
+            // Holding the tag lock serializes the check with transceives
+            synchronized (NativeNfcTag.this) {
+                return doPresenceCheck();
             }
-            this.notifyAll();
         }
 
         @Override
-        public void run() {
-            synchronized (this) {
-                if (DBG) Log.d(TAG, "Starting background presence check");
-                while (isPresent && !isStopped) {
-                    try {
-                        if (!isPaused) {
-                            doCheck = true;
-                        }
-                        this.wait(watchdogTimeout);
-                        if (doCheck) {
-                            isPresent = doPresenceCheck();
-                        } else {
-                            // 1) We are paused, waiting for unpause
-                            // 2) We just unpaused, do pres check in next iteration
-                            //       (after watchdogTimeout ms sleep)
-                            // 3) We just set the timeout, wait for this timeout
-                            //       to expire once first.
-                            // 4) We just stopped, exit loop anyway
-                        }
-                    } catch (InterruptedException e) {
-                        // Activity detected, loop
-                    }
-                }
-            }
-
+        public void onPresenceCheckEnded(boolean notifyDisconnected) {
             synchronized (NativeNfcTag.this) {
                 mIsPresent = false;
             }
+            endTransceiveWorker();
             // Restart the polling loop
 
             Log.d(TAG, "Tag lost, restarting polling loop");
             doDisconnect();
-            if (tagDisconnectedCallback != null) {
+            if (notifyDisconnected && tagDisconnectedCallback != null) {
                 tagDisconnectedCallback.onTagDisconnected(mConnectedHandle);
             }
             if (DBG) Log.d(TAG, "Stopping background presence check");
         }
     }
 
+    private TransceiveWorker mTransceiveWorker;
+    // Set once the tag is gone; no new transceive worker is started afterwards.
+    private boolean mTransceiveClosed;
+    private final Object mTransceiveWorkerLock = new Object();
+
+    static final class PendingTransceive {
+        final byte[] data;
+        final boolean raw;
+        final DeviceHost.TransceiveCallback callback;
+
+        PendingTransceive(byte[] data, boolean raw, DeviceHost.TransceiveCallback callback) {
+            this.data = data;
+            this.raw = raw;
+            this.callback = callback;
+        }
+
+        void complete(byte[] response, boolean targetLost) {
+            try {
+                callback.onTransceiveComplete(response, targetLost);
+            } catch (RuntimeException e) {
+                Log.e("NativeNfcTag", "Transceive callback failed", e);
+            }
+        }
+    }
+
+    /**
+     * Executes queued transceive commands back to back, so the callers don't
+     * need to hold a thread per in-flight command.
+     */
+    class TransceiveWorker extends Thread {
+        private final LinkedBlockingQueue<PendingTransceive> mQueue =
+                new LinkedBlockingQueue<PendingTransceive>();
+
+        private boolean isStopped = false;
+
+        public TransceiveWorker() {
+            super("NfcTagTransceive");
+        }
+
+        public synchronized boolean enqueue(PendingTransceive command) {
+            if (isStopped) {
+                return false;
+            }
+            mQueue.add(command);
+            return true;
+        }
+
+        public synchronized void end() {
+            isStopped = true;
+            this.interrupt();
+        }
+
+        private synchronized boolean isStopped() {
+            return isStopped;
+        }
+
+        @Override
+        public void run() {
+            if (DBG) Log.d(TAG, "Starting transceive worker");
+            while (!isStopped()) {
+                PendingTransceive command;
+                try {
+                    command = mQueue.take();
+                } catch (InterruptedException e) {
+                    // Woken up by end(), loop
+                    continue;
+                }
+                int[] returnCode = new int[1];
+                byte[] response = transceive(command.data, command.raw, returnCode);
+                command.complete(response, returnCode[0] == 1);
+            }
+
+            // No command can be queued after end(), so fail the remaining ones
+            PendingTransceive command;
+            while ((command = mQueue.poll()) != null) {
+                command.complete(null, true);
+            }
+            if (DBG) Log.d(TAG, "Stopping transceive worker");
+        }
+    }
+
+    private void endTransceiveWorker() {
+        TransceiveWorker worker;
+        synchronized (mTransceiveWorkerLock) {
+            mTransceiveClosed = true;
+            worker = mTransceiveWorker;
+            mTransceiveWorker = null;
+        }
+        if (worker != null) {
+            worker.end();
+        }
+    }
+
     private native int doConnect(int handle);
     public synchronized int connectWithStatus(int technology) {
-        if (mWatchdog != null) {
-            mWatchdog.pause();
+        if (mPresenceCheck != null) {
+            mPresenceCheck.pause();
         }
         int status = -1;
         for (int i = 0; i < mTechList.length; i++) {
@@ -240,8 +293,8 @@ public class NativeNfcTag implements TagEndpoint {
                 break;
             }
         }
-        if (mWatchdog != null) {
-            mWatchdog.doResume();
+        if (mPresenceCheck != null) {
+            mPresenceCheck.resume(status == 0);
         }
         return status;
     }
@@ -253,8 +306,8 @@ public class NativeNfcTag implements TagEndpoint {
     @Override
     public synchronized void stopPresenceChecking() {
         mIsPresent = false;
-        if (mWatchdog != null) {
-            mWatchdog.end(true);
+        if (mPresenceCheck != null) {
+            mPresenceCheck.end(true);
         }
     }
 
@@ -264,9 +317,11 @@ public class NativeNfcTag implements TagEndpoint {
         // Once we start presence checking, we allow the upper layers
         // to know the tag is in the field.
         mIsPresent = true;
-        if (mWatchdog == null) {
-            mWatchdog = new PresenceCheckWatchdog(presenceCheckDelay, callback);
-            mWatchdog.start();
+        if (mPresenceCheck == null) {
+            if (DBG) Log.d(TAG, "Starting background presence check");
+            mPresenceCheck = PresenceCheckScheduler.getInstance().start(
+                    new PresenceCheckTarget(callback), getConnectedTechnology(),
+                    presenceCheckDelay);
         }
     }
 
@@ -280,21 +335,18 @@ public class NativeNfcTag implements TagEndpoint {
     @Override
     public boolean disconnect() {
         boolean result = false;
-        PresenceCheckWatchdog watchdog;
+        PresenceCheckScheduler.Entry presenceCheck;
         synchronized (this) {
             mIsPresent = false;
-            watchdog = mWatchdog;
+            presenceCheck = mPresenceCheck;
         }
-        if (watchdog != null) {
-            // Watchdog has already disconnected or will do it
-            watchdog.end(false);
-            try {
-                watchdog.join();
-            } catch (InterruptedException e) {
-                // Should never happen.
-            }
+        endTransceiveWorker();
+        if (presenceCheck != null) {
+            // Presence checking has already disconnected or will do it
+            presenceCheck.end(false);
+            presenceCheck.awaitEnded();
             synchronized (this) {
-                mWatchdog = null;
+                mPresenceCheck = null;
             }
             result = true;
         } else {
@@ -313,12 +365,12 @@ public class NativeNfcTag implements TagEndpoint {
 
     native int doReconnect();
     public synchronized int reconnectWithStatus() {
-        if (mWatchdog != null) {
-            mWatchdog.pause();
+        if (mPresenceCheck != null) {
+            mPresenceCheck.pause();
         }
         int status = doReconnect();
-        if (mWatchdog != null) {
-            mWatchdog.doResume();
+        if (mPresenceCheck != null) {
+            mPresenceCheck.resume(status == 0);
         }
         return status;
     }
@@ -329,12 +381,12 @@ public class NativeNfcTag implements TagEndpoint {
 
     native int doHandleReconnect(int handle);
     public synchronized int reconnectWithStatus(int handle) {
-        if (mWatchdog != null) {
-            mWatchdog.pause();
+        if (mPresenceCheck != null) {
+            mPresenceCheck.pause();
         }
         int status = doHandleReconnect(handle);
-        if (mWatchdog != null) {
-            mWatchdog.doResume();
+        if (mPresenceCheck != null) {
+            mPresenceCheck.resume(status == 0);
         }
         return status;
     }
@@ -342,24 +394,43 @@ public class NativeNfcTag implements TagEndpoint {
     private native byte[] doTransceive(byte[] data, boolean raw, int[] returnCode);
     @Override
     public synchronized byte[] transceive(byte[] data, boolean raw, int[] returnCode) {
-        if (mWatchdog != null) {
-            mWatchdog.pause();
+        if (mPresenceCheck != null) {
+            mPresenceCheck.pause();
         }
         byte[] result = doTransceive(data, raw, returnCode);
-        if (mWatchdog != null) {
-            mWatchdog.doResume();
+        if (mPresenceCheck != null) {
+            mPresenceCheck.resumeAfterTransceive(result != null);
         }
         return result;
     }
 
+    @Override
+    public void transceiveAsync(byte[] data, boolean raw,
+                                DeviceHost.TransceiveCallback callback) {
+        PendingTransceive command = new PendingTransceive(data, raw, callback);
+        boolean queued = false;
+        synchronized (mTransceiveWorkerLock) {
+            if (!mTransceiveClosed) {
+                if (mTransceiveWorker == null) {
+                    mTransceiveWorker = new TransceiveWorker();
+                    mTransceiveWorker.start();
+                }
+                queued = mTransceiveWorker.enqueue(command);
+            }
+        }
+        if (!queued) {
+            command.complete(null, true);
+        }
+    }
+
     private native int doCheckNdef(int[] ndefinfo);
     private synchronized int checkNdefWithStatus(int[] ndefinfo) {
-        if (mWatchdog != null) {
-            mWatchdog.pause();
+        if (mPresenceCheck != null) {
+            mPresenceCheck.pause();
         }
         int status = doCheckNdef(ndefinfo);
-        if (mWatchdog != null) {
-            mWatchdog.doResume();
+        if (mPresenceCheck != null) {
+            mPresenceCheck.resume(status == 0);
         }
         return status;
     }
@@ -371,25 +442,126 @@ public class NativeNfcTag implements TagEndpoint {
     private native byte[] doRead();
     @Override
     public synchronized byte[] readNdef() {
-        if (mWatchdog != null) {
-            mWatchdog.pause();
+        if (mPresenceCheck != null) {
+            mPresenceCheck.pause();
         }
         byte[] result = doRead();
-        if (mWatchdog != null) {
-            mWatchdog.doResume();
+        if (mPresenceCheck != null) {
+            mPresenceCheck.resume(result != null);
+        }
+        return result;
+    }
+
+    @Override
+    public synchronized boolean readNdefRecords(final DeviceHost.NdefRecordCallback callback) {
+        return readNdefInChunks(callback, null) == NdefChunkReader.READ_COMPLETE;
+    }
+
+    /**
+     * Reads the NDEF message of a Type 4 or Type 5 tag in chunks. Returns
+     * READ_COMPLETE once the message, or as much of it as the callback
+     * wanted, was delivered; READ_UNSUPPORTED if it has to be read with
+     * {@link #readNdef} instead, and READ_FAILED if the tag didn't answer.
+     * The bytes of the message are also copied to {@code raw} if not null.
+     */
+    private int readNdefInChunks(final DeviceHost.NdefRecordCallback callback,
+            final ByteArrayOutputStream raw) {
+        int technology = getConnectedTechnology();
+        if (technology != TagTechnology.ISO_DEP && technology != TagTechnology.NFC_V) {
+            return NdefChunkReader.READ_UNSUPPORTED;
+        }
+        if (mPresenceCheck != null) {
+            mPresenceCheck.pause();
+        }
+        NdefChunkReader.Transceiver transceiver = new NdefChunkReader.Transceiver() {
+            @Override
+            public byte[] transceive(byte[] data) {
+                return doTransceive(data, true, new int[1]);
+            }
+        };
+        final NdefStreamParser[] parser = new NdefStreamParser[1];
+        final int[] ndefLength = { -1 };
+        NdefChunkReader.ChunkListener listener = new NdefChunkReader.ChunkListener() {
+            @Override
+            public void onNdefLength(int length) {
+                ndefLength[0] = length;
+                parser[0] = new NdefStreamParser(length, callback);
+            }
+
+            @Override
+            public boolean onChunk(ByteBuffer chunk) {
+                int start = parser[0].getConsumed();
+                int position = chunk.position();
+                int result = parser[0].feed(chunk);
+                if (raw != null) {
+                    // Only the bytes the parser took; a chunk can run past ME
+                    int count = parser[0].getConsumed() - start;
+                    for (int i = 0; i < count; i++) {
+                        raw.write(chunk.get(position + i));
+                    }
+                }
+                return result == NdefStreamParser.RESULT_NEED_MORE;
+            }
+        };
+        NdefChunkReader reader = new NdefChunkReader();
+        int status;
+        if (technology == TagTechnology.ISO_DEP) {
+            status = reader.readType4(transceiver, listener);
+        } else {
+            status = reader.readType5(transceiver, listener);
+        }
+        int result;
+        if (status == NdefChunkReader.READ_COMPLETE) {
+            // The parser stops the reader once the message ends, so only an
+            // empty message can get here; anything else was truncated. A
+            // malformed message is left to readNdef(), like any other.
+            result = ndefLength[0] == 0 ? NdefChunkReader.READ_COMPLETE
+                    : NdefChunkReader.READ_UNSUPPORTED;
+        } else if (status == NdefChunkReader.READ_STOPPED) {
+            result = parser[0].getResult() != NdefStreamParser.RESULT_ERROR
+                    ? NdefChunkReader.READ_COMPLETE : NdefChunkReader.READ_UNSUPPORTED;
+        } else {
+            result = status;
+        }
+        if (mPresenceCheck != null) {
+            mPresenceCheck.resume(result != NdefChunkReader.READ_FAILED);
         }
         return result;
     }
 
+    /**
+     * Reads the NDEF message checkNdef() found. Type 4 and Type 5 tags are
+     * read in chunks; the other tags, and the ones the chunked reader can't
+     * handle, go through the NFA read.
+     */
+    private synchronized byte[] readNdefMessage() {
+        // The parser only validates the message here; the bytes read off
+        // the tag are returned as they are.
+        ByteArrayOutputStream raw = new ByteArrayOutputStream();
+        int status = readNdefInChunks(new DeviceHost.NdefRecordCallback() {
+            @Override
+            public boolean onNdefRecord(NdefRecord record) {
+                return true;
+            }
+        }, raw);
+        if (status == NdefChunkReader.READ_COMPLETE) {
+            return raw.toByteArray();
+        } else if (status == NdefChunkReader.READ_UNSUPPORTED) {
+            return readNdef();
+        }
+        return null;
+    }
+
     private native boolean doWrite(byte[] buf);
     @Override
     public synchronized boolean writeNdef(byte[] buf) {
-        if (mWatchdog != null) {
-            mWatchdog.pause();
+        if (mPresenceCheck != null) {
+            mPresenceCheck.pause();
         }
+        NdefReadCache.getInstance().invalidate(mUid);
         boolean result = doWrite(buf);
-        if (mWatchdog != null) {
-            mWatchdog.doResume();
+        if (mPresenceCheck != null) {
+            mPresenceCheck.resume(result);
         }
         return result;
     }
@@ -397,12 +569,12 @@ public class NativeNfcTag implements TagEndpoint {
     native boolean doPresenceCheck();
     @Override
     public synchronized boolean presenceCheck() {
-        if (mWatchdog != null) {
-            mWatchdog.pause();
+        if (mPresenceCheck != null) {
+            mPresenceCheck.pause();
         }
         boolean result = doPresenceCheck();
-        if (mWatchdog != null) {
-            mWatchdog.doResume();
+        if (mPresenceCheck != null) {
+            mPresenceCheck.resume(result);
         }
         return result;
     }
@@ -410,12 +582,13 @@ public class NativeNfcTag implements TagEndpoint {
     native boolean doNdefFormat(byte[] key);
     @Override
     public synchronized boolean formatNdef(byte[] key) {
-        if (mWatchdog != null) {
-            mWatchdog.pause();
+        if (mPresenceCheck != null) {
+            mPresenceCheck.pause();
         }
+        NdefReadCache.getInstance().invalidate(mUid);
         boolean result = doNdefFormat(key);
-        if (mWatchdog != null) {
-            mWatchdog.doResume();
+        if (mPresenceCheck != null) {
+            mPresenceCheck.resume(result);
         }
         return result;
     }
@@ -423,9 +596,10 @@ public class NativeNfcTag implements TagEndpoint {
     native boolean doMakeReadonly(byte[] key);
     @Override
     public synchronized boolean makeReadOnly() {
-        if (mWatchdog != null) {
-            mWatchdog.pause();
+        if (mPresenceCheck != null) {
+            mPresenceCheck.pause();
         }
+        NdefReadCache.getInstance().invalidate(mUid);
         boolean result;
         if (hasTech(TagTechnology.MIFARE_CLASSIC)) {
             result = doMakeReadonly(MifareClassic.KEY_DEFAULT);
@@ -433,8 +607,8 @@ public class NativeNfcTag implements TagEndpoint {
             // No key needed for other technologies
             result = doMakeReadonly(new byte[] {});
         }
-        if (mWatchdog != null) {
-            mWatchdog.doResume();
+        if (mPresenceCheck != null) {
+            mPresenceCheck.resume(result);
         }
         return result;
     }
@@ -801,20 +975,20 @@ public class NativeNfcTag implements TagEndpoint {
         int formattableLibNfcType = 0;
         int status;
 
-        for (int techIndex = 0; techIndex < technologies.length; techIndex++) {
-            // have we seen this handle before?
-            for (int i = 0; i < techIndex; i++) {
-                if (handles[i] == handles[techIndex]) {
-                    continue;  // don't check duplicate handles
-                }
-            }
+        // Probe each handle / RF interface once, most promising first
+        NdefDiscoveryPlanner planner = NdefDiscoveryPlanner.getInstance();
+        String fingerprint = NdefDiscoveryPlanner.fingerprint(technologies,
+                mTechPollBytes, mTechActBytes);
+        int[] plan = planner.plan(fingerprint, technologies, handles);
 
+        for (int techIndex : plan) {
             status = connectWithStatus(technologies[techIndex]);
             if (status != 0) {
                 Log.d(TAG, "Connect Failed - status = "+ status);
                 if (status == STATUS_CODE_TARGET_LOST) {
                     break;
                 }
+                planner.onProbeResult(fingerprint, technologies[techIndex], false);
                 continue;  // try next handle
             }
             // Check if this type is NDEF formatable
@@ -827,7 +1001,11 @@ public class NativeNfcTag implements TagEndpoint {
                     // found - this is because libNFC refuses to format
                     // an already NDEF formatted tag.
                 }
-                reconnect();
+                // Only the IsoDep check talks to the tag (DESFire GetVersion);
+                // for the other types there is nothing to reset.
+                if (hasTech(TagTechnology.ISO_DEP)) {
+                    reconnect();
+                }
             }
 
             int[] ndefinfo = new int[2];
@@ -837,18 +1015,39 @@ public class NativeNfcTag implements TagEndpoint {
                 if (status == STATUS_CODE_TARGET_LOST) {
                     break;
                 }
+                planner.onProbeResult(fingerprint, technologies[techIndex], false);
                 continue;  // try next handle
             }
+            planner.onProbeResult(fingerprint, technologies[techIndex], true);
 
             // found our NDEF handle
             boolean generateEmptyNdef = false;
 
             int supportedNdefLength = ndefinfo[0];
             int cardState = ndefinfo[1];
-            byte[] buff = readNdef();
+            // A locked tag seen recently doesn't need to be read again
+            NdefReadCache cache = NdefReadCache.getInstance();
+            String cacheKey = NdefReadCache.makeKey(mUid, getConnectedLibNfcType(),
+                    supportedNdefLength, cardState);
+            NdefMessage cachedMsg = cacheKey != null ? cache.get(cacheKey) : null;
+            if (cachedMsg != null) {
+                if (DBG) Log.d(TAG, "Using cached NDEF message");
+                ndefMsg = cachedMsg;
+                addNdefTechnology(ndefMsg,
+                        getConnectedHandle(),
+                        getConnectedLibNfcType(),
+                        getConnectedTechnology(),
+                        supportedNdefLength, cardState);
+                reconnect();
+                break;
+            }
+            byte[] buff = readNdefMessage();
             if (buff != null && buff.length > 0) {
                 try {
                     ndefMsg = new NdefMessage(buff);
+                    if (cacheKey != null) {
+                        cache.put(cacheKey, ndefMsg);
+                    }
                     addNdefTechnology(ndefMsg,
                             getConnectedHandle(),
                             getConnectedLibNfcType(),
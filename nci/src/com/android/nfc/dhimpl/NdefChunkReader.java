@@ -0,0 +1,346 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc.dhimpl;
+
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reads the NDEF message of Type 4 and Type 5 tags in bounded chunks with
+ * plain tag commands, instead of through the one-shot NFA read.
+ *
+ * Every chunk is copied into a reused direct buffer and handed to the
+ * listener as soon as it has been received, so the caller can start parsing
+ * (and stop reading) before the whole message has been transferred.
+ *
+ * Tags this reader can't handle (no NDEF application, extended NDEF files,
+ * Type 5 tags without READ MULTIPLE BLOCKS, ...) give READ_UNSUPPORTED so
+ * the caller can fall back to the NFA read.
+ */
+final class NdefChunkReader {
+    static final boolean DBG = false;
+    static final String TAG = "NdefChunkReader";
+
+    static final int MAX_CHUNK_SIZE = 255;
+
+    static final int READ_COMPLETE = 0;
+    static final int READ_STOPPED = 1;
+    static final int READ_FAILED = 2;
+    static final int READ_UNSUPPORTED = 3;
+
+    interface Transceiver {
+        /**
+         * Returns the tag response, or null if the exchange failed.
+         */
+        byte[] transceive(byte[] data);
+    }
+
+    interface ChunkListener {
+        /**
+         * Called first with the total NDEF message length.
+         */
+        void onNdefLength(int length);
+
+        /**
+         * Called with the next bytes of the NDEF message, between the buffer
+         * position and limit. Returns false to stop reading.
+         */
+        boolean onChunk(ByteBuffer chunk);
+    }
+
+    // NFC Forum Type 4 Tag
+    private static final byte[] SELECT_NDEF_APP = {
+            (byte) 0x00, (byte) 0xA4, (byte) 0x04, (byte) 0x00, (byte) 0x07,
+            (byte) 0xD2, (byte) 0x76, (byte) 0x00, (byte) 0x00, (byte) 0x85,
+            (byte) 0x01, (byte) 0x01, (byte) 0x00 };
+    private static final byte[] CC_FILE_ID = { (byte) 0xE1, (byte) 0x03 };
+    private static final int CC_LENGTH = 15;
+    private static final byte NDEF_FILE_CONTROL_TLV = 0x04;
+
+    // NFC Forum Type 5 Tag
+    private static final byte T5T_REQ_FLAGS = 0x02; // high data rate
+    private static final byte T5T_READ_SINGLE_BLOCK = 0x20;
+    private static final byte T5T_READ_MULTIPLE_BLOCKS = 0x23;
+    private static final byte T5T_EXT_READ_MULTIPLE_BLOCKS = 0x33;
+    private static final byte T5T_CC_MAGIC = (byte) 0xE1;
+    private static final byte T5T_CC_MAGIC_EXT = (byte) 0xE2;
+    private static final byte T5T_CC_MBREAD = 0x01;
+    private static final int TLV_NULL = 0x00;
+    private static final int TLV_NDEF = 0x03;
+    private static final int TLV_TERMINATOR = 0xFE;
+
+    private final ByteBuffer mChunk = ByteBuffer.allocateDirect(MAX_CHUNK_SIZE);
+
+    private Transceiver mTransceiver;
+    // Type 5 window of blocks last read, mWindow[0] holds the response flags
+    private byte[] mWindow;
+    private int mWindowAddress;
+    private int mWindowLength;
+    private int mBlockSize;
+    private int mMemoryEnd;
+    private boolean mExtendedCommands;
+    // Set when the tag rejected a command rather than not answering
+    private boolean mRejected;
+
+    private boolean deliver(ChunkListener listener, byte[] data, int offset, int length) {
+        mChunk.clear();
+        mChunk.put(data, offset, length);
+        mChunk.flip();
+        return listener.onChunk(mChunk);
+    }
+
+    // ---- Type 4 ----
+
+    private static boolean isSuccess(byte[] response) {
+        return response != null && response.length >= 2
+                && response[response.length - 2] == (byte) 0x90
+                && response[response.length - 1] == (byte) 0x00;
+    }
+
+    private byte[] selectFile(byte[] fileId) {
+        byte[] cmd = { (byte) 0x00, (byte) 0xA4, (byte) 0x00, (byte) 0x0C, (byte) 0x02,
+                fileId[0], fileId[1] };
+        return mTransceiver.transceive(cmd);
+    }
+
+    private byte[] readBinary(int offset, int length) {
+        if (offset > 0x7FFF) {
+            // Needs the ODO form of READ BINARY
+            return null;
+        }
+        byte[] cmd = { (byte) 0x00, (byte) 0xB0, (byte) ((offset >> 8) & 0x7F),
+                (byte) (offset & 0xFF), (byte) length };
+        byte[] response = mTransceiver.transceive(cmd);
+        if (!isSuccess(response) || response.length - 2 > length) {
+            return null;
+        }
+        return response;
+    }
+
+    int readType4(Transceiver transceiver, ChunkListener listener) {
+        mTransceiver = transceiver;
+        if (!isSuccess(transceiver.transceive(SELECT_NDEF_APP))) {
+            return READ_UNSUPPORTED;
+        }
+        if (!isSuccess(selectFile(CC_FILE_ID))) {
+            return READ_FAILED;
+        }
+        byte[] cc = readBinary(0, CC_LENGTH);
+        if (cc == null || cc.length - 2 < CC_LENGTH || cc[7] != NDEF_FILE_CONTROL_TLV) {
+            // Mapping version 3.0 extended NDEF files are left to the NFA read
+            return READ_UNSUPPORTED;
+        }
+        int maxLe = ((cc[3] & 0xFF) << 8) | (cc[4] & 0xFF);
+        int chunkSize = Math.min(MAX_CHUNK_SIZE, Math.max(1, maxLe));
+        byte[] ndefFileId = { cc[9], cc[10] };
+        int maxFileSize = ((cc[11] & 0xFF) << 8) | (cc[12] & 0xFF);
+        if (cc[13] != 0x00) {
+            // No read access
+            return READ_UNSUPPORTED;
+        }
+
+        if (!isSuccess(selectFile(ndefFileId))) {
+            return READ_FAILED;
+        }
+        byte[] nlen = readBinary(0, 2);
+        if (nlen == null || nlen.length - 2 < 2) {
+            return READ_FAILED;
+        }
+        int length = ((nlen[0] & 0xFF) << 8) | (nlen[1] & 0xFF);
+        if (length > maxFileSize - 2) {
+            return READ_FAILED;
+        }
+        if (2 + length > 0x8000) {
+            // The tail needs the ODO form of READ BINARY
+            return READ_UNSUPPORTED;
+        }
+        listener.onNdefLength(length);
+        if (DBG) Log.d(TAG, "Type 4 NDEF length " + length + " chunk " + chunkSize);
+
+        int offset = 0;
+        while (offset < length) {
+            int count = Math.min(chunkSize, length - offset);
+            byte[] response = readBinary(2 + offset, count);
+            if (response == null || response.length - 2 == 0) {
+                return READ_FAILED;
+            }
+            int received = response.length - 2;
+            offset += received;
+            if (!deliver(listener, response, 0, received)) {
+                return READ_STOPPED;
+            }
+        }
+        return READ_COMPLETE;
+    }
+
+    // ---- Type 5 ----
+
+    private boolean readCc() {
+        byte[] response = mTransceiver.transceive(
+                new byte[] { T5T_REQ_FLAGS, T5T_READ_SINGLE_BLOCK, (byte) 0x00 });
+        // First byte holds the response flags, bit 0 signals an error
+        if (response == null || response.length < 2) {
+            return false;
+        }
+        if ((response[0] & 0x01) != 0) {
+            mRejected = true;
+            return false;
+        }
+        mBlockSize = response.length - 1;
+        mWindow = response;
+        mWindowAddress = 0;
+        mWindowLength = mBlockSize;
+        return true;
+    }
+
+    // Reads as many blocks as fit in a chunk, starting with the block holding address
+    private boolean readWindow(int address) {
+        int first = address / mBlockSize;
+        int blocks = (mMemoryEnd + mBlockSize - 1) / mBlockSize;
+        int last = Math.min(first + MAX_CHUNK_SIZE / mBlockSize, blocks) - 1;
+        if (last < first) {
+            return false;
+        }
+        byte[] cmd;
+        if (mExtendedCommands) {
+            cmd = new byte[] { T5T_REQ_FLAGS, T5T_EXT_READ_MULTIPLE_BLOCKS,
+                    (byte) (first & 0xFF), (byte) ((first >> 8) & 0xFF),
+                    (byte) ((last - first) & 0xFF), (byte) (((last - first) >> 8) & 0xFF) };
+        } else {
+            if (last > 0xFF) {
+                mRejected = true;
+                return false;
+            }
+            cmd = new byte[] { T5T_REQ_FLAGS, T5T_READ_MULTIPLE_BLOCKS, (byte) first,
+                    (byte) (last - first) };
+        }
+        byte[] response = mTransceiver.transceive(cmd);
+        if (response == null || response.length < 1) {
+            return false;
+        }
+        if ((response[0] & 0x01) != 0 || response.length - 1 != (last - first + 1) * mBlockSize) {
+            mRejected = true;
+            return false;
+        }
+        mWindow = response;
+        mWindowAddress = first * mBlockSize;
+        mWindowLength = response.length - 1;
+        return true;
+    }
+
+    // Returns the byte at a byte address of the tag memory, or -1
+    private int byteAt(int address) {
+        if (address >= mMemoryEnd) return -1;
+        if (address < mWindowAddress || address >= mWindowAddress + mWindowLength) {
+            if (!readWindow(address)) return -1;
+        }
+        return mWindow[1 + address - mWindowAddress] & 0xFF;
+    }
+
+    private int failure() {
+        return mRejected ? READ_UNSUPPORTED : READ_FAILED;
+    }
+
+    int readType5(Transceiver transceiver, ChunkListener listener) {
+        mTransceiver = transceiver;
+        mBlockSize = 0;
+        mExtendedCommands = false;
+        mRejected = false;
+        mMemoryEnd = Integer.MAX_VALUE;
+        if (!readCc()) {
+            return failure();
+        }
+        if (mBlockSize < 4) {
+            return READ_UNSUPPORTED;
+        }
+        byte magic = mWindow[1];
+        if (magic != T5T_CC_MAGIC && magic != T5T_CC_MAGIC_EXT) {
+            return READ_UNSUPPORTED;
+        }
+        if ((mWindow[2] & 0x0C) != 0) {
+            // No read access
+            return READ_UNSUPPORTED;
+        }
+        if ((mWindow[4] & T5T_CC_MBREAD) == 0) {
+            // Only READ SINGLE BLOCK, one block per exchange; leave it to NFA
+            return READ_UNSUPPORTED;
+        }
+        mExtendedCommands = magic == T5T_CC_MAGIC_EXT;
+        // MLEN counts the data area after the CC, in units of 8 bytes. An
+        // 8 byte CC is signalled by a zero MLEN in byte 2, with the real
+        // MLEN in bytes 6 and 7.
+        int ccLength;
+        int mlen = mWindow[3] & 0xFF;
+        if (mlen == 0) {
+            ccLength = 8;
+            mMemoryEnd = 8;
+            int high = byteAt(6);
+            int low = byteAt(7);
+            if (high < 0 || low < 0) return failure();
+            mlen = (high << 8) | low;
+        } else {
+            ccLength = 4;
+        }
+        mMemoryEnd = ccLength + mlen * 8;
+        int address = ccLength;
+
+        // Find the NDEF TLV
+        int length = -1;
+        while (length < 0) {
+            int type = byteAt(address++);
+            if (type < 0) return address > mMemoryEnd ? READ_FAILED : failure();
+            if (type == TLV_NULL) continue;
+            if (type == TLV_TERMINATOR) {
+                listener.onNdefLength(0);
+                return READ_COMPLETE;
+            }
+            int tlvLength = byteAt(address++);
+            if (tlvLength < 0) return address > mMemoryEnd ? READ_FAILED : failure();
+            if (tlvLength == 0xFF) {
+                int high = byteAt(address++);
+                int low = byteAt(address++);
+                if (high < 0 || low < 0) return address > mMemoryEnd ? READ_FAILED : failure();
+                tlvLength = (high << 8) | low;
+            }
+            if (type == TLV_NDEF) {
+                length = tlvLength;
+            } else {
+                address += tlvLength;
+            }
+        }
+        if (address + length > mMemoryEnd) {
+            return READ_FAILED;
+        }
+        listener.onNdefLength(length);
+        if (DBG) Log.d(TAG, "Type 5 NDEF length " + length + " block " + mBlockSize);
+
+        int end = address + length;
+        while (address < end) {
+            if (address >= mWindowAddress + mWindowLength || address < mWindowAddress) {
+                if (!readWindow(address)) return failure();
+            }
+            int offset = address - mWindowAddress;
+            int count = Math.min(mWindowLength - offset, end - address);
+            address += count;
+            if (!deliver(listener, mWindow, 1 + offset, count)) {
+                return READ_STOPPED;
+            }
+        }
+        return READ_COMPLETE;
+    }
+}
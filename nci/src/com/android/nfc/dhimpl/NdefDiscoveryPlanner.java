@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc.dhimpl;
+
+import android.nfc.tech.TagTechnology;
+import android.util.LruCache;
+
+import java.io.PrintWriter;
+
+/**
+ * Decides in which order {@link NativeNfcTag#findAndReadNdef} probes the
+ * technologies of a tag for NDEF.
+ *
+ * Technologies that share a handle and an RF interface are probed only once.
+ * The remaining candidates are ordered by how often each technology yielded
+ * NDEF on earlier tags with the same fingerprint (tech list plus NFC-A
+ * SAK/ATQA), so that e.g. a Type 4 tag is connected through IsoDep first
+ * instead of paying for a failed attempt through the NfcA frame interface.
+ */
+final class NdefDiscoveryPlanner {
+    static final int MAX_FINGERPRINTS = 64;
+    static final int MAX_TECHNOLOGY = TagTechnology.NFC_BARCODE;
+
+    // RF interface selected by the JNI layer when connecting a technology
+    static final int RF_INTERFACE_NATIVE = 0;
+    static final int RF_INTERFACE_FRAME = 1;
+    static final int RF_INTERFACE_MIFARE = 2;
+
+    private static NdefDiscoveryPlanner sInstance;
+
+    private static final class ProbeStats {
+        // Indexed by TagTechnology
+        final int[] attempts = new int[MAX_TECHNOLOGY + 1];
+        final int[] successes = new int[MAX_TECHNOLOGY + 1];
+
+        // Laplace-smoothed success probability, scaled to avoid floats
+        int score(int technology) {
+            if (technology < 0 || technology >= attempts.length) return 500;
+            return (successes[technology] + 1) * 1000 / (attempts[technology] + 2);
+        }
+    }
+
+    private final LruCache<String, ProbeStats> mStats =
+            new LruCache<String, ProbeStats>(MAX_FINGERPRINTS);
+
+    static synchronized NdefDiscoveryPlanner getInstance() {
+        if (sInstance == null) {
+            sInstance = new NdefDiscoveryPlanner();
+        }
+        return sInstance;
+    }
+
+    static String fingerprint(int[] techList, byte[][] pollBytes, byte[][] actBytes) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < techList.length; i++) {
+            sb.append(techList[i]).append(',');
+            if (techList[i] == TagTechnology.NFC_A) {
+                if (actBytes != null && i < actBytes.length && actBytes[i] != null
+                        && actBytes[i].length > 0) {
+                    sb.append("sak=").append(actBytes[i][0] & 0xFF).append(',');
+                }
+                if (pollBytes != null && i < pollBytes.length && pollBytes[i] != null) {
+                    sb.append("atqa=");
+                    for (byte b : pollBytes[i]) {
+                        sb.append(b & 0xFF).append('.');
+                    }
+                    sb.append(',');
+                }
+            }
+        }
+        return sb.toString();
+    }
+
+    static int rfInterfaceOf(int technology) {
+        switch (technology) {
+            case TagTechnology.NFC_A:
+            case TagTechnology.NFC_B:
+                return RF_INTERFACE_FRAME;
+            case TagTechnology.MIFARE_CLASSIC:
+                return RF_INTERFACE_MIFARE;
+            default:
+                return RF_INTERFACE_NATIVE;
+        }
+    }
+
+    /**
+     * Returns the indices into {@code techList} to probe, in order.
+     */
+    synchronized int[] plan(String fingerprint, int[] techList, int[] handles) {
+        int[] order = new int[techList.length];
+        int count = 0;
+        for (int techIndex = 0; techIndex < techList.length; techIndex++) {
+            // have we seen this handle and RF interface before?
+            boolean duplicate = false;
+            for (int i = 0; i < techIndex; i++) {
+                if (handles[i] == handles[techIndex]
+                        && rfInterfaceOf(techList[i]) == rfInterfaceOf(techList[techIndex])) {
+                    duplicate = true;
+                    break;
+                }
+            }
+            if (!duplicate) {
+                order[count++] = techIndex;
+            }
+        }
+
+        ProbeStats stats = mStats.get(fingerprint);
+        if (stats != null) {
+            // Stable insertion sort, most promising technology first
+            for (int i = 1; i < count; i++) {
+                int index = order[i];
+                int score = stats.score(techList[index]);
+                int j = i - 1;
+                while (j >= 0 && stats.score(techList[order[j]]) < score) {
+                    order[j + 1] = order[j];
+                    j--;
+                }
+                order[j + 1] = index;
+            }
+        }
+
+        int[] plan = new int[count];
+        System.arraycopy(order, 0, plan, 0, count);
+        return plan;
+    }
+
+    synchronized void onProbeResult(String fingerprint, int technology, boolean foundNdef) {
+        if (technology < 0 || technology > MAX_TECHNOLOGY) return;
+        ProbeStats stats = mStats.get(fingerprint);
+        if (stats == null) {
+            stats = new ProbeStats();
+            mStats.put(fingerprint, stats);
+        }
+        stats.attempts[technology]++;
+        if (foundNdef) {
+            stats.successes[technology]++;
+        }
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        pw.println("NDEF discovery planner: fingerprints=" + mStats.size());
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc.dhimpl;
+
+import android.nfc.NdefMessage;
+import android.nfc.tech.Ndef;
+import android.os.SystemClock;
+import android.util.LruCache;
+
+import java.io.PrintWriter;
+
+/**
+ * Remembers the NDEF message of recently read read-only tags, so that a
+ * re-tap of the same tag (posters, kiosks, debounced taps) doesn't read the
+ * whole NDEF again.
+ *
+ * Entries are keyed by the tag UID plus the NDEF capability container as
+ * reported by the NDEF check (tag type, maximum NDEF size and card state),
+ * and only locked tags with a fixed UID are cached. A read-only tag can't
+ * change its content, so the only risk is a different tag reusing the same
+ * UID and capability container; the TTL bounds how long that would go
+ * unnoticed.
+ */
+final class NdefReadCache {
+    static final int MAX_ENTRIES = 32;
+    static final long TTL_MS = 5 * 60 * 1000;
+
+    private static NdefReadCache sInstance;
+
+    private static final class Entry {
+        final NdefMessage message;
+        final long timestamp;
+
+        Entry(NdefMessage message, long timestamp) {
+            this.message = message;
+            this.timestamp = timestamp;
+        }
+    }
+
+    private final LruCache<String, Entry> mCache;
+    private final long mTtlMs;
+    private int mHits;
+    private int mMisses;
+
+    NdefReadCache() {
+        this(MAX_ENTRIES, TTL_MS);
+    }
+
+    NdefReadCache(int maxEntries, long ttlMs) {
+        mCache = new LruCache<String, Entry>(maxEntries);
+        mTtlMs = ttlMs;
+    }
+
+    static synchronized NdefReadCache getInstance() {
+        if (sInstance == null) {
+            sInstance = new NdefReadCache();
+        }
+        return sInstance;
+    }
+
+    /**
+     * Returns the cache key for a tag, or null if its NDEF must not be cached.
+     */
+    static String makeKey(byte[] uid, int libNfcType, int maxNdefLength, int cardState) {
+        if (cardState != Ndef.NDEF_MODE_READ_ONLY || uid == null || uid.length == 0) {
+            return null;
+        }
+        // Single size NFC-A UIDs starting with 0x08 are random, see ISO/IEC 14443-3
+        if (uid.length == 4 && uid[0] == (byte) 0x08) {
+            return null;
+        }
+        StringBuilder key = new StringBuilder(uid.length * 2 + 16);
+        for (byte b : uid) {
+            key.append(Character.forDigit((b >> 4) & 0xF, 16));
+            key.append(Character.forDigit(b & 0xF, 16));
+        }
+        key.append(':').append(libNfcType).append(':').append(maxNdefLength);
+        return key.toString();
+    }
+
+    synchronized NdefMessage get(String key) {
+        Entry entry = mCache.get(key);
+        if (entry != null && SystemClock.elapsedRealtime() - entry.timestamp > mTtlMs) {
+            mCache.remove(key);
+            entry = null;
+        }
+        if (entry == null) {
+            mMisses++;
+            return null;
+        }
+        mHits++;
+        return entry.message;
+    }
+
+    synchronized void put(String key, NdefMessage message) {
+        mCache.put(key, new Entry(message, SystemClock.elapsedRealtime()));
+    }
+
+    /**
+     * Drops all entries of a tag, e.g. after it has been written or locked.
+     */
+    synchronized void invalidate(byte[] uid) {
+        String prefix = makeKey(uid, 0, 0, Ndef.NDEF_MODE_READ_ONLY);
+        if (prefix == null) return;
+        prefix = prefix.substring(0, prefix.indexOf(':') + 1);
+        for (String key : mCache.snapshot().keySet()) {
+            if (key.startsWith(prefix)) {
+                mCache.remove(key);
+            }
+        }
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        pw.println("NDEF read cache: size=" + mCache.size() + " hits=" + mHits
+                + " misses=" + mMisses);
+    }
+}
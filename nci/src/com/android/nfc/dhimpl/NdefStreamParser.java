@@ -0,0 +1,258 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc.dhimpl;
+
+import android.nfc.NdefRecord;
+
+import com.android.nfc.DeviceHost;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Incremental NDEF message parser. Bytes are fed in arbitrary chunks as they
+ * are read from the tag, and every record is handed to the callback as soon
+ * as its last byte has arrived. Chunked records (CF flag) are reassembled
+ * before being delivered.
+ */
+final class NdefStreamParser {
+    static final byte FLAG_MB = (byte) 0x80;
+    static final byte FLAG_ME = (byte) 0x40;
+    static final byte FLAG_CF = (byte) 0x20;
+    static final byte FLAG_SR = (byte) 0x10;
+    static final byte FLAG_IL = (byte) 0x08;
+
+    static final int RESULT_NEED_MORE = 0;
+    static final int RESULT_DONE = 1;
+    static final int RESULT_STOPPED = 2;
+    static final int RESULT_ERROR = 3;
+
+    private static final int STATE_HEADER = 0;
+    private static final int STATE_TYPE_LENGTH = 1;
+    private static final int STATE_PAYLOAD_LENGTH = 2;
+    private static final int STATE_ID_LENGTH = 3;
+    private static final int STATE_TYPE = 4;
+    private static final int STATE_ID = 5;
+    private static final int STATE_PAYLOAD = 6;
+
+    private final DeviceHost.NdefRecordCallback mCallback;
+    // Total length of the NDEF message, bounds every length field
+    private final int mMessageLength;
+
+    private int mState = STATE_HEADER;
+    private int mConsumed;
+    private boolean mFirstRecord = true;
+    private int mResult = RESULT_NEED_MORE;
+
+    // Fields of the record being parsed
+    private byte mFlags;
+    private short mTnf;
+    private int mTypeLength;
+    private int mPayloadLength;
+    private int mIdLength;
+    private int mLengthBytesLeft;
+    private byte[] mType;
+    private byte[] mId;
+    private byte[] mPayload;
+    private int mFieldOffset;
+
+    // Chunked record reassembly
+    private boolean mInChunk;
+    private short mChunkTnf;
+    private byte[] mChunkType;
+    private byte[] mChunkId;
+    private ByteArrayOutputStream mChunkPayload;
+
+    NdefStreamParser(int messageLength, DeviceHost.NdefRecordCallback callback) {
+        mMessageLength = messageLength;
+        mCallback = callback;
+    }
+
+    int getResult() {
+        return mResult;
+    }
+
+    /**
+     * Returns the number of message bytes parsed so far.
+     */
+    int getConsumed() {
+        return mConsumed;
+    }
+
+    /**
+     * Consumes the remaining bytes of {@code chunk}. Returns one of the
+     * RESULT_ constants; once that is no longer RESULT_NEED_MORE further
+     * input is ignored.
+     */
+    int feed(ByteBuffer chunk) {
+        while (mResult == RESULT_NEED_MORE && chunk.hasRemaining()
+                && mConsumed < mMessageLength) {
+            switch (mState) {
+                case STATE_HEADER:
+                    startRecord(chunk.get());
+                    mConsumed++;
+                    break;
+                case STATE_TYPE_LENGTH:
+                    mTypeLength = chunk.get() & 0xFF;
+                    mConsumed++;
+                    mLengthBytesLeft = (mFlags & FLAG_SR) != 0 ? 1 : 4;
+                    mPayloadLength = 0;
+                    mState = STATE_PAYLOAD_LENGTH;
+                    break;
+                case STATE_PAYLOAD_LENGTH:
+                    mPayloadLength = (mPayloadLength << 8) | (chunk.get() & 0xFF);
+                    mConsumed++;
+                    if (--mLengthBytesLeft == 0) {
+                        if (mPayloadLength < 0 || mPayloadLength > mMessageLength) {
+                            mResult = RESULT_ERROR;
+                            break;
+                        }
+                        mState = (mFlags & FLAG_IL) != 0 ? STATE_ID_LENGTH : STATE_TYPE;
+                        if (mState == STATE_TYPE) startFields();
+                    }
+                    break;
+                case STATE_ID_LENGTH:
+                    mIdLength = chunk.get() & 0xFF;
+                    mConsumed++;
+                    mState = STATE_TYPE;
+                    startFields();
+                    break;
+                case STATE_TYPE:
+                case STATE_ID:
+                case STATE_PAYLOAD:
+                    readField(chunk);
+                    break;
+            }
+            if (mResult == RESULT_NEED_MORE && mState > STATE_ID_LENGTH) {
+                advanceFields();
+            }
+        }
+        if (mResult == RESULT_NEED_MORE && mConsumed >= mMessageLength) {
+            // The message ended without a record carrying ME
+            mResult = RESULT_ERROR;
+        }
+        return mResult;
+    }
+
+    private void startRecord(byte flags) {
+        mFlags = flags;
+        mTnf = (short) (flags & 0x07);
+        mIdLength = 0;
+        boolean mb = (flags & FLAG_MB) != 0;
+        if (mb != mFirstRecord) {
+            mResult = RESULT_ERROR;
+            return;
+        }
+        mFirstRecord = false;
+        if (mInChunk != (mTnf == NdefRecord.TNF_UNCHANGED)) {
+            // Only middle and last chunks use TNF_UNCHANGED
+            mResult = RESULT_ERROR;
+            return;
+        }
+        mState = STATE_TYPE_LENGTH;
+    }
+
+    private void startFields() {
+        if (mTypeLength + mIdLength + mPayloadLength > mMessageLength - mConsumed) {
+            mResult = RESULT_ERROR;
+            return;
+        }
+        mType = new byte[mTypeLength];
+        mId = new byte[mIdLength];
+        mPayload = new byte[mPayloadLength];
+        mFieldOffset = 0;
+    }
+
+    private byte[] currentField() {
+        switch (mState) {
+            case STATE_TYPE: return mType;
+            case STATE_ID: return mId;
+            default: return mPayload;
+        }
+    }
+
+    private void readField(ByteBuffer chunk) {
+        byte[] field = currentField();
+        int count = Math.min(field.length - mFieldOffset, chunk.remaining());
+        chunk.get(field, mFieldOffset, count);
+        mFieldOffset += count;
+        mConsumed += count;
+    }
+
+    // Moves past completed (possibly empty) fields, and ends the record
+    private void advanceFields() {
+        while (mResult == RESULT_NEED_MORE && mFieldOffset == currentField().length) {
+            mFieldOffset = 0;
+            if (mState == STATE_TYPE) {
+                mState = STATE_ID;
+            } else if (mState == STATE_ID) {
+                mState = STATE_PAYLOAD;
+            } else {
+                endRecord();
+                return;
+            }
+        }
+    }
+
+    private void endRecord() {
+        mState = STATE_HEADER;
+        boolean cf = (mFlags & FLAG_CF) != 0;
+        boolean me = (mFlags & FLAG_ME) != 0;
+        if (!mInChunk && !cf) {
+            deliver(mTnf, mType, mId, mPayload);
+        } else if (!mInChunk) {
+            // First chunk
+            if (me) {
+                mResult = RESULT_ERROR;
+                return;
+            }
+            mInChunk = true;
+            mChunkTnf = mTnf;
+            mChunkType = mType;
+            mChunkId = mId;
+            mChunkPayload = new ByteArrayOutputStream(mPayload.length * 2);
+            mChunkPayload.write(mPayload, 0, mPayload.length);
+        } else {
+            if (mTypeLength != 0 || mIdLength != 0) {
+                mResult = RESULT_ERROR;
+                return;
+            }
+            mChunkPayload.write(mPayload, 0, mPayload.length);
+            if (!cf) {
+                mInChunk = false;
+                deliver(mChunkTnf, mChunkType, mChunkId, mChunkPayload.toByteArray());
+                mChunkPayload = null;
+            }
+        }
+        if (mResult == RESULT_NEED_MORE && me) {
+            mResult = mInChunk ? RESULT_ERROR : RESULT_DONE;
+        }
+    }
+
+    private void deliver(short tnf, byte[] type, byte[] id, byte[] payload) {
+        NdefRecord record;
+        try {
+            record = new NdefRecord(tnf, type, id, payload);
+        } catch (IllegalArgumentException e) {
+            mResult = RESULT_ERROR;
+            return;
+        }
+        if (!mCallback.onNdefRecord(record)) {
+            mResult = RESULT_STOPPED;
+        }
+    }
+}
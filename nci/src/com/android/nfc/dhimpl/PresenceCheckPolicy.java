@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc.dhimpl;
+
+import android.nfc.tech.TagTechnology;
+import android.util.Log;
+
+import java.io.PrintWriter;
+
+/**
+ * Decides when the next presence check of a tag is due, and keeps statistics
+ * on how fast tag removal is detected versus how many checks that costs.
+ *
+ * The interval requested by the upper layers is used as the starting point:
+ * - an exchange with the tag re-arms the check a full interval later;
+ * - once a tag has passed a number of checks in a row, the interval backs off
+ *   towards the technology maximum;
+ * - a failed transceive resets the interval and checks again almost
+ *   immediately.
+ * Failed connects and reconnects don't tighten the interval, as they are
+ * expected while probing technologies.
+ */
+final class PresenceCheckPolicy {
+    static final String TAG = "PresenceCheckPolicy";
+
+    static final class Tunables {
+        // Upper bound for the backed-off interval
+        final int maxIntervalMs;
+        // Number of consecutive successful checks before each backoff step
+        final int backoffAfterChecks;
+        // Multiplier applied to the interval on each backoff step, in percent
+        final int backoffPercent;
+        // Delay of the check that follows a failed transceive
+        final int retryDelayMs;
+
+        Tunables(int maxIntervalMs, int backoffAfterChecks, int backoffPercent,
+                int retryDelayMs) {
+            this.maxIntervalMs = maxIntervalMs;
+            this.backoffAfterChecks = backoffAfterChecks;
+            this.backoffPercent = backoffPercent;
+            this.retryDelayMs = retryDelayMs;
+        }
+    }
+
+    // Values per technology in the presence_check_tunables resource
+    static final int TUNABLES_CONFIG_SIZE = 5;
+
+    // Indexed by TagTechnology; index 0 holds the defaults
+    static final int MAX_TECHNOLOGY = TagTechnology.NFC_BARCODE;
+
+    static final class Stats {
+        long checks;
+        long deferredByExchange;
+        long failedTransceives;
+        long tagsLost;
+        long totalDetectionLatencyMs;
+        long maxDetectionLatencyMs;
+    }
+
+    private static final Tunables DEFAULT_TUNABLES = new Tunables(500, 8, 150, 20);
+
+    private final Tunables[] mTunables = new Tunables[MAX_TECHNOLOGY + 1];
+    private final Stats[] mStats = new Stats[MAX_TECHNOLOGY + 1];
+
+    PresenceCheckPolicy() {
+        for (int i = 0; i <= MAX_TECHNOLOGY; i++) {
+            mTunables[i] = DEFAULT_TUNABLES;
+            mStats[i] = new Stats();
+        }
+        // ISO-DEP presence checks are cheap but payment terminals and
+        // transit readers expect removal to be noticed quickly.
+        mTunables[TagTechnology.ISO_DEP] = new Tunables(375, 8, 150, 20);
+        // Type 2 / Type 5 tags are mostly static data tags held on a reader
+        // for a long time.
+        mTunables[TagTechnology.MIFARE_ULTRALIGHT] = new Tunables(1000, 4, 200, 20);
+        mTunables[TagTechnology.NFC_V] = new Tunables(1000, 4, 200, 30);
+        // A Mifare Classic presence check re-authenticates a sector; keep
+        // them infrequent.
+        mTunables[TagTechnology.MIFARE_CLASSIC] = new Tunables(1000, 4, 200, 30);
+    }
+
+    synchronized void setTunables(int technology, Tunables tunables) {
+        if (technology < 0 || technology > MAX_TECHNOLOGY) return;
+        mTunables[technology] = tunables != null ? tunables : DEFAULT_TUNABLES;
+    }
+
+    /**
+     * Overrides the tunables of the technologies listed in {@code config}:
+     * groups of technology, max interval, checks per backoff step, backoff
+     * percent and retry delay. Malformed groups are skipped.
+     */
+    void setTunables(int[] config) {
+        if (config == null) return;
+        if (config.length % TUNABLES_CONFIG_SIZE != 0) {
+            Log.e(TAG, "Ignoring incomplete presence check tunables");
+        }
+        for (int i = 0; i + TUNABLES_CONFIG_SIZE <= config.length; i += TUNABLES_CONFIG_SIZE) {
+            int technology = config[i];
+            Tunables tunables = new Tunables(config[i + 1], config[i + 2], config[i + 3],
+                    config[i + 4]);
+            if (technology < 0 || technology > MAX_TECHNOLOGY || tunables.maxIntervalMs <= 0
+                    || tunables.backoffAfterChecks <= 0 || tunables.backoffPercent < 100
+                    || tunables.retryDelayMs < 0) {
+                Log.e(TAG, "Ignoring presence check tunables for technology " + technology);
+                continue;
+            }
+            setTunables(technology, tunables);
+        }
+    }
+
+    synchronized Tunables getTunables(int technology) {
+        if (technology < 0 || technology > MAX_TECHNOLOGY) return DEFAULT_TUNABLES;
+        return mTunables[technology];
+    }
+
+    private Stats getStats(int technology) {
+        if (technology < 0 || technology > MAX_TECHNOLOGY) return mStats[0];
+        return mStats[technology];
+    }
+
+    /**
+     * Returns the interval to use after a successful check.
+     */
+    synchronized int onCheckSucceeded(int technology, int baseIntervalMs, int intervalMs,
+            int consecutiveChecks) {
+        getStats(technology).checks++;
+        Tunables tunables = getTunables(technology);
+        if (consecutiveChecks % tunables.backoffAfterChecks != 0) {
+            return intervalMs;
+        }
+        // Never back off below what was requested
+        int maxIntervalMs = Math.max(baseIntervalMs, tunables.maxIntervalMs);
+        return Math.min(maxIntervalMs, intervalMs * tunables.backoffPercent / 100);
+    }
+
+    synchronized void onCheckFailed(int technology, long detectionLatencyMs) {
+        Stats stats = getStats(technology);
+        stats.checks++;
+        stats.tagsLost++;
+        stats.totalDetectionLatencyMs += detectionLatencyMs;
+        stats.maxDetectionLatencyMs = Math.max(stats.maxDetectionLatencyMs, detectionLatencyMs);
+    }
+
+    synchronized void onExchange(int technology) {
+        getStats(technology).deferredByExchange++;
+    }
+
+    /**
+     * Returns the delay of the next check after a failed transceive.
+     */
+    synchronized int onTransceiveFailed(int technology) {
+        getStats(technology).failedTransceives++;
+        return getTunables(technology).retryDelayMs;
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        pw.println("Presence check stats:");
+        for (int i = 0; i <= MAX_TECHNOLOGY; i++) {
+            Stats stats = mStats[i];
+            if (stats.checks == 0 && stats.deferredByExchange == 0) continue;
+            long avgLatencyMs = stats.tagsLost > 0
+                    ? stats.totalDetectionLatencyMs / stats.tagsLost : 0;
+            pw.println("  tech=" + i
+                    + " checks=" + stats.checks
+                    + " deferredByExchange=" + stats.deferredByExchange
+                    + " failedTransceives=" + stats.failedTransceives
+                    + " tagsLost=" + stats.tagsLost
+                    + " avgDetectionLatencyMs=" + avgLatencyMs
+                    + " maxDetectionLatencyMs=" + stats.maxDetectionLatencyMs);
+        }
+    }
+}
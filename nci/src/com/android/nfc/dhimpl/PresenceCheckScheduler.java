@@ -0,0 +1,404 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc.dhimpl;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Drives the background presence checks of all connected tags from a single
+ * thread, instead of one watchdog thread per tag.
+ *
+ * Pending checks are kept in a hashed timer wheel: every entry is linked into
+ * the slot of its deadline tick, so scheduling, pausing and resuming a check
+ * are O(1) and the thread only looks at one slot per tick. The thread is
+ * started once and sleeps while no tag is being checked.
+ *
+ * The checks themselves, and the disconnect of a lost tag, block on the tag
+ * and the controller, so they are handed to a few check threads; a slow tag
+ * only holds up its own checks. An entry has at most one check in flight.
+ *
+ * How far apart the checks are is decided by {@link PresenceCheckPolicy}.
+ */
+final class PresenceCheckScheduler {
+    static final boolean DBG = false;
+    static final String TAG = "PresenceCheckScheduler";
+
+    static final int TICK_MS = 10;
+    // Must be a power of two
+    static final int WHEEL_SIZE = 64;
+    static final int WHEEL_MASK = WHEEL_SIZE - 1;
+
+    static final int CHECK_THREADS = 3;
+    static final int CHECK_KEEP_ALIVE_SECONDS = 10;
+
+    interface Target {
+        /**
+         * Returns whether the target is still in the field.
+         */
+        boolean checkPresence();
+
+        /**
+         * Called exactly once on a check thread, when the target was found
+         * to be lost or its checking was ended.
+         */
+        void onPresenceCheckEnded(boolean notifyDisconnected);
+    }
+
+    /**
+     * Presence checking state of a single target. All fields are protected
+     * by the scheduler lock.
+     */
+    final class Entry {
+        final Target target;
+        final int technology;
+        final int baseIntervalMs;
+        int intervalMs;
+        int consecutiveChecks;
+        // Last time the target was known to be in the field
+        long lastPresentTime;
+
+        long deadline;
+        // Slot this entry is linked into, or -1 if it is not in the wheel
+        int slot = -1;
+        Entry prev;
+        Entry next;
+
+        boolean paused;
+        boolean checking;
+        boolean stopped;
+        boolean disableCallback;
+        boolean ending;
+        boolean ended;
+        // Thread running onPresenceCheckEnded
+        Thread endingThread;
+
+        Entry(Target target, int technology, int intervalMs) {
+            this.target = target;
+            this.technology = technology;
+            this.baseIntervalMs = intervalMs;
+            this.intervalMs = intervalMs;
+            this.lastPresentTime = SystemClock.uptimeMillis();
+        }
+
+        /**
+         * Suspends checks, e.g. while the tag is being talked to.
+         */
+        public void pause() {
+            synchronized (mLock) {
+                if (stopped) return;
+                paused = true;
+                // Leave the entry in the wheel; it is dropped when it fires
+                // while paused, and re-armed by resume().
+            }
+        }
+
+        /**
+         * Re-arms checking after an exchange with the tag, a full interval
+         * from now. A successful exchange also shows the tag was present.
+         * A failed one doesn't tighten the interval: connects and reconnects
+         * fail while probing technologies with the tag still there.
+         */
+        public void resume(boolean exchangeSucceeded) {
+            synchronized (mLock) {
+                if (stopped) return;
+                paused = false;
+                unlink(this);
+                if (exchangeSucceeded) {
+                    lastPresentTime = SystemClock.uptimeMillis();
+                }
+                mPolicy.onExchange(technology);
+                if (!checking) {
+                    schedule(this, intervalMs);
+                }
+            }
+        }
+
+        /**
+         * Re-arms checking after a transceive. After a failed one the
+         * backoff is reset and the tag is checked again right away.
+         */
+        public void resumeAfterTransceive(boolean transceiveSucceeded) {
+            if (transceiveSucceeded) {
+                resume(true);
+                return;
+            }
+            synchronized (mLock) {
+                if (stopped) return;
+                paused = false;
+                unlink(this);
+                intervalMs = baseIntervalMs;
+                consecutiveChecks = 0;
+                int delayMs = mPolicy.onTransceiveFailed(technology);
+                if (!checking) {
+                    schedule(this, delayMs);
+                }
+            }
+        }
+
+        /**
+         * Stops checking. The target is disconnected on a check thread.
+         */
+        public void end(boolean disableCallback) {
+            synchronized (mLock) {
+                if (disableCallback) {
+                    this.disableCallback = true;
+                }
+                if (stopped) return;
+                stopped = true;
+                unlink(this);
+                mEnding.add(this);
+                mLock.notifyAll();
+            }
+        }
+
+        /**
+         * Blocks until {@link Target#onPresenceCheckEnded} has returned.
+         */
+        public void awaitEnded() {
+            synchronized (mLock) {
+                if (Thread.currentThread() == endingThread) {
+                    // Called from the target's own callback
+                    return;
+                }
+                while (!ended) {
+                    try {
+                        mLock.wait();
+                    } catch (InterruptedException e) {
+                        // Should never happen.
+                    }
+                }
+            }
+        }
+    }
+
+    private static PresenceCheckScheduler sInstance;
+
+    private final Object mLock = new Object();
+    private final PresenceCheckPolicy mPolicy = new PresenceCheckPolicy();
+    private final Entry[] mWheel = new Entry[WHEEL_SIZE];
+    private final ArrayList<Entry> mEnding = new ArrayList<Entry>();
+    private final ThreadPoolExecutor mCheckExecutor;
+    private Thread mThread;
+    // Next tick to be processed, and the time of tick 0
+    private long mTick;
+    private long mStartTime;
+    private int mActiveEntries;
+
+    static synchronized PresenceCheckScheduler getInstance() {
+        if (sInstance == null) {
+            sInstance = new PresenceCheckScheduler();
+        }
+        return sInstance;
+    }
+
+    private PresenceCheckScheduler() {
+        mStartTime = SystemClock.uptimeMillis();
+        final AtomicInteger threadCount = new AtomicInteger();
+        mCheckExecutor = new ThreadPoolExecutor(CHECK_THREADS, CHECK_THREADS,
+                CHECK_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r,
+                                "NfcPresenceCheck-" + threadCount.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        mCheckExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    PresenceCheckPolicy getPolicy() {
+        return mPolicy;
+    }
+
+    /**
+     * Starts checking {@code target}, initially every {@code intervalMs}. The
+     * first check happens after one full interval.
+     */
+    Entry start(Target target, int technology, int intervalMs) {
+        Entry entry = new Entry(target, technology, intervalMs);
+        synchronized (mLock) {
+            if (mThread == null) {
+                mThread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        runLoop();
+                    }
+                }, "NfcPresenceCheck");
+                mThread.setDaemon(true);
+                mThread.start();
+            }
+            mActiveEntries++;
+            schedule(entry, intervalMs);
+            mLock.notifyAll();
+        }
+        return entry;
+    }
+
+    // Must be called with mLock held
+    private void schedule(Entry entry, int delayMs) {
+        long ticks = Math.max(1, (delayMs + TICK_MS - 1) / TICK_MS);
+        entry.deadline = mTick + ticks;
+        int slot = (int) (entry.deadline & WHEEL_MASK);
+        entry.slot = slot;
+        entry.prev = null;
+        entry.next = mWheel[slot];
+        if (entry.next != null) {
+            entry.next.prev = entry;
+        }
+        mWheel[slot] = entry;
+    }
+
+    // Must be called with mLock held
+    private void unlink(Entry entry) {
+        if (entry.slot == -1) return;
+        if (entry.prev != null) {
+            entry.prev.next = entry.next;
+        } else {
+            mWheel[entry.slot] = entry.next;
+        }
+        if (entry.next != null) {
+            entry.next.prev = entry.prev;
+        }
+        entry.prev = null;
+        entry.next = null;
+        entry.slot = -1;
+    }
+
+    private void runLoop() {
+        ArrayList<Entry> due = new ArrayList<Entry>();
+        while (true) {
+            synchronized (mLock) {
+                while (mActiveEntries == 0 && mEnding.isEmpty()) {
+                    try {
+                        mLock.wait();
+                    } catch (InterruptedException e) {
+                        // Ignore
+                    }
+                    // Don't replay the ticks we slept through while idle
+                    mStartTime = SystemClock.uptimeMillis() - mTick * TICK_MS;
+                }
+
+                long currentTick = (SystemClock.uptimeMillis() - mStartTime) / TICK_MS;
+                while (mTick <= currentTick) {
+                    Entry entry = mWheel[(int) (mTick & WHEEL_MASK)];
+                    while (entry != null) {
+                        Entry next = entry.next;
+                        if (entry.deadline <= mTick) {
+                            unlink(entry);
+                            if (!entry.paused) {
+                                entry.checking = true;
+                                due.add(entry);
+                            }
+                        }
+                        entry = next;
+                    }
+                    mTick++;
+                }
+                for (Entry entry : mEnding) {
+                    // A check in flight finishes the entry itself
+                    if (!entry.checking) {
+                        due.add(entry);
+                    }
+                }
+                mEnding.clear();
+
+                if (due.isEmpty()) {
+                    try {
+                        mLock.wait(TICK_MS);
+                    } catch (InterruptedException e) {
+                        // Ignore
+                    }
+                    continue;
+                }
+            }
+
+            for (int i = 0; i < due.size(); i++) {
+                final Entry entry = due.get(i);
+                mCheckExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        process(entry);
+                    }
+                });
+            }
+            due.clear();
+        }
+    }
+
+    // Runs on a check thread
+    private void process(Entry entry) {
+        boolean check;
+        synchronized (mLock) {
+            check = entry.checking && !entry.stopped;
+        }
+        boolean present = true;
+        if (check) {
+            present = entry.target.checkPresence();
+        }
+        boolean finish;
+        boolean notifyDisconnected;
+        synchronized (mLock) {
+            entry.checking = false;
+            long now = SystemClock.uptimeMillis();
+            if (!present) {
+                if (DBG) Log.d(TAG, "Target lost");
+                entry.stopped = true;
+                mPolicy.onCheckFailed(entry.technology, now - entry.lastPresentTime);
+            } else if (check) {
+                entry.lastPresentTime = now;
+                entry.consecutiveChecks++;
+                entry.intervalMs = mPolicy.onCheckSucceeded(entry.technology,
+                        entry.baseIntervalMs, entry.intervalMs, entry.consecutiveChecks);
+            }
+            finish = entry.stopped && !entry.ending;
+            notifyDisconnected = !entry.disableCallback;
+            if (finish) {
+                entry.ending = true;
+                entry.endingThread = Thread.currentThread();
+            } else if (!entry.stopped && !entry.paused && entry.slot == -1) {
+                schedule(entry, entry.intervalMs);
+            }
+        }
+        if (finish) {
+            entry.target.onPresenceCheckEnded(notifyDisconnected);
+            synchronized (mLock) {
+                entry.ended = true;
+                entry.endingThread = null;
+                mActiveEntries--;
+                mLock.notifyAll();
+            }
+        }
+    }
+
+    void dump(PrintWriter pw) {
+        synchronized (mLock) {
+            pw.println("Presence checked tags: " + mActiveEntries);
+        }
+        mPolicy.dump(pw);
+    }
+}
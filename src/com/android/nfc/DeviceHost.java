@@ -36,10 +36,12 @@ package com.android.nfc;
 
 import android.annotation.Nullable;
 import android.nfc.NdefMessage;
+import android.nfc.NdefRecord;
 import android.os.Bundle;
 
 import java.io.FileDescriptor;
 import java.io.IOException;
+import java.io.PrintWriter;
 
 public interface DeviceHost {
     public interface DeviceHostListener {
@@ -117,8 +119,26 @@ public interface DeviceHost {
 
         byte[] transceive(byte[] data, boolean raw, int[] returnCode);
 
+        /**
+         * Queues a transceive on the tag's worker thread. Queued commands are
+         * executed back to back in submission order, and each one is completed
+         * through its callback on the worker thread. Commands still queued when
+         * the tag is disconnected complete as target lost.
+         */
+        void transceiveAsync(byte[] data, boolean raw, TransceiveCallback callback);
+
         boolean checkNdef(int[] out);
         byte[] readNdef();
+
+        /**
+         * Reads the NDEF message in chunks, handing each record to
+         * {@code callback} as soon as it has been read. Reading stops early
+         * when the callback returns false.
+         *
+         * @return false if chunked reading isn't supported for the connected
+         *         technology or failed; use {@link #readNdef} instead.
+         */
+        boolean readNdefRecords(NdefRecordCallback callback);
         boolean writeNdef(byte[] data);
         NdefMessage findAndReadNdef();
         boolean formatNdef(byte[] key);
@@ -132,6 +152,21 @@ public interface DeviceHost {
         void onTagDisconnected(long handle);
     }
 
+    public interface NdefRecordCallback {
+        /**
+         * @return false to stop reading the rest of the message
+         */
+        boolean onNdefRecord(NdefRecord record);
+    }
+
+    public interface TransceiveCallback {
+        /**
+         * @param response the tag response, or null if the exchange failed
+         * @param targetLost true if the exchange failed because the tag left the field
+         */
+        void onTransceiveComplete(byte[] response, boolean targetLost);
+    }
+
     public interface NfceeEndpoint {
         // TODO flesh out multi-EE and use this
     }
@@ -179,6 +214,12 @@ public interface DeviceHost {
 
         public void send(byte[] data) throws IOException;
 
+        /**
+         * Sends {@code length} bytes of {@code data} starting at {@code offset}.
+         * The data is copied before this returns, so the caller may reuse the buffer.
+         */
+        public void send(byte[] data, int offset, int length) throws IOException;
+
         public int receive(byte[] recvBuff) throws IOException;
 
         public int getRemoteMiu();
@@ -309,7 +350,11 @@ public interface DeviceHost {
 
     int getDefaultLlcpRwSize();
 
-    void dump(FileDescriptor fd);
+    /**
+     * Writes the Java side state to {@code pw}, then the native state to
+     * {@code fd}. {@code pw} is flushed before the native dump.
+     */
+    void dump(PrintWriter pw, FileDescriptor fd);
 
     boolean enableScreenOffSuspend();
 
@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc;
+
+import android.os.SystemClock;
+
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Times the stages of {@link NfcDispatcher#dispatchTag}.
+ *
+ * Every stage, and the PackageManager lookups and activity starts done
+ * within them, feed a log2 histogram. The breakdown of the slowest recent
+ * dispatches is kept as well. All storage is preallocated, so recording a
+ * dispatch doesn't allocate.
+ *
+ * Only the thread that started the current dispatch records into it; work
+ * done later on behalf of a dispatch (e.g. from a confirmation dialog) is
+ * ignored.
+ */
+final class DispatchLatencyTracker {
+    static final int STAGE_UNLOCK = 0;
+    static final int STAGE_OVERRIDES = 1;
+    static final int STAGE_HANDOVER = 2;
+    static final int STAGE_WIFI = 3;
+    static final int STAGE_NDEF = 4;
+    static final int STAGE_TECH = 5;
+    static final int STAGE_TAG = 6;
+    // Sub-lookups, nested within the stages above
+    static final int STAGE_PM_LOOKUP = 7;
+    static final int STAGE_START_ACTIVITY = 8;
+    static final int STAGE_TOTAL = 9;
+    static final int NUM_STAGES = 10;
+
+    private static final String[] STAGE_NAMES = {
+        "unlock", "overrides", "handover", "wifi", "ndef", "tech", "tag",
+        "pmLookup", "startActivity", "total"
+    };
+
+    // Bucket i counts latencies in [2^(i-1), 2^i) ms, bucket 0 counts 0 ms
+    static final int NUM_BUCKETS = 14;
+    static final int NUM_SLOWEST = 8;
+    // Slow dispatches older than this are replaced first
+    static final long SLOWEST_RETENTION_MS = 60 * 60 * 1000;
+
+    // All synchronized on this
+    private final long[][] mHistograms = new long[NUM_STAGES][NUM_BUCKETS];
+    private final long[] mTotalMs = new long[NUM_STAGES];
+    private final long[] mMaxMs = new long[NUM_STAGES];
+    private final long[] mCounts = new long[NUM_STAGES];
+
+    private final long[][] mSlowestStagesNs = new long[NUM_SLOWEST][NUM_STAGES];
+    private final long[] mSlowestWallTime = new long[NUM_SLOWEST];
+    private final long[] mSlowestElapsed = new long[NUM_SLOWEST];
+    private final int[] mSlowestResult = new int[NUM_SLOWEST];
+    private int mSlowestCount;
+
+    // Current dispatch
+    private final long[] mStagesNs = new long[NUM_STAGES];
+    private Thread mDispatchThread;
+    private long mDispatchStartNs;
+
+    synchronized void beginDispatch() {
+        for (int i = 0; i < NUM_STAGES; i++) {
+            mStagesNs[i] = -1;
+        }
+        mDispatchThread = Thread.currentThread();
+        mDispatchStartNs = SystemClock.elapsedRealtimeNanos();
+    }
+
+    /**
+     * Returns the start time to pass to {@link #endStage}.
+     */
+    long startStage() {
+        return SystemClock.elapsedRealtimeNanos();
+    }
+
+    synchronized void endStage(int stage, long startNs) {
+        if (mDispatchThread != Thread.currentThread()) {
+            return;
+        }
+        long duration = SystemClock.elapsedRealtimeNanos() - startNs;
+        // Sub-lookups can run several times per dispatch
+        mStagesNs[stage] = Math.max(mStagesNs[stage], 0) + duration;
+    }
+
+    synchronized void endDispatch(int result) {
+        if (mDispatchThread != Thread.currentThread()) {
+            return;
+        }
+        mDispatchThread = null;
+        long totalNs = SystemClock.elapsedRealtimeNanos() - mDispatchStartNs;
+        mStagesNs[STAGE_TOTAL] = totalNs;
+        for (int stage = 0; stage < NUM_STAGES; stage++) {
+            if (mStagesNs[stage] >= 0) {
+                record(stage, mStagesNs[stage] / 1000000);
+            }
+        }
+        recordSlowest(totalNs, result);
+    }
+
+    private void record(int stage, long ms) {
+        int bucket = ms == 0 ? 0 : Math.min(NUM_BUCKETS - 1, 64 - Long.numberOfLeadingZeros(ms));
+        mHistograms[stage][bucket]++;
+        mTotalMs[stage] += ms;
+        mMaxMs[stage] = Math.max(mMaxMs[stage], ms);
+        mCounts[stage]++;
+    }
+
+    private void recordSlowest(long totalNs, int result) {
+        long now = SystemClock.elapsedRealtime();
+        int slot;
+        if (mSlowestCount < NUM_SLOWEST) {
+            slot = mSlowestCount++;
+        } else {
+            // Replace an expired entry, or else the fastest one if it is faster than this
+            slot = -1;
+            for (int i = 0; i < NUM_SLOWEST; i++) {
+                if (now - mSlowestElapsed[i] > SLOWEST_RETENTION_MS) {
+                    slot = i;
+                    break;
+                }
+                if (slot < 0 || mSlowestStagesNs[i][STAGE_TOTAL]
+                        < mSlowestStagesNs[slot][STAGE_TOTAL]) {
+                    slot = i;
+                }
+            }
+            if (now - mSlowestElapsed[slot] <= SLOWEST_RETENTION_MS
+                    && mSlowestStagesNs[slot][STAGE_TOTAL] >= totalNs) {
+                return;
+            }
+        }
+        System.arraycopy(mStagesNs, 0, mSlowestStagesNs[slot], 0, NUM_STAGES);
+        mSlowestWallTime[slot] = System.currentTimeMillis();
+        mSlowestElapsed[slot] = now;
+        mSlowestResult[slot] = result;
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        pw.println("Dispatch latency (ms):");
+        for (int stage = 0; stage < NUM_STAGES; stage++) {
+            if (mCounts[stage] == 0) continue;
+            StringBuilder sb = new StringBuilder();
+            sb.append("  ").append(STAGE_NAMES[stage])
+                    .append(": count=").append(mCounts[stage])
+                    .append(" avg=").append(mTotalMs[stage] / mCounts[stage])
+                    .append(" max=").append(mMaxMs[stage])
+                    .append(" histogram=");
+            for (int bucket = 0; bucket < NUM_BUCKETS; bucket++) {
+                if (mHistograms[stage][bucket] == 0) continue;
+                sb.append(bucket == NUM_BUCKETS - 1 ? ">=" : "<")
+                        .append(bucket == NUM_BUCKETS - 1 ? 1L << (bucket - 1) : 1L << bucket)
+                        .append(':').append(mHistograms[stage][bucket]).append(' ');
+            }
+            pw.println(sb.toString());
+        }
+        pw.println("Slowest recent dispatches:");
+        SimpleDateFormat sdf = new SimpleDateFormat("MM-dd HH:mm:ss.SSS", Locale.US);
+        for (int i = 0; i < mSlowestCount; i++) {
+            StringBuilder sb = new StringBuilder();
+            sb.append("  ").append(sdf.format(new Date(mSlowestWallTime[i])))
+                    .append(" result=").append(mSlowestResult[i]);
+            for (int stage = NUM_STAGES - 1; stage >= 0; stage--) {
+                if (mSlowestStagesNs[i][stage] < 0) continue;
+                sb.append(' ').append(STAGE_NAMES[stage]).append('=')
+                        .append(mSlowestStagesNs[i][stage] / 1000000);
+            }
+            pw.println(sb.toString());
+        }
+    }
+}
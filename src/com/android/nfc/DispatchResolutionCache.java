@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc;
+
+import android.content.BroadcastReceiver;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
+import android.content.pm.PackageManager.NameNotFoundException;
+import android.content.pm.ResolveInfo;
+import android.os.UserHandle;
+import android.util.Log;
+import android.util.LruCache;
+import android.util.SparseArray;
+
+import java.io.PrintWriter;
+import java.util.Set;
+
+/**
+ * Caches the PackageManager lookups done while dispatching a tag, so that
+ * repeated taps of the same kind of tag don't pay for the same IPCs again.
+ *
+ * Results are keyed by user and by the parts of the intent that take part in
+ * resolution (action, type, data, categories, package and component), and
+ * are dropped on any package, preferred activity or user change.
+ */
+final class DispatchResolutionCache {
+    private static final String TAG = "DispatchResolutionCache";
+
+    static final int MAX_ENTRIES = 128;
+
+    private final Context mContext;
+    private final PackageManager mPackageManager;
+    private final DispatchLatencyTracker mLatencyTracker;
+
+    // All synchronized on this
+    private final SparseArray<PackageManager> mUserPackageManagers =
+            new SparseArray<PackageManager>();
+    // Whether the intent resolves to any activity
+    private final LruCache<String, Boolean> mHasActivity =
+            new LruCache<String, Boolean>(MAX_ENTRIES);
+    // Whether the intent resolves to an exported activity
+    private final LruCache<String, Boolean> mResolvesExported =
+            new LruCache<String, Boolean>(MAX_ENTRIES);
+    // Launch intent of a package, NO_LAUNCH_INTENT if it has none
+    private final LruCache<String, Intent> mLaunchIntents =
+            new LruCache<String, Intent>(MAX_ENTRIES);
+    private int mHits;
+    private int mMisses;
+    private int mInvalidations;
+
+    private static final Intent NO_LAUNCH_INTENT = new Intent();
+
+    private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            invalidate();
+        }
+    };
+
+    DispatchResolutionCache(Context context, DispatchLatencyTracker latencyTracker) {
+        mContext = context;
+        mPackageManager = context.getPackageManager();
+        mLatencyTracker = latencyTracker;
+
+        IntentFilter packageFilter = new IntentFilter();
+        packageFilter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        packageFilter.addDataScheme("package");
+        mContext.registerReceiverAsUser(mReceiver, UserHandle.ALL, packageFilter, null, null);
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_EXTERNAL_APPLICATIONS_AVAILABLE);
+        filter.addAction(Intent.ACTION_EXTERNAL_APPLICATIONS_UNAVAILABLE);
+        filter.addAction(Intent.ACTION_PREFERRED_ACTIVITY_CHANGED);
+        filter.addAction(Intent.ACTION_USER_SWITCHED);
+        // Apps of a user or work profile become resolvable once it is
+        // unlocked or made available, and vanish when it is paused.
+        filter.addAction(Intent.ACTION_USER_UNLOCKED);
+        filter.addAction(Intent.ACTION_MANAGED_PROFILE_AVAILABLE);
+        filter.addAction(Intent.ACTION_MANAGED_PROFILE_UNAVAILABLE);
+        mContext.registerReceiverAsUser(mReceiver, UserHandle.ALL, filter, null, null);
+    }
+
+    void close() {
+        mContext.unregisterReceiver(mReceiver);
+    }
+
+    synchronized void invalidate() {
+        mHasActivity.evictAll();
+        mResolvesExported.evictAll();
+        mLaunchIntents.evictAll();
+        mInvalidations++;
+    }
+
+    /**
+     * Returns the PackageManager of a user, or null if it couldn't be created.
+     */
+    PackageManager getPackageManager(UserHandle user) {
+        synchronized (this) {
+            PackageManager pm = mUserPackageManagers.get(user.getIdentifier());
+            if (pm != null) {
+                return pm;
+            }
+        }
+        PackageManager pm;
+        try {
+            pm = mContext.createPackageContextAsUser("android", 0, user).getPackageManager();
+        } catch (NameNotFoundException e) {
+            Log.e(TAG, "Could not create user package context");
+            return null;
+        }
+        synchronized (this) {
+            mUserPackageManagers.put(user.getIdentifier(), pm);
+        }
+        return pm;
+    }
+
+    /**
+     * Whether any activity of {@code user} handles {@code intent}.
+     */
+    boolean hasActivity(Intent intent, UserHandle user) {
+        String key = makeKey(intent, user);
+        synchronized (this) {
+            Boolean cached = mHasActivity.get(key);
+            if (cached != null) {
+                mHits++;
+                return cached;
+            }
+            mMisses++;
+        }
+        long start = mLatencyTracker.startStage();
+        boolean result = mPackageManager.queryIntentActivitiesAsUser(intent, 0, user).size() > 0;
+        mLatencyTracker.endStage(DispatchLatencyTracker.STAGE_PM_LOOKUP, start);
+        synchronized (this) {
+            mHasActivity.put(key, result);
+        }
+        return result;
+    }
+
+    /**
+     * Whether {@code intent} resolves to an exported activity of {@code user}.
+     */
+    boolean resolvesToExportedActivity(Intent intent, UserHandle user) {
+        String key = makeKey(intent, user);
+        synchronized (this) {
+            Boolean cached = mResolvesExported.get(key);
+            if (cached != null) {
+                mHits++;
+                return cached;
+            }
+            mMisses++;
+        }
+        PackageManager pm = getPackageManager(user);
+        if (pm == null) {
+            return false;
+        }
+        long start = mLatencyTracker.startStage();
+        ResolveInfo ri = pm.resolveActivity(intent, 0);
+        mLatencyTracker.endStage(DispatchLatencyTracker.STAGE_PM_LOOKUP, start);
+        boolean result = ri != null && ri.activityInfo != null && ri.activityInfo.exported;
+        synchronized (this) {
+            mResolvesExported.put(key, result);
+        }
+        return result;
+    }
+
+    /**
+     * Returns a copy of the launch intent of {@code pkg} for {@code user}, or null.
+     */
+    Intent getLaunchIntentForPackage(String pkg, UserHandle user) {
+        String key = user.getIdentifier() + "|" + pkg;
+        Intent launchIntent;
+        synchronized (this) {
+            launchIntent = mLaunchIntents.get(key);
+            if (launchIntent != null) {
+                mHits++;
+            } else {
+                mMisses++;
+            }
+        }
+        if (launchIntent == null) {
+            PackageManager pm = getPackageManager(user);
+            if (pm == null) {
+                return null;
+            }
+            long start = mLatencyTracker.startStage();
+            launchIntent = pm.getLaunchIntentForPackage(pkg);
+            mLatencyTracker.endStage(DispatchLatencyTracker.STAGE_PM_LOOKUP, start);
+            if (launchIntent == null) {
+                launchIntent = NO_LAUNCH_INTENT;
+            }
+            synchronized (this) {
+                mLaunchIntents.put(key, launchIntent);
+            }
+        }
+        return launchIntent == NO_LAUNCH_INTENT ? null : new Intent(launchIntent);
+    }
+
+    static String makeKey(Intent intent, UserHandle user) {
+        StringBuilder key = new StringBuilder(64);
+        key.append(user.getIdentifier()).append('|').append(intent.getAction())
+                .append('|').append(intent.getType())
+                .append('|').append(intent.getData())
+                .append('|').append(intent.getPackage());
+        ComponentName component = intent.getComponent();
+        key.append('|').append(component != null ? component.flattenToShortString() : null);
+        Set<String> categories = intent.getCategories();
+        if (categories != null) {
+            for (String category : categories) {
+                key.append('|').append(category);
+            }
+        }
+        return key.toString();
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        pw.println("Dispatch resolution cache: hits=" + mHits + " misses=" + mMisses
+                + " invalidations=" + mInvalidations);
+    }
+}
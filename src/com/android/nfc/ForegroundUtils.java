@@ -40,6 +40,8 @@ public class ForegroundUtils extends IProcessObserver.Stub {
             new SparseArray<SparseBooleanArray>();
     private final SparseArray<List<Callback>> mBackgroundCallbacks =
             new SparseArray<List<Callback>>();
+    private final List<ForegroundListener> mForegroundListeners =
+            new ArrayList<ForegroundListener>();
 
     private static class Singleton {
         private static final ForegroundUtils INSTANCE = new ForegroundUtils();
@@ -59,6 +61,13 @@ public class ForegroundUtils extends IProcessObserver.Stub {
         void onUidToBackground(int uid);
     }
 
+    public interface ForegroundListener {
+        /**
+         * Called when a UID gains its first or loses its last foreground activity.
+         */
+        void onForegroundUidsChanged();
+    }
+
     public static ForegroundUtils getInstance() {
         return Singleton.INSTANCE;
     }
@@ -88,6 +97,16 @@ public class ForegroundUtils extends IProcessObserver.Stub {
         }
     }
 
+    /**
+     * Registers a listener for changes to the set of foreground UIDs.
+     * Listeners are called without any lock held, on a binder thread.
+     */
+    public void registerForegroundListener(ForegroundListener listener) {
+        synchronized (mLock) {
+            mForegroundListeners.add(listener);
+        }
+    }
+
     /**
      * @param uid The UID to be checked
      * @return whether the UID has any activities running in the foreground
@@ -148,7 +167,9 @@ public class ForegroundUtils extends IProcessObserver.Stub {
     public void onForegroundActivitiesChanged(int pid, int uid,
             boolean hasForegroundActivities) throws RemoteException {
         boolean uidToBackground = false;
+        ArrayList<ForegroundListener> listeners = null;
         synchronized (mLock) {
+            boolean uidToForeground = hasForegroundActivities && mForegroundUidPids.get(uid) == null;
             SparseBooleanArray foregroundPids = mForegroundUidPids.get(uid,
                     new SparseBooleanArray());
             if (hasForegroundActivities) {
@@ -156,16 +177,26 @@ public class ForegroundUtils extends IProcessObserver.Stub {
             } else {
                foregroundPids.delete(pid);
             }
+            boolean uidsChanged = uidToForeground;
             if (foregroundPids.size() == 0) {
+                uidsChanged = mForegroundUidPids.get(uid) != null;
                 mForegroundUidPids.remove(uid);
                 uidToBackground = true;
             } else {
                 mForegroundUidPids.put(uid, foregroundPids);
             }
+            if (uidsChanged && !mForegroundListeners.isEmpty()) {
+                listeners = new ArrayList<ForegroundListener>(mForegroundListeners);
+            }
         }
         if (uidToBackground) {
             handleUidToBackground(uid);
         }
+        if (listeners != null) {
+            for (ForegroundListener listener : listeners) {
+                listener.onForegroundUidsChanged();
+            }
+        }
         if (DBG) {
             if (DBG) Log.d(TAG, "Foreground changed, PID: " + Integer.toString(pid) + " UID: " +
                                     Integer.toString(uid) + " foreground: " +
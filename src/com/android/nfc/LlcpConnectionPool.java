@@ -0,0 +1,313 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.android.nfc.DeviceHost.LlcpSocket;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the connections accepted by the LLCP services (SNEP, handover, NPP)
+ * on one small pool of threads, which are kept around between taps.
+ *
+ * Each service has a limit on its concurrent connections. A service that is
+ * at its limit stops accepting until one of its connections ends, so a peer
+ * opening connections in a loop is held back by the LLCP stack instead of
+ * spawning workers. The limits of the services add up to at most the pool
+ * size, so an accepted connection never waits for a thread. A service
+ * registered once all threads are reserved, like a SNEP server with a custom
+ * name, still gets one connection at a time, which may wait for a thread.
+ */
+public final class LlcpConnectionPool {
+    private static final String TAG = "LlcpConnectionPool";
+
+    static final int MAX_THREADS = 6;
+    static final long KEEP_ALIVE_SECONDS = 60;
+
+    private final ThreadPoolExecutor mExecutor;
+
+    // Synchronized on this
+    private final ArrayList<Service> mServices = new ArrayList<Service>();
+    private int mReservedSlots;
+
+    private static final class Singleton {
+        public static final LlcpConnectionPool INSTANCE = new LlcpConnectionPool();
+    }
+
+    private LlcpConnectionPool() {
+        final AtomicInteger threadCount = new AtomicInteger();
+        mExecutor = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS, KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        return new Thread(r, "LlcpConnection-" + threadCount.incrementAndGet());
+                    }
+                });
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    public static LlcpConnectionPool getInstance() {
+        return Singleton.INSTANCE;
+    }
+
+    /**
+     * Creates a connection slot for a service, or returns the existing one
+     * if a service of the same name was already registered.
+     */
+    public synchronized Service getService(String name, int maxConnections) {
+        for (Service service : mServices) {
+            if (service.mName.equals(name)) {
+                return service;
+            }
+        }
+        Service service;
+        if (mReservedSlots + maxConnections <= MAX_THREADS) {
+            mReservedSlots += maxConnections;
+            service = new Service(name, maxConnections, true);
+        } else {
+            Log.w(TAG, "Not enough threads left for " + name + ", limiting it to one connection");
+            service = new Service(name, 1, false);
+        }
+        mServices.add(service);
+        return service;
+    }
+
+    public interface ConnectionFactory {
+        /**
+         * Returns the task handling {@code socket}; it must close the socket when done.
+         */
+        Runnable newConnection(LlcpSocket socket);
+    }
+
+    public final class Service {
+        final String mName;
+        final int mMaxConnections;
+        final boolean mReserved; // false if its connections may wait for a thread
+        private final Semaphore mSlots;
+
+        // Synchronized on this
+        private int mAccepted;
+        private int mActive;
+        private int mPeakActive;
+        private int mBackPressured;
+        private final LatencyStats mAcceptToStart = new LatencyStats();
+        private final LatencyStats mAcceptToFirstByte = new LatencyStats();
+
+        Service(String name, int maxConnections, boolean reserved) {
+            mName = name;
+            mMaxConnections = maxConnections;
+            mReserved = reserved;
+            mSlots = new Semaphore(maxConnections);
+        }
+
+        /**
+         * Waits until the service may take another connection. Must be
+         * called before accepting; the slot is given back when the
+         * connection ends, or by {@link #releaseSlot} if nothing was accepted.
+         *
+         * @throws InterruptedException if the server is stopped while waiting
+         */
+        public void acquireSlot() throws InterruptedException {
+            if (!mSlots.tryAcquire()) {
+                synchronized (this) {
+                    mBackPressured++;
+                }
+                Log.w(TAG, mName + ": at " + mMaxConnections + " connections, holding accept");
+                mSlots.acquire();
+            }
+        }
+
+        public void releaseSlot() {
+            mSlots.release();
+        }
+
+        /**
+         * Runs the connection on the pool, holding the slot taken by
+         * {@link #acquireSlot} until it ends.
+         */
+        public void execute(LlcpSocket socket, ConnectionFactory factory) {
+            final long acceptNs = SystemClock.elapsedRealtimeNanos();
+            final TimedSocket timedSocket = new TimedSocket(socket, this, acceptNs);
+            final Runnable connection = factory.newConnection(timedSocket);
+            synchronized (this) {
+                mAccepted++;
+            }
+            try {
+                mExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized (Service.this) {
+                            mAcceptToStart.add(SystemClock.elapsedRealtimeNanos() - acceptNs);
+                            mActive++;
+                            mPeakActive = Math.max(mPeakActive, mActive);
+                        }
+                        try {
+                            connection.run();
+                        } finally {
+                            synchronized (Service.this) {
+                                mActive--;
+                            }
+                            releaseSlot();
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                Log.e(TAG, mName + ": could not run connection", e);
+                try {
+                    socket.close();
+                } catch (IOException e2) {
+                    // Ignore
+                }
+                releaseSlot();
+            }
+        }
+
+        synchronized void onFirstByte(long acceptNs) {
+            mAcceptToFirstByte.add(SystemClock.elapsedRealtimeNanos() - acceptNs);
+        }
+
+        synchronized void dump(PrintWriter pw) {
+            pw.println("  " + mName + ": limit=" + mMaxConnections
+                    + (mReserved ? "" : " (unreserved)") + " accepted=" + mAccepted
+                    + " active=" + mActive + " peak=" + mPeakActive
+                    + " backPressured=" + mBackPressured
+                    + " acceptToStart=" + mAcceptToStart
+                    + " acceptToFirstByte=" + mAcceptToFirstByte);
+        }
+    }
+
+    private static final class LatencyStats {
+        long mCount;
+        long mTotalNs;
+        long mMaxNs;
+
+        void add(long ns) {
+            mCount++;
+            mTotalNs += ns;
+            mMaxNs = Math.max(mMaxNs, ns);
+        }
+
+        @Override
+        public String toString() {
+            if (mCount == 0) {
+                return "-";
+            }
+            return "avg " + (mTotalNs / mCount / 1000) + "us max " + (mMaxNs / 1000) + "us";
+        }
+    }
+
+    /**
+     * Reports the first data received on an accepted connection.
+     */
+    private static final class TimedSocket implements LlcpSocket {
+        private final LlcpSocket mSocket;
+        private final Service mService;
+        private final long mAcceptNs;
+        private boolean mReceived;
+
+        TimedSocket(LlcpSocket socket, Service service, long acceptNs) {
+            mSocket = socket;
+            mService = service;
+            mAcceptNs = acceptNs;
+        }
+
+        @Override
+        public int receive(byte[] recvBuff) throws IOException {
+            int size = mSocket.receive(recvBuff);
+            if (!mReceived && size > 0) {
+                mReceived = true;
+                mService.onFirstByte(mAcceptNs);
+            }
+            return size;
+        }
+
+        @Override
+        public void connectToSap(int sap) throws IOException {
+            mSocket.connectToSap(sap);
+        }
+
+        @Override
+        public void connectToService(String serviceName) throws IOException {
+            mSocket.connectToService(serviceName);
+        }
+
+        @Override
+        public void close() throws IOException {
+            mSocket.close();
+        }
+
+        @Override
+        public void send(byte[] data) throws IOException {
+            mSocket.send(data);
+        }
+
+        @Override
+        public void send(byte[] data, int offset, int length) throws IOException {
+            mSocket.send(data, offset, length);
+        }
+
+        @Override
+        public int getRemoteMiu() {
+            return mSocket.getRemoteMiu();
+        }
+
+        @Override
+        public int getRemoteRw() {
+            return mSocket.getRemoteRw();
+        }
+
+        @Override
+        public int getLocalSap() {
+            return mSocket.getLocalSap();
+        }
+
+        @Override
+        public int getLocalMiu() {
+            return mSocket.getLocalMiu();
+        }
+
+        @Override
+        public int getLocalRw() {
+            return mSocket.getLocalRw();
+        }
+    }
+
+    public void dump(PrintWriter pw) {
+        pw.println("LLCP connection pool: threads=" + mExecutor.getPoolSize()
+                + " largest=" + mExecutor.getLargestPoolSize()
+                + " completed=" + mExecutor.getCompletedTaskCount());
+        ArrayList<Service> services;
+        synchronized (this) {
+            services = new ArrayList<Service>(mServices);
+        }
+        for (Service service : services) {
+            service.dump(pw);
+        }
+    }
+}
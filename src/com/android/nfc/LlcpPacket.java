@@ -29,6 +29,11 @@ public class LlcpPacket {
 
     }
 
+    public LlcpPacket(int remoteSap, byte[] dataBuffer) {
+        mRemoteSap = remoteSap;
+        mDataBuffer = dataBuffer;
+    }
+
     /**
      * Returns the remote Service Access Point number
      */
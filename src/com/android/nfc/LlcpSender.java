@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc;
+
+import com.android.nfc.DeviceHost.LlcpSocket;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Sends data over a connection-oriented LLCP socket as a train of I-PDUs
+ * sized to the remote MIU.
+ *
+ * The stack accepts an I-PDU as soon as it is queued and keeps up to the
+ * remote RW of them unacknowledged on the link; {@link LlcpSocket#send} only
+ * blocks once the window is full. Handing over the fragments back to back,
+ * without waiting on anything in between, is what keeps the window full.
+ *
+ * Every send is accounted to the current LLCP link, see {@link #dump}.
+ */
+public final class LlcpSender {
+    // LLCP default MIU, used if the socket doesn't report one
+    static final int DEFAULT_MIU = 128;
+    static final int NUM_LINKS = 4;
+
+    private final LlcpSocket mSocket;
+    private final int mRemoteMiu;
+    private final int mRemoteRw;
+
+    public LlcpSender(LlcpSocket socket) {
+        mSocket = socket;
+        int miu = socket.getRemoteMiu();
+        mRemoteMiu = miu > 0 ? miu : DEFAULT_MIU;
+        mRemoteRw = socket.getRemoteRw();
+    }
+
+    /**
+     * Returns the largest fragment that fits into a single I-PDU.
+     */
+    public int getMaxFragmentLength() {
+        return mRemoteMiu;
+    }
+
+    public int getRemoteRw() {
+        return mRemoteRw;
+    }
+
+    /**
+     * Sends {@code length} bytes of {@code data} from {@code offset}, split
+     * into as few I-PDUs as the remote MIU allows.
+     */
+    public void send(byte[] data, int offset, int length) throws IOException {
+        long start = System.nanoTime();
+        int end = offset + length;
+        int pdus = 0;
+        try {
+            while (offset < end) {
+                int fragmentLength = Math.min(end - offset, mRemoteMiu);
+                mSocket.send(data, offset, fragmentLength);
+                offset += fragmentLength;
+                pdus++;
+            }
+        } finally {
+            recordSend(length - (end - offset), pdus,
+                    System.nanoTime() - start, mRemoteMiu, mRemoteRw);
+        }
+    }
+
+    public void send(byte[] data) throws IOException {
+        send(data, 0, data.length);
+    }
+
+    // All synchronized on sStatsLock
+    private static final Object sStatsLock = new Object();
+    private static final ArrayDeque<LinkStats> sPastLinks = new ArrayDeque<LinkStats>();
+    private static LinkStats sCurrentLink;
+
+    private static final class LinkStats {
+        final long mStartTime = System.currentTimeMillis();
+        final long mStartNs = System.nanoTime();
+        long mFirstSendNs = -1;
+        long mEndNs = -1;
+        long mDurationMs = -1;
+        long mBytes;
+        long mPdus;
+        long mSends;
+        long mSendNs;
+        int mRemoteMiu;
+        int mRemoteRw;
+
+        void dump(PrintWriter pw, SimpleDateFormat sdf) {
+            StringBuilder sb = new StringBuilder();
+            sb.append("  ").append(sdf.format(new Date(mStartTime)));
+            if (mDurationMs >= 0) {
+                sb.append(" duration=").append(mDurationMs).append("ms");
+            } else {
+                sb.append(" (active)");
+            }
+            sb.append(" miu=").append(mRemoteMiu)
+                    .append(" rw=").append(mRemoteRw)
+                    .append(" sends=").append(mSends)
+                    .append(" pdus=").append(mPdus)
+                    .append(" bytes=").append(mBytes)
+                    .append(" sendTime=").append(mSendNs / 1000000).append("ms");
+            if (mSendNs > 0) {
+                // How fast the stack took the data; the last window of
+                // I-PDUs may still have been unacknowledged when send returned.
+                sb.append(" queueRate=").append(mBytes * 1000000000L / mSendNs / 1024)
+                        .append("KiB/s");
+            }
+            if (mFirstSendNs >= 0 && mEndNs > mFirstSendNs) {
+                // From the first send until the link went down, which covers
+                // every acknowledgement but also any idle time after them.
+                sb.append(" linkRate=")
+                        .append(mBytes * 1000000000L / (mEndNs - mFirstSendNs) / 1024)
+                        .append("KiB/s");
+            }
+            pw.println(sb.toString());
+        }
+    }
+
+    private static void recordSend(int bytes, int pdus, long durationNs, int miu, int rw) {
+        synchronized (sStatsLock) {
+            if (sCurrentLink == null) {
+                return;
+            }
+            if (sCurrentLink.mFirstSendNs < 0) {
+                sCurrentLink.mFirstSendNs = System.nanoTime() - durationNs;
+            }
+            sCurrentLink.mBytes += bytes;
+            sCurrentLink.mPdus += pdus;
+            sCurrentLink.mSends++;
+            sCurrentLink.mSendNs += durationNs;
+            sCurrentLink.mRemoteMiu = miu;
+            sCurrentLink.mRemoteRw = rw;
+        }
+    }
+
+    /**
+     * Starts accounting sends to a new link.
+     */
+    public static void onLinkActivated() {
+        synchronized (sStatsLock) {
+            endLinkLocked();
+            sCurrentLink = new LinkStats();
+        }
+    }
+
+    public static void onLinkDeactivated() {
+        synchronized (sStatsLock) {
+            endLinkLocked();
+        }
+    }
+
+    private static void endLinkLocked() {
+        if (sCurrentLink == null) {
+            return;
+        }
+        sCurrentLink.mEndNs = System.nanoTime();
+        sCurrentLink.mDurationMs = (sCurrentLink.mEndNs - sCurrentLink.mStartNs) / 1000000;
+        if (sPastLinks.size() == NUM_LINKS) {
+            sPastLinks.removeFirst();
+        }
+        sPastLinks.addLast(sCurrentLink);
+        sCurrentLink = null;
+    }
+
+    public static void dump(PrintWriter pw) {
+        SimpleDateFormat sdf = new SimpleDateFormat("MM-dd HH:mm:ss.SSS", Locale.US);
+        synchronized (sStatsLock) {
+            pw.println("LLCP sends:");
+            for (LinkStats link : sPastLinks) {
+                link.dump(pw, sdf);
+            }
+            if (sCurrentLink != null) {
+                sCurrentLink.dump(pw, sdf);
+            }
+        }
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.LinkedHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Connects the clients of several LLCP services at the same time.
+ *
+ * Every connect is a round trip over the link, so connecting the handover,
+ * SNEP and NPP clients one after the other costs the sum of them. Here they
+ * are all started at once, and the caller picks the services it ends up
+ * using with {@link #await} and {@link #awaitFirst}. Services it doesn't use
+ * are cancelled: they are closed as soon as their connect completes.
+ */
+public final class LlcpServiceConnector {
+    private static final String TAG = "LlcpServiceConnector";
+    private static final boolean DBG = false;
+
+    static final int MAX_THREADS = 3;
+    static final long KEEP_ALIVE_SECONDS = 30;
+
+    static final int STATE_CONNECTING = 0;
+    static final int STATE_CONNECTED = 1;
+    static final int STATE_FAILED = 2;
+
+    /**
+     * The client side of an LLCP service.
+     */
+    public interface Client {
+        void connect() throws IOException;
+        void close();
+    }
+
+    private final ThreadPoolExecutor mExecutor;
+
+    // Synchronized on this
+    private final LinkedHashMap<String, ConnectStats> mStats =
+            new LinkedHashMap<String, ConnectStats>();
+
+    public LlcpServiceConnector() {
+        final AtomicInteger threadCount = new AtomicInteger();
+        mExecutor = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS, KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        return new Thread(r, "LlcpConnect-" + threadCount.incrementAndGet());
+                    }
+                });
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    public final class Attempt<T extends Client> implements Runnable {
+        final String mName;
+        final T mClient;
+        final long mStartNs = SystemClock.elapsedRealtimeNanos();
+
+        // Synchronized on LlcpServiceConnector.this
+        int mState = STATE_CONNECTING;
+        boolean mCancelled;
+
+        Attempt(String name, T client) {
+            mName = name;
+            mClient = client;
+        }
+
+        public T getClient() {
+            return mClient;
+        }
+
+        @Override
+        public void run() {
+            boolean connected;
+            try {
+                mClient.connect();
+                connected = true;
+            } catch (IOException e) {
+                connected = false;
+            }
+            long connectNs = SystemClock.elapsedRealtimeNanos() - mStartNs;
+            boolean close;
+            synchronized (LlcpServiceConnector.this) {
+                mState = connected ? STATE_CONNECTED : STATE_FAILED;
+                close = connected && mCancelled;
+                getStatsLocked(mName).add(connected, connectNs);
+                LlcpServiceConnector.this.notifyAll();
+            }
+            if (close) {
+                mClient.close();
+            }
+        }
+    }
+
+    /**
+     * Starts connecting {@code client} in the background.
+     */
+    public <T extends Client> Attempt<T> connect(String name, T client) {
+        Attempt<T> attempt = new Attempt<T>(name, client);
+        mExecutor.execute(attempt);
+        return attempt;
+    }
+
+    /**
+     * Waits for the connect to complete, and returns whether the client can be used.
+     */
+    public synchronized boolean await(Attempt<?> attempt) throws InterruptedException {
+        while (attempt.mState == STATE_CONNECTING && !attempt.mCancelled) {
+            wait();
+        }
+        return attempt.mState == STATE_CONNECTED && !attempt.mCancelled;
+    }
+
+    /**
+     * Waits for the first usable service among {@code attempts}, which are
+     * listed in order of preference: a service wins once it connected and
+     * all services preferred over it failed. The others are cancelled.
+     *
+     * Returns the winner, or null if no service could be connected.
+     */
+    public Attempt<?> awaitFirst(Attempt<?>... attempts) throws InterruptedException {
+        Attempt<?> winner = null;
+        synchronized (this) {
+            while (winner == null) {
+                boolean pending = false;
+                for (Attempt<?> attempt : attempts) {
+                    if (attempt.mCancelled || attempt.mState == STATE_FAILED) {
+                        continue;
+                    }
+                    if (attempt.mState == STATE_CONNECTED) {
+                        winner = attempt;
+                    } else {
+                        pending = true;
+                    }
+                    break;
+                }
+                if (winner == null) {
+                    if (!pending) {
+                        break;
+                    }
+                    wait();
+                }
+            }
+        }
+        for (Attempt<?> attempt : attempts) {
+            if (attempt != winner) {
+                cancel(attempt);
+            }
+        }
+        return winner;
+    }
+
+    /**
+     * Gives up on a service. It is closed now if it is connected, or as
+     * soon as its connect completes otherwise. Does nothing if null.
+     */
+    public void cancel(Attempt<?> attempt) {
+        if (attempt == null) {
+            return;
+        }
+        boolean close;
+        synchronized (this) {
+            if (attempt.mCancelled) {
+                return;
+            }
+            attempt.mCancelled = true;
+            close = attempt.mState == STATE_CONNECTED;
+            if (attempt.mState != STATE_FAILED) {
+                getStatsLocked(attempt.mName).mCancelled++;
+            }
+            notifyAll();
+        }
+        if (close) {
+            attempt.mClient.close();
+        }
+        if (DBG) Log.d(TAG, "Cancelled " + attempt.mName);
+    }
+
+    private ConnectStats getStatsLocked(String name) {
+        ConnectStats stats = mStats.get(name);
+        if (stats == null) {
+            stats = new ConnectStats();
+            mStats.put(name, stats);
+        }
+        return stats;
+    }
+
+    private static final class ConnectStats {
+        int mConnected;
+        int mFailed;
+        int mCancelled;
+        long mLastNs = -1;
+        long mTotalNs;
+        long mMaxNs;
+
+        void add(boolean connected, long ns) {
+            if (connected) {
+                mConnected++;
+                mTotalNs += ns;
+                mMaxNs = Math.max(mMaxNs, ns);
+            } else {
+                mFailed++;
+            }
+            mLastNs = ns;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append("connected=").append(mConnected)
+                    .append(" failed=").append(mFailed)
+                    .append(" cancelled=").append(mCancelled)
+                    .append(" last=").append(mLastNs < 0 ? "-" : (mLastNs / 1000000) + "ms");
+            if (mConnected > 0) {
+                sb.append(" avg=").append(mTotalNs / mConnected / 1000000).append("ms")
+                        .append(" max=").append(mMaxNs / 1000000).append("ms");
+            }
+            return sb.toString();
+        }
+    }
+
+    public synchronized void dump(PrintWriter pw) {
+        pw.println("LLCP service connects:");
+        for (String name : mStats.keySet()) {
+            pw.println("  " + name + ": " + mStats.get(name));
+        }
+    }
+}
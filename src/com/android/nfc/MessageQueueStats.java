@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc;
+
+import android.util.SparseArray;
+
+import java.io.PrintWriter;
+
+/**
+ * Per message type queueing and handling times of a {@link android.os.Handler},
+ * to find messages that are delayed behind slow ones.
+ */
+final class MessageQueueStats {
+    private final String mName;
+    private final SparseArray<long[]> mStats = new SparseArray<long[]>();
+
+    // Indices into the per message type array
+    private static final int COUNT = 0;
+    private static final int TOTAL_QUEUE_MS = 1;
+    private static final int MAX_QUEUE_MS = 2;
+    private static final int TOTAL_HANDLE_MS = 3;
+    private static final int MAX_HANDLE_MS = 4;
+    private static final int NUM_STATS = 5;
+
+    MessageQueueStats(String name) {
+        mName = name;
+    }
+
+    synchronized void record(int what, long queueMs, long handleMs) {
+        long[] stats = mStats.get(what);
+        if (stats == null) {
+            stats = new long[NUM_STATS];
+            mStats.put(what, stats);
+        }
+        if (queueMs < 0) {
+            // Message was dispatched ahead of its time, e.g. sendMessageAtFrontOfQueue()
+            queueMs = 0;
+        }
+        stats[COUNT]++;
+        stats[TOTAL_QUEUE_MS] += queueMs;
+        stats[MAX_QUEUE_MS] = Math.max(stats[MAX_QUEUE_MS], queueMs);
+        stats[TOTAL_HANDLE_MS] += handleMs;
+        stats[MAX_HANDLE_MS] = Math.max(stats[MAX_HANDLE_MS], handleMs);
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        pw.println(mName + " message queue stats:");
+        for (int i = 0; i < mStats.size(); i++) {
+            long[] stats = mStats.valueAt(i);
+            pw.println("  what=" + mStats.keyAt(i)
+                    + " count=" + stats[COUNT]
+                    + " avgQueueMs=" + stats[TOTAL_QUEUE_MS] / stats[COUNT]
+                    + " maxQueueMs=" + stats[MAX_QUEUE_MS]
+                    + " avgHandleMs=" + stats[TOTAL_HANDLE_MS] / stats[COUNT]
+                    + " maxHandleMs=" + stats[MAX_HANDLE_MS]);
+        }
+    }
+}
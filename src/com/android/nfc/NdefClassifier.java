@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc;
+
+import android.nfc.NdefMessage;
+import android.nfc.NdefRecord;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Single pass classification of an NDEF message for the dispatch fast paths.
+ *
+ * The records are classified by their TNF and type once, without serializing
+ * the message. Every dispatch stage can then check whether the message is of
+ * interest to it before doing any parsing of its own; payloads are only
+ * copied out of the records a stage asks for.
+ */
+public final class NdefClassifier {
+    // Record kinds, most specific match wins
+    public static final int KIND_OTHER = 0;
+    public static final int KIND_BT_OOB = 1;
+    public static final int KIND_BLE_OOB = 2;
+    public static final int KIND_HANDOVER_SELECT = 3;
+    public static final int KIND_NOKIA = 4;
+    public static final int KIND_WPS = 5;
+    public static final int KIND_AAR = 6;
+    public static final int KIND_URI = 7;
+    public static final int KIND_MIME = 8;
+
+    private static final byte[] TYPE_BT_OOB = "application/vnd.bluetooth.ep.oob"
+            .getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] TYPE_BLE_OOB = "application/vnd.bluetooth.le.oob"
+            .getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] TYPE_NOKIA = "nokia.com:bt".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] TYPE_WPS = NfcWifiProtectedSetup.NFC_TOKEN_MIME_TYPE
+            .getBytes(StandardCharsets.US_ASCII);
+
+    private static final NdefRecord[] NO_RECORDS = new NdefRecord[0];
+
+    private final NdefRecord[] mRecords;
+    private final boolean mValid;
+    private int mKinds;
+    private final int[] mRecordKinds;
+
+    private NdefClassifier(NdefRecord[] records, boolean valid) {
+        mRecords = records;
+        mValid = valid;
+        mRecordKinds = new int[records.length];
+        for (int i = 0; i < records.length; i++) {
+            int kind = classifyRecord(records[i].getTnf(), records[i].getType());
+            mRecordKinds[i] = kind;
+            mKinds |= 1 << kind;
+        }
+    }
+
+    /**
+     * Classifies {@code message}, which may be null.
+     */
+    public static NdefClassifier classify(NdefMessage message) {
+        if (message == null) {
+            return new NdefClassifier(NO_RECORDS, false);
+        }
+        return new NdefClassifier(message.getRecords(), true);
+    }
+
+    private static int classifyRecord(short tnf, byte[] type) {
+        // WPS tokens are matched by type regardless of the TNF
+        if (Arrays.equals(type, TYPE_WPS)) {
+            return KIND_WPS;
+        }
+        switch (tnf) {
+            case NdefRecord.TNF_MIME_MEDIA:
+                if (Arrays.equals(type, TYPE_BT_OOB)) return KIND_BT_OOB;
+                if (Arrays.equals(type, TYPE_BLE_OOB)) return KIND_BLE_OOB;
+                return KIND_MIME;
+            case NdefRecord.TNF_WELL_KNOWN:
+                if (Arrays.equals(type, NdefRecord.RTD_HANDOVER_SELECT)) {
+                    return KIND_HANDOVER_SELECT;
+                }
+                if (Arrays.equals(type, NdefRecord.RTD_URI)) return KIND_URI;
+                return KIND_OTHER;
+            case NdefRecord.TNF_ABSOLUTE_URI:
+                return KIND_URI;
+            case NdefRecord.TNF_EXTERNAL_TYPE:
+                if (Arrays.equals(type, TYPE_NOKIA)) return KIND_NOKIA;
+                if (Arrays.equals(type, NdefRecord.RTD_ANDROID_APP)) {
+                    return KIND_AAR;
+                }
+                return KIND_OTHER;
+            default:
+                return KIND_OTHER;
+        }
+    }
+
+    /**
+     * Returns false if there was no message; the dispatch stages then have
+     * to fall back to their own parsing.
+     */
+    public boolean isValid() {
+        return mValid;
+    }
+
+    /**
+     * Returns true if any record is of the given kind.
+     */
+    public boolean hasRecord(int kind) {
+        return mValid && (mKinds & (1 << kind)) != 0;
+    }
+
+    /**
+     * Returns true if the first record may start a Bluetooth handover.
+     */
+    public boolean isBluetoothHandover() {
+        if (!mValid || mRecords.length == 0) return false;
+        int kind = getRecordKind(0);
+        return kind == KIND_BT_OOB || kind == KIND_BLE_OOB
+                || kind == KIND_HANDOVER_SELECT || kind == KIND_NOKIA;
+    }
+
+    public int getRecordCount() {
+        return mRecords.length;
+    }
+
+    public int getRecordKind(int index) {
+        return mRecordKinds[index];
+    }
+
+    /**
+     * Returns a read-only view on the payload of a record, positioned at 0.
+     */
+    public ByteBuffer getPayload(int index) {
+        return ByteBuffer.wrap(mRecords[index].getPayload()).asReadOnlyBuffer();
+    }
+
+    /**
+     * Returns the payload of a record decoded as US-ASCII, e.g. an AAR package name.
+     */
+    public String getPayloadAsAscii(int index) {
+        return new String(mRecords[index].getPayload(), StandardCharsets.US_ASCII);
+    }
+}
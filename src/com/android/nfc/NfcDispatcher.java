@@ -23,6 +23,7 @@ import android.app.IActivityManager;
 import android.app.PendingIntent;
 import android.app.PendingIntent.CanceledException;
 import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
 import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.ContentResolver;
@@ -30,7 +31,6 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.pm.PackageManager;
-import android.content.pm.PackageManager.NameNotFoundException;
 import android.content.pm.ResolveInfo;
 import android.content.res.Resources.NotFoundException;
 import android.net.Uri;
@@ -58,6 +58,7 @@ import android.widget.TextView;
 
 import com.android.nfc.RegisteredComponentCache.ComponentInfo;
 import com.android.nfc.handover.HandoverDataParser;
+import com.android.nfc.handover.PeripheralHandoverCache;
 import com.android.nfc.handover.PeripheralHandoverService;
 
 import java.io.FileDescriptor;
@@ -85,6 +86,8 @@ class NfcDispatcher {
     private final Context mContext;
     private final IActivityManager mIActivityManager;
     private final RegisteredComponentCache mTechListFilters;
+    private final DispatchResolutionCache mResolutionCache;
+    private final DispatchLatencyTracker mLatencyTracker = new DispatchLatencyTracker();
     private final ContentResolver mContentResolver;
     private final HandoverDataParser mHandoverDataParser;
     private final String[] mProvisioningMimes;
@@ -110,6 +113,7 @@ class NfcDispatcher {
         mIActivityManager = ActivityManager.getService();
         mTechListFilters = new RegisteredComponentCache(mContext,
                 NfcAdapter.ACTION_TECH_DISCOVERED, NfcAdapter.ACTION_TECH_DISCOVERED);
+        mResolutionCache = new DispatchResolutionCache(mContext, mLatencyTracker);
         mContentResolver = context.getContentResolver();
         mHandoverDataParser = handoverDataParser;
         mScreenStateHelper = new ScreenStateHelper(context);
@@ -133,12 +137,15 @@ class NfcDispatcher {
         mProvisioningMimes = provisionMimes;
 
         IntentFilter filter = new IntentFilter(BluetoothAdapter.ACTION_STATE_CHANGED);
+        filter.addAction(BluetoothAdapter.ACTION_BLUETOOTH_ADDRESS_CHANGED);
+        filter.addAction(BluetoothDevice.ACTION_BOND_STATE_CHANGED);
         mContext.registerReceiver(mBluetoothStatusReceiver, filter);
     }
 
     @Override
     protected void finalize() throws Throwable {
         mContext.unregisterReceiver(mBluetoothStatusReceiver);
+        mResolutionCache.close();
         super.finalize();
     }
 
@@ -186,10 +193,12 @@ class NfcDispatcher {
         final Intent rootIntent;
         final Uri ndefUri;
         final String ndefMimeType;
-        final PackageManager packageManager;
         final Context context;
+        final DispatchResolutionCache resolutionCache;
+        final DispatchLatencyTracker latencyTracker;
 
-        public DispatchInfo(Context context, Tag tag, NdefMessage message) {
+        public DispatchInfo(Context context, Tag tag, NdefMessage message,
+                DispatchResolutionCache resolutionCache, DispatchLatencyTracker latencyTracker) {
             intent = new Intent();
             intent.putExtra(NfcAdapter.EXTRA_TAG, tag);
             intent.putExtra(NfcAdapter.EXTRA_ID, tag.getId());
@@ -207,7 +216,8 @@ class NfcDispatcher {
             rootIntent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK | Intent.FLAG_ACTIVITY_CLEAR_TASK);
 
             this.context = context;
-            packageManager = context.getPackageManager();
+            this.resolutionCache = resolutionCache;
+            this.latencyTracker = latencyTracker;
         }
 
         public Intent setNdefIntent() {
@@ -240,8 +250,7 @@ class NfcDispatcher {
             boolean status = false;
             List<UserHandle> luh = getCurrentActiveUserHandles();
             for (UserHandle uh : luh) {
-                if (packageManager.queryIntentActivitiesAsUser(intent, 0,
-                        uh).size() > 0) {
+                if (resolutionCache.hasActivity(intent, uh)) {
                     status = true;
                 }
             }
@@ -271,10 +280,9 @@ class NfcDispatcher {
             // to determine if there is an Activity to handle this intent, and base the
             // result of off that.
             // try current user if there is an Activity to handle this intent
-            List<ResolveInfo> activities = packageManager.queryIntentActivitiesAsUser(intent, 0,
-                    ActivityManager.getCurrentUser());
-            if (activities.size() > 0) {
-                context.startActivityAsUser(rootIntent, UserHandle.CURRENT);
+            if (resolutionCache.hasActivity(intent,
+                    UserHandle.of(ActivityManager.getCurrentUser()))) {
+                startRootActivityAsUser(UserHandle.CURRENT);
                 NfcStatsLog.write(NfcStatsLog.NFC_TAG_OCCURRED,
                         NfcStatsLog.NFC_TAG_OCCURRED__TYPE__APP_LAUNCH);
                 return true;
@@ -282,10 +290,9 @@ class NfcDispatcher {
             // try other users when there is no Activity in current user to handle this intent
             List<UserHandle> userHandles = getCurrentActiveUserHandles();
             for (UserHandle uh : userHandles) {
-                activities = packageManager.queryIntentActivitiesAsUser(intent, 0, uh);
-                if (activities.size() > 0) {
+                if (resolutionCache.hasActivity(intent, uh)) {
                     rootIntent.putExtra(NfcRootActivity.EXTRA_LAUNCH_INTENT_USER_HANDLE, uh);
-                    context.startActivityAsUser(rootIntent, uh);
+                    startRootActivityAsUser(uh);
                     NfcStatsLog.write(NfcStatsLog.NFC_TAG_OCCURRED,
                             NfcStatsLog.NFC_TAG_OCCURRED__TYPE__APP_LAUNCH);
                     return true;
@@ -296,11 +303,10 @@ class NfcDispatcher {
 
         boolean tryStartActivity(Intent intentToStart) {
             // try current user if there is an Activity to handle this intent
-            List<ResolveInfo> activities = packageManager.queryIntentActivitiesAsUser(
-                    intentToStart, 0, ActivityManager.getCurrentUser());
-            if (activities.size() > 0) {
+            if (resolutionCache.hasActivity(intentToStart,
+                    UserHandle.of(ActivityManager.getCurrentUser()))) {
                 rootIntent.putExtra(NfcRootActivity.EXTRA_LAUNCH_INTENT, intentToStart);
-                context.startActivityAsUser(rootIntent, UserHandle.CURRENT);
+                startRootActivityAsUser(UserHandle.CURRENT);
                 NfcStatsLog.write(NfcStatsLog.NFC_TAG_OCCURRED,
                         NfcStatsLog.NFC_TAG_OCCURRED__TYPE__APP_LAUNCH);
                 return true;
@@ -308,11 +314,10 @@ class NfcDispatcher {
             // try other users when there is no Activity in current user to handle this intent
             List<UserHandle> userHandles = getCurrentActiveUserHandles();
             for (UserHandle uh : userHandles) {
-                activities = packageManager.queryIntentActivitiesAsUser(intentToStart, 0, uh);
-                if (activities.size() > 0) {
+                if (resolutionCache.hasActivity(intentToStart, uh)) {
                     rootIntent.putExtra(NfcRootActivity.EXTRA_LAUNCH_INTENT, intentToStart);
                     rootIntent.putExtra(NfcRootActivity.EXTRA_LAUNCH_INTENT_USER_HANDLE, uh);
-                    context.startActivityAsUser(rootIntent, uh);
+                    startRootActivityAsUser(uh);
                     NfcStatsLog.write(NfcStatsLog.NFC_TAG_OCCURRED,
                             NfcStatsLog.NFC_TAG_OCCURRED__TYPE__APP_LAUNCH);
                     return true;
@@ -321,6 +326,12 @@ class NfcDispatcher {
             return false;
         }
 
+        void startRootActivityAsUser(UserHandle user) {
+            long start = latencyTracker.startStage();
+            context.startActivityAsUser(rootIntent, user);
+            latencyTracker.endStage(DispatchLatencyTracker.STAGE_START_ACTIVITY, start);
+        }
+
         List<UserHandle> getCurrentActiveUserHandles() {
             UserManager um = context.createContextAsUser(
                     UserHandle.of(ActivityManager.getCurrentUser()), /*flags=*/0)
@@ -345,6 +356,13 @@ class NfcDispatcher {
      * </ul>
      */
     public int dispatchTag(Tag tag) {
+        mLatencyTracker.beginDispatch();
+        int result = dispatchTagInternal(tag);
+        mLatencyTracker.endDispatch(result);
+        return result;
+    }
+
+    private int dispatchTagInternal(Tag tag) {
         PendingIntent overrideIntent;
         IntentFilter[] overrideFilters;
         String[][] overrideTechLists;
@@ -364,7 +382,9 @@ class NfcDispatcher {
         boolean screenUnlocked = false;
         if (!provisioningOnly &&
                 mScreenStateHelper.checkScreenState() == ScreenStateHelper.SCREEN_STATE_ON_LOCKED) {
+            long start = mLatencyTracker.startStage();
             screenUnlocked = handleNfcUnlock(tag);
+            mLatencyTracker.endStage(DispatchLatencyTracker.STAGE_UNLOCK, start);
             if (!screenUnlocked)
                 return DISPATCH_FAIL;
         }
@@ -380,25 +400,36 @@ class NfcDispatcher {
 
         if (DBG) Log.d(TAG, "dispatch tag: " + tag.toString() + " message: " + message);
 
-        DispatchInfo dispatch = new DispatchInfo(mContext, tag, message);
+        DispatchInfo dispatch = new DispatchInfo(mContext, tag, message, mResolutionCache,
+                mLatencyTracker);
+        NdefClassifier classifier = NdefClassifier.classify(message);
 
         resumeAppSwitches();
 
-        if (tryOverrides(dispatch, tag, message, overrideIntent, overrideFilters,
-                overrideTechLists)) {
+        long start = mLatencyTracker.startStage();
+        boolean matched = tryOverrides(dispatch, tag, message, overrideIntent, overrideFilters,
+                overrideTechLists);
+        mLatencyTracker.endStage(DispatchLatencyTracker.STAGE_OVERRIDES, start);
+        if (matched) {
             NfcStatsLog.write(
                     NfcStatsLog.NFC_TAG_OCCURRED, NfcStatsLog.NFC_TAG_OCCURRED__TYPE__APP_LAUNCH);
             return screenUnlocked ? DISPATCH_UNLOCK : DISPATCH_SUCCESS;
         }
 
-        if (tryPeripheralHandover(message)) {
+        start = mLatencyTracker.startStage();
+        matched = tryPeripheralHandover(message, classifier);
+        mLatencyTracker.endStage(DispatchLatencyTracker.STAGE_HANDOVER, start);
+        if (matched) {
             if (DBG) Log.i(TAG, "matched BT HANDOVER");
             NfcStatsLog.write(
                     NfcStatsLog.NFC_TAG_OCCURRED, NfcStatsLog.NFC_TAG_OCCURRED__TYPE__BT_PAIRING);
             return screenUnlocked ? DISPATCH_UNLOCK : DISPATCH_SUCCESS;
         }
 
-        if (NfcWifiProtectedSetup.tryNfcWifiSetup(ndef, mContext)) {
+        start = mLatencyTracker.startStage();
+        matched = NfcWifiProtectedSetup.tryNfcWifiSetup(ndef, mContext, classifier);
+        mLatencyTracker.endStage(DispatchLatencyTracker.STAGE_WIFI, start);
+        if (matched) {
             if (DBG) Log.i(TAG, "matched NFC WPS TOKEN");
             NfcStatsLog.write(
                     NfcStatsLog.NFC_TAG_OCCURRED, NfcStatsLog.NFC_TAG_OCCURRED__TYPE__WIFI_CONNECT);
@@ -421,7 +452,10 @@ class NfcDispatcher {
             }
         }
 
-        if (tryNdef(dispatch, message)) {
+        start = mLatencyTracker.startStage();
+        matched = tryNdef(dispatch, message, classifier);
+        mLatencyTracker.endStage(DispatchLatencyTracker.STAGE_NDEF, start);
+        if (matched) {
             return screenUnlocked ? DISPATCH_UNLOCK : DISPATCH_SUCCESS;
         }
 
@@ -431,12 +465,18 @@ class NfcDispatcher {
         }
 
         // Only allow NDEF-based mimeType matching for unlock tags
-        if (tryTech(dispatch, tag)) {
+        start = mLatencyTracker.startStage();
+        matched = tryTech(dispatch, tag);
+        mLatencyTracker.endStage(DispatchLatencyTracker.STAGE_TECH, start);
+        if (matched) {
             return DISPATCH_SUCCESS;
         }
 
+        start = mLatencyTracker.startStage();
         dispatch.setTagIntent();
-        if (dispatch.tryStartActivity()) {
+        matched = dispatch.tryStartActivity();
+        mLatencyTracker.endStage(DispatchLatencyTracker.STAGE_TAG, start);
+        if (matched) {
             if (DBG) Log.i(TAG, "matched TAG");
             return DISPATCH_SUCCESS;
         }
@@ -589,7 +629,7 @@ class NfcDispatcher {
         return false;
     }
 
-    boolean tryNdef(DispatchInfo dispatch, NdefMessage message) {
+    boolean tryNdef(DispatchInfo dispatch, NdefMessage message, NdefClassifier classifier) {
         if (message == null) {
             return false;
         }
@@ -599,7 +639,7 @@ class NfcDispatcher {
         if (intent == null) return false;
 
         // Try to start AAR activity with matching filter
-        List<String> aarPackages = extractAarPackages(message);
+        List<String> aarPackages = extractAarPackages(message, classifier);
         for (String pkg : aarPackages) {
             dispatch.intent.setPackage(pkg);
             if (dispatch.tryStartActivity()) {
@@ -612,19 +652,14 @@ class NfcDispatcher {
         // Try to perform regular launch of the first AAR
         if (aarPackages.size() > 0) {
             String firstPackage = aarPackages.get(0);
-            PackageManager pm;
             for (UserHandle uh : luh) {
-                try {
-                    pm = mContext.createPackageContextAsUser("android", 0,
-                            uh).getPackageManager();
-                } catch (NameNotFoundException e) {
-                    Log.e(TAG, "Could not create user package context");
+                if (mResolutionCache.getPackageManager(uh) == null) {
                     return false;
                 }
-                Intent appLaunchIntent = pm.getLaunchIntentForPackage(firstPackage);
+                Intent appLaunchIntent =
+                        mResolutionCache.getLaunchIntentForPackage(firstPackage, uh);
                 if (appLaunchIntent != null) {
-                    ResolveInfo ri = pm.resolveActivity(appLaunchIntent, 0);
-                    if (ri != null && ri.activityInfo != null && ri.activityInfo.exported
+                    if (mResolutionCache.resolvesToExportedActivity(appLaunchIntent, uh)
                             && dispatch.tryStartActivity(appLaunchIntent)) {
                         if (DBG) Log.i(TAG, "matched AAR to application launch");
                         return true;
@@ -651,25 +686,27 @@ class NfcDispatcher {
         }
 
         for (UserHandle uh : luh) {
-            try {
-                PackageManager pm = mContext.createPackageContextAsUser("android", 0,
-                        uh).getPackageManager();
-                ResolveInfo ri = pm.resolveActivity(intent, 0);
-
-                if (ri != null && ri.activityInfo != null && ri.activityInfo.exported
-                        && dispatch.tryStartActivity()) {
-                    if (DBG) Log.i(TAG, "matched NDEF");
-                    return true;
-                }
-            } catch (NameNotFoundException ignore) {
-                Log.e(TAG, "Could not create user package context");
+            if (mResolutionCache.resolvesToExportedActivity(intent, uh)
+                    && dispatch.tryStartActivity()) {
+                if (DBG) Log.i(TAG, "matched NDEF");
+                return true;
             }
         }
         return false;
     }
 
-    static List<String> extractAarPackages(NdefMessage message) {
+    static List<String> extractAarPackages(NdefMessage message, NdefClassifier classifier) {
         List<String> aarPackages = new LinkedList<String>();
+        if (classifier.isValid()) {
+            if (classifier.hasRecord(NdefClassifier.KIND_AAR)) {
+                for (int i = 0; i < classifier.getRecordCount(); i++) {
+                    if (classifier.getRecordKind(i) == NdefClassifier.KIND_AAR) {
+                        aarPackages.add(classifier.getPayloadAsAscii(i));
+                    }
+                }
+            }
+            return aarPackages;
+        }
         for (NdefRecord record : message.getRecords()) {
             String pkg = checkForAar(record);
             if (pkg != null) {
@@ -682,29 +719,32 @@ class NfcDispatcher {
     boolean tryTech(DispatchInfo dispatch, Tag tag) {
         dispatch.setTechIntent();
 
-        String[] tagTechs = tag.getTechList();
-        Arrays.sort(tagTechs);
-
         // Standard tech dispatch path
         ArrayList<ResolveInfo> matches = new ArrayList<ResolveInfo>();
-        List<ComponentInfo> registered = mTechListFilters.getComponents();
+        TechListIndex index = mTechListFilters.getTechListIndex();
+        if (index == null) {
+            return false;
+        }
+        // Only the components whose tech list is a subset of the tag techs
+        List<ComponentInfo> candidates = index.getCandidates(tag.getTechList());
+        if (candidates.isEmpty()) {
+            return false;
+        }
 
         PackageManager pm;
         List<UserHandle> luh = dispatch.getCurrentActiveUserHandles();
 
         for (UserHandle uh : luh) {
-            try {
-                pm = mContext.createPackageContextAsUser("android", 0,
-                        uh).getPackageManager();
-            } catch (NameNotFoundException e) {
-                Log.e(TAG, "Could not create user package context");
+            pm = mResolutionCache.getPackageManager(uh);
+            if (pm == null) {
                 return false;
             }
-            // Check each registered activity to see if it matches
-            for (ComponentInfo info : registered) {
-                // Don't allow wild card matching
-                if (filterMatch(tagTechs, info.techs)
-                        && isComponentEnabled(pm, info.resolveInfo)) {
+            // Check each matching activity to see if it is enabled
+            for (ComponentInfo info : candidates) {
+                long start = mLatencyTracker.startStage();
+                boolean enabled = isComponentEnabled(pm, info.resolveInfo);
+                mLatencyTracker.endStage(DispatchLatencyTracker.STAGE_PM_LOOKUP, start);
+                if (enabled) {
                     // Add the activity as a match if it's not already in the list
                     // Check if exported flag is not explicitly set to false to prevent
                     // SecurityExceptions.
@@ -739,12 +779,13 @@ class NfcDispatcher {
         return false;
     }
 
-    public boolean tryPeripheralHandover(NdefMessage m) {
+    public boolean tryPeripheralHandover(NdefMessage m, NdefClassifier classifier) {
         if (m == null || !mDeviceSupportsBluetooth) return false;
 
         if (DBG) Log.d(TAG, "tryHandover(): " + m.toString());
 
-        HandoverDataParser.BluetoothHandoverData handover = mHandoverDataParser.parseBluetooth(m);
+        HandoverDataParser.BluetoothHandoverData handover =
+                mHandoverDataParser.parseBluetooth(m, classifier);
         if (handover == null || !handover.valid) return false;
         if (UserManager.get(mContext).hasUserRestriction(
                 UserManager.DISALLOW_CONFIG_BLUETOOTH,
@@ -871,6 +912,13 @@ class NfcDispatcher {
             pw.println("mOverrideFilters=" + mOverrideFilters);
             pw.println("mOverrideTechLists=" + mOverrideTechLists);
         }
+        TechListIndex index = mTechListFilters.getTechListIndex();
+        if (index != null) {
+            pw.println("Tech list index: techs=" + index.getTechCount()
+                    + " masks=" + index.getMaskCount());
+        }
+        mResolutionCache.dump(pw);
+        mLatencyTracker.dump(pw);
     }
 
     void dumpDebug(ProtoOutputStream proto) {
@@ -919,6 +967,16 @@ class NfcDispatcher {
             String action = intent.getAction();
             if (action.equals(BluetoothAdapter.ACTION_STATE_CHANGED)) {
                 handleBluetoothStateChanged(intent);
+            } else if (action.equals(BluetoothAdapter.ACTION_BLUETOOTH_ADDRESS_CHANGED)) {
+                mHandoverDataParser.invalidateHandoverRequest();
+            } else if (action.equals(BluetoothDevice.ACTION_BOND_STATE_CHANGED)) {
+                BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+                int bond = intent.getIntExtra(BluetoothDevice.EXTRA_BOND_STATE,
+                        BluetoothAdapter.ERROR);
+                if (device != null && bond == BluetoothDevice.BOND_NONE) {
+                    // A later bond may not come from a handover
+                    PeripheralHandoverCache.onBondRemoved(mContext, device.getAddress());
+                }
             }
         }
 
@@ -928,6 +986,8 @@ class NfcDispatcher {
             if (state == BluetoothAdapter.STATE_OFF) {
                 mBluetoothEnabledByNfc.set(false);
             }
+            // The cached Handover Request carries the local address
+            mHandoverDataParser.invalidateHandoverRequest();
         }
     };
 }
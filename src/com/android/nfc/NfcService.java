@@ -82,6 +82,7 @@ import android.os.Binder;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.HwBinder;
 import android.os.IBinder;
 import android.os.Message;
@@ -217,6 +218,7 @@ public class NfcService implements DeviceHostListener {
     static final int MSG_TOAST_DEBOUNCE_EVENT = 19;
     static final int MSG_DELAY_POLLING = 20;
     static final int MSG_CARD_EMULATION = 21;
+    static final int MSG_NDEF_TAG_READ = 22;
     static final int MSG_SE_INIT = 59;
     static final int MSG_CLEAR_ROUTING = 62;
     static final int MSG_INIT_WIREDSE = 63;
@@ -739,6 +741,30 @@ public class NfcService implements DeviceHostListener {
         public int presenceCheckDelay;
     }
 
+    /**
+     * A detected tag on its way through the tag pipeline: detection on the
+     * service handler, NDEF read on the tag worker, then dispatch back on
+     * the service handler.
+     */
+    static final class TagReadRequest {
+        final TagEndpoint tag;
+        final ReaderModeParams readerParams;
+        final int presenceCheckDelay;
+        final DeviceHost.TagDisconnectedCallback callback;
+
+        // Filled in by the tag worker
+        NdefMessage ndefMsg;
+        boolean readFailed;
+
+        TagReadRequest(TagEndpoint tag, ReaderModeParams readerParams,
+                int presenceCheckDelay, DeviceHost.TagDisconnectedCallback callback) {
+            this.tag = tag;
+            this.readerParams = readerParams;
+            this.presenceCheckDelay = presenceCheckDelay;
+            this.callback = callback;
+        }
+    }
+
     public NfcService(Application nfcApplication) {
         mUserId = ActivityManager.getCurrentUser();
         mContext = nfcApplication;
@@ -850,6 +876,10 @@ public class NfcService implements DeviceHostListener {
 
         mNumTagsDetected = new AtomicInteger();
         mNumP2pDetected = new AtomicInteger();
+
+        HandlerThread tagReadThread = new HandlerThread("NfcTagWorker");
+        tagReadThread.start();
+        mTagReadHandler = new TagReadHandler(tagReadThread);
         mNumHceDetected = new AtomicInteger();
 
         mBackupManager = new BackupManager(mContext);
@@ -3763,7 +3793,112 @@ public class NfcService implements DeviceHostListener {
         }
     }
 
+    /**
+     * Runs the blocking NDEF read of detected tags, off the service handler.
+     * While a read is in flight the service handler holds back every message
+     * that talks to the controller, so routing, discovery, screen state and
+     * NFCEE commands still wait for the read as they did on a single thread.
+     */
+    final class TagReadHandler extends Handler {
+        TagReadHandler(HandlerThread thread) {
+            super(thread.getLooper());
+        }
+
+        @Override
+        public void dispatchMessage(Message msg) {
+            long start = SystemClock.uptimeMillis();
+            long when = msg.getWhen();
+            int what = msg.what;
+            super.dispatchMessage(msg);
+            mTagReadQueueStats.record(what, start - when, SystemClock.uptimeMillis() - start);
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            if (msg.what != MSG_NDEF_TAG) {
+                return;
+            }
+            TagReadRequest request = (TagReadRequest) msg.obj;
+            TagEndpoint tag = request.tag;
+            NdefMessage ndefMsg = tag.findAndReadNdef();
+
+            if (ndefMsg == null) {
+                // First try to see if this was a bad tag read
+                if (!tag.reconnect()) {
+                    tag.disconnect();
+                    request.readFailed = true;
+                }
+            }
+            request.ndefMsg = ndefMsg;
+            NfcService.this.sendMessage(MSG_NDEF_TAG_READ, request);
+        }
+    }
+
     final class NfcServiceHandler extends Handler {
+        // Controller messages held back while the tag worker talks to the tag,
+        // with the time they were originally due.
+        private final ArrayList<Message> mDeferredMessages = new ArrayList<Message>();
+        private final ArrayList<Long> mDeferredWhen = new ArrayList<Long>();
+        private int mTagReadsInFlight;
+
+        @Override
+        public void dispatchMessage(Message msg) {
+            dispatchMessage(msg, msg.getWhen());
+        }
+
+        private void dispatchMessage(Message msg, long when) {
+            long start = SystemClock.uptimeMillis();
+            int what = msg.what;
+            if (mTagReadsInFlight > 0 && touchesController(what)) {
+                // The controller is in the middle of the tag exchanges; run
+                // these once the read is done, in the order they arrived.
+                mDeferredMessages.add(Message.obtain(msg));
+                mDeferredWhen.add(when);
+                return;
+            }
+            super.dispatchMessage(msg);
+            mServiceQueueStats.record(what, start - when, SystemClock.uptimeMillis() - start);
+            if (what == MSG_NDEF_TAG_READ && --mTagReadsInFlight == 0) {
+                ArrayList<Message> deferred = new ArrayList<Message>(mDeferredMessages);
+                ArrayList<Long> deferredWhen = new ArrayList<Long>(mDeferredWhen);
+                mDeferredMessages.clear();
+                mDeferredWhen.clear();
+                // A replayed MSG_NDEF_TAG starts another read; whatever
+                // follows it is held back again.
+                for (int i = 0; i < deferred.size(); i++) {
+                    dispatchMessage(deferred.get(i), deferredWhen.get(i));
+                    deferred.get(i).recycle();
+                }
+            }
+        }
+
+        private boolean touchesController(int what) {
+            switch (what) {
+                case MSG_ROUTE_AID:
+                case MSG_UNROUTE_AID:
+                case MSG_COMMIT_ROUTING:
+                case MSG_COMPUTE_ROUTING_PARAMS:
+                case MSG_RESET_AND_UPDATE_ROUTING_PARAMS:
+                case MSG_REGISTER_T3T_IDENTIFIER:
+                case MSG_DEREGISTER_T3T_IDENTIFIER:
+                case MSG_NDEF_TAG:
+                case MSG_LLCP_LINK_ACTIVATION:
+                case MSG_LLCP_LINK_DEACTIVATED:
+                case MSG_APPLY_SCREEN_STATE:
+                case MSG_DELAY_POLLING:
+                case MSG_RESUME_POLLING:
+                case MSG_SE_INIT:
+                case MSG_INIT_WIREDSE:
+                case MSG_WRITE_T4TNFCEE:
+                case MSG_READ_T4TNFCEE:
+                case MSG_WLC_ENABLE:
+                case MSG_WLC_DISABLE:
+                    return true;
+                default:
+                    return false;
+            }
+        }
+
         @Override
         public void handleMessage(Message msg) {
             switch (msg.what) {
@@ -3868,14 +4003,6 @@ public class NfcService implements DeviceHostListener {
                     if (DBG) Log.d(TAG, "Tag detected, notifying applications");
                     mNumTagsDetected.incrementAndGet();
                     TagEndpoint tag = (TagEndpoint) msg.obj;
-                    byte[] debounceTagUid;
-                    int debounceTagMs;
-                    ITagRemovedCallback debounceTagRemovedCallback;
-                    synchronized (NfcService.this) {
-                        debounceTagUid = mDebounceTagUid;
-                        debounceTagMs = mDebounceTagDebounceMs;
-                        debounceTagRemovedCallback = mDebounceTagRemovedCallback;
-                    }
                     ReaderModeParams readerParams = null;
                     int presenceCheckDelay = DEFAULT_PRESENCE_CHECK_DELAY;
                     DeviceHost.TagDisconnectedCallback callback =
@@ -3911,35 +4038,52 @@ public class NfcService implements DeviceHostListener {
                         dispatchTagEndpoint(tag, readerParams);
                         break;
                     }
-                    NdefMessage ndefMsg = tag.findAndReadNdef();
+                    // The NDEF read is a blocking RF exchange; do it on the tag
+                    // worker so field events and broadcasts don't queue behind
+                    // it. Controller messages still wait for the read (see
+                    // NfcServiceHandler). The result comes back as MSG_NDEF_TAG_READ.
+                    TagReadRequest request = new TagReadRequest(tag, readerParams,
+                            presenceCheckDelay, callback);
+                    mTagReadsInFlight++;
+                    mTagReadHandler.sendMessage(
+                            mTagReadHandler.obtainMessage(MSG_NDEF_TAG, request));
+                    break;
 
-                    if (ndefMsg == null) {
-                        // First try to see if this was a bad tag read
-                        if (!tag.reconnect()) {
-                            tag.disconnect();
-                            if (mScreenState == ScreenStateHelper.SCREEN_STATE_ON_UNLOCKED) {
-                                if (!sToast_debounce && mNotifyReadFailed) {
-                                    Toast.makeText(mContext, R.string.tag_read_error,
-                                                   Toast.LENGTH_SHORT).show();
-                                    sToast_debounce = true;
-                                    mHandler.sendEmptyMessageDelayed(MSG_TOAST_DEBOUNCE_EVENT,
-                                                                     sToast_debounce_time_ms);
-                                }
+                case MSG_NDEF_TAG_READ: {
+                    TagReadRequest result = (TagReadRequest) msg.obj;
+                    TagEndpoint readTag = result.tag;
+                    NdefMessage ndefMsg = result.ndefMsg;
+                    if (result.readFailed) {
+                        if (mScreenState == ScreenStateHelper.SCREEN_STATE_ON_UNLOCKED) {
+                            if (!sToast_debounce && mNotifyReadFailed) {
+                                Toast.makeText(mContext, R.string.tag_read_error,
+                                               Toast.LENGTH_SHORT).show();
+                                sToast_debounce = true;
+                                mHandler.sendEmptyMessageDelayed(MSG_TOAST_DEBOUNCE_EVENT,
+                                                                 sToast_debounce_time_ms);
                             }
-                            break;
                         }
+                        break;
                     }
                     if (mWlc.isWlcListenerDetected(ndefMsg)) {
                         break;
+                    }
+                    byte[] debounceTagUid;
+                    int debounceTagMs;
+                    ITagRemovedCallback debounceTagRemovedCallback;
+                    synchronized (NfcService.this) {
+                        debounceTagUid = mDebounceTagUid;
+                        debounceTagMs = mDebounceTagDebounceMs;
+                        debounceTagRemovedCallback = mDebounceTagRemovedCallback;
                     }
                       if (debounceTagUid != null) {
                         // If we're debouncing and the UID or the NDEF message of the tag match,
                         // don't dispatch but drop it.
-                        if (Arrays.equals(debounceTagUid, tag.getUid()) ||
+                        if (Arrays.equals(debounceTagUid, readTag.getUid()) ||
                                 (ndefMsg != null && ndefMsg.equals(mLastReadNdefMessage))) {
                             mHandler.removeMessages(MSG_TAG_DEBOUNCE);
                             mHandler.sendEmptyMessageDelayed(MSG_TAG_DEBOUNCE, debounceTagMs);
-                            tag.disconnect();
+                            readTag.disconnect();
                             return;
                         } else {
                             synchronized (NfcService.this) {
@@ -3959,9 +4103,10 @@ public class NfcService implements DeviceHostListener {
 
                     mLastReadNdefMessage = ndefMsg;
 
-                    tag.startPresenceChecking(presenceCheckDelay, callback);
-                    dispatchTagEndpoint(tag, readerParams);
+                    readTag.startPresenceChecking(result.presenceCheckDelay, result.callback);
+                    dispatchTagEndpoint(readTag, result.readerParams);
                     break;
+                }
 
                 case MSG_LLCP_LINK_ACTIVATION:
                     mPowerManager.userActivity(SystemClock.uptimeMillis(),
@@ -4729,6 +4874,9 @@ public class NfcService implements DeviceHostListener {
     }
 
     private NfcServiceHandler mHandler = new NfcServiceHandler();
+    private TagReadHandler mTagReadHandler;
+    private final MessageQueueStats mServiceQueueStats = new MessageQueueStats("NfcServiceHandler");
+    private final MessageQueueStats mTagReadQueueStats = new MessageQueueStats("NfcTagWorker");
 
     class ApplyRoutingTask extends AsyncTask<Integer, Void, Void> {
         @Override
@@ -4961,7 +5109,8 @@ public class NfcService implements DeviceHostListener {
         }
 
         fos = new FileOutputStream(file, true);
-        mDeviceHost.dump(fos.getFD());
+        PrintWriter pw = new PrintWriter(fos);
+        mDeviceHost.dump(pw, fos.getFD());
         fos.flush();
       } catch (IOException e) {
         Log.e(TAG, "Exception in storeNativeCrashLogs " + e);
@@ -5022,12 +5171,13 @@ public class NfcService implements DeviceHostListener {
                 mCardEmulationManager.dump(fd, pw, args);
             }
             mNfcDispatcher.dump(fd, pw, args);
+            mServiceQueueStats.dump(pw);
+            mTagReadQueueStats.dump(pw);
             if (mState == NfcAdapter.STATE_ON) {
                 mRoutingTableParser.dump(mDeviceHost, pw);
             }
             copyNativeCrashLogsIfAny(pw);
-            pw.flush();
-            mDeviceHost.dump(fd);
+            mDeviceHost.dump(pw, fd);
         }
     }
 
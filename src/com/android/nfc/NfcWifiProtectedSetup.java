@@ -61,11 +61,26 @@ public final class NfcWifiProtectedSetup {
     private NfcWifiProtectedSetup() {}
 
     public static boolean tryNfcWifiSetup(Ndef ndef, Context context) {
+        return tryNfcWifiSetup(ndef, context, null);
+    }
+
+    /**
+     * Same as {@link #tryNfcWifiSetup(Ndef, Context)}, but uses the classification
+     * of the cached NDEF message, if available, to skip messages without a WPS token
+     * and to read the token without copying it.
+     */
+    public static boolean tryNfcWifiSetup(Ndef ndef, Context context,
+            NdefClassifier classifier) {
 
         if (ndef == null || context == null) {
             return false;
         }
 
+        if (classifier != null && classifier.isValid()
+                && !classifier.hasRecord(NdefClassifier.KIND_WPS)) {
+            return false;
+        }
+
         NdefMessage cachedNdefMessage = ndef.getCachedNdefMessage();
         if (cachedNdefMessage == null) {
             return false;
@@ -73,7 +88,11 @@ public final class NfcWifiProtectedSetup {
 
         final WifiConfiguration wifiConfiguration;
         try {
-            wifiConfiguration = parse(cachedNdefMessage);
+            if (classifier != null && classifier.isValid()) {
+                wifiConfiguration = parse(classifier);
+            } else {
+                wifiConfiguration = parse(cachedNdefMessage);
+            }
         } catch (BufferUnderflowException e) {
             // malformed payload
             return false;
@@ -100,20 +119,39 @@ public final class NfcWifiProtectedSetup {
 
         for (NdefRecord record : records) {
             if (new String(record.getType()).equals(NFC_TOKEN_MIME_TYPE)) {
-                ByteBuffer payload = ByteBuffer.wrap(record.getPayload());
-                while (payload.hasRemaining()) {
-                    short fieldId = payload.getShort();
-                    int fieldSize = payload.getShort() & 0xFFFF;
-                    if (fieldId == CREDENTIAL_FIELD_ID) {
-                        return parseCredential(payload, fieldSize);
-                    }
-                    payload.position(payload.position() + fieldSize);
+                WifiConfiguration result = parseToken(ByteBuffer.wrap(record.getPayload()));
+                if (result != null) {
+                    return result;
                 }
             }
         }
         return null;
     }
 
+    private static WifiConfiguration parse(NdefClassifier classifier) {
+        for (int i = 0; i < classifier.getRecordCount(); i++) {
+            if (classifier.getRecordKind(i) == NdefClassifier.KIND_WPS) {
+                WifiConfiguration result = parseToken(classifier.getPayload(i));
+                if (result != null) {
+                    return result;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static WifiConfiguration parseToken(ByteBuffer payload) {
+        while (payload.hasRemaining()) {
+            short fieldId = payload.getShort();
+            int fieldSize = payload.getShort() & 0xFFFF;
+            if (fieldId == CREDENTIAL_FIELD_ID) {
+                return parseCredential(payload, fieldSize);
+            }
+            payload.position(payload.position() + fieldSize);
+        }
+        return null;
+    }
+
     private static WifiConfiguration parseCredential(ByteBuffer payload, int size) {
         int startPosition = payload.position();
         WifiConfiguration result = new WifiConfiguration();
@@ -36,6 +36,7 @@
 package com.android.nfc;
 
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.pm.UserInfo;
 
 import com.android.nfc.beam.BeamManager;
@@ -55,6 +56,7 @@ import com.android.nfc.snep.SnepClient;
 import com.android.nfc.snep.SnepMessage;
 import com.android.nfc.snep.SnepServer;
 
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.content.pm.ApplicationInfo;
@@ -68,6 +70,7 @@ import android.nfc.NdefRecord;
 import android.nfc.NfcAdapter;
 import android.os.AsyncTask;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Message;
 import android.os.SystemClock;
 import android.os.UserHandle;
@@ -202,6 +205,11 @@ class P2pLinkManager implements Handler.Callback, P2pEventListener.Callback {
     // after a user has manually invoked Beam.
     static final int WAIT_FOR_LINK_TIMEOUT_MS = 10000;
 
+    // What the outgoing message depends on besides the app callback is
+    // prepared while the link is down, shortly after it changed. The app
+    // callback itself is only called when the link comes up.
+    static final int PREPARE_DELAY_MS = 100;
+
     static final int MSG_DEBOUNCE_TIMEOUT = 1;
     static final int MSG_RECEIVE_COMPLETE = 2;
     static final int MSG_RECEIVE_HANDOVER = 3;
@@ -243,6 +251,7 @@ class P2pLinkManager implements Handler.Callback, P2pEventListener.Callback {
     final Context mContext;
     final P2pEventListener mEventListener;
     final Handler mHandler;
+    final Handler mPrepareHandler;
     final HandoverDataParser mHandoverDataParser;
     final ForegroundUtils mForegroundUtils;
 
@@ -267,6 +276,11 @@ class P2pLinkManager implements Handler.Callback, P2pEventListener.Callback {
     HandoverClient mHandoverClient;
     NdefPushClient mNdefPushClient;
     ConnectTask mConnectTask;
+    PreparedSend mPreparedSend;
+    int mPrepareGeneration;
+    int mPreparedSendHits;
+    int mPreparedSendMisses;
+    final LlcpServiceConnector mServiceConnector = new LlcpServiceConnector();
     boolean mLlcpServicesConnected;
     long mLastLlcpActivationTime;
     byte mPeerLlcpVersion;
@@ -309,6 +323,22 @@ class P2pLinkManager implements Handler.Callback, P2pEventListener.Callback {
         mLlcpServicesConnected = false;
         mNdefCallbackUid = -1;
         mForegroundUtils = ForegroundUtils.getInstance();
+        HandlerThread prepareThread = new HandlerThread("P2pPrepare");
+        prepareThread.start();
+        mPrepareHandler = new Handler(prepareThread.getLooper());
+        mForegroundUtils.registerForegroundListener(mForegroundListener);
+
+        IntentFilter packageFilter = new IntentFilter();
+        packageFilter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        packageFilter.addDataScheme("package");
+        mContext.registerReceiverAsUser(mPrepareInvalidator, UserHandle.ALL, packageFilter,
+                null, mPrepareHandler);
+        IntentFilter restrictionFilter = new IntentFilter(
+                UserManager.ACTION_USER_RESTRICTIONS_CHANGED);
+        mContext.registerReceiverAsUser(mPrepareInvalidator, UserHandle.ALL, restrictionFilter,
+                null, mPrepareHandler);
      }
 
     /**
@@ -336,8 +366,12 @@ class P2pLinkManager implements Handler.Callback, P2pEventListener.Callback {
                 if (mExtDtaSnepServerRunning)
                     disableExtDtaSnepServer();
             }
+            boolean sendChanged = mIsSendEnabled != sendEnable;
             mIsSendEnabled = sendEnable;
             mIsReceiveEnabled = receiveEnable;
+            if (sendChanged) {
+                invalidatePreparedSendLocked();
+            }
         }
     }
 
@@ -420,6 +454,7 @@ class P2pLinkManager implements Handler.Callback, P2pEventListener.Callback {
         synchronized (this) {
             mCallbackNdef = callbackNdef;
             mNdefCallbackUid = callingUid;
+            invalidatePreparedSendLocked();
         }
     }
 
@@ -460,6 +495,7 @@ class P2pLinkManager implements Handler.Callback, P2pEventListener.Callback {
      */
     public void onLlcpActivated(byte peerLlcpVersion) {
         Log.i(TAG, "LLCP activated");
+        LlcpSender.onLinkActivated();
         synchronized (P2pLinkManager.this) {
             if (mEchoServer != null) {
                 mEchoServer.onLlcpActivated();
@@ -534,6 +570,7 @@ class P2pLinkManager implements Handler.Callback, P2pEventListener.Callback {
             } catch (NameNotFoundException e) {
                 Log.e(TAG, "Failed to retrieve PackageManager for user");
             }
+            invalidatePreparedSendLocked();
         }
     }
 
@@ -545,21 +582,27 @@ class P2pLinkManager implements Handler.Callback, P2pEventListener.Callback {
                 return;
             }
 
-            List<Integer> foregroundUids = mForegroundUtils.getForegroundUids();
-            if (foregroundUids.isEmpty()) {
-                Log.e(TAG, "Could not determine foreground UID.");
-                return;
+            PreparedSend prepared = takePreparedSendLocked();
+            if (prepared == null) {
+                prepared = buildPreparedSend(mPrepareGeneration, null, (byte) 0);
+                if (prepared == null) {
+                    return;
+                }
             }
 
-            if (isBeamDisabled(foregroundUids.get(0))) {
+            if (prepared.beamDisabled) {
                 if (DBG) Log.d(TAG, "Beam is disabled by policy.");
                 return;
             }
 
             if (mCallbackNdef != null) {
-                if (foregroundUids.contains(mNdefCallbackUid)) {
+                if (prepared.foregroundUids.contains(mNdefCallbackUid)) {
                     try {
-                        BeamShareData shareData = mCallbackNdef.createBeamShareData(mPeerLlcpVersion);
+                        BeamShareData shareData = prepared.shareData;
+                        if (shareData == null || prepared.llcpVersion != mPeerLlcpVersion) {
+                            if (DBG) Log.d(TAG, "Asking the app for the message now");
+                            shareData = mCallbackNdef.createBeamShareData(mPeerLlcpVersion);
+                        }
                         mMessageToSend = shareData.ndefMessage;
                         mUrisToSend = shareData.uris;
                         mUserHandle = shareData.userHandle;
@@ -578,17 +621,11 @@ class P2pLinkManager implements Handler.Callback, P2pEventListener.Callback {
 
             // fall back to default NDEF for the foreground activity, unless the
             // application disabled this explicitly in their manifest.
-            String[] pkgs = mPackageManager.getPackagesForUid(foregroundUids.get(0));
-            if (pkgs != null && pkgs.length >= 1) {
-                if (!generatePlayLink || beamDefaultDisabled(pkgs[0])) {
-                    if (DBG) Log.d(TAG, "Disabling default Beam behavior");
-                    mMessageToSend = null;
-                    mUrisToSend = null;
-                } else {
-                    mMessageToSend = createDefaultNdef(pkgs[0]);
-                    mUrisToSend = null;
-                    mSendFlags = 0;
-                }
+            if (!generatePlayLink || prepared.playLink == null) {
+                if (DBG) Log.d(TAG, "Disabling default Beam behavior");
+            } else {
+                mMessageToSend = prepared.playLink;
+                mSendFlags = 0;
             }
 
             if (DBG) Log.d(TAG, "mMessageToSend = " + mMessageToSend);
@@ -596,6 +633,145 @@ class P2pLinkManager implements Handler.Callback, P2pEventListener.Callback {
         }
     }
 
+    /**
+     * The outgoing message as prepared while the link was down: the
+     * foreground apps, whether policy disables Beam for them, what the app
+     * callback returned and the default Play link of the foreground app.
+     */
+    static final class PreparedSend {
+        final int generation;
+        final List<Integer> foregroundUids;
+        boolean beamDisabled;
+        BeamShareData shareData; // null if the callback wasn't asked
+        byte llcpVersion; // peer LLCP version shareData was created for
+        NdefMessage playLink; // null if the app disabled it
+
+        PreparedSend(int generation, List<Integer> foregroundUids) {
+            this.generation = generation;
+            this.foregroundUids = foregroundUids;
+        }
+    }
+
+    /**
+     * Asks {@code callback}, if not null and in the foreground, for the
+     * message it would send to a peer of {@code llcpVersion}. May be called
+     * without holding the lock. Returns null if the foreground app isn't
+     * known.
+     */
+    PreparedSend buildPreparedSend(int generation, IAppCallback callback, byte llcpVersion) {
+        List<Integer> foregroundUids = mForegroundUtils.getForegroundUids();
+        if (foregroundUids.isEmpty()) {
+            Log.e(TAG, "Could not determine foreground UID.");
+            return null;
+        }
+        PreparedSend prepared = new PreparedSend(generation, foregroundUids);
+        if (isBeamDisabled(foregroundUids.get(0))) {
+            prepared.beamDisabled = true;
+            return prepared;
+        }
+        if (callback != null) {
+            try {
+                prepared.shareData = callback.createBeamShareData(llcpVersion);
+                prepared.llcpVersion = llcpVersion;
+            } catch (Exception e) {
+                Log.e(TAG, "Failed NDEF callback: ", e);
+            }
+        }
+        String[] pkgs = mPackageManager.getPackagesForUid(foregroundUids.get(0));
+        if (pkgs != null && pkgs.length >= 1 && !beamDefaultDisabled(pkgs[0])) {
+            prepared.playLink = createDefaultNdef(pkgs[0]);
+        }
+        return prepared;
+    }
+
+    /**
+     * Returns what was prepared while the link was down, if nothing it
+     * depends on changed since.
+     */
+    PreparedSend takePreparedSendLocked() {
+        PreparedSend prepared = mPreparedSend;
+        mPreparedSend = null;
+        // The foreground listener may not have caught up yet
+        if (prepared != null && prepared.generation == mPrepareGeneration
+                && prepared.foregroundUids.equals(mForegroundUtils.getForegroundUids())) {
+            mPreparedSendHits++;
+            return prepared;
+        }
+        mPreparedSendMisses++;
+        return null;
+    }
+
+    /**
+     * Drops what was prepared, and prepares it again shortly.
+     */
+    void invalidatePreparedSendLocked() {
+        mPrepareGeneration++;
+        mPreparedSend = null;
+        schedulePrepareLocked(PREPARE_DELAY_MS);
+    }
+
+    void schedulePrepareLocked(long delayMs) {
+        mPrepareHandler.removeCallbacks(mPrepareRunnable);
+        if (mIsSendEnabled && mLinkState == LINK_STATE_DOWN) {
+            mPrepareHandler.postDelayed(mPrepareRunnable, delayMs);
+        }
+    }
+
+    /**
+     * Prepares the send off the UI thread, without holding the lock.
+     */
+    final Runnable mPrepareRunnable = new Runnable() {
+        @Override
+        public void run() {
+            int generation;
+            IAppCallback callback = null;
+            byte llcpVersion;
+            synchronized (P2pLinkManager.this) {
+                if (!mIsSendEnabled || mLinkState != LINK_STATE_DOWN) {
+                    return;
+                }
+                generation = mPrepareGeneration;
+                if (mForegroundUtils.getForegroundUids().contains(mNdefCallbackUid)) {
+                    callback = mCallbackNdef;
+                }
+                // Most likely the next peer is the same kind of device
+                // as the last one; otherwise the app is asked again.
+                llcpVersion = mPeerLlcpVersion;
+            }
+            PreparedSend prepared = buildPreparedSend(generation, callback, llcpVersion);
+            synchronized (P2pLinkManager.this) {
+                if (generation != mPrepareGeneration) {
+                    // Superseded, another run is scheduled
+                    return;
+                }
+                mPreparedSend = prepared;
+            }
+        }
+    };
+
+    /**
+     * Package updates may change the default Play link, and restriction
+     * changes whether Beam is allowed at all.
+     */
+    final BroadcastReceiver mPrepareInvalidator = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            synchronized (P2pLinkManager.this) {
+                invalidatePreparedSendLocked();
+            }
+        }
+    };
+
+    final ForegroundUtils.ForegroundListener mForegroundListener =
+            new ForegroundUtils.ForegroundListener() {
+        @Override
+        public void onForegroundUidsChanged() {
+            synchronized (P2pLinkManager.this) {
+                invalidatePreparedSendLocked();
+            }
+        }
+    };
+
     private boolean isBeamDisabled(int uid) {
         UserManager userManager = (UserManager) mContext.getSystemService(Context.USER_SERVICE);
         UserInfo userInfo = userManager.getUserInfo(UserHandle.getUserId(uid));
@@ -652,6 +828,7 @@ class P2pLinkManager implements Handler.Callback, P2pEventListener.Callback {
      */
     public void onLlcpDeactivated() {
         Log.i(TAG, "LLCP deactivated.");
+        LlcpSender.onLinkDeactivated();
         synchronized (this) {
             if (mEchoServer != null) {
                 mEchoServer.onLlcpDeactivated();
@@ -787,47 +964,76 @@ class P2pLinkManager implements Handler.Callback, P2pEventListener.Callback {
             }
             // We know either is requested - otherwise this task
             // wouldn't have been started.
-            if (needsHandover) {
-                handoverClient = new HandoverClient();
-                try {
-                    handoverClient.connect();
-                    success = true; // Regardless of NDEF result
-                } catch (IOException e) {
-                    handoverClient = null;
+            if (NfcService.sIsDtaMode) {
+                // The DTA client runs its test operations in place of
+                // connecting, keep it in the original order.
+                if (needsHandover) {
+                    handoverClient = new HandoverClient();
+                    try {
+                        handoverClient.connect();
+                        success = true; // Regardless of NDEF result
+                    } catch (IOException e) {
+                        handoverClient = null;
+                    }
                 }
-            }
-            if (needsNdef || (needsHandover && handoverClient == null)) {
-                if (NfcService.sIsDtaMode) {
-                    if (mClientEnabled) {
-                        if (mDtaSnepClient == null) {
-                            if (DBG) Log.d(TAG, "Creating DTA Snep Client");
-                            mDtaSnepClient = new DtaSnepClient(mServiceName, mDtaMiu, mDtaRwSize, mTestCaseID);
-                        }
+                if (needsNdef || (needsHandover && handoverClient == null)) {
+                    if (mClientEnabled && mDtaSnepClient == null) {
+                        if (DBG) Log.d(TAG, "Creating DTA Snep Client");
+                        mDtaSnepClient = new DtaSnepClient(mServiceName, mDtaMiu, mDtaRwSize, mTestCaseID);
                     }
-                } else
-                    snepClient = new SnepClient();
-                try {
-                    if (NfcService.sIsDtaMode) {
-                        if (mDtaSnepClient != null)
-                            mDtaSnepClient.DtaClientOperations(mContext);
+                    if (mDtaSnepClient != null) {
+                        mDtaSnepClient.DtaClientOperations(mContext);
                     }
-                    else
-                        snepClient.connect();
                     success = true;
                     mDtaSnepClient = null;
-                } catch (IOException e) {
-                    snepClient = null;
                 }
-
-                if (!success) {
-                    nppClient = new NdefPushClient();
-                    try {
-                        nppClient.connect();
-                        success = true;
-                    } catch (IOException e) {
-                        nppClient = null;
+            } else {
+                long start = SystemClock.elapsedRealtime();
+                // SNEP is also the fallback for handover, and NPP for SNEP.
+                // When NDEF is sent anyway, connect everything that could be
+                // used at once and cancel what turns out not to be needed;
+                // a handover-only send only connects them once the handover
+                // service turned out to be missing.
+                LlcpServiceConnector.Attempt<HandoverClient> handover = needsHandover
+                        ? mServiceConnector.connect("handover", new HandoverClient()) : null;
+                LlcpServiceConnector.Attempt<SnepClient> snep = null;
+                LlcpServiceConnector.Attempt<NdefPushClient> npp = null;
+                if (needsNdef) {
+                    snep = mServiceConnector.connect("SNEP", new SnepClient());
+                    npp = mServiceConnector.connect("NPP", new NdefPushClient());
+                }
+                try {
+                    if (handover != null && mServiceConnector.await(handover)) {
+                        handoverClient = handover.getClient();
+                        success = true; // Regardless of NDEF result
+                    }
+                    if (needsNdef || handoverClient == null) {
+                        if (snep == null) {
+                            snep = mServiceConnector.connect("SNEP", new SnepClient());
+                            npp = mServiceConnector.connect("NPP", new NdefPushClient());
+                        }
+                        if (success) {
+                            // NPP is only the last resort
+                            mServiceConnector.cancel(npp);
+                        }
+                        LlcpServiceConnector.Attempt<?> winner =
+                                mServiceConnector.awaitFirst(snep, npp);
+                        if (winner == snep) {
+                            snepClient = snep.getClient();
+                            success = true;
+                        } else if (winner == npp) {
+                            nppClient = npp.getClient();
+                            success = true;
+                        }
                     }
+                } catch (InterruptedException e) {
+                    // Cancelled by onLlcpDeactivated on UI thread, checked below
+                    mServiceConnector.cancel(handover);
+                    mServiceConnector.cancel(snep);
+                    mServiceConnector.cancel(npp);
                 }
+                if (DBG) Log.d(TAG, "LLCP services ready in "
+                        + (SystemClock.elapsedRealtime() - start) + " ms");
             }
 
             synchronized (P2pLinkManager.this) {
@@ -872,16 +1078,16 @@ class P2pLinkManager implements Handler.Callback, P2pEventListener.Callback {
                 return HANDOVER_BUSY;
             }
 
-            NdefMessage request = mHandoverDataParser.createHandoverRequestMessage();
+            HandoverDataParser.HandoverRequest request = mHandoverDataParser.getHandoverRequest();
             if (request != null) {
                 if (handoverClient != null) {
-                    response = handoverClient.sendHandoverRequest(request);
+                    response = handoverClient.sendHandoverRequest(request.bytes);
                 }
                 if (response == null && snepClient != null) {
                     // Remote device may not support handover service,
                     // try the (deprecated) SNEP GET implementation
                     // for devices running Android 4.1
-                    SnepMessage snepResponse = snepClient.get(request);
+                    SnepMessage snepResponse = snepClient.get(request.message);
                     response = snepResponse.getNdefMessage();
                 }
                 if (response == null) {
@@ -1114,6 +1320,7 @@ class P2pLinkManager implements Handler.Callback, P2pEventListener.Callback {
                     mSendState = SEND_STATE_NOTHING_TO_SEND;
                     mMessageToSend = null;
                     mUrisToSend = null;
+                    schedulePrepareLocked(PREPARE_DELAY_MS);
                     if (DBG) Log.d(TAG, "onP2pOutOfRange()");
                     mEventListener.onP2pOutOfRange();
                 }
@@ -1320,7 +1527,12 @@ class P2pLinkManager implements Handler.Callback, P2pEventListener.Callback {
             pw.println("mCallbackNdef=" + mCallbackNdef);
             pw.println("mMessageToSend=" + mMessageToSend);
             pw.println("mUrisToSend=" + mUrisToSend);
+            pw.println("Prepared send: hits=" + mPreparedSendHits
+                    + " misses=" + mPreparedSendMisses);
         }
+        LlcpSender.dump(pw);
+        LlcpConnectionPool.getInstance().dump(pw);
+        mServiceConnector.dump(pw);
     }
 
     /**
@@ -18,6 +18,7 @@ package com.android.nfc;
 
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
+import org.xmlpull.v1.XmlSerializer;
 
 import android.app.ActivityManager;
 import android.content.BroadcastReceiver;
@@ -30,42 +31,98 @@ import android.content.pm.ResolveInfo;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.content.res.Resources;
 import android.content.res.XmlResourceParser;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.SystemProperties;
 import android.os.UserHandle;
+import android.util.ArraySet;
+import android.util.AtomicFile;
 import android.util.Log;
+import android.util.Xml;
 
+import com.android.internal.util.FastXmlSerializer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * A cache of intent filters registered to receive the TECH_DISCOVERED dispatch.
+ *
+ * Package broadcasts only refresh the components of the named packages, and
+ * are coalesced so that e.g. a batch of app updates causes a single rebuild.
+ * The parsed tech lists are persisted, so that after a restart the meta-data
+ * XML is only parsed again for apps that have changed in the meantime.
  */
 public class RegisteredComponentCache {
     private static final String TAG = "RegisteredComponentCache";
     private static final boolean DEBUG =
             SystemProperties.getBoolean("persist.nfc.debug_enabled", false);
 
+    static final String XML_INDENT_OUTPUT_FEATURE =
+            "http://xmlpull.org/v1/doc/features.html#indent-output";
+    // Time to wait for further package broadcasts before updating
+    static final int UPDATE_COALESCE_DELAY_MS = 200;
+
     final Context mContext;
     final String mAction;
     final String mMetaDataName;
     final AtomicReference<BroadcastReceiver> mReceiver;
+    final Handler mHandler = new Handler(Looper.getMainLooper());
+    final AtomicFile mTechListsFile;
 
     // synchronized on this
     private ArrayList<ComponentInfo> mComponents;
+    // synchronized on this, rebuilt together with mComponents
+    private TechListIndex mTechListIndex;
+    // synchronized on this, updates waiting for the coalesce delay
+    private final ArraySet<String> mPendingPackages = new ArraySet<String>();
+    private boolean mPendingFullUpdate;
+    private boolean mUpdateScheduled;
+
+    // Only accessed by the constructor and then on mHandler
+    private final LinkedHashMap<String, ArrayList<ComponentInfo>> mPackageComponents =
+            new LinkedHashMap<String, ArrayList<ComponentInfo>>();
+    // Tech lists read from mTechListsFile, keyed by flattened component name
+    private final HashMap<String, PersistedTechLists> mPersisted =
+            new HashMap<String, PersistedTechLists>();
+    private boolean mPersistedDirty;
 
     public RegisteredComponentCache(Context context, String action, String metaDataName) {
         mContext = context;
         mAction = action;
         mMetaDataName = metaDataName;
+        mTechListsFile = new AtomicFile(new File(context.getFilesDir(), "tech_lists.xml"));
 
+        readTechLists();
         generateComponentsList();
+        mHandler.post(this::writeTechListsIfNeeded);
 
         final BroadcastReceiver receiver = new BroadcastReceiver() {
             @Override
             public void onReceive(Context context1, Intent intent) {
-                generateComponentsList();
+                String action = intent.getAction();
+                if (Intent.ACTION_PACKAGE_ADDED.equals(action)
+                        || Intent.ACTION_PACKAGE_CHANGED.equals(action)
+                        || Intent.ACTION_PACKAGE_REMOVED.equals(action)) {
+                    Uri uri = intent.getData();
+                    String pkg = uri != null ? uri.getSchemeSpecificPart() : null;
+                    scheduleUpdate(pkg != null ? new String[] {pkg} : null);
+                } else if (Intent.ACTION_EXTERNAL_APPLICATIONS_AVAILABLE.equals(action)
+                        || Intent.ACTION_EXTERNAL_APPLICATIONS_UNAVAILABLE.equals(action)) {
+                    scheduleUpdate(intent.getStringArrayExtra(
+                            Intent.EXTRA_CHANGED_PACKAGE_LIST));
+                } else {
+                    scheduleUpdate(null);
+                }
             }
         };
         mReceiver = new AtomicReference<BroadcastReceiver>(receiver);
@@ -108,6 +165,28 @@ public class RegisteredComponentCache {
         }
     }
 
+    /**
+     * Tech lists of a component as parsed from a given version of its app.
+     */
+    static class PersistedTechLists {
+        final String sourceDir;
+        final long versionCode;
+        final int metaDataResId;
+        final ArrayList<String[]> techLists = new ArrayList<String[]>();
+
+        PersistedTechLists(String sourceDir, long versionCode, int metaDataResId) {
+            this.sourceDir = sourceDir;
+            this.versionCode = versionCode;
+            this.metaDataResId = metaDataResId;
+        }
+
+        boolean matches(ActivityInfo ai, int metaDataResId) {
+            return sourceDir != null && sourceDir.equals(ai.applicationInfo.sourceDir)
+                    && versionCode == ai.applicationInfo.longVersionCode
+                    && this.metaDataResId == metaDataResId;
+        }
+    }
+
     /**
      * @return a collection of {@link RegisteredComponentCache.ComponentInfo} objects for all
      * registered authenticators.
@@ -120,6 +199,15 @@ public class RegisteredComponentCache {
         }
     }
 
+    /**
+     * @return the {@link TechListIndex} over the current components.
+     */
+    TechListIndex getTechListIndex() {
+        synchronized (this) {
+            return mTechListIndex;
+        }
+    }
+
     /**
      * Stops the monitoring of package additions, removals and changes.
      */
@@ -128,6 +216,7 @@ public class RegisteredComponentCache {
         if (receiver != null) {
             mContext.unregisterReceiver(receiver);
         }
+        mHandler.removeCallbacks(mUpdateRunnable);
     }
 
     @Override
@@ -145,35 +234,158 @@ public class RegisteredComponentCache {
         }
     }
 
-    void generateComponentsList() {
-        PackageManager pm;
+    /**
+     * Queues an update of the given packages, or of all packages if null.
+     */
+    void scheduleUpdate(String[] packages) {
+        synchronized (this) {
+            if (packages == null) {
+                mPendingFullUpdate = true;
+            } else {
+                for (String pkg : packages) {
+                    mPendingPackages.add(pkg);
+                }
+            }
+            if (mUpdateScheduled) {
+                return;
+            }
+            mUpdateScheduled = true;
+        }
+        mHandler.postDelayed(mUpdateRunnable, UPDATE_COALESCE_DELAY_MS);
+    }
+
+    final Runnable mUpdateRunnable = new Runnable() {
+        @Override
+        public void run() {
+            boolean fullUpdate;
+            String[] packages;
+            synchronized (RegisteredComponentCache.this) {
+                fullUpdate = mPendingFullUpdate;
+                packages = mPendingPackages.toArray(new String[mPendingPackages.size()]);
+                mPendingFullUpdate = false;
+                mPendingPackages.clear();
+                mUpdateScheduled = false;
+            }
+            if (fullUpdate) {
+                generateComponentsList();
+            } else {
+                updatePackages(packages);
+            }
+            writeTechListsIfNeeded();
+        }
+    };
+
+    private PackageManager getUserPackageManager() {
         try {
             UserHandle currentUser = new UserHandle(ActivityManager.getCurrentUser());
-            pm = mContext.createPackageContextAsUser("android", 0,
+            return mContext.createPackageContextAsUser("android", 0,
                     currentUser).getPackageManager();
         } catch (NameNotFoundException e) {
             Log.e(TAG, "Could not create user package context");
+            return null;
+        }
+    }
+
+    void generateComponentsList() {
+        PackageManager pm = getUserPackageManager();
+        if (pm == null) {
             return;
         }
-        ArrayList<ComponentInfo> components = new ArrayList<ComponentInfo>();
         List<ResolveInfo> resolveInfos = pm.queryIntentActivitiesAsUser(new Intent(mAction),
                 PackageManager.GET_META_DATA, ActivityManager.getCurrentUser());
+        mPackageComponents.clear();
         for (ResolveInfo resolveInfo : resolveInfos) {
-            try {
-                parseComponentInfo(pm, resolveInfo, components);
-            } catch (XmlPullParserException e) {
-                Log.w(TAG, "Unable to load component info " + resolveInfo.toString(), e);
-            } catch (IOException e) {
-                Log.w(TAG, "Unable to load component info " + resolveInfo.toString(), e);
+            String pkg = resolveInfo.activityInfo.packageName;
+            ArrayList<ComponentInfo> components = mPackageComponents.get(pkg);
+            if (components == null) {
+                components = new ArrayList<ComponentInfo>();
+                mPackageComponents.put(pkg, components);
+            }
+            loadComponentInfo(pm, resolveInfo, components);
+        }
+        publishComponents();
+    }
+
+    void updatePackages(String[] packages) {
+        PackageManager pm = getUserPackageManager();
+        if (pm == null) {
+            return;
+        }
+        for (String pkg : packages) {
+            Intent intent = new Intent(mAction);
+            intent.setPackage(pkg);
+            List<ResolveInfo> resolveInfos = pm.queryIntentActivitiesAsUser(intent,
+                    PackageManager.GET_META_DATA, ActivityManager.getCurrentUser());
+            ArrayList<ComponentInfo> components = new ArrayList<ComponentInfo>();
+            for (ResolveInfo resolveInfo : resolveInfos) {
+                loadComponentInfo(pm, resolveInfo, components);
+            }
+            if (DEBUG) Log.d(TAG, "Updated " + pkg + ": " + components.size() + " tech lists");
+            if (resolveInfos.isEmpty()) {
+                mPackageComponents.remove(pkg);
+            } else {
+                mPackageComponents.put(pkg, components);
             }
         }
+        publishComponents();
+    }
+
+    private void publishComponents() {
+        ArrayList<ComponentInfo> components = new ArrayList<ComponentInfo>();
+        for (ArrayList<ComponentInfo> packageComponents : mPackageComponents.values()) {
+            components.addAll(packageComponents);
+        }
 
         if (DEBUG) {
             dump(components);
         }
 
+        TechListIndex index = new TechListIndex(components);
         synchronized (this) {
             mComponents = components;
+            mTechListIndex = index;
+        }
+    }
+
+    private void loadComponentInfo(PackageManager pm, ResolveInfo resolveInfo,
+            ArrayList<ComponentInfo> components) {
+        ActivityInfo ai = resolveInfo.activityInfo;
+        String key = ai.packageName + "/" + ai.name;
+        int metaDataResId = ai.metaData != null ? ai.metaData.getInt(mMetaDataName) : 0;
+        PersistedTechLists persisted = mPersisted.get(key);
+        if (persisted != null && persisted.matches(ai, metaDataResId)) {
+            for (String[] techs : persisted.techLists) {
+                components.add(new ComponentInfo(resolveInfo, techs));
+            }
+            return;
+        }
+
+        int start = components.size();
+        try {
+            parseComponentInfo(pm, resolveInfo, components);
+        } catch (XmlPullParserException e) {
+            Log.w(TAG, "Unable to load component info " + resolveInfo.toString(), e);
+            forgetComponentInfo(key);
+            return;
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to load component info " + resolveInfo.toString(), e);
+            forgetComponentInfo(key);
+            return;
+        }
+        persisted = new PersistedTechLists(ai.applicationInfo.sourceDir,
+                ai.applicationInfo.longVersionCode, metaDataResId);
+        for (int i = start; i < components.size(); i++) {
+            persisted.techLists.add(components.get(i).techs);
+        }
+        mPersisted.put(key, persisted);
+        mPersistedDirty = true;
+    }
+
+    // Only successfully parsed tech lists are persisted, so a failure, e.g.
+    // while the package is being updated, is retried on the next scan.
+    private void forgetComponentInfo(String key) {
+        if (mPersisted.remove(key) != null) {
+            mPersistedDirty = true;
         }
     }
 
@@ -224,4 +436,102 @@ public class RegisteredComponentCache {
             eventType = parser.next();
         } while (eventType != XmlPullParser.END_DOCUMENT);
     }
+
+    private void readTechLists() {
+        if (!mTechListsFile.getBaseFile().exists()) {
+            return;
+        }
+        FileInputStream fis = null;
+        try {
+            fis = mTechListsFile.openRead();
+            XmlPullParser parser = Xml.newPullParser();
+            parser.setInput(fis, null);
+            String key = null;
+            PersistedTechLists current = null;
+            ArrayList<String> techs = new ArrayList<String>();
+            int eventType = parser.getEventType();
+            while (eventType != XmlPullParser.END_DOCUMENT) {
+                String tagName = parser.getName();
+                if (eventType == XmlPullParser.START_TAG) {
+                    if ("component".equals(tagName)) {
+                        key = parser.getAttributeValue(null, "name");
+                        current = new PersistedTechLists(
+                                parser.getAttributeValue(null, "source"),
+                                Long.parseLong(parser.getAttributeValue(null, "version")),
+                                Integer.parseInt(parser.getAttributeValue(null, "res")));
+                    } else if ("tech".equals(tagName) && current != null) {
+                        techs.add(parser.nextText());
+                    }
+                } else if (eventType == XmlPullParser.END_TAG) {
+                    if ("tech-list".equals(tagName) && current != null) {
+                        current.techLists.add(techs.toArray(new String[techs.size()]));
+                        techs.clear();
+                    } else if ("component".equals(tagName) && current != null) {
+                        if (key != null && current.sourceDir != null) {
+                            mPersisted.put(key, current);
+                        }
+                        current = null;
+                    }
+                }
+                eventType = parser.next();
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Could not parse tech lists file, trashing.");
+            mPersisted.clear();
+            mTechListsFile.delete();
+        } finally {
+            if (fis != null) {
+                try {
+                    fis.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    private void writeTechListsIfNeeded() {
+        // Drop entries of components that are gone
+        boolean pruned = mPersisted.keySet().removeIf(key ->
+                !mPackageComponents.containsKey(key.substring(0, key.indexOf('/'))));
+        if (!mPersistedDirty && !pruned) {
+            return;
+        }
+        mPersistedDirty = false;
+        FileOutputStream fos = null;
+        try {
+            fos = mTechListsFile.startWrite();
+            XmlSerializer out = new FastXmlSerializer();
+            out.setOutput(fos, "utf-8");
+            out.startDocument(null, true);
+            out.setFeature(XML_INDENT_OUTPUT_FEATURE, true);
+            out.startTag(null, "components");
+            for (Map.Entry<String, PersistedTechLists> entry : mPersisted.entrySet()) {
+                PersistedTechLists persisted = entry.getValue();
+                if (persisted.sourceDir == null) continue;
+                out.startTag(null, "component");
+                out.attribute(null, "name", entry.getKey());
+                out.attribute(null, "source", persisted.sourceDir);
+                out.attribute(null, "version", Long.toString(persisted.versionCode));
+                out.attribute(null, "res", Integer.toString(persisted.metaDataResId));
+                for (String[] techs : persisted.techLists) {
+                    out.startTag(null, "tech-list");
+                    for (String tech : techs) {
+                        out.startTag(null, "tech");
+                        out.text(tech);
+                        out.endTag(null, "tech");
+                    }
+                    out.endTag(null, "tech-list");
+                }
+                out.endTag(null, "component");
+            }
+            out.endTag(null, "components");
+            out.endDocument();
+            mTechListsFile.finishWrite(fos);
+        } catch (Exception e) {
+            Log.e(TAG, "Error writing tech lists", e);
+            if (fos != null) {
+                mTechListsFile.failWrite(fos);
+            }
+        }
+    }
 }
@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc;
+
+import com.android.nfc.RegisteredComponentCache.ComponentInfo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Index over the tech-list filters of a {@link RegisteredComponentCache}.
+ *
+ * Every tech named by a filter is assigned a bit, and the filters are grouped
+ * by the resulting bitmask. A tag matches a filter iff the filter mask is a
+ * subset of the tag mask, so the candidates for a tag are found by looking up
+ * the subsets of the tag mask, independent of the number of registered
+ * filters. Tags rarely have more than a handful of techs, which keeps the
+ * subset enumeration short.
+ *
+ * Instances are immutable and are rebuilt whenever the component list changes.
+ */
+final class TechListIndex {
+    // Bits available for the tech mask; filters using techs beyond that are
+    // matched linearly.
+    private static final int MAX_TECHS = Long.SIZE;
+
+    private final HashMap<String, Integer> mTechBits = new HashMap<String, Integer>();
+    private final HashMap<Long, int[]> mFiltersByMask = new HashMap<Long, int[]>();
+    // Indices of filters that couldn't be assigned a mask
+    private final int[] mUnindexed;
+    private final List<ComponentInfo> mComponents;
+
+    TechListIndex(List<ComponentInfo> components) {
+        mComponents = components;
+        HashMap<Long, ArrayList<Integer>> groups = new HashMap<Long, ArrayList<Integer>>();
+        ArrayList<Integer> unindexed = new ArrayList<Integer>();
+        for (int i = 0; i < components.size(); i++) {
+            String[] techs = components.get(i).techs;
+            if (techs == null || techs.length == 0) {
+                // Wild card filters never match
+                continue;
+            }
+            long mask = 0;
+            for (String tech : techs) {
+                Integer bit = mTechBits.get(tech);
+                if (bit == null && mTechBits.size() < MAX_TECHS) {
+                    bit = mTechBits.size();
+                    mTechBits.put(tech, bit);
+                }
+                if (bit == null) {
+                    mask = 0;
+                    break;
+                }
+                mask |= 1L << bit;
+            }
+            if (mask == 0) {
+                unindexed.add(i);
+                continue;
+            }
+            ArrayList<Integer> group = groups.get(mask);
+            if (group == null) {
+                group = new ArrayList<Integer>();
+                groups.put(mask, group);
+            }
+            group.add(i);
+        }
+        for (Long mask : groups.keySet()) {
+            mFiltersByMask.put(mask, toArray(groups.get(mask)));
+        }
+        mUnindexed = toArray(unindexed);
+    }
+
+    private static int[] toArray(List<Integer> list) {
+        int[] array = new int[list.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = list.get(i);
+        }
+        return array;
+    }
+
+    /**
+     * Returns the components whose tech list is contained in {@code tagTechs},
+     * in registration order and without duplicate activities.
+     */
+    List<ComponentInfo> getCandidates(String[] tagTechs) {
+        long tagMask = 0;
+        for (String tech : tagTechs) {
+            Integer bit = mTechBits.get(tech);
+            if (bit != null) {
+                tagMask |= 1L << bit;
+            }
+        }
+
+        int[] found = new int[8];
+        int count = 0;
+        if (tagMask != 0) {
+            // Enumerate all non-empty subsets of the tag mask
+            for (long subset = tagMask; subset != 0; subset = (subset - 1) & tagMask) {
+                int[] filters = mFiltersByMask.get(subset);
+                if (filters == null) continue;
+                if (count + filters.length > found.length) {
+                    found = Arrays.copyOf(found, Math.max(found.length * 2,
+                            count + filters.length));
+                }
+                System.arraycopy(filters, 0, found, count, filters.length);
+                count += filters.length;
+            }
+        }
+        if (mUnindexed.length > 0) {
+            String[] sortedTechs = tagTechs.clone();
+            Arrays.sort(sortedTechs);
+            for (int index : mUnindexed) {
+                if (containsAll(sortedTechs, mComponents.get(index).techs)) {
+                    if (count == found.length) {
+                        found = Arrays.copyOf(found, found.length * 2);
+                    }
+                    found[count++] = index;
+                }
+            }
+        }
+
+        Arrays.sort(found, 0, count);
+        ArrayList<ComponentInfo> candidates = new ArrayList<ComponentInfo>(count);
+        for (int i = 0; i < count; i++) {
+            ComponentInfo info = mComponents.get(found[i]);
+            // An activity may register several tech lists matching the same tag
+            boolean duplicate = false;
+            for (ComponentInfo candidate : candidates) {
+                if (candidate.resolveInfo == info.resolveInfo) {
+                    duplicate = true;
+                    break;
+                }
+            }
+            if (!duplicate) {
+                candidates.add(info);
+            }
+        }
+        return candidates;
+    }
+
+    private static boolean containsAll(String[] sortedTechs, String[] filterTechs) {
+        for (String tech : filterTechs) {
+            if (Arrays.binarySearch(sortedTechs, tech) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    int getTechCount() {
+        return mTechBits.size();
+    }
+
+    int getMaskCount() {
+        return mFiltersByMask.size();
+    }
+}
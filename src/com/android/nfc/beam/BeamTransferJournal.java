@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc.beam;
+
+import android.content.Context;
+import android.net.Uri;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Remembers the progress of an incoming Beam transfer on disk, so that a
+ * transfer that timed out, or didn't finish before the process died, can be
+ * picked up by the next one from the same device.
+ *
+ * There is one journal per remote device. It is an append-only list of
+ * records, one per line:
+ * <pre>
+ *   R &lt;mime type&gt; &lt;uri&gt;   file received over the transport
+ *   F &lt;uri&gt; &lt;final path&gt;  file moved to its final place
+ *   D &lt;directory&gt;          directory of a multi-file transfer
+ * </pre>
+ * Fields are separated by tabs; uris and paths are stored encoded. A record
+ * cut short by a crash is ignored. Journals older than {@link #MAX_AGE_MS}
+ * aren't resumed.
+ *
+ * The sender sends every file again when a transfer is retried, so the
+ * earlier files are only resumed when some of the new ones match them, see
+ * {@link #matches}. The new copies replace the earlier files.
+ */
+final class BeamTransferJournal {
+    private static final String TAG = "BeamTransferJournal";
+    private static final boolean DBG = true;
+
+    static final String JOURNAL_DIR = "beam_journal";
+    static final long MAX_AGE_MS = 10 * 60 * 1000;
+
+    static final String RECORD_RECEIVED = "R";
+    static final String RECORD_FINALIZED = "F";
+    static final String RECORD_DIRECTORY = "D";
+
+    /**
+     * A file from an earlier attempt that is still around.
+     */
+    static final class Entry {
+        final Uri uri;
+        final String mimeType;
+        String finalPath; // null if it wasn't moved yet
+        long size;
+
+        Entry(Uri uri, String mimeType) {
+            this.uri = uri;
+            this.mimeType = mimeType;
+        }
+    }
+
+    private final File mFile;
+    private final List<Entry> mEntries;
+    private final String mDirectory;
+
+    private BeamTransferJournal(File file, List<Entry> entries, String directory) {
+        mFile = file;
+        mEntries = entries;
+        mDirectory = directory;
+    }
+
+    /**
+     * Opens the journal for transfers from {@code remoteAddress}, loading
+     * what an earlier attempt left behind if it is recent enough.
+     */
+    static BeamTransferJournal open(Context context, String remoteAddress) {
+        File dir = new File(context.getFilesDir(), JOURNAL_DIR);
+        if (!dir.isDirectory() && !dir.mkdir()) {
+            Log.e(TAG, "Failed to create " + dir);
+        }
+        long now = System.currentTimeMillis();
+        File[] journals = dir.listFiles();
+        if (journals != null) {
+            for (File journal : journals) {
+                if (now - journal.lastModified() > MAX_AGE_MS) {
+                    journal.delete();
+                }
+            }
+        }
+
+        File file = new File(dir, remoteAddress.replace(":", ""));
+        LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>();
+        String directory = null;
+        if (file.exists()) {
+            try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] fields = line.split("\t");
+                    if (fields.length == 3 && RECORD_RECEIVED.equals(fields[0])) {
+                        entries.put(fields[2], new Entry(Uri.parse(fields[2]), fields[1]));
+                    } else if (fields.length == 3 && RECORD_FINALIZED.equals(fields[0])) {
+                        Entry entry = entries.get(fields[1]);
+                        if (entry != null) {
+                            entry.finalPath = Uri.decode(fields[2]);
+                        }
+                    } else if (fields.length == 2 && RECORD_DIRECTORY.equals(fields[0])) {
+                        directory = Uri.decode(fields[1]);
+                    }
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to read " + file, e);
+            }
+        }
+
+        // Only keep what can still be finalized. A file that replaced an
+        // earlier copy was finalized to the same path; only the last counts.
+        ArrayList<Entry> existing = new ArrayList<Entry>();
+        HashSet<String> finalPaths = new HashSet<String>();
+        ArrayList<Entry> loaded = new ArrayList<Entry>(entries.values());
+        for (int i = loaded.size() - 1; i >= 0; i--) {
+            Entry entry = loaded.get(i);
+            if (entry.finalPath != null && !finalPaths.add(entry.finalPath)) {
+                continue;
+            }
+            String path = entry.finalPath != null ? entry.finalPath : entry.uri.getPath();
+            if (path != null && new File(path).exists()) {
+                entry.size = new File(path).length();
+                existing.add(0, entry);
+            }
+        }
+        if (DBG && !existing.isEmpty()) {
+            Log.d(TAG, "Resuming " + existing.size() + " files from " + remoteAddress);
+        }
+        return new BeamTransferJournal(file, existing, directory);
+    }
+
+    /**
+     * Returns the files left by earlier attempts, in the order they were received.
+     */
+    List<Entry> getEntries() {
+        return mEntries;
+    }
+
+    /**
+     * Returns the directory of the earlier multi-file attempt, or null.
+     */
+    String getDirectory() {
+        return mDirectory;
+    }
+
+    void recordReceived(Uri uri, String mimeType) {
+        append(RECORD_RECEIVED + "\t" + mimeType + "\t" + uri);
+    }
+
+    void recordFinalized(Uri uri, String finalPath) {
+        append(RECORD_FINALIZED + "\t" + uri + "\t" + Uri.encode(finalPath, "/"));
+    }
+
+    void recordDirectory(String path) {
+        append(RECORD_DIRECTORY + "\t" + Uri.encode(path, "/"));
+    }
+
+    /**
+     * Returns whether {@code file}, just received, is likely a new copy of
+     * the earlier file of {@code entry}: it has the same size, and the same
+     * name except for the number the transport appends to avoid a collision.
+     * The contents aren't compared, so the new copy must be kept.
+     */
+    static boolean matches(Entry entry, File file) {
+        String name = entry.uri.getLastPathSegment();
+        return name != null && entry.size == file.length()
+                && getBaseName(name).equals(getBaseName(file.getName()));
+    }
+
+    /**
+     * Strips a "-N" suffix before the extension, e.g. "photo-1.jpg" becomes
+     * "photo.jpg".
+     */
+    static String getBaseName(String name) {
+        int dot = name.lastIndexOf('.');
+        String extension = dot > 0 ? name.substring(dot) : "";
+        String base = dot > 0 ? name.substring(0, dot) : name;
+        int dash = base.lastIndexOf('-');
+        if (dash > 0 && dash < base.length() - 1) {
+            boolean digits = true;
+            for (int i = dash + 1; i < base.length(); i++) {
+                if (!Character.isDigit(base.charAt(i))) {
+                    digits = false;
+                    break;
+                }
+            }
+            if (digits) {
+                base = base.substring(0, dash);
+            }
+        }
+        return base + extension;
+    }
+
+    /**
+     * Forgets the transfer, once there is nothing left to resume, or when
+     * the new transfer turned out to be unrelated to the earlier one.
+     */
+    synchronized void delete() {
+        mFile.delete();
+    }
+
+    private synchronized void append(String record) {
+        try (FileOutputStream out = new FileOutputStream(mFile, true)) {
+            out.write((record + "\n").getBytes(StandardCharsets.UTF_8));
+            // A record must survive the process dying right after the
+            // file it describes was moved.
+            out.getFD().sync();
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write " + mFile, e);
+        }
+    }
+}
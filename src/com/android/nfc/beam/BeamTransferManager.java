@@ -66,7 +66,14 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import androidx.core.content.FileProvider;
 
@@ -113,6 +120,7 @@ public class BeamTransferManager implements Handler.Callback,
     static final int MSG_NEXT_TRANSFER_TIMER = 0;
 
     static final int MSG_TRANSFER_TIMEOUT = 1;
+    static final int MSG_FILE_FINALIZED = 2;
     static final int DATA_LINK_TYPE_BLUETOOTH = 1;
 
     // We need to receive an update within this time period
@@ -126,6 +134,30 @@ public class BeamTransferManager implements Handler.Callback,
 
     static final String BEAM_DIR = "beam";
 
+    // Received files are moved into place on a few threads shared by all
+    // transfers, and handed to the media scanner in batches as they land.
+    static final int FINALIZE_THREADS = 3;
+    static final int FINALIZE_KEEP_ALIVE_SECONDS = 10;
+    static final int SCAN_BATCH_SIZE = 4;
+
+    static final ThreadPoolExecutor sFinalizeExecutor;
+    static {
+        final AtomicInteger threadCount = new AtomicInteger();
+        sFinalizeExecutor = new ThreadPoolExecutor(FINALIZE_THREADS, FINALIZE_THREADS,
+                FINALIZE_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        return new Thread(r, "BeamFinalize-" + threadCount.incrementAndGet());
+                    }
+                });
+        sFinalizeExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    // Destinations picked by any transfer that isn't over yet, so that two
+    // transfers finalizing at once can't pick the same name.
+    static final HashSet<String> sReservedPaths = new HashSet<String>();
+
     static final String BEAM_NOTIFICATION_CHANNEL = "beam_notification_channel";
 
     static final String ACTION_ALLOWLIST_DEVICE =
@@ -146,6 +178,7 @@ public class BeamTransferManager implements Handler.Callback,
     final BluetoothDevice mRemoteDevice;
     final Callback mCallback;
     final boolean mRemoteActivating;
+    final BeamTransferJournal mJournal; // Only for incoming transfers
 
     // Variables below are only accessed on the main thread
     int mState;
@@ -162,6 +195,18 @@ public class BeamTransferManager implements Handler.Callback,
     ArrayList<String> mPaths; // Raw paths on the filesystem for Beam-stored files
     HashMap<String, String> mMimeTypes; // Mime-types associated with each path
     HashMap<String, Uri> mMediaUris; // URIs found by the media scanner for each path
+    String[] mFinalizedPaths; // Destination of each of mUris, null until moved there
+    int mFilesPending; // Files still being moved into place
+    int mFilesFailed;
+    boolean mScanMedia; // Whether the files are added to the media provider
+    ArrayList<String> mScanBatch; // Paths not handed to the media scanner yet
+    int mUrisRequested; // Paths handed to the media scanner
+    HashMap<Uri, String> mResumedPaths; // Files an earlier attempt already moved into place
+    HashMap<Uri, String> mReplacedPaths; // Earlier files replaced by their new copy
+    ArrayList<File> mReservedDestinations; // Released once the transfer is over
+    int mFinalizeMessagesPending; // MSG_FILE_FINALIZED not handled yet
+    List<BeamTransferJournal.Entry> mEarlierEntries; // Files left by an earlier attempt
+    boolean mResumed; // Whether this transfer picks up the earlier attempt
     int mUrisScanned;
     Long mStartTime;
 
@@ -193,6 +238,18 @@ public class BeamTransferManager implements Handler.Callback,
         mCurrentCount = 0;
         mSuccessCount = 0;
         mOutgoingUris = pendingTransfer.uris;
+        mResumedPaths = new HashMap<Uri, String>();
+        mReplacedPaths = new HashMap<Uri, String>();
+        mReservedDestinations = new ArrayList<File>();
+        if (mIncoming && mRemoteDevice != null) {
+            // What an interrupted transfer from this device left, matched
+            // against the new files once they are all received
+            mJournal = BeamTransferJournal.open(context, mRemoteDevice.getAddress());
+            mEarlierEntries = new ArrayList<BeamTransferJournal.Entry>(mJournal.getEntries());
+        } else {
+            mJournal = null;
+            mEarlierEntries = new ArrayList<BeamTransferJournal.Entry>();
+        }
         mHandler = new Handler(Looper.getMainLooper(), this);
         mHandler.sendEmptyMessageDelayed(MSG_TRANSFER_TIMEOUT, ALIVE_CHECK_MS);
         mNotificationManager = (NotificationManager) mContext.getSystemService(
@@ -264,6 +321,9 @@ public class BeamTransferManager implements Handler.Callback,
             if (mimeType != null) {
                 mUris.add(uri);
                 mTransferMimeTypes.add(mimeType);
+                if (mJournal != null) {
+                    mJournal.recordReceived(uri, mimeType);
+                }
             } else {
                 if (DBG) Log.d(TAG, "Could not get mimeType for file.");
             }
@@ -402,6 +462,13 @@ public class BeamTransferManager implements Handler.Callback,
 
         updateNotification();
 
+        if (mJournal != null && (mState == STATE_SUCCESS || mState == STATE_CANCELLED)) {
+            // Nothing left to resume; a failed transfer is kept for the next attempt
+            mJournal.delete();
+        }
+
+        releaseDestinationsIfDone();
+
         if ((mState == STATE_SUCCESS || mState == STATE_FAILED || mState == STATE_CANCELLED)
                 && !mCalledBack) {
             mCalledBack = true;
@@ -422,32 +489,24 @@ public class BeamTransferManager implements Handler.Callback,
             return;
         }
 
-        if (mUris.size() > 1) {
-            beamPath = generateMultiplePath(extRoot + "/" + BEAM_DIR + "/");
-            if (!beamPath.isDirectory() && !beamPath.mkdir()) {
-                Log.e(TAG, "Failed to create multiple path " + beamPath.toString());
-                updateStateAndNotification(STATE_FAILED);
-                return;
-            }
+        if (!mEarlierEntries.isEmpty()) {
+            resumeEarlierAttempt();
         }
 
-        for (int i = 0; i < mUris.size(); i++) {
-            Uri uri = mUris.get(i);
-            String mimeType = mTransferMimeTypes.get(i);
-
-            File srcFile = new File(uri.getPath());
-
-            File dstFile = generateUniqueDestination(beamPath.getAbsolutePath(),
-                    uri.getLastPathSegment());
-            Log.d(TAG, "Renaming from " + srcFile);
-            if (!srcFile.renameTo(dstFile)) {
-                if (DBG) Log.d(TAG, "Failed to rename from " + srcFile + " to " + dstFile);
-                srcFile.delete();
-                return;
+        if (mUris.size() > 1) {
+            String resumedDirectory = mResumed ? mJournal.getDirectory() : null;
+            if (resumedDirectory != null && new File(resumedDirectory).isDirectory()) {
+                beamPath = new File(resumedDirectory);
             } else {
-                mPaths.add(dstFile.getAbsolutePath());
-                mMimeTypes.put(dstFile.getAbsolutePath(), mimeType);
-                if (DBG) Log.d(TAG, "Did successful rename from " + srcFile + " to " + dstFile);
+                beamPath = generateMultiplePath(extRoot + "/" + BEAM_DIR + "/");
+                if (!beamPath.isDirectory() && !beamPath.mkdir()) {
+                    Log.e(TAG, "Failed to create multiple path " + beamPath.toString());
+                    updateStateAndNotification(STATE_FAILED);
+                    return;
+                }
+                if (mJournal != null) {
+                    mJournal.recordDirectory(beamPath.getAbsolutePath());
+                }
             }
         }
 
@@ -456,17 +515,161 @@ public class BeamTransferManager implements Handler.Callback,
         // of the first file; if it's media the platform can deal with,
         // use the media provider, if it's something else, just launch an ACTION_VIEW
         // on the file.
-        String mimeType = mMimeTypes.get(mPaths.get(0));
-        if (mimeType.startsWith("image/") || mimeType.startsWith("video/") ||
-                mimeType.startsWith("audio/")) {
-            String[] arrayPaths = new String[mPaths.size()];
-            MediaScannerConnection.scanFile(mContext, mPaths.toArray(arrayPaths), null, this);
-            updateStateAndNotification(STATE_W4_MEDIA_SCANNER);
+        String mimeType = mTransferMimeTypes.get(0);
+        mScanMedia = mimeType.startsWith("image/") || mimeType.startsWith("video/") ||
+                mimeType.startsWith("audio/");
+        mFinalizedPaths = new String[mUris.size()];
+        mFilesPending = mUris.size();
+        mFinalizeMessagesPending = mUris.size();
+        mFilesFailed = 0;
+        mScanBatch = new ArrayList<String>();
+        // No new files are accepted from here on
+        updateStateAndNotification(STATE_W4_MEDIA_SCANNER);
+
+        // List the destination once; names are reserved as they are handed out
+        HashSet<String> takenNames = new HashSet<String>();
+        String[] existingNames = beamPath.list();
+        if (existingNames != null) {
+            takenNames.addAll(Arrays.asList(existingNames));
+        }
+        for (int i = 0; i < mUris.size(); i++) {
+            final Uri uri = mUris.get(i);
+            final int index = i;
+            String resumedPath = mResumedPaths.get(uri);
+            if (resumedPath != null && new File(resumedPath).exists()) {
+                if (DBG) Log.d(TAG, "Already moved to " + resumedPath);
+                mHandler.obtainMessage(MSG_FILE_FINALIZED, index, 0, resumedPath).sendToTarget();
+                continue;
+            }
+            final File srcFile = new File(uri.getPath());
+            String replacedPath = mReplacedPaths.get(uri);
+            final File dstFile;
+            if (replacedPath != null) {
+                dstFile = new File(replacedPath);
+            } else {
+                dstFile = generateUniqueDestination(beamPath.getAbsolutePath(),
+                        uri.getLastPathSegment(), takenNames);
+                mReservedDestinations.add(dstFile);
+            }
+            sFinalizeExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    String dstPath = null;
+                    Log.d(TAG, "Renaming from " + srcFile);
+                    boolean renamed = srcFile.renameTo(dstFile);
+                    if (!renamed) {
+                        if (DBG) Log.d(TAG, "Failed to rename from " + srcFile + " to " + dstFile);
+                        srcFile.delete();
+                    } else {
+                        dstPath = dstFile.getAbsolutePath();
+                        if (DBG) Log.d(TAG, "Did successful rename from " + srcFile + " to " + dstFile);
+                        if (mJournal != null) {
+                            mJournal.recordFinalized(uri, dstPath);
+                        }
+                    }
+                    mHandler.obtainMessage(MSG_FILE_FINALIZED, index, 0, dstPath).sendToTarget();
+                }
+            });
+        }
+    }
+
+    /**
+     * Picks up the files of the earlier attempt if this transfer is a retry
+     * of it, that is if some of the files received now match earlier ones.
+     * A match is only a guess from the name and size, so the new copy is
+     * always kept: it replaces the earlier file, in place if that was
+     * already moved to its final path.
+     */
+    void resumeEarlierAttempt() {
+        ArrayList<BeamTransferJournal.Entry> unmatched =
+                new ArrayList<BeamTransferJournal.Entry>(mEarlierEntries);
+        for (Uri uri : mUris) {
+            File file = new File(uri.getPath());
+            BeamTransferJournal.Entry match = null;
+            for (BeamTransferJournal.Entry entry : unmatched) {
+                if (BeamTransferJournal.matches(entry, file)) {
+                    match = entry;
+                    break;
+                }
+            }
+            if (match == null) continue;
+            unmatched.remove(match);
+            mResumed = true;
+            if (match.finalPath != null) {
+                if (DBG) Log.d(TAG, "Replacing " + match.finalPath);
+                mReplacedPaths.put(uri, match.finalPath);
+            } else {
+                // The earlier copy was never moved
+                new File(match.uri.getPath()).delete();
+            }
+        }
+
+        if (!mResumed) {
+            // Unrelated to the earlier attempt, whose files are left alone
+            mJournal.delete();
+            for (int i = 0; i < mUris.size(); i++) {
+                mJournal.recordReceived(mUris.get(i), mTransferMimeTypes.get(i));
+            }
+            return;
+        }
+
+        // Files of the earlier attempt the sender didn't get to this time
+        for (int i = 0; i < unmatched.size(); i++) {
+            BeamTransferJournal.Entry entry = unmatched.get(i);
+            mUris.add(i, entry.uri);
+            mTransferMimeTypes.add(i, entry.mimeType);
+            if (entry.finalPath != null) {
+                mResumedPaths.put(entry.uri, entry.finalPath);
+            }
+        }
+    }
+
+    void onFileFinalized(int index, String path) {
+        if (mState != STATE_W4_MEDIA_SCANNER) return;
+
+        mFilesPending--;
+        if (path == null) {
+            mFilesFailed++;
+        } else {
+            mFinalizedPaths[index] = path;
+            mMimeTypes.put(path, mTransferMimeTypes.get(index));
+            if (mScanMedia) {
+                mScanBatch.add(path);
+                if (mScanBatch.size() >= SCAN_BATCH_SIZE) {
+                    scanPendingFiles();
+                }
+            }
+        }
+        if (mFilesPending > 0) return;
+
+        // Keep the order the files were received in; the first one is
+        // what the notification opens.
+        for (String finalizedPath : mFinalizedPaths) {
+            if (finalizedPath != null) {
+                mPaths.add(finalizedPath);
+            }
+        }
+        if (mFilesFailed > 0) {
+            updateStateAndNotification(STATE_FAILED);
+        } else if (mScanMedia) {
+            scanPendingFiles();
+            if (mUrisScanned == mUrisRequested) {
+                updateStateAndNotification(STATE_SUCCESS);
+            }
         } else {
             // We're done.
             updateStateAndNotification(STATE_SUCCESS);
         }
+    }
+
+    void scanPendingFiles() {
+        if (mScanBatch.isEmpty()) return;
 
+        String[] arrayPaths = new String[mScanBatch.size()];
+        mScanBatch.toArray(arrayPaths);
+        mScanBatch.clear();
+        mUrisRequested += arrayPaths.length;
+        MediaScannerConnection.scanFile(mContext, arrayPaths, null, this);
     }
 
     public boolean handleMessage(Message msg) {
@@ -482,20 +685,32 @@ public class BeamTransferManager implements Handler.Callback,
             // No update on this transfer for a while, fail it.
             if (DBG) Log.d(TAG, "Transfer timed out for id: " + Integer.toString(mTransferId));
             updateStateAndNotification(STATE_FAILED);
+        } else if (msg.what == MSG_FILE_FINALIZED) {
+            mFinalizeMessagesPending--;
+            onFileFinalized(msg.arg1, (String) msg.obj);
+            releaseDestinationsIfDone();
+            return true;
         }
         return false;
     }
 
-    public synchronized void onScanCompleted(String path, Uri uri) {
-        if (DBG) Log.d(TAG, "Scan completed, path " + path + " uri " + uri);
-        if (uri != null) {
-            mMediaUris.put(path, uri);
-        }
-        mUrisScanned++;
-        if (mUrisScanned == mPaths.size()) {
-            // We're done
-            updateStateAndNotification(STATE_SUCCESS);
-        }
+    public void onScanCompleted(final String path, final Uri uri) {
+        // Called on the scanner's thread
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (DBG) Log.d(TAG, "Scan completed, path " + path + " uri " + uri);
+                if (uri != null) {
+                    mMediaUris.put(path, uri);
+                }
+                mUrisScanned++;
+                if (mState == STATE_W4_MEDIA_SCANNER && mFilesPending == 0
+                        && mUrisScanned == mUrisRequested) {
+                    // We're done
+                    updateStateAndNotification(STATE_SUCCESS);
+                }
+            }
+        });
     }
 
 
@@ -540,7 +755,15 @@ public class BeamTransferManager implements Handler.Callback,
         }
     }
 
-    static File generateUniqueDestination(String path, String fileName) {
+    /**
+     * Picks a name in {@code path} that isn't in {@code takenNames}, and adds it there.
+     * The destination is also reserved for all transfers until
+     * {@link #releaseDestination} is called. Transfers keep their destinations
+     * reserved until they are over, so a name is either in the listing
+     * {@code takenNames} was built from or still reserved.
+     */
+    static File generateUniqueDestination(String path, String fileName,
+            HashSet<String> takenNames) {
         int dotIndex = fileName.lastIndexOf(".");
         String extension = null;
         String fileNameWithoutExtension = null;
@@ -551,14 +774,42 @@ public class BeamTransferManager implements Handler.Callback,
             extension = fileName.substring(dotIndex);
             fileNameWithoutExtension = fileName.substring(0, dotIndex);
         }
-        File dstFile = new File(path + File.separator + fileName);
+        String dstName = fileName;
         int count = 0;
-        while (dstFile.exists()) {
-            dstFile = new File(path + File.separator + fileNameWithoutExtension + "-" +
-                    Integer.toString(count) + extension);
-            count++;
+        synchronized (sReservedPaths) {
+            File dstFile = new File(path + File.separator + dstName);
+            while (takenNames.contains(dstName)
+                    || sReservedPaths.contains(dstFile.getAbsolutePath())) {
+                dstName = fileNameWithoutExtension + "-" + Integer.toString(count) + extension;
+                dstFile = new File(path + File.separator + dstName);
+                count++;
+            }
+            takenNames.add(dstName);
+            sReservedPaths.add(dstFile.getAbsolutePath());
+            return dstFile;
+        }
+    }
+
+    /**
+     * Releases the destinations of this transfer once it is over and none of
+     * its renames can still be running.
+     */
+    void releaseDestinationsIfDone() {
+        if (mFinalizeMessagesPending > 0 || mReservedDestinations.isEmpty()
+                || (mState != STATE_SUCCESS && mState != STATE_FAILED
+                        && mState != STATE_CANCELLED)) {
+            return;
+        }
+        for (File dstFile : mReservedDestinations) {
+            releaseDestination(dstFile);
+        }
+        mReservedDestinations.clear();
+    }
+
+    static void releaseDestination(File dstFile) {
+        synchronized (sReservedPaths) {
+            sReservedPaths.remove(dstFile.getAbsolutePath());
         }
-        return dstFile;
     }
 
     static File generateMultiplePath(String beamRoot) {
@@ -0,0 +1,285 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc.echoserver;
+
+import com.android.nfc.DeviceHost;
+import com.android.nfc.DeviceHost.LlcpConnectionlessSocket;
+import com.android.nfc.DeviceHost.LlcpSocket;
+import com.android.nfc.LlcpException;
+import com.android.nfc.LlcpPacket;
+import com.android.nfc.LlcpSender;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Client for an {@link EchoServer} in benchmark mode.
+ *
+ * Every data unit starts with a sequence number and the time it was sent,
+ * so its round trip time is known when the echo comes back. Data units are
+ * sent for the requested duration: back to back on the connection-based
+ * service, where the LLCP window paces the sender, and at a fixed interval
+ * on the connectionless one, where a full queue drops them. Echoes still
+ * missing a while after the last send count as lost.
+ */
+public final class EchoBenchmark {
+    // Sequence number and send time
+    public static final int MIN_PAYLOAD_SIZE = 12;
+    static final int CONNECTIONLESS_SAP = 0x30;
+    static final long DRAIN_TIMEOUT_MS = 2000;
+
+    private final DeviceHost mDeviceHost;
+    private final int mMiu;
+    private final int mRwSize;
+
+    public EchoBenchmark(DeviceHost deviceHost, int miu, int rwSize) {
+        mDeviceHost = deviceHost;
+        mMiu = miu;
+        mRwSize = rwSize;
+    }
+
+    public static final class Result {
+        public final String mode;
+        public final int payloadSize;
+        public final int sent;
+        public final int received;
+        public final long elapsedNs;
+        // Sorted round trip times of the received echoes
+        final long[] mRttNs;
+
+        Result(String mode, int payloadSize, int sent, int received, long elapsedNs,
+                long[] rttNs) {
+            this.mode = mode;
+            this.payloadSize = payloadSize;
+            this.sent = sent;
+            this.received = received;
+            this.elapsedNs = elapsedNs;
+            mRttNs = rttNs;
+            Arrays.sort(mRttNs);
+        }
+
+        public int getLost() {
+            return sent - received;
+        }
+
+        /**
+         * Echoed payload bytes per second.
+         */
+        public long getThroughput() {
+            return elapsedNs > 0 ? (long) received * payloadSize * 1000000000L / elapsedNs : 0;
+        }
+
+        /**
+         * Returns the given percentile of the round trip time, or -1 if nothing came back.
+         */
+        public long getRttPercentileNs(int percentile) {
+            if (mRttNs.length == 0) {
+                return -1;
+            }
+            int index = (int) Math.ceil(percentile / 100.0 * mRttNs.length) - 1;
+            return mRttNs[Math.max(index, 0)];
+        }
+
+        @Override
+        public String toString() {
+            return mode + ": payload=" + payloadSize + " sent=" + sent
+                    + " received=" + received + " lost=" + getLost()
+                    + " throughput=" + getThroughput() + "B/s"
+                    + " rtt(us) p50=" + getRttPercentileNs(50) / 1000
+                    + " p90=" + getRttPercentileNs(90) / 1000
+                    + " p99=" + getRttPercentileNs(99) / 1000
+                    + " max=" + getRttPercentileNs(100) / 1000;
+        }
+    }
+
+    /**
+     * Collects the echoes, from the receiving thread.
+     */
+    private static final class Echoes {
+        private long[] mRttNs = new long[256];
+        private int mReceived;
+        private long mLastNs;
+
+        synchronized void add(ByteBuffer echo) {
+            long now = System.nanoTime();
+            echo.getInt();
+            long rtt = now - echo.getLong();
+            if (mReceived == mRttNs.length) {
+                mRttNs = Arrays.copyOf(mRttNs, mReceived * 2);
+            }
+            mRttNs[mReceived++] = rtt;
+            mLastNs = now;
+            notifyAll();
+        }
+
+        synchronized void await(int count, long timeoutMs) {
+            long deadline = System.nanoTime() + timeoutMs * 1000000;
+            try {
+                while (mReceived < count) {
+                    long remainingMs = (deadline - System.nanoTime()) / 1000000;
+                    if (remainingMs <= 0) {
+                        break;
+                    }
+                    wait(remainingMs);
+                }
+            } catch (InterruptedException e) {
+                // Report what we have
+            }
+        }
+
+        synchronized Result toResult(String mode, int payloadSize, int sent, long startNs) {
+            long end = mReceived > 0 ? mLastNs : System.nanoTime();
+            return new Result(mode, payloadSize, sent, mReceived, end - startNs,
+                    Arrays.copyOf(mRttNs, mReceived));
+        }
+    }
+
+    private static void stamp(ByteBuffer payload, int seq) {
+        payload.putInt(0, seq);
+        payload.putLong(4, System.nanoTime());
+    }
+
+    /**
+     * Sends data units of {@code payloadSize} bytes to the connection-based
+     * echo service, back to back, for {@code durationMs}.
+     */
+    public Result runConnectionOriented(final int payloadSize, long durationMs)
+            throws IOException, LlcpException {
+        if (payloadSize < MIN_PAYLOAD_SIZE) {
+            throw new IllegalArgumentException("Payload too small");
+        }
+        final LlcpSocket socket = mDeviceHost.createLlcpSocket(0, mMiu, mRwSize, 1024);
+        socket.connectToService(EchoServer.CONNECTION_SERVICE_NAME);
+
+        final Echoes echoes = new Echoes();
+        Thread receiver = new Thread("EchoBenchmark") {
+            @Override
+            public void run() {
+                // The echo is a byte stream, cut it back into data units
+                byte[] buffer = new byte[Math.max(mMiu, payloadSize)];
+                ByteBuffer unit = ByteBuffer.allocate(payloadSize);
+                try {
+                    while (true) {
+                        int size = socket.receive(buffer);
+                        int offset = 0;
+                        while (offset < size) {
+                            int length = Math.min(size - offset, unit.remaining());
+                            unit.put(buffer, offset, length);
+                            offset += length;
+                            if (!unit.hasRemaining()) {
+                                unit.flip();
+                                echoes.add(unit);
+                                unit.clear();
+                            }
+                        }
+                    }
+                } catch (IOException e) {
+                    // Closed when done
+                }
+            }
+        };
+        receiver.start();
+
+        LlcpSender sender = new LlcpSender(socket);
+        ByteBuffer payload = ByteBuffer.allocate(payloadSize);
+        int sent = 0;
+        long start = System.nanoTime();
+        long end = start + durationMs * 1000000;
+        try {
+            while (System.nanoTime() < end) {
+                stamp(payload, sent);
+                sender.send(payload.array());
+                sent++;
+            }
+            echoes.await(sent, DRAIN_TIMEOUT_MS);
+        } finally {
+            socket.close();
+            try {
+                receiver.join();
+            } catch (InterruptedException e) {
+                // Ignore
+            }
+        }
+        return echoes.toResult("connection-oriented", payloadSize, sent, start);
+    }
+
+    /**
+     * Sends a data unit of {@code payloadSize} bytes to the connectionless
+     * echo service every {@code intervalMs}, for {@code durationMs}.
+     */
+    public Result runConnectionless(int payloadSize, long durationMs, long intervalMs)
+            throws IOException, LlcpException {
+        if (payloadSize < MIN_PAYLOAD_SIZE) {
+            throw new IllegalArgumentException("Payload too small");
+        }
+        final LlcpConnectionlessSocket socket =
+                mDeviceHost.createLlcpConnectionlessSocket(CONNECTIONLESS_SAP, null);
+        if (payloadSize > socket.getLinkMiu()) {
+            socket.close();
+            throw new IllegalArgumentException("Payload larger than link MIU");
+        }
+
+        final Echoes echoes = new Echoes();
+        Thread receiver = new Thread("EchoBenchmark") {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        LlcpPacket packet = socket.receive();
+                        if (packet == null || packet.getDataBuffer() == null) {
+                            break;
+                        }
+                        echoes.add(ByteBuffer.wrap(packet.getDataBuffer()));
+                    }
+                } catch (IOException e) {
+                    // Closed when done
+                }
+            }
+        };
+        receiver.start();
+
+        ByteBuffer payload = ByteBuffer.allocate(payloadSize);
+        int sent = 0;
+        long start = System.nanoTime();
+        long end = start + durationMs * 1000000;
+        try {
+            for (long next = start; next < end; next += intervalMs * 1000000) {
+                long waitNs = next - System.nanoTime();
+                if (waitNs > 0) {
+                    try {
+                        Thread.sleep(waitNs / 1000000, (int) (waitNs % 1000000));
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                }
+                stamp(payload, sent);
+                socket.send(EchoServer.DEFAULT_CL_SAP, payload.array());
+                sent++;
+            }
+            echoes.await(sent, DRAIN_TIMEOUT_MS);
+        } finally {
+            socket.close();
+            try {
+                receiver.join();
+            } catch (InterruptedException e) {
+                // Ignore
+            }
+        }
+        return echoes.toResult("connectionless", payloadSize, sent, start);
+    }
+}
@@ -16,11 +16,13 @@
 
 package com.android.nfc.echoserver;
 
+import com.android.nfc.DeviceHost;
 import com.android.nfc.DeviceHost.LlcpConnectionlessSocket;
 import com.android.nfc.LlcpException;
 import com.android.nfc.DeviceHost.LlcpServerSocket;
 import com.android.nfc.DeviceHost.LlcpSocket;
 import com.android.nfc.LlcpPacket;
+import com.android.nfc.LlcpSender;
 import com.android.nfc.NfcService;
 
 import android.os.Handler;
@@ -55,6 +57,10 @@ import java.util.concurrent.LinkedBlockingQueue;
  *
  *    Modify -t to execute the different tests.
  *
+ * In benchmark mode, both servers echo every data unit right away and as
+ * received, so that {@link EchoBenchmark} can measure round trip times and
+ * throughput. The MIU and RW of the connection-based server can be set,
+ * and the server can run on any {@link DeviceHost}, e.g. a loopback one.
  */
 public class EchoServer {
     static boolean DBG = true;
@@ -72,6 +78,11 @@ public class EchoServer {
     ServerThread mServerThread;
     ConnectionlessServerThread mConnectionlessServerThread;
     NfcService mService;
+    // Used instead of mService if set
+    final DeviceHost mDeviceHost;
+    final int mMiu;
+    final int mRwSize;
+    final boolean mBenchmarkMode;
 
     public interface WriteCallback {
         public void write(byte[] data);
@@ -79,6 +90,35 @@ public class EchoServer {
 
     public EchoServer() {
         mService = NfcService.getInstance();
+        mDeviceHost = null;
+        mMiu = MIU;
+        mRwSize = 1;
+        mBenchmarkMode = false;
+    }
+
+    public EchoServer(DeviceHost deviceHost, int miu, int rwSize, boolean benchmarkMode) {
+        mDeviceHost = deviceHost;
+        mMiu = miu;
+        mRwSize = rwSize;
+        mBenchmarkMode = benchmarkMode;
+    }
+
+    LlcpServerSocket createServerSocket() throws LlcpException {
+        if (mDeviceHost != null) {
+            return mDeviceHost.createLlcpServerSocket(DEFAULT_CO_SAP, CONNECTION_SERVICE_NAME,
+                    mMiu, mRwSize, 1024);
+        }
+        return mService.createLlcpServerSocket(DEFAULT_CO_SAP, CONNECTION_SERVICE_NAME,
+                mMiu, mRwSize, 1024);
+    }
+
+    LlcpConnectionlessSocket createConnectionlessSocket() throws LlcpException {
+        if (mDeviceHost != null) {
+            return mDeviceHost.createLlcpConnectionlessSocket(DEFAULT_CL_SAP,
+                    CONNECTIONLESS_SERVICE_NAME);
+        }
+        return mService.createLlcpConnectionLessSocket(DEFAULT_CL_SAP,
+                CONNECTIONLESS_SERVICE_NAME);
     }
 
     static class EchoMachine implements Handler.Callback {
@@ -174,21 +214,24 @@ public class EchoServer {
 
         public ServerThread() {
             super();
-            echoMachine = new EchoMachine(this, false);
+            echoMachine = mBenchmarkMode ? null : new EchoMachine(this, false);
         }
 
         private void handleClient(LlcpSocket socket) {
             boolean connectionBroken = false;
-            byte[] dataUnit = new byte[1024];
+            byte[] dataUnit = new byte[Math.max(1024, mMiu)];
+            LlcpSender sender = mBenchmarkMode ? new LlcpSender(socket) : null;
 
             // Get raw data from remote server
             while (!connectionBroken) {
                 try {
                     int size = socket.receive(dataUnit);
-                    if (DBG) Log.d(TAG, "read " + size + " bytes");
+                    if (DBG && !mBenchmarkMode) Log.d(TAG, "read " + size + " bytes");
                     if (size < 0) {
                         connectionBroken = true;
                         break;
+                    } else if (mBenchmarkMode) {
+                        sender.send(dataUnit, 0, size);
                     } else {
                         echoMachine.pushUnit(dataUnit, size);
                     }
@@ -204,8 +247,7 @@ public class EchoServer {
         public void run() {
             if (DBG) Log.d(TAG, "about create LLCP service socket");
             try {
-                serverSocket = mService.createLlcpServerSocket(DEFAULT_CO_SAP,
-                        CONNECTION_SERVICE_NAME, MIU, 1, 1024);
+                serverSocket = createServerSocket();
             } catch (LlcpException e) {
                 return;
             }
@@ -231,21 +273,28 @@ public class EchoServer {
                 }
             }
 
-            echoMachine.shutdown();
+            if (echoMachine != null) {
+                echoMachine.shutdown();
+            }
 
-            try {
-                clientSocket.close();
-            } catch (IOException e) {
-                // Ignore
+            if (clientSocket != null) {
+                try {
+                    clientSocket.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+                clientSocket = null;
             }
-            clientSocket = null;
 
-            try {
-                serverSocket.close();
-            } catch (IOException e) {
-                // Ignore
+            // shutdown() may have closed it already
+            if (serverSocket != null) {
+                try {
+                    serverSocket.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+                serverSocket = null;
             }
-            serverSocket = null;
         }
 
         @Override
@@ -282,7 +331,7 @@ public class EchoServer {
 
         public ConnectionlessServerThread() {
             super();
-            echoMachine = new EchoMachine(this, true);
+            echoMachine = mBenchmarkMode ? null : new EchoMachine(this, true);
         }
 
         @Override
@@ -291,8 +340,7 @@ public class EchoServer {
             LlcpPacket packet;
             if (DBG) Log.d(TAG, "about create LLCP connectionless socket");
             try {
-                socket = mService.createLlcpConnectionLessSocket(
-                        DEFAULT_CL_SAP, CONNECTIONLESS_SERVICE_NAME);
+                socket = createConnectionlessSocket();
                 if (socket == null) {
                     if (DBG) Log.d(TAG, "failed to create LLCP connectionless socket");
                     return;
@@ -307,10 +355,12 @@ public class EchoServer {
                         byte[] dataUnit = packet.getDataBuffer();
                         int size = dataUnit.length;
 
-                        if (DBG) Log.d(TAG, "read " + packet.getDataBuffer().length + " bytes");
+                        if (DBG && !mBenchmarkMode) Log.d(TAG, "read " + size + " bytes");
                         if (size < 0) {
                             connectionBroken = true;
                             break;
+                        } else if (mBenchmarkMode) {
+                            socket.send(packet.getRemoteSap(), dataUnit);
                         } else {
                             mRemoteSap = packet.getRemoteSap();
                             echoMachine.pushUnit(dataUnit, size);
@@ -324,7 +374,9 @@ public class EchoServer {
             } catch (LlcpException e) {
                 Log.e(TAG, "llcp error", e);
             } finally {
-                echoMachine.shutdown();
+                if (echoMachine != null) {
+                    echoMachine.shutdown();
+                }
 
                 if (socket != null) {
                     try {
@@ -36,6 +36,7 @@ import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
 import android.os.ParcelUuid;
+import android.os.SystemClock;
 import android.os.SystemProperties;
 import android.provider.Settings;
 import android.util.Log;
@@ -65,6 +66,8 @@ public class BluetoothPeripheralHandover implements BluetoothProfile.ServiceList
     static final int TIMEOUT_MS = 20000;
     static final int RETRY_PAIRING_WAIT_TIME_MS = 2000;
     static final int RETRY_CONNECT_WAIT_TIME_MS = 5000;
+    // A profile that connected last time is expected back quickly
+    static final int RETRY_CONNECT_KNOWN_WAIT_TIME_MS = 1000;
 
     static final int STATE_INIT = 0;
     static final int STATE_WAITING_FOR_PROXIES = 1;
@@ -97,6 +100,9 @@ public class BluetoothPeripheralHandover implements BluetoothProfile.ServiceList
     final int mTransport;
     final boolean mProvisioning;
     final AudioManager mAudioManager;
+    final PeripheralHandoverCache mCache;
+    final String mFingerprint;
+    final PeripheralHandoverCache.Entry mKnown; // null if not connected before
 
     final Object mLock = new Object();
 
@@ -111,6 +117,7 @@ public class BluetoothPeripheralHandover implements BluetoothProfile.ServiceList
     boolean mIsHeadsetAvailable;
     boolean mIsA2dpAvailable;
     boolean mIsMusicActive;
+    long mStartTime;
 
     // protected by mLock
     BluetoothA2dp mA2dp;
@@ -123,7 +130,7 @@ public class BluetoothPeripheralHandover implements BluetoothProfile.ServiceList
 
     public BluetoothPeripheralHandover(Context context, BluetoothDevice device, String name,
             int transport, OobData oobData, ParcelUuid[] uuids, BluetoothClass btClass,
-            Callback callback) {
+            PeripheralHandoverCache cache, Callback callback) {
         checkMainThread();  // mHandler must get get constructed on Main Thread for toasts to work
         mContext = context;
         mDevice = device;
@@ -147,6 +154,20 @@ public class BluetoothPeripheralHandover implements BluetoothProfile.ServiceList
             mIsA2dpAvailable = true;
         }
 
+        mCache = cache;
+        mFingerprint = PeripheralHandoverCache.getFingerprint(transport, name, uuids, btClass,
+                oobData);
+        PeripheralHandoverCache.Entry known =
+                cache != null ? cache.get(device.getAddress(), mFingerprint) : null;
+        if (known != null && known.transport != transport) {
+            known = null;
+        }
+        // Every advertised profile is still attempted; a known peripheral
+        // only gets shorter retry waits, since a profile that failed once
+        // may well connect the next time.
+        mKnown = known;
+        if (DBG && mKnown != null) Log.d(TAG, "Known peripheral: " + mKnown);
+
         mAudioManager = (AudioManager)mContext.getSystemService(Context.AUDIO_SERVICE);
 
         mState = STATE_INIT;
@@ -183,6 +204,7 @@ public class BluetoothPeripheralHandover implements BluetoothProfile.ServiceList
 
         mAction = ACTION_INIT;
         mRetryCount = 0;
+        mStartTime = SystemClock.elapsedRealtime();
 
         nextStep();
 
@@ -356,7 +378,10 @@ public class BluetoothPeripheralHandover implements BluetoothProfile.ServiceList
                     break;
                 }
 
-                if (mTransport == BluetoothDevice.TRANSPORT_LE) {
+                // The bond made from the same OOB data can be kept; the
+                // entry is dropped whenever the bond is removed, so a known
+                // device is still bonded from its last handover
+                if (mTransport == BluetoothDevice.TRANSPORT_LE && mKnown == null) {
                     if (mDevice.getBondState() != BluetoothDevice.BOND_NONE) {
                         mDevice.removeBond();
                         requestPairConfirmation();
@@ -414,7 +439,7 @@ public class BluetoothPeripheralHandover implements BluetoothProfile.ServiceList
                                 toast(getToastString(R.string.connecting_peripheral));
                             }
                             if (mRetryCount < MAX_RETRY_COUNT) {
-                                sendRetryMessage(RETRY_CONNECT_WAIT_TIME_MS);
+                                sendRetryMessage(getConnectRetryWaitTime());
                                 break;
                             }
                         }
@@ -508,7 +533,7 @@ public class BluetoothPeripheralHandover implements BluetoothProfile.ServiceList
                 nextStep();
             } else if (state == BluetoothProfile.STATE_DISCONNECTED) {
                 if (mAction == ACTION_CONNECT && mRetryCount < MAX_RETRY_COUNT) {
-                    sendRetryMessage(RETRY_CONNECT_WAIT_TIME_MS);
+                    sendRetryMessage(getConnectRetryWaitTime());
                 } else {
                     mHfpResult = RESULT_DISCONNECTED;
                     nextStep();
@@ -522,7 +547,7 @@ public class BluetoothPeripheralHandover implements BluetoothProfile.ServiceList
                 nextStep();
             } else if (state == BluetoothProfile.STATE_DISCONNECTED) {
                 if (mAction == ACTION_CONNECT && mRetryCount < MAX_RETRY_COUNT) {
-                    sendRetryMessage(RETRY_CONNECT_WAIT_TIME_MS);
+                    sendRetryMessage(getConnectRetryWaitTime());
                 } else {
                     mA2dpResult = RESULT_DISCONNECTED;
                     nextStep();
@@ -544,6 +569,9 @@ public class BluetoothPeripheralHandover implements BluetoothProfile.ServiceList
     void complete(boolean connected) {
         if (DBG) Log.d(TAG, "complete()");
         mState = STATE_COMPLETE;
+        if (mAction == ACTION_CONNECT) {
+            updateCache(connected);
+        }
         mContext.unregisterReceiver(mReceiver);
         mHandler.removeMessages(MSG_TIMEOUT);
         mHandler.removeMessages(MSG_RETRY);
@@ -566,6 +594,29 @@ public class BluetoothPeripheralHandover implements BluetoothProfile.ServiceList
         mCallback.onBluetoothPeripheralHandoverComplete(connected);
     }
 
+    void updateCache(boolean connected) {
+        if (mCache == null) {
+            return;
+        }
+        if (!connected) {
+            // Start over next time
+            if (mKnown != null) {
+                mCache.remove(mDevice.getAddress(), mFingerprint);
+            }
+            return;
+        }
+        int profiles = 0;
+        if (mHfpResult == RESULT_CONNECTED) profiles |= PeripheralHandoverCache.PROFILE_HEADSET;
+        if (mA2dpResult == RESULT_CONNECTED) profiles |= PeripheralHandoverCache.PROFILE_A2DP;
+        if (mHidResult == RESULT_CONNECTED) profiles |= PeripheralHandoverCache.PROFILE_HID;
+        mCache.put(mDevice.getAddress(), mFingerprint, mTransport, profiles,
+                SystemClock.elapsedRealtime() - mStartTime);
+    }
+
+    int getConnectRetryWaitTime() {
+        return mKnown != null ? RETRY_CONNECT_KNOWN_WAIT_TIME_MS : RETRY_CONNECT_WAIT_TIME_MS;
+    }
+
     void toast(CharSequence text) {
         Toast.makeText(mContext,  text, Toast.LENGTH_SHORT).show();
     }
@@ -21,14 +21,15 @@ import android.os.SystemProperties;
 import android.util.Log;
 
 import com.android.nfc.LlcpException;
+import com.android.nfc.LlcpSender;
+import com.android.nfc.LlcpServiceConnector;
 import com.android.nfc.NfcService;
 import com.android.nfc.DeviceHost.LlcpSocket;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.util.Arrays;
 
-public final class HandoverClient {
+public final class HandoverClient implements LlcpServiceConnector.Client {
     private static final String TAG = "HandoverClient";
     private static final int MIU = 128;
     private static final boolean DBG =
@@ -99,6 +100,15 @@ public final class HandoverClient {
     }
     public NdefMessage sendHandoverRequest(NdefMessage msg) throws IOException {
         if (msg == null) return null;
+        return sendHandoverRequest(msg.toByteArray());
+    }
+
+    /**
+     * Sends an already serialized Handover Request, e.g. the cached one from
+     * {@link HandoverDataParser#getHandoverRequest}. The buffer isn't modified.
+     */
+    public NdefMessage sendHandoverRequest(byte[] buffer) throws IOException {
+        if (buffer == null) return null;
 
         LlcpSocket sock = null;
         synchronized (mLock) {
@@ -107,20 +117,11 @@ public final class HandoverClient {
             }
             sock = mSocket;
         }
-        int offset = 0;
-        byte[] buffer = msg.toByteArray();
         ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
 
         try {
-            int remoteMiu = sock.getRemoteMiu();
             if (DBG) Log.d(TAG, "about to send a " + buffer.length + " byte message");
-            while (offset < buffer.length) {
-                int length = Math.min(buffer.length - offset, remoteMiu);
-                byte[] tmpBuffer = Arrays.copyOfRange(buffer, offset, offset+length);
-                if (DBG) Log.d(TAG, "about to send a " + length + " byte packet");
-                sock.send(tmpBuffer);
-                offset += length;
-            }
+            new LlcpSender(sock).send(buffer);
 
             // Now, try to read back the handover response
             byte[] partial = new byte[sock.getLocalMiu()];
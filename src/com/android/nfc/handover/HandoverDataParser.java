@@ -28,12 +28,14 @@ import android.nfc.NdefMessage;
 import android.nfc.NdefRecord;
 import android.os.Parcel;
 import android.os.ParcelUuid;
+import android.os.SystemClock;
 import android.os.SystemProperties;
 import android.os.UserHandle;
 import android.util.Log;
-import java.nio.BufferUnderflowException;
+
+import com.android.nfc.NdefClassifier;
+
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
@@ -85,13 +87,30 @@ public class HandoverDataParser {
     public static final int SECURITY_MANAGER_LE_SC_R_SIZE = 16;
     private static final int CLASS_OF_DEVICE_SIZE = 3;
 
+    // Also bounds how long the collision resolution random number is reused
+    static final long HANDOVER_REQUEST_TTL_MS = 60 * 1000;
+
     private final BluetoothAdapter mBluetoothAdapter;
+    private final DeviceLookup mDeviceLookup;
 
     private final Object mLock = new Object();
     // Variables below synchronized on mLock
 
     private String mLocalBluetoothAddress;
 
+    // Handover Request, rebuilt once it is older than HANDOVER_REQUEST_TTL_MS or
+    // invalidated because the local address may have changed
+    private HandoverRequest mHandoverRequest;
+    private long mHandoverRequestTime;
+
+    // Scratch state of the OOB parsers, synchronized on mParseLock
+    private final Object mParseLock = new Object();
+    private final OobTlvCursor mCursor = new OobTlvCursor();
+    private final byte[] mAddress = new byte[6];
+    private final byte[] mUuid16 = new byte[BluetoothUuid.UUID_BYTES_16_BIT];
+    private final byte[] mUuid32 = new byte[BluetoothUuid.UUID_BYTES_32_BIT];
+    private final byte[] mUuid128 = new byte[BluetoothUuid.UUID_BYTES_128_BIT];
+
     public static class BluetoothHandoverData {
         public boolean valid = false;
         public BluetoothDevice device;
@@ -103,6 +122,20 @@ public class HandoverDataParser {
         public BluetoothClass btClass = null;
     }
 
+    /**
+     * A Handover Request message and its serialized form. Both are shared
+     * and must not be modified.
+     */
+    public static final class HandoverRequest {
+        public final NdefMessage message;
+        public final byte[] bytes;
+
+        HandoverRequest(NdefMessage message) {
+            this.message = message;
+            this.bytes = message.toByteArray();
+        }
+    }
+
     public static class IncomingHandoverData {
         public final NdefMessage handoverSelect;
         public final BluetoothHandoverData handoverData;
@@ -114,8 +147,28 @@ public class HandoverDataParser {
         }
     }
 
+    /**
+     * Resolves the addresses found in OOB data to devices. Tests replace it
+     * to run the parsers without a Bluetooth adapter.
+     */
+    interface DeviceLookup {
+        /** Throws IllegalArgumentException if the address is invalid. */
+        BluetoothDevice getRemoteDevice(byte[] address);
+    }
+
     public HandoverDataParser() {
         mBluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
+        mDeviceLookup = new DeviceLookup() {
+            @Override
+            public BluetoothDevice getRemoteDevice(byte[] address) {
+                return mBluetoothAdapter.getRemoteDevice(address);
+            }
+        };
+    }
+
+    HandoverDataParser(DeviceLookup deviceLookup) {
+        mBluetoothAdapter = null;
+        mDeviceLookup = deviceLookup;
     }
 
     static NdefRecord createCollisionRecord() {
@@ -165,17 +218,58 @@ public class HandoverDataParser {
         return (mBluetoothAdapter != null);
     }
 
+    /**
+     * Returns the Handover Request message for a Bluetooth handover. The
+     * message is cached, so it must not be modified.
+     */
     public NdefMessage createHandoverRequestMessage() {
+        HandoverRequest request = getHandoverRequest();
+        return request != null ? request.message : null;
+    }
+
+    /**
+     * Returns the Handover Request for a Bluetooth handover together with
+     * its serialized form, or null if Bluetooth isn't available.
+     */
+    public HandoverRequest getHandoverRequest() {
         if (mBluetoothAdapter == null) {
             return null;
         }
 
-        NdefRecord[] dataRecords = new NdefRecord[] {
-                createBluetoothOobDataRecord()
-        };
-        return new NdefMessage(
-                createHandoverRequestRecord(),
-                dataRecords);
+        synchronized (mLock) {
+            long now = SystemClock.elapsedRealtime();
+            if (mHandoverRequest != null
+                    && now - mHandoverRequestTime < HANDOVER_REQUEST_TTL_MS) {
+                return mHandoverRequest;
+            }
+
+            NdefRecord[] dataRecords = new NdefRecord[] {
+                    createBluetoothOobDataRecord()
+            };
+            HandoverRequest request = new HandoverRequest(new NdefMessage(
+                    createHandoverRequestRecord(),
+                    dataRecords));
+            if (mLocalBluetoothAddress == null) {
+                // Address unknown, try again next time
+                mHandoverRequest = null;
+                return request;
+            }
+            if (DBG) Log.d(TAG, "Rebuilt Handover Request for " + mLocalBluetoothAddress);
+            mHandoverRequest = request;
+            mHandoverRequestTime = now;
+            return request;
+        }
+    }
+
+    /**
+     * Drops the cached Handover Request. Called when the adapter state or
+     * the local Bluetooth address changes.
+     */
+    public void invalidateHandoverRequest() {
+        synchronized (mLock) {
+            mLocalBluetoothAddress = null;
+            mHandoverRequest = null;
+        }
     }
 
     NdefMessage createBluetoothHandoverSelectMessage(boolean activating) {
@@ -299,10 +393,12 @@ public class HandoverDataParser {
         for (NdefRecord alt : msg.getRecords()) {
             byte[] acPayload = alt.getPayload();
             if (acPayload != null) {
+                if (acPayload.length < 2) return false;
                 ByteBuffer buf = ByteBuffer.wrap(acPayload);
                 int cps = buf.get() & 0x03; // Carrier Power State is in lower 2 bits
                 int carrierRefLength = buf.get() & 0xFF;
-                if (carrierRefLength != carrierId.length) return false;
+                if (carrierRefLength != carrierId.length
+                        || carrierRefLength > buf.remaining()) return false;
 
                 byte[] carrierRefId = new byte[carrierRefLength];
                 buf.get(carrierRefId);
@@ -368,25 +464,57 @@ public class HandoverDataParser {
         return null;
     }
 
+    /**
+     * Same as {@link #parseBluetooth(NdefMessage)}, but dispatches on the
+     * classification of the message and parses the OOB payload in place.
+     */
+    public BluetoothHandoverData parseBluetooth(NdefMessage m, NdefClassifier classifier) {
+        if (!classifier.isValid()) {
+            return parseBluetooth(m);
+        }
+        if (!classifier.isBluetoothHandover()) {
+            return null;
+        }
+        switch (classifier.getRecordKind(0)) {
+            case NdefClassifier.KIND_BT_OOB:
+                return parseBtOob(classifier.getPayload(0));
+            case NdefClassifier.KIND_BLE_OOB:
+                return parseBleOob(classifier.getPayload(0));
+            case NdefClassifier.KIND_NOKIA:
+                return parseNokia(classifier.getPayload(0));
+            default:
+                return parseBluetoothHandoverSelect(m);
+        }
+    }
+
     BluetoothHandoverData parseNokia(ByteBuffer payload) {
         BluetoothHandoverData result = new BluetoothHandoverData();
         result.valid = false;
 
-        try {
-            payload.position(1);
-            byte[] address = new byte[6];
-            payload.get(address);
-            result.device = mBluetoothAdapter.getRemoteDevice(address);
-            result.valid = true;
-            payload.position(14);
-            int nameLength = payload.get();
-            byte[] nameBytes = new byte[nameLength];
-            payload.get(nameBytes);
-            result.name = new String(nameBytes, StandardCharsets.UTF_8);
-        } catch (IllegalArgumentException e) {
-            Log.i(TAG, "nokia: invalid BT address");
-        } catch (BufferUnderflowException e) {
-            Log.i(TAG, "nokia: payload shorter than expected");
+        synchronized (mParseLock) {
+            // Address at offset 1, name length at 14 followed by the name
+            if (payload.limit() < 7) {
+                Log.i(TAG, "nokia: payload shorter than expected");
+                return result;
+            }
+            for (int i = 0; i < mAddress.length; i++) {
+                mAddress[i] = payload.get(1 + i);
+            }
+            try {
+                result.device = mDeviceLookup.getRemoteDevice(mAddress);
+                result.valid = true;
+            } catch (IllegalArgumentException e) {
+                Log.i(TAG, "nokia: invalid BT address");
+            }
+            if (result.valid) {
+                if (payload.limit() > 14) {
+                    result.name = OobTlvCursor.readUtf8(payload, 15, payload.get(14) & 0xFF,
+                            mCursor.getScratch());
+                }
+                if (result.name == null) {
+                    Log.i(TAG, "nokia: payload shorter than expected");
+                }
+            }
         }
         if (result.valid && result.name == null) result.name = "";
         return result;
@@ -396,30 +524,33 @@ public class HandoverDataParser {
         BluetoothHandoverData result = new BluetoothHandoverData();
         result.valid = false;
 
-        try {
-            payload.position(2); // length
-            byte[] address = parseMacFromBluetoothRecord(payload);
-            result.device = mBluetoothAdapter.getRemoteDevice(address);
-            result.valid = true;
-
-            while (payload.remaining() > 0) {
-                boolean success = false;
-                byte[] nameBytes;
-                int len = payload.get();
-                int type = payload.get();
-                switch (type) {
+        synchronized (mParseLock) {
+            // 2 bytes of OOB data length, followed by the address
+            if (payload.limit() < 2 + mAddress.length) {
+                Log.i(TAG, "BT OOB: payload shorter than expected");
+                return result;
+            }
+            for (int i = 0; i < mAddress.length; i++) {
+                mAddress[mAddress.length - 1 - i] = payload.get(2 + i);
+            }
+            try {
+                result.device = mDeviceLookup.getRemoteDevice(mAddress);
+                result.valid = true;
+            } catch (IllegalArgumentException e) {
+                Log.i(TAG, "BT OOB: invalid BT address");
+            }
+
+            OobTlvCursor cursor = mCursor;
+            cursor.reset(payload, 2 + mAddress.length);
+            while (result.valid && cursor.next()) {
+                int len = cursor.getValueLength();
+                switch (cursor.getType()) {
                     case BT_HANDOVER_TYPE_SHORT_LOCAL_NAME:
-                        nameBytes = new byte[len - 1];
-                        payload.get(nameBytes);
-                        result.name = new String(nameBytes, StandardCharsets.UTF_8);
-                        success = true;
+                        result.name = cursor.getValueAsUtf8();
                         break;
                     case BT_HANDOVER_TYPE_LONG_LOCAL_NAME:
                         if (result.name != null) break;  // prefer short name
-                        nameBytes = new byte[len - 1];
-                        payload.get(nameBytes);
-                        result.name = new String(nameBytes, StandardCharsets.UTF_8);
-                        success = true;
+                        result.name = cursor.getValueAsUtf8();
                         break;
                     case BT_HANDOVER_TYPE_16_BIT_UUIDS_PARTIAL:
                     case BT_HANDOVER_TYPE_16_BIT_UUIDS_COMPLETE:
@@ -427,31 +558,26 @@ public class HandoverDataParser {
                     case BT_HANDOVER_TYPE_32_BIT_UUIDS_COMPLETE:
                     case BT_HANDOVER_TYPE_128_BIT_UUIDS_PARTIAL:
                     case BT_HANDOVER_TYPE_128_BIT_UUIDS_COMPLETE:
-                        result.uuids = parseUuidFromBluetoothRecord(payload, type, len - 1);
-                        if (result.uuids != null) {
-                            success = true;
+                        ParcelUuid[] uuids = parseUuidFromBluetoothRecord(cursor);
+                        if (uuids != null) {
+                            result.uuids = uuids;
                         }
                         break;
                     case BT_HANDOVER_TYPE_CLASS_OF_DEVICE:
-                        if (len - 1 != CLASS_OF_DEVICE_SIZE) {
+                        if (len != CLASS_OF_DEVICE_SIZE) {
                             Log.i(TAG, "BT OOB: invalid size of Class of Device, should be " +
                                   CLASS_OF_DEVICE_SIZE + " bytes.");
                             break;
                         }
-                        result.btClass = parseBluetoothClassFromBluetoothRecord(payload);
-                        success = true;
+                        result.btClass = parseBluetoothClassFromBluetoothRecord(cursor);
                         break;
                     default:
                         break;
                 }
-                if (!success) {
-                    payload.position(payload.position() + len - 1);
-                }
             }
-        } catch (IllegalArgumentException e) {
-            Log.i(TAG, "BT OOB: invalid BT address");
-        } catch (BufferUnderflowException e) {
-            Log.i(TAG, "BT OOB: payload shorter than expected");
+            if (cursor.isMalformed()) {
+                Log.i(TAG, "BT OOB: payload shorter than expected");
+            }
         }
         if (result.valid && result.name == null) result.name = "";
         return result;
@@ -462,32 +588,37 @@ public class HandoverDataParser {
         result.valid = false;
         result.transport = BluetoothDevice.TRANSPORT_LE;
 
-        try {
-
-            byte[] bdaddr = null;
-            byte role = 0xF; // invalid default
-            byte[] leScC = null;
-            byte[] leScR = null;
-            byte[] nameBytes = null;
-            byte[] securityManagerTK = null;
-            while (payload.remaining() > 0) {
-                int len = payload.get();
-                int type = payload.get();
-                switch (type) {
+        byte[] bdaddr = null;
+        byte role = 0xF; // invalid default
+        byte[] leScC = null;
+        byte[] leScR = null;
+        byte[] nameBytes = null;
+        byte[] securityManagerTK = null;
+        synchronized (mParseLock) {
+            OobTlvCursor cursor = mCursor;
+            cursor.reset(payload, 0);
+            while (cursor.next()) {
+                int len = cursor.getValueLength();
+                switch (cursor.getType()) {
                     case BT_HANDOVER_TYPE_MAC: // mac address
-                        int startpos = payload.position();
-                        bdaddr = new byte[7]; // 6 bytes for mac, 1 for address type
-                        payload.get(bdaddr);
-                        payload.position(startpos);
-
-                        byte[] address = parseMacFromBluetoothRecord(payload);
-                        payload.position(payload.position() + 1); // advance over random byte
-                        result.device = mBluetoothAdapter.getRemoteDevice(address);
-                        result.valid = true;
+                        // 6 bytes for mac, 1 for address type
+                        if (len != mAddress.length + 1) {
+                            Log.i(TAG, "BT OOB: invalid size of LE address");
+                            break;
+                        }
+                        bdaddr = cursor.getValue();
+                        cursor.copyValue(mAddress, true);
+                        try {
+                            result.device = mDeviceLookup.getRemoteDevice(mAddress);
+                            result.valid = true;
+                        } catch (IllegalArgumentException e) {
+                            Log.i(TAG, "BLE OOB: error parsing OOB data", e);
+                        }
                         break;
 
                     case BT_HANDOVER_TYPE_LE_ROLE:
-                        role = payload.get();
+                        if (len < 1) break;
+                        role = (byte) cursor.getValueByte(0);
                         if (role == BT_HANDOVER_LE_ROLE_CENTRAL_ONLY) {
                             // only central role supported, can't pair
                             result.valid = false;
@@ -496,49 +627,46 @@ public class HandoverDataParser {
                         break;
 
                     case BT_HANDOVER_TYPE_LONG_LOCAL_NAME:
-                        nameBytes = new byte[len - 1];
-                        payload.get(nameBytes);
+                        nameBytes = cursor.getValue();
                         result.name = new String(nameBytes, StandardCharsets.UTF_8);
                         break;
 
                     case BT_HANDOVER_TYPE_SECURITY_MANAGER_TK:
-                        if (len-1 != SECURITY_MANAGER_TK_SIZE) {
+                        if (len != SECURITY_MANAGER_TK_SIZE) {
                             Log.i(TAG, "BT OOB: invalid size of SM TK, should be " +
                                   SECURITY_MANAGER_TK_SIZE + " bytes.");
                             break;
                         }
-
-                        securityManagerTK = new byte[len - 1];
-                        payload.get(securityManagerTK);
+                        securityManagerTK = cursor.getValue();
                         break;
 
                     case BT_HANDOVER_TYPE_LE_SC_CONFIRMATION:
-                        if (len - 1 != SECURITY_MANAGER_LE_SC_C_SIZE) {
+                        if (len != SECURITY_MANAGER_LE_SC_C_SIZE) {
                             Log.i(TAG, "BT OOB: invalid size of LE SC Confirmation, should be " +
                                   SECURITY_MANAGER_LE_SC_C_SIZE + " bytes.");
                             break;
                         }
-
-                        leScC = new byte[len - 1];
-                        payload.get(leScC);
+                        leScC = cursor.getValue();
                         break;
 
                     case BT_HANDOVER_TYPE_LE_SC_RANDOM:
-                        if (len-1 != SECURITY_MANAGER_LE_SC_R_SIZE) {
+                        if (len != SECURITY_MANAGER_LE_SC_R_SIZE) {
                             Log.i(TAG, "BT OOB: invalid size of LE SC Random, should be " +
                                   SECURITY_MANAGER_LE_SC_R_SIZE + " bytes.");
                             break;
                         }
-
-                        leScR = new byte[len - 1];
-                        payload.get(leScR);
+                        leScR = cursor.getValue();
                         break;
 
                     default:
-                        payload.position(payload.position() + len - 1);
                         break;
                 }
             }
+            if (cursor.isMalformed()) {
+                Log.i(TAG, "BT OOB: payload shorter than expected");
+            }
+        }
+        try {
             result.oobData = new OobData.LeBuilder(leScC, bdaddr, (int)(role & 0xFF))
                 .setRandomizerHash(leScR)
                 .setDeviceName(nameBytes)
@@ -546,26 +674,11 @@ public class HandoverDataParser {
                 .build();
         } catch (IllegalArgumentException e) {
             Log.i(TAG, "BLE OOB: error parsing OOB data", e);
-        } catch (BufferUnderflowException e) {
-            Log.i(TAG, "BT OOB: payload shorter than expected");
         }
         if (result.valid && result.name == null) result.name = "";
         return result;
     }
 
-    private byte[] parseMacFromBluetoothRecord(ByteBuffer payload) {
-        byte[] address = new byte[6];
-        payload.get(address);
-        // ByteBuffer.order(LITTLE_ENDIAN) doesn't work for
-        // ByteBuffer.get(byte[]), so manually swap order
-        for (int i = 0; i < 3; i++) {
-            byte temp = address[i];
-            address[i] = address[5 - i];
-            address[5 - i] = temp;
-        }
-        return address;
-    }
-
     static byte[] addressToReverseBytes(String address) {
         if (address == null) {
             Log.w(TAG, "BT address is null");
@@ -586,51 +699,50 @@ public class HandoverDataParser {
         return result;
     }
 
-    private ParcelUuid[] parseUuidFromBluetoothRecord(ByteBuffer payload, int type, int len) {
-        int uuidSize;
-        switch (type) {
+    // Called with mParseLock held
+    private ParcelUuid[] parseUuidFromBluetoothRecord(OobTlvCursor cursor) {
+        byte[] data;
+        switch (cursor.getType()) {
             case BT_HANDOVER_TYPE_16_BIT_UUIDS_PARTIAL:
             case BT_HANDOVER_TYPE_16_BIT_UUIDS_COMPLETE:
-                uuidSize = BluetoothUuid.UUID_BYTES_16_BIT;
+                data = mUuid16;
                 break;
             case BT_HANDOVER_TYPE_32_BIT_UUIDS_PARTIAL:
             case BT_HANDOVER_TYPE_32_BIT_UUIDS_COMPLETE:
-                uuidSize = BluetoothUuid.UUID_BYTES_32_BIT;
+                data = mUuid32;
                 break;
             case BT_HANDOVER_TYPE_128_BIT_UUIDS_PARTIAL:
             case BT_HANDOVER_TYPE_128_BIT_UUIDS_COMPLETE:
-                uuidSize = BluetoothUuid.UUID_BYTES_128_BIT;
+                data = mUuid128;
                 break;
             default:
                 Log.i(TAG, "BT OOB: invalid size of UUID");
                 return null;
         }
 
-        if (len == 0 || len % uuidSize != 0) {
+        int len = cursor.getValueLength();
+        if (len == 0 || len % data.length != 0) {
             Log.i(TAG, "BT OOB: invalid size of UUIDs, should be multiples of UUID bytes length");
             return null;
         }
 
-        int num = len / uuidSize;
+        int num = len / data.length;
         ParcelUuid[] uuids = new ParcelUuid[num];
-        byte[] data = new byte[uuidSize];
         for (int i = 0; i < num; i++) {
-            payload.get(data);
+            cursor.copyValue(i * data.length, data, false);
             uuids[i] = BluetoothUuid.parseUuidFrom(data);
         }
         return uuids;
     }
 
-    private BluetoothClass parseBluetoothClassFromBluetoothRecord(ByteBuffer payload) {
-        byte[] btClass = new byte[CLASS_OF_DEVICE_SIZE];
-        payload.get(btClass);
-
-        ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES);
-        buffer.put(btClass);
-        buffer.order(ByteOrder.LITTLE_ENDIAN);
+    // Called with mParseLock held
+    private BluetoothClass parseBluetoothClassFromBluetoothRecord(OobTlvCursor cursor) {
+        // Little endian, 3 bytes
+        int btClass = cursor.getValueByte(0) | (cursor.getValueByte(1) << 8)
+                | (cursor.getValueByte(2) << 16);
 
         Parcel parcel = Parcel.obtain();
-        parcel.writeInt(buffer.getInt(0));
+        parcel.writeInt(btClass);
         parcel.setDataPosition(0);
         BluetoothClass bluetoothClass = BluetoothClass.CREATOR.createFromParcel(parcel);
         parcel.recycle();
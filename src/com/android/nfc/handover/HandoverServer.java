@@ -17,7 +17,9 @@ package com.android.nfc.handover;
 
 import com.android.nfc.DeviceHost.LlcpServerSocket;
 import com.android.nfc.DeviceHost.LlcpSocket;
+import com.android.nfc.LlcpConnectionPool;
 import com.android.nfc.LlcpException;
+import com.android.nfc.LlcpSender;
 import com.android.nfc.NfcService;
 import com.android.nfc.beam.BeamManager;
 import com.android.nfc.beam.BeamReceiveService;
@@ -34,7 +36,6 @@ import android.util.Log;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.util.Arrays;
 
 public final class HandoverServer {
     static final String HANDOVER_SERVICE_NAME = "urn:nfc:sn:handover";
@@ -42,6 +43,7 @@ public final class HandoverServer {
     static final Boolean DBG = SystemProperties.getBoolean("persist.nfc.debug_enabled", false);
 
     static final int MIU = 128;
+    static final int MAX_CONNECTIONS = 2;
 
     final HandoverDataParser mHandoverDataParser;
     final int mSap;
@@ -91,6 +93,8 @@ public final class HandoverServer {
             }
 
             while (threadRunning) {
+                LlcpConnectionPool.Service connections = LlcpConnectionPool.getInstance()
+                        .getService(HANDOVER_SERVICE_NAME, MAX_CONNECTIONS);
                 try {
                     synchronized (HandoverServer.this) {
                         mServerSocket = NfcService.getInstance().createLlcpServerSocket(mSap,
@@ -115,11 +119,23 @@ public final class HandoverServer {
                             if (DBG) Log.d(TAG, "Server socket shut down.");
                             return;
                         }
+                        try {
+                            connections.acquireSlot();
+                        } catch (InterruptedException e) {
+                            if (DBG) Log.d(TAG, "Stopped while waiting for a connection slot");
+                            return;
+                        }
                         if (DBG) Log.d(TAG, "about to accept");
-                        LlcpSocket communicationSocket = serverSocket.accept();
+                        LlcpSocket communicationSocket = null;
+                        try {
+                            communicationSocket = serverSocket.accept();
+                        } finally {
+                            if (communicationSocket == null) connections.releaseSlot();
+                        }
                         if (DBG) Log.d(TAG, "accept returned " + communicationSocket);
                         if (communicationSocket != null) {
-                            new ConnectionThread(communicationSocket).start();
+                            connections.execute(communicationSocket,
+                                    socket -> new ConnectionTask(socket));
                         }
 
                         synchronized (HandoverServer.this) {
@@ -162,15 +178,16 @@ public final class HandoverServer {
                     }
                     mServerSocket = null;
                 }
+                // Wakes the thread up if it is waiting for a connection slot
+                interrupt();
             }
         }
     }
 
-    private class ConnectionThread extends Thread {
+    private class ConnectionTask implements Runnable {
         private final LlcpSocket mSock;
 
-        ConnectionThread(LlcpSocket socket) {
-            super(TAG);
+        ConnectionTask(LlcpSocket socket) {
             mSock = socket;
         }
 
@@ -218,15 +235,7 @@ public final class HandoverServer {
                         }
 
                         // 3) send handover response
-                        int offset = 0;
-                        byte[] buffer = handoverData.handoverSelect.toByteArray();
-                        int remoteMiu = mSock.getRemoteMiu();
-                        while (offset < buffer.length) {
-                            int length = Math.min(buffer.length - offset, remoteMiu);
-                            byte[] tmpBuffer = Arrays.copyOfRange(buffer, offset, offset+length);
-                            mSock.send(tmpBuffer);
-                            offset += length;
-                        }
+                        new LlcpSender(mSock).send(handoverData.handoverSelect.toByteArray());
                         // We're done
                         mCallback.onHandoverRequestReceived();
                         if (!beamManager.startBeamReceive(mContext, handoverData.handoverData)) {
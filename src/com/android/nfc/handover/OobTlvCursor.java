@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc.handover;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Bounds-checked cursor over the length/type/value structures of Bluetooth
+ * OOB records (EIR and AD structures, where the length covers the type byte).
+ *
+ * The cursor reads the payload with absolute gets and never moves the
+ * buffer position, so it works on read-only views and slices. Lengths are
+ * unsigned, and a structure running past the end of the payload stops the
+ * iteration and marks the payload malformed instead of throwing. A cursor
+ * can be reused across payloads; it doesn't allocate except for the strings
+ * it is asked to decode.
+ */
+final class OobTlvCursor {
+    // A length byte can't describe more than this
+    static final int MAX_VALUE_LENGTH = 254;
+
+    // Also holds the names read with readUtf8(), whose length is a whole
+    // byte, e.g. the one of a Nokia record
+    private final byte[] mScratch = new byte[MAX_VALUE_LENGTH + 1];
+
+    private ByteBuffer mPayload;
+    private int mOffset;
+    private int mEnd;
+    private int mType;
+    private int mValueOffset;
+    private int mValueLength;
+    private boolean mMalformed;
+
+    /**
+     * Starts iterating over the structures of {@code payload} from
+     * {@code start} to its limit.
+     */
+    void reset(ByteBuffer payload, int start) {
+        mPayload = payload;
+        mEnd = payload.limit();
+        mOffset = start;
+        mType = -1;
+        mValueOffset = 0;
+        mValueLength = 0;
+        mMalformed = start > mEnd;
+    }
+
+    /**
+     * Moves to the next structure. Returns false at the end of the payload,
+     * on a zero length (early termination) or if the payload is malformed.
+     */
+    boolean next() {
+        if (mMalformed || mOffset >= mEnd) {
+            return false;
+        }
+        int length = mPayload.get(mOffset) & 0xFF;
+        if (length == 0) {
+            mOffset = mEnd;
+            return false;
+        }
+        if (mOffset + 1 + length > mEnd) {
+            mMalformed = true;
+            return false;
+        }
+        mType = mPayload.get(mOffset + 1) & 0xFF;
+        mValueOffset = mOffset + 2;
+        mValueLength = length - 1;
+        mOffset += 1 + length;
+        return true;
+    }
+
+    boolean isMalformed() {
+        return mMalformed;
+    }
+
+    int getType() {
+        return mType;
+    }
+
+    int getValueLength() {
+        return mValueLength;
+    }
+
+    /**
+     * Returns the unsigned value byte at {@code index}, or -1 if out of range.
+     */
+    int getValueByte(int index) {
+        if (index < 0 || index >= mValueLength) {
+            return -1;
+        }
+        return mPayload.get(mValueOffset + index) & 0xFF;
+    }
+
+    /**
+     * Copies the value into {@code dest}, reversing the byte order if
+     * {@code reverse} is set. Returns false if the value length doesn't
+     * match the destination.
+     */
+    boolean copyValue(byte[] dest, boolean reverse) {
+        return copyValue(0, dest, reverse);
+    }
+
+    boolean copyValue(int valueOffset, byte[] dest, boolean reverse) {
+        if (valueOffset < 0 || valueOffset + dest.length > mValueLength) {
+            return false;
+        }
+        for (int i = 0; i < dest.length; i++) {
+            byte b = mPayload.get(mValueOffset + valueOffset + i);
+            dest[reverse ? dest.length - 1 - i : i] = b;
+        }
+        return true;
+    }
+
+    /**
+     * Returns a new array holding the value.
+     */
+    byte[] getValue() {
+        byte[] value = new byte[mValueLength];
+        copyValue(value, false);
+        return value;
+    }
+
+    String getValueAsUtf8() {
+        for (int i = 0; i < mValueLength; i++) {
+            mScratch[i] = mPayload.get(mValueOffset + i);
+        }
+        return new String(mScratch, 0, mValueLength, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Decodes {@code length} bytes at absolute {@code offset} as UTF-8, or
+     * returns null if they are not within the payload.
+     */
+    static String readUtf8(ByteBuffer payload, int offset, int length, byte[] scratch) {
+        if (offset < 0 || length < 0 || length > scratch.length
+                || offset + length > payload.limit()) {
+            return null;
+        }
+        for (int i = 0; i < length; i++) {
+            scratch[i] = payload.get(offset + i);
+        }
+        return new String(scratch, 0, length, StandardCharsets.UTF_8);
+    }
+
+    byte[] getScratch() {
+        return mScratch;
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc.handover;
+
+import android.bluetooth.BluetoothClass;
+import android.bluetooth.OobData;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.ParcelUuid;
+import android.util.Log;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+
+/**
+ * Remembers how the last successful handover to a peripheral went: the
+ * transport, and which profiles ended up connected.
+ *
+ * Entries are keyed by the device address and a fingerprint of the handover
+ * data the peripheral presented, so a tag that changes (a new OOB key, other
+ * profiles) is treated as an unknown device again. An entry is dropped as soon
+ * as a handover using it fails, or once the bond with the device is removed:
+ * a later bond may not have been made from the handover data. The profiles are
+ * only informational: the handover always attempts every profile the
+ * peripheral advertises.
+ */
+public final class PeripheralHandoverCache {
+    private static final String TAG = "PeripheralHandoverCache";
+    private static final boolean DBG = false;
+
+    static final String PREF = "PeripheralHandoverCache";
+    static final int MAX_ENTRIES = 32;
+
+    static final int PROFILE_HEADSET = 1 << 0;
+    static final int PROFILE_A2DP = 1 << 1;
+    static final int PROFILE_HID = 1 << 2;
+
+    static final class Entry {
+        final int transport;
+        final int profiles;
+        final long lastConnected; // wall clock, used to evict the oldest entries
+        final long connectMs;
+
+        Entry(int transport, int profiles, long lastConnected, long connectMs) {
+            this.transport = transport;
+            this.profiles = profiles;
+            this.lastConnected = lastConnected;
+            this.connectMs = connectMs;
+        }
+
+        @Override
+        public String toString() {
+            return "transport=" + transport + " profiles=" + profiles
+                    + " connectMs=" + connectMs;
+        }
+    }
+
+    private final SharedPreferences mPrefs;
+
+    PeripheralHandoverCache(Context context) {
+        mPrefs = context.getSharedPreferences(PREF, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Returns what is known about the device, or null.
+     */
+    Entry get(String address, String fingerprint) {
+        String value = mPrefs.getString(getKey(address, fingerprint), null);
+        if (value == null) {
+            return null;
+        }
+        String[] fields = value.split(",");
+        if (fields.length != 4) {
+            return null;
+        }
+        try {
+            return new Entry(Integer.parseInt(fields[0]), Integer.parseInt(fields[1]),
+                    Long.parseLong(fields[2]), Long.parseLong(fields[3]));
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "Ignoring malformed entry " + value);
+            return null;
+        }
+    }
+
+    void put(String address, String fingerprint, int transport, int profiles, long connectMs) {
+        SharedPreferences.Editor editor = mPrefs.edit();
+        // A device only has one entry, whatever tag it was last seen through
+        String prefix = address + "|";
+        Map<String, ?> all = mPrefs.getAll();
+        String oldest = null;
+        long oldestTime = Long.MAX_VALUE;
+        int count = 0;
+        for (String key : all.keySet()) {
+            if (key.startsWith(prefix)) {
+                editor.remove(key);
+                continue;
+            }
+            count++;
+            Object value = all.get(key);
+            long time = 0;
+            if (value instanceof String) {
+                String[] fields = ((String) value).split(",");
+                try {
+                    time = fields.length == 4 ? Long.parseLong(fields[2]) : 0;
+                } catch (NumberFormatException e) {
+                    // Evict it first
+                }
+            }
+            if (time < oldestTime) {
+                oldestTime = time;
+                oldest = key;
+            }
+        }
+        if (count >= MAX_ENTRIES && oldest != null) {
+            editor.remove(oldest);
+        }
+        editor.putString(getKey(address, fingerprint), transport + "," + profiles + ","
+                + System.currentTimeMillis() + "," + connectMs);
+        editor.apply();
+        if (DBG) Log.d(TAG, "Remembered " + address + " profiles=" + profiles);
+    }
+
+    void remove(String address, String fingerprint) {
+        mPrefs.edit().remove(getKey(address, fingerprint)).apply();
+    }
+
+    void removeDevice(String address) {
+        SharedPreferences.Editor editor = mPrefs.edit();
+        String prefix = address + "|";
+        for (String key : mPrefs.getAll().keySet()) {
+            if (key.startsWith(prefix)) {
+                editor.remove(key);
+            }
+        }
+        editor.apply();
+    }
+
+    /**
+     * Forgets the device once its bond is removed. Must be called for every
+     * {@link android.bluetooth.BluetoothDevice#BOND_NONE} transition.
+     */
+    public static void onBondRemoved(Context context, String address) {
+        if (DBG) Log.d(TAG, "Bond removed, forgetting " + address);
+        new PeripheralHandoverCache(context).removeDevice(address);
+    }
+
+    private static String getKey(String address, String fingerprint) {
+        return address + "|" + fingerprint;
+    }
+
+    /**
+     * Returns a fingerprint of the handover data presented by a peripheral.
+     */
+    static String getFingerprint(int transport, String name, ParcelUuid[] uuids,
+            BluetoothClass btClass, OobData oobData) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append(transport).append('\n');
+        sb.append(name).append('\n');
+        if (uuids != null) {
+            for (ParcelUuid uuid : uuids) {
+                sb.append(uuid).append(',');
+            }
+        }
+        sb.append('\n');
+        sb.append(btClass != null ? btClass.getDeviceClass() : -1).append('\n');
+        digest.update(sb.toString().getBytes(StandardCharsets.UTF_8));
+        if (oobData != null) {
+            update(digest, oobData.getDeviceAddressWithType());
+            update(digest, oobData.getConfirmationHash());
+            update(digest, oobData.getRandomizerHash());
+            update(digest, oobData.getLeTemporaryKey());
+        }
+        byte[] hash = digest.digest();
+        StringBuilder hex = new StringBuilder();
+        for (int i = 0; i < 8; i++) {
+            hex.append(String.format("%02x", hash[i]));
+        }
+        return hex.toString();
+    }
+
+    private static void update(MessageDigest digest, byte[] value) {
+        if (value != null) {
+            digest.update(value);
+        }
+        digest.update((byte) 0);
+    }
+}
@@ -76,6 +76,7 @@ public class PeripheralHandoverService extends Service implements BluetoothPerip
     Messenger mClient;
     boolean mBluetoothHeadsetConnected;
     boolean mBluetoothEnabledByNfc;
+    PeripheralHandoverCache mHandoverCache;
 
     class MessageHandler extends Handler {
         @Override
@@ -140,6 +141,7 @@ public class PeripheralHandoverService extends Service implements BluetoothPerip
     public void onCreate() {
         super.onCreate();
         mNfcAdapter = NfcAdapter.getDefaultAdapter(getApplicationContext());
+        mHandoverCache = new PeripheralHandoverCache(getApplicationContext());
 
         IntentFilter filter = new IntentFilter(BluetoothAdapter.ACTION_STATE_CHANGED);
         registerReceiver(mBluetoothStatusReceiver, filter);
@@ -180,7 +182,7 @@ public class PeripheralHandoverService extends Service implements BluetoothPerip
         mBluetoothEnabledByNfc = msgData.getBoolean(EXTRA_BT_ENABLED);
 
         mBluetoothPeripheralHandover = new BluetoothPeripheralHandover(
-                this, mDevice, name, transport, oobData, uuids, btClass, this);
+                this, mDevice, name, transport, oobData, uuids, btClass, mHandoverCache, this);
 
         if (transport == BluetoothDevice.TRANSPORT_LE) {
             mHandler.sendMessageDelayed(
@@ -37,19 +37,20 @@ package com.android.nfc.ndefpush;
 
 import com.android.nfc.DeviceHost.LlcpSocket;
 import com.android.nfc.LlcpException;
+import com.android.nfc.LlcpSender;
+import com.android.nfc.LlcpServiceConnector;
 import com.android.nfc.NfcService;
 
 import android.nfc.NdefMessage;
 import android.util.Log;
 
 import java.io.IOException;
-import java.util.Arrays;
 
 /**
  * Simple client to push the local NDEF message to a server on the remote side of an
  * LLCP connection, using the Android Ndef Push Protocol.
  */
-public class NdefPushClient {
+public class NdefPushClient implements LlcpServiceConnector.Client {
     private static final String TAG = "NdefPushClient";
     private static final int MIU = 128;
     private static final boolean DBG = true;
@@ -116,22 +117,13 @@ public class NdefPushClient {
         // We only handle a single immediate action for now
         NdefPushProtocol proto = new NdefPushProtocol(msg, NdefPushProtocol.ACTION_IMMEDIATE);
         byte[] buffer = proto.toByteArray();
-        int offset = 0;
-        int remoteMiu;
         if (buffer == null) {
             Log.e(TAG, "Length of buffer is NULL.");
             return false;
         }
         try {
-            remoteMiu = sock.getRemoteMiu();
             if (DBG) Log.d(TAG, "about to send a " + buffer.length + " byte message");
-            while (offset < buffer.length) {
-                int length = Math.min(buffer.length - offset, remoteMiu);
-                byte[] tmpBuffer = Arrays.copyOfRange(buffer, offset, offset+length);
-                if (DBG) Log.d(TAG, "about to send a " + length + " byte packet");
-                sock.send(tmpBuffer);
-                offset += length;
-            }
+            new LlcpSender(sock).send(buffer);
             return true;
         } catch (IOException e) {
             Log.e(TAG, "couldn't send tag");
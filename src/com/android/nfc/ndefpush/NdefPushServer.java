@@ -18,6 +18,7 @@ package com.android.nfc.ndefpush;
 
 import com.android.nfc.DeviceHost.LlcpServerSocket;
 import com.android.nfc.DeviceHost.LlcpSocket;
+import com.android.nfc.LlcpConnectionPool;
 import com.android.nfc.LlcpException;
 import com.android.nfc.NfcService;
 
@@ -38,6 +39,7 @@ public class NdefPushServer {
     private static final boolean DBG = true;
 
     private static final int MIU = 248;
+    private static final int MAX_CONNECTIONS = 2;
 
     int mSap;
 
@@ -60,11 +62,10 @@ public class NdefPushServer {
     }
 
     /** Connection class, used to handle incoming connections */
-    private class ConnectionThread extends Thread {
+    private class ConnectionTask implements Runnable {
         private LlcpSocket mSock;
 
-        ConnectionThread(LlcpSocket sock) {
-            super(TAG);
+        ConnectionTask(LlcpSocket sock) {
             mSock = sock;
         }
 
@@ -129,6 +130,8 @@ public class NdefPushServer {
             }
             while (threadRunning) {
                 if (DBG) Log.d(TAG, "about create LLCP service socket");
+                LlcpConnectionPool.Service connections = LlcpConnectionPool.getInstance()
+                        .getService(SERVICE_NAME, MAX_CONNECTIONS);
                 try {
                     synchronized (NdefPushServer.this) {
                         mServerSocket = mService.createLlcpServerSocket(mSap, SERVICE_NAME,
@@ -150,11 +153,23 @@ public class NdefPushServer {
                         }
                         if (serverSocket == null) return;
 
+                        try {
+                            connections.acquireSlot();
+                        } catch (InterruptedException e) {
+                            if (DBG) Log.d(TAG, "Stopped while waiting for a connection slot");
+                            return;
+                        }
                         if (DBG) Log.d(TAG, "about to accept");
-                        LlcpSocket communicationSocket = serverSocket.accept();
+                        LlcpSocket communicationSocket = null;
+                        try {
+                            communicationSocket = serverSocket.accept();
+                        } finally {
+                            if (communicationSocket == null) connections.releaseSlot();
+                        }
                         if (DBG) Log.d(TAG, "accept returned " + communicationSocket);
                         if (communicationSocket != null) {
-                            new ConnectionThread(communicationSocket).start();
+                            connections.execute(communicationSocket,
+                                    socket -> new ConnectionTask(socket));
                         }
 
                         synchronized (NdefPushServer.this) {
@@ -197,6 +212,8 @@ public class NdefPushServer {
                     }
                     mServerSocket = null;
                 }
+                // Wakes the thread up if it is waiting for a connection slot
+                interrupt();
             }
         }
     }
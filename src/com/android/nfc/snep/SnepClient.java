@@ -18,6 +18,7 @@ package com.android.nfc.snep;
 
 import com.android.nfc.DeviceHost.LlcpSocket;
 import com.android.nfc.LlcpException;
+import com.android.nfc.LlcpServiceConnector;
 import com.android.nfc.NfcService;
 
 import android.nfc.NdefMessage;
@@ -26,7 +27,7 @@ import android.util.Log;
 
 import java.io.IOException;
 
-public final class SnepClient {
+public final class SnepClient implements LlcpServiceConnector.Client {
     private static final String TAG = "SnepClient";
     private static final boolean DBG =
             SystemProperties.getBoolean("persist.nfc.debug_enabled", false);
@@ -157,7 +158,7 @@ public final class SnepClient {
             }
             int miu = socket.getRemoteMiu();
             int fragmentLength = (mFragmentLength == -1) ?  miu : Math.min(miu, mFragmentLength);
-            messenger = new SnepMessenger(true, socket, fragmentLength);
+            messenger = new SnepMessenger(true, socket, fragmentLength, mAcceptableLength);
         } catch (LlcpException e) {
             synchronized (this) {
                 mState = DISCONNECTED;
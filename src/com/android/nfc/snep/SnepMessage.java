@@ -22,9 +22,6 @@ import android.nfc.NdefRecord;
 import com.android.nfc.NfcService;
 import com.android.nfc.sneptest.DtaSnepClient;
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
-import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
 
@@ -66,14 +63,18 @@ public final class SnepMessage {
     private final int mLength;
     private final int mAcceptableLength;
     private final NdefMessage mNdefMessage;
+    // Serialized NDEF message, computed once
+    private byte[] mNdefBytes;
 
     public static SnepMessage getGetRequest(int acceptableLength, NdefMessage ndef) {
-        return new SnepMessage(VERSION, REQUEST_GET, 4 + ndef.toByteArray().length,
-                acceptableLength, ndef);
+        byte[] ndefBytes = ndef.toByteArray();
+        return new SnepMessage(VERSION, REQUEST_GET, 4 + ndefBytes.length,
+                acceptableLength, ndef, ndefBytes);
     }
 
     public static SnepMessage getPutRequest(NdefMessage ndef) {
-        return new SnepMessage(VERSION, REQUEST_PUT, ndef.toByteArray().length, 0, ndef);
+        byte[] ndefBytes = ndef.toByteArray();
+        return new SnepMessage(VERSION, REQUEST_PUT, ndefBytes.length, 0, ndef, ndefBytes);
     }
 
     public static SnepMessage getMessage(byte field) {
@@ -84,7 +85,9 @@ public final class SnepMessage {
         if (ndef == null) {
             return new SnepMessage(VERSION, RESPONSE_SUCCESS, 0, 0, null);
         } else {
-            return new SnepMessage(VERSION, RESPONSE_SUCCESS, ndef.toByteArray().length, 0, ndef);
+            byte[] ndefBytes = ndef.toByteArray();
+            return new SnepMessage(VERSION, RESPONSE_SUCCESS, ndefBytes.length, 0, ndef,
+                    ndefBytes);
         }
     }
 
@@ -171,7 +174,74 @@ public final class SnepMessage {
         mNdefMessage = ndefMessage;
     }
 
+    private SnepMessage(byte version, byte field, int length, int acceptableLength,
+            NdefMessage ndefMessage, byte[] ndefBytes) {
+        this(version, field, length, acceptableLength, ndefMessage);
+        // DTA test cases substitute their own records at serialization time
+        if (!NfcService.sIsDtaMode) {
+            mNdefBytes = ndefBytes;
+        }
+    }
+
     public byte[] toByteArray() {
+        byte[] bytes = new byte[getEncodedLength()];
+        writeFragment(0, bytes, bytes.length);
+        return bytes;
+    }
+
+    /**
+     * Returns the length of the message as returned by {@link #toByteArray}.
+     */
+    public int getEncodedLength() {
+        return getHeaderLength() + getNdefBytes().length;
+    }
+
+    /**
+     * Writes up to {@code maxLength} bytes of the serialized message, starting
+     * at {@code messageOffset}, to the start of {@code fragment}. Returns the
+     * number of bytes written.
+     */
+    public int writeFragment(int messageOffset, byte[] fragment, int maxLength) {
+        byte[] ndefBytes = getNdefBytes();
+        int headerLength = getHeaderLength();
+        int length = Math.min(maxLength, headerLength + ndefBytes.length - messageOffset);
+        int written = 0;
+        while (written < length && messageOffset + written < headerLength) {
+            fragment[written] = getHeaderByte(messageOffset + written, ndefBytes.length);
+            written++;
+        }
+        if (written < length) {
+            System.arraycopy(ndefBytes, messageOffset + written - headerLength, fragment,
+                    written, length - written);
+        }
+        return Math.max(length, 0);
+    }
+
+    private int getHeaderLength() {
+        return mField == REQUEST_GET ? HEADER_LENGTH + 4 : HEADER_LENGTH;
+    }
+
+    private byte getHeaderByte(int index, int ndefLength) {
+        switch (index) {
+            case 0:
+                return mVersion;
+            case 1:
+                return mField;
+            case 2:
+            case 3:
+            case 4:
+            case 5:
+                int length = mField == REQUEST_GET ? ndefLength + 4 : ndefLength;
+                return (byte) (length >>> (8 * (5 - index)));
+            default:
+                return (byte) (mAcceptableLength >>> (8 * (9 - index)));
+        }
+    }
+
+    private byte[] getNdefBytes() {
+        if (mNdefBytes != null) {
+            return mNdefBytes;
+        }
         byte[] bytes;
         if (mNdefMessage != null) {
             if (NfcService.sIsDtaMode && DtaSnepClient.mTestCaseId != 0) {
@@ -190,30 +260,8 @@ public final class SnepMessage {
         } else {
             bytes = new byte[0];
         }
-
-        ByteArrayOutputStream buffer;
-        try {
-            if (mField == REQUEST_GET) {
-                buffer = new ByteArrayOutputStream(bytes.length + HEADER_LENGTH + 4);
-            } else {
-                buffer = new ByteArrayOutputStream(bytes.length + HEADER_LENGTH);
-            }
-
-            DataOutputStream output = new DataOutputStream(buffer);
-            output.writeByte(mVersion);
-            output.writeByte(mField);
-            if (mField == REQUEST_GET) {
-                output.writeInt(bytes.length + 4);
-                output.writeInt(mAcceptableLength);
-            } else {
-                output.writeInt(bytes.length);
-            }
-            output.write(bytes);
-        } catch(IOException e) {
-            return null;
-        }
-
-        return buffer.toByteArray();
+        mNdefBytes = bytes;
+        return bytes;
     }
 
     public NdefMessage getNdefMessage() {
@@ -36,51 +36,71 @@
 package com.android.nfc.snep;
 
 import com.android.nfc.DeviceHost.LlcpSocket;
+import com.android.nfc.LlcpSender;
 import com.android.nfc.NfcService;
 import com.android.nfc.sneptest.DtaSnepClient;
 import com.android.nfc.sneptest.ExtDtaSnepServer;
 
 import android.nfc.FormatException;
+import android.nfc.NdefMessage;
 import android.os.SystemProperties;
 import android.util.Log;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.IOException;
-import java.util.Arrays;
 
 public class SnepMessenger {
     private static final String TAG = "SnepMessenger";
     static final boolean DBG = SystemProperties.getBoolean("persist.nfc.debug_enabled", true);
     private static final int HEADER_LENGTH = 6;
+    // Largest information field accepted from the peer by default
+    static final int DEFAULT_MAX_LENGTH = 1024 * 1024;
     final LlcpSocket mSocket;
+    final LlcpSender mSender;
     final int mFragmentLength;
+    // Outgoing fragments must also fit into a single I-PDU
+    final int mSendFragmentLength;
     final boolean mIsClient;
+    final int mMaxLength;
+    // Outgoing fragments are serialized here, one at a time
+    final byte[] mFragment;
 
     public SnepMessenger(boolean isClient, LlcpSocket socket, int fragmentLength) {
+        this(isClient, socket, fragmentLength, DEFAULT_MAX_LENGTH);
+    }
+
+    /**
+     * @param maxLength largest information field length to accept; longer
+     *     fragmented messages are rejected before their remaining fragments are read
+     */
+    public SnepMessenger(boolean isClient, LlcpSocket socket, int fragmentLength,
+            int maxLength) {
         mSocket = socket;
+        mSender = new LlcpSender(socket);
         mFragmentLength = fragmentLength;
+        mSendFragmentLength = Math.min(fragmentLength, mSender.getMaxFragmentLength());
         mIsClient = isClient;
+        mMaxLength = maxLength;
+        mFragment = new byte[mSendFragmentLength];
     }
 
     public void sendMessage(SnepMessage msg) throws IOException {
-        byte[] buffer = msg.toByteArray();
+        int messageLength = msg.getEncodedLength();
         byte remoteContinue;
         if (mIsClient) {
             remoteContinue = SnepMessage.RESPONSE_CONTINUE;
         } else {
             remoteContinue = SnepMessage.REQUEST_CONTINUE;
         }
-        if (DBG) Log.d(TAG, "about to send a " + buffer.length + " byte message");
+        if (DBG) Log.d(TAG, "about to send a " + messageLength + " byte message");
 
         // Send first fragment
-        int length = Math.min(buffer.length, mFragmentLength);
-        byte[] tmpBuffer = Arrays.copyOfRange(buffer, 0, length);
+        int length = msg.writeFragment(0, mFragment, mSendFragmentLength);
         if (DBG) Log.d(TAG, "about to send a " + length + " byte fragment");
-        mSocket.send(tmpBuffer);
+        mSender.send(mFragment, 0, length);
 
-        if (length == buffer.length) {
+        if (length == messageLength) {
             return;
         }
 
@@ -103,10 +123,9 @@ public class SnepMessenger {
         // Look for wrong/invalid request or response from peer
        if (NfcService.sIsDtaMode) {
             if (mIsClient && (DtaSnepClient.mTestCaseId == 6)) {
-                length = Math.min(buffer.length - offset, mFragmentLength);
-                tmpBuffer = Arrays.copyOfRange(buffer, offset, offset + length);
+                length = msg.writeFragment(offset, mFragment, mSendFragmentLength);
                 if (DBG) Log.d(TAG, "about to send a " + length + " byte fragment");
-                mSocket.send(tmpBuffer);
+                mSender.send(mFragment, 0, length);
                 offset += length;
 
                 mSocket.receive(responseBytes);
@@ -125,11 +144,10 @@ public class SnepMessenger {
         }
 
         // Send remaining fragments.
-        while (offset < buffer.length) {
-            length = Math.min(buffer.length - offset, mFragmentLength);
-            tmpBuffer = Arrays.copyOfRange(buffer, offset, offset + length);
+        while (offset < messageLength) {
+            length = msg.writeFragment(offset, mFragment, mSendFragmentLength);
             if (DBG) Log.d(TAG, "about to send a " + length + " byte fragment");
-            mSocket.send(tmpBuffer);
+            mSender.send(mFragment, 0, length);
 
             if (NfcService.sIsDtaMode) {
                 if (!mIsClient && ExtDtaSnepServer.mTestCaseId == 0x01) {
@@ -152,7 +170,6 @@ public class SnepMessenger {
     }
 
     public SnepMessage getMessage() throws IOException, SnepException {
-        ByteArrayOutputStream buffer = new ByteArrayOutputStream(mFragmentLength);
         byte[] partial = new byte[mFragmentLength];
         int size;
         int requestSize = 0;
@@ -195,7 +212,6 @@ public class SnepMessenger {
             throw new IOException("Invalid fragment from sender.");
         } else {
             readSize = size - HEADER_LENGTH;
-            buffer.write(partial, 0, size);
         }
 
         DataInputStream dataIn = new DataInputStream(new ByteArrayInputStream(partial));
@@ -252,12 +268,30 @@ public class SnepMessenger {
         }
 
         if (requestSize > readSize) {
+            if (requestSize > mMaxLength) {
+                // Don't let the peer make us buffer more than we are willing to accept
+                if (DBG) Log.d(TAG, "rejecting " + requestSize + " byte message");
+                try {
+                    mSocket.send(SnepMessage.getMessage(fieldReject).toByteArray());
+                } catch (IOException e) {
+                    // Ignore
+                }
+                throw new IOException("SNEP message too long: " + requestSize);
+            }
             if (DBG) Log.d(TAG, "requesting continuation");
             mSocket.send(SnepMessage.getMessage(fieldContinue).toByteArray());
         } else {
             doneReading = true;
         }
 
+        // The information field is reassembled straight into its final
+        // buffers: the acceptable length of a GET request, then the NDEF message.
+        int infoLength = (requestField == SnepMessage.REQUEST_GET) ? 4 : 0;
+        byte[] info = new byte[infoLength];
+        byte[] ndef = new byte[Math.max(requestSize - infoLength, 0)];
+        int copied = copyInformation(partial, HEADER_LENGTH, size - HEADER_LENGTH, 0,
+                requestSize, info, ndef);
+
         // Remaining fragments
         while (!doneReading) {
             try {
@@ -270,9 +304,11 @@ public class SnepMessenger {
                         // Ignore
                     }
                     throw new IOException();
+                } else if (readSize + size > requestSize) {
+                    throw new IOException("Received more data than announced.");
                 } else {
                     readSize += size;
-                    buffer.write(partial, 0, size);
+                    copied += copyInformation(partial, 0, size, copied, requestSize, info, ndef);
                     if (readSize == requestSize) {
                         doneReading = true;
                     }
@@ -287,15 +323,47 @@ public class SnepMessenger {
             }
         }
 
-        // Build NDEF message set from the stream
+        if (copied < infoLength) {
+            throw new SnepException("Truncated SNEP message");
+        }
+        int acceptableLength = -1;
+        if (infoLength > 0) {
+            acceptableLength = ((info[0] & 0xFF) << 24) | ((info[1] & 0xFF) << 16)
+                    | ((info[2] & 0xFF) << 8) | (info[3] & 0xFF);
+        }
+
+        // Parse the NDEF message from the reassembled buffer
         try {
-            return SnepMessage.fromByteArray(buffer.toByteArray());
+            NdefMessage ndefMessage = ndef.length > 0 ? new NdefMessage(ndef) : null;
+            return new SnepMessage(requestVersion, requestField, requestSize, acceptableLength,
+                    ndefMessage);
         } catch (FormatException e) {
             Log.e(TAG, "Badly formatted NDEF message, ignoring", e);
             throw new SnepException(e);
         }
     }
 
+    /**
+     * Copies {@code length} bytes of the information field, starting at
+     * {@code infoOffset}, from {@code src} into {@code info} and then
+     * {@code ndef}. Bytes past {@code infoSize} are dropped. Returns the number
+     * of bytes copied.
+     */
+    private static int copyInformation(byte[] src, int srcOffset, int length, int infoOffset,
+            int infoSize, byte[] info, byte[] ndef) {
+        int count = Math.max(Math.min(length, infoSize - infoOffset), 0);
+        int copied = 0;
+        while (copied < count && infoOffset + copied < info.length) {
+            info[infoOffset + copied] = src[srcOffset + copied];
+            copied++;
+        }
+        if (copied < count) {
+            System.arraycopy(src, srcOffset + copied, ndef, infoOffset + copied - info.length,
+                    count - copied);
+        }
+        return count;
+    }
+
     public void close() throws IOException {
         mSocket.close();
     }
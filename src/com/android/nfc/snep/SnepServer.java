@@ -18,6 +18,7 @@ package com.android.nfc.snep;
 
 import com.android.nfc.DeviceHost.LlcpServerSocket;
 import com.android.nfc.DeviceHost.LlcpSocket;
+import com.android.nfc.LlcpConnectionPool;
 import com.android.nfc.LlcpException;
 import com.android.nfc.NfcService;
 
@@ -38,6 +39,7 @@ public final class SnepServer {
             SystemProperties.getBoolean("persist.nfc.debug_enabled", false);
     private static final int DEFAULT_MIU = 248;
     private static final int DEFAULT_RW_SIZE = 1;
+    private static final int MAX_CONNECTIONS = 2;
 
     public static final int DEFAULT_PORT = 4;
 
@@ -96,12 +98,11 @@ public final class SnepServer {
     }
 
     /** Connection class, used to handle incoming connections */
-    private class ConnectionThread extends Thread {
+    private class ConnectionTask implements Runnable {
         private final LlcpSocket mSock;
         private final SnepMessenger mMessager;
 
-        ConnectionThread(LlcpSocket socket, int fragmentLength) {
-            super(TAG);
+        ConnectionTask(LlcpSocket socket, int fragmentLength) {
             mSock = socket;
             mMessager = new SnepMessenger(false, socket, fragmentLength);
         }
@@ -189,6 +190,8 @@ public final class SnepServer {
 
             while (threadRunning) {
                 if (DBG) Log.d(TAG, "about create LLCP service socket");
+                LlcpConnectionPool.Service connections = LlcpConnectionPool.getInstance()
+                        .getService(mServiceName, MAX_CONNECTIONS);
                 try {
                     synchronized (SnepServer.this) {
                         mServerSocket = NfcService.getInstance().createLlcpServerSocket(mServiceSap,
@@ -213,13 +216,25 @@ public final class SnepServer {
                             if (DBG) Log.d(TAG, "Server socket shut down.");
                             return;
                         }
+                        try {
+                            connections.acquireSlot();
+                        } catch (InterruptedException e) {
+                            if (DBG) Log.d(TAG, "Stopped while waiting for a connection slot");
+                            return;
+                        }
                         if (DBG) Log.d(TAG, "about to accept");
-                        LlcpSocket communicationSocket = serverSocket.accept();
+                        LlcpSocket communicationSocket = null;
+                        try {
+                            communicationSocket = serverSocket.accept();
+                        } finally {
+                            if (communicationSocket == null) connections.releaseSlot();
+                        }
                         if (DBG) Log.d(TAG, "accept returned " + communicationSocket);
                         if (communicationSocket != null) {
-                            int fragmentLength = (mFragmentLength == -1) ?
+                            final int fragmentLength = (mFragmentLength == -1) ?
                                     mMiu : Math.min(mMiu, mFragmentLength);
-                            new ConnectionThread(communicationSocket, fragmentLength).start();
+                            connections.execute(communicationSocket,
+                                    socket -> new ConnectionTask(socket, fragmentLength));
                         }
 
                         synchronized (SnepServer.this) {
@@ -262,6 +277,8 @@ public final class SnepServer {
                     }
                     mServerSocket = null;
                 }
+                // Wakes the thread up if it is waiting for a connection slot
+                interrupt();
             }
         }
     }
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.nfc;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.content.pm.ResolveInfo;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import com.android.nfc.RegisteredComponentCache.ComponentInfo;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+@RunWith(AndroidJUnit4.class)
+public final class TechListIndexTest {
+    private static final String NFC_A = "android.nfc.tech.NfcA";
+    private static final String ISO_DEP = "android.nfc.tech.IsoDep";
+    private static final String NDEF = "android.nfc.tech.Ndef";
+    private static final String MIFARE = "android.nfc.tech.MifareUltralight";
+
+    // What NfcDispatcher did before the index: check every filter in turn
+    private static List<ComponentInfo> linearMatch(List<ComponentInfo> components,
+            String[] tagTechs) {
+        List<String> techs = Arrays.asList(tagTechs);
+        ArrayList<ComponentInfo> matches = new ArrayList<ComponentInfo>();
+        for (ComponentInfo info : components) {
+            if (info.techs == null || info.techs.length == 0
+                    || !techs.containsAll(Arrays.asList(info.techs))) {
+                continue;
+            }
+            boolean duplicate = false;
+            for (ComponentInfo match : matches) {
+                if (match.resolveInfo == info.resolveInfo) {
+                    duplicate = true;
+                    break;
+                }
+            }
+            if (!duplicate) {
+                matches.add(info);
+            }
+        }
+        return matches;
+    }
+
+    @Test
+    public void testMatchesSubsetsInRegistrationOrder() {
+        ResolveInfo reader = new ResolveInfo();
+        ResolveInfo wallet = new ResolveInfo();
+        List<ComponentInfo> components = Arrays.asList(
+                new ComponentInfo(reader, new String[] {NDEF}),
+                new ComponentInfo(wallet, new String[] {NFC_A, ISO_DEP}),
+                new ComponentInfo(new ResolveInfo(), new String[] {MIFARE}),
+                // Same activity, second tech list
+                new ComponentInfo(reader, new String[] {NFC_A}),
+                new ComponentInfo(new ResolveInfo(), new String[0]));
+        TechListIndex index = new TechListIndex(components);
+
+        List<ComponentInfo> candidates =
+                index.getCandidates(new String[] {NFC_A, ISO_DEP, NDEF});
+
+        assertThat(candidates).containsExactly(components.get(0), components.get(1)).inOrder();
+        assertThat(index.getCandidates(new String[] {"android.nfc.tech.NfcF"})).isEmpty();
+    }
+
+    @Test
+    public void testMatchesLinearScan() {
+        Random random = new Random(0x544c49);
+        String[] allTechs = new String[10];
+        for (int i = 0; i < allTechs.length; i++) {
+            allTechs[i] = "tech" + i;
+        }
+        for (int round = 0; round < 200; round++) {
+            List<ComponentInfo> components = randomComponents(random, allTechs, 30);
+            TechListIndex index = new TechListIndex(components);
+            for (int tag = 0; tag < 20; tag++) {
+                String[] tagTechs = randomTechs(random, allTechs, 1 + random.nextInt(5));
+                assertThat(index.getCandidates(tagTechs))
+                        .containsExactlyElementsIn(linearMatch(components, tagTechs))
+                        .inOrder();
+            }
+        }
+    }
+
+    @Test
+    public void testFallsBackToLinearScanPastMaskBits() {
+        Random random = new Random(0x544c4a);
+        // More techs than bits in the mask, so later filters aren't indexed
+        String[] allTechs = new String[Long.SIZE + 16];
+        for (int i = 0; i < allTechs.length; i++) {
+            allTechs[i] = "tech" + i;
+        }
+        for (int round = 0; round < 50; round++) {
+            List<ComponentInfo> components = new ArrayList<ComponentInfo>();
+            // Claim every bit first
+            for (String tech : allTechs) {
+                components.add(new ComponentInfo(new ResolveInfo(), new String[] {tech}));
+            }
+            components.addAll(randomComponents(random, allTechs, 30));
+            TechListIndex index = new TechListIndex(components);
+            assertThat(index.getTechCount()).isEqualTo(Long.SIZE);
+
+            for (int tag = 0; tag < 20; tag++) {
+                String[] tagTechs = randomTechs(random, allTechs, 1 + random.nextInt(6));
+                assertThat(index.getCandidates(tagTechs))
+                        .containsExactlyElementsIn(linearMatch(components, tagTechs))
+                        .inOrder();
+            }
+        }
+    }
+
+    private static List<ComponentInfo> randomComponents(Random random, String[] allTechs,
+            int count) {
+        ArrayList<ComponentInfo> components = new ArrayList<ComponentInfo>();
+        ResolveInfo[] activities = new ResolveInfo[count / 2];
+        for (int i = 0; i < activities.length; i++) {
+            activities[i] = new ResolveInfo();
+        }
+        for (int i = 0; i < count; i++) {
+            // Some activities register several tech lists
+            ResolveInfo activity = activities[random.nextInt(activities.length)];
+            components.add(new ComponentInfo(activity,
+                    randomTechs(random, allTechs, random.nextInt(4))));
+        }
+        return components;
+    }
+
+    private static String[] randomTechs(Random random, String[] allTechs, int count) {
+        ArrayList<String> techs = new ArrayList<String>();
+        while (techs.size() < count) {
+            String tech = allTechs[random.nextInt(allTechs.length)];
+            if (!techs.contains(tech)) {
+                techs.add(tech);
+            }
+        }
+        return techs.toArray(new String[0]);
+    }
+}
@@ -0,0 +1,266 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.nfc.dhimpl;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+@RunWith(AndroidJUnit4.class)
+public final class NdefChunkReaderTest {
+    private static final int BLOCK_SIZE = 4;
+
+    private final NdefChunkReader mReader = new NdefChunkReader();
+    private final Collector mCollector = new Collector();
+
+    private static final class Collector implements NdefChunkReader.ChunkListener {
+        int length = -1;
+        int chunks;
+        final ByteArrayOutputStream data = new ByteArrayOutputStream();
+
+        @Override
+        public void onNdefLength(int ndefLength) {
+            length = ndefLength;
+        }
+
+        @Override
+        public boolean onChunk(ByteBuffer chunk) {
+            chunks++;
+            while (chunk.hasRemaining()) {
+                data.write(chunk.get());
+            }
+            return true;
+        }
+    }
+
+    // Type 5 tag memory answering READ SINGLE BLOCK and READ MULTIPLE BLOCKS
+    private static final class Type5Tag implements NdefChunkReader.Transceiver {
+        final byte[] memory;
+        boolean multipleBlocks = true;
+        int exchanges;
+
+        Type5Tag(byte[] memory) {
+            this.memory = memory;
+        }
+
+        @Override
+        public byte[] transceive(byte[] data) {
+            exchanges++;
+            int first = data[2] & 0xFF;
+            int count = 1;
+            if (data[1] == 0x23 && multipleBlocks) {
+                count = (data[3] & 0xFF) + 1;
+            } else if (data[1] != 0x20) {
+                return new byte[] { 0x01, 0x01 };
+            }
+            if ((first + count) * BLOCK_SIZE > memory.length) {
+                return new byte[] { 0x01, 0x10 };
+            }
+            byte[] response = new byte[1 + count * BLOCK_SIZE];
+            System.arraycopy(memory, first * BLOCK_SIZE, response, 1, count * BLOCK_SIZE);
+            return response;
+        }
+    }
+
+    // Type 4 tag with a CC file and an NDEF file
+    private static final class Type4Tag implements NdefChunkReader.Transceiver {
+        final byte[] cc = {
+            0x00, 0x0F, 0x20, 0x00, 0x3B, 0x00, 0x34,
+            0x04, 0x06, (byte) 0xE1, 0x04, (byte) 0xFF, (byte) 0xFE, 0x00, 0x00,
+        };
+        final byte[] ndefFile;
+        byte[] selected;
+
+        Type4Tag(byte[] ndefFile) {
+            this.ndefFile = ndefFile;
+        }
+
+        @Override
+        public byte[] transceive(byte[] data) {
+            if (data[1] == (byte) 0xA4 && data[2] == 0x04) {
+                return new byte[] { (byte) 0x90, 0x00 };
+            }
+            if (data[1] == (byte) 0xA4) {
+                selected = data[6] == 0x03 ? cc : ndefFile;
+                return new byte[] { (byte) 0x90, 0x00 };
+            }
+            int offset = ((data[2] & 0xFF) << 8) | (data[3] & 0xFF);
+            int length = Math.min(data[4] & 0xFF, selected.length - offset);
+            byte[] response = Arrays.copyOfRange(selected, offset, offset + length + 2);
+            response[length] = (byte) 0x90;
+            response[length + 1] = 0x00;
+            return response;
+        }
+    }
+
+    // 4 byte CC with read multiple blocks support, followed by an NDEF TLV
+    // whose value ends exactly at the end of the memory
+    private static byte[] type5Memory(int mlen, int ndefLength) {
+        byte[] memory = new byte[4 + mlen * 8];
+        memory[0] = (byte) 0xE1;
+        memory[1] = 0x40;
+        memory[2] = (byte) mlen;
+        memory[3] = 0x01;
+        memory[4] = 0x03;
+        memory[5] = (byte) ndefLength;
+        for (int i = 6; i < memory.length; i++) {
+            memory[i] = (byte) i;
+        }
+        return memory;
+    }
+
+    @Test
+    public void testType5ReadsUpToEndOfMemory() {
+        byte[] memory = type5Memory(4, 30);
+        Type5Tag tag = new Type5Tag(memory);
+
+        assertThat(mReader.readType5(tag, mCollector)).isEqualTo(NdefChunkReader.READ_COMPLETE);
+        assertThat(mCollector.length).isEqualTo(30);
+        assertThat(mCollector.data.toByteArray())
+                .isEqualTo(Arrays.copyOfRange(memory, 6, memory.length));
+        // The CC block, then the rest of the memory in one exchange
+        assertThat(tag.exchanges).isEqualTo(2);
+    }
+
+    @Test
+    public void testType5RejectsTlvPastEndOfMemory() {
+        Type5Tag tag = new Type5Tag(type5Memory(4, 31));
+
+        assertThat(mReader.readType5(tag, mCollector)).isEqualTo(NdefChunkReader.READ_FAILED);
+        assertThat(mCollector.length).isEqualTo(-1);
+    }
+
+    @Test
+    public void testType5SkipsOtherTlvs() {
+        byte[] memory = type5Memory(4, 0);
+        // NULL TLV, lock control TLV, then the NDEF TLV in its 3 byte length form
+        byte[] tlvs = { 0x00, 0x01, 0x03, 0x00, 0x00, 0x00, 0x03, (byte) 0xFF, 0x00, 0x14 };
+        System.arraycopy(tlvs, 0, memory, 4, tlvs.length);
+
+        assertThat(mReader.readType5(new Type5Tag(memory), mCollector))
+                .isEqualTo(NdefChunkReader.READ_COMPLETE);
+        assertThat(mCollector.length).isEqualTo(20);
+        assertThat(mCollector.data.toByteArray())
+                .isEqualTo(Arrays.copyOfRange(memory, 14, 34));
+    }
+
+    @Test
+    public void testType5TerminatorMeansEmptyMessage() {
+        byte[] memory = type5Memory(4, 0);
+        memory[4] = (byte) 0xFE;
+
+        assertThat(mReader.readType5(new Type5Tag(memory), mCollector))
+                .isEqualTo(NdefChunkReader.READ_COMPLETE);
+        assertThat(mCollector.length).isEqualTo(0);
+    }
+
+    @Test
+    public void testType5ReadsEightByteCc() {
+        byte[] memory = new byte[8 + 32];
+        memory[0] = (byte) 0xE1;
+        memory[1] = 0x40;
+        memory[3] = 0x01;
+        memory[7] = 0x04;
+        memory[8] = 0x03;
+        memory[9] = 30;
+
+        assertThat(mReader.readType5(new Type5Tag(memory), mCollector))
+                .isEqualTo(NdefChunkReader.READ_COMPLETE);
+        assertThat(mCollector.length).isEqualTo(30);
+    }
+
+    @Test
+    public void testType5WithoutMultipleBlocksIsUnsupported() {
+        byte[] memory = type5Memory(4, 30);
+        memory[3] = 0x00;
+
+        assertThat(mReader.readType5(new Type5Tag(memory), mCollector))
+                .isEqualTo(NdefChunkReader.READ_UNSUPPORTED);
+    }
+
+    @Test
+    public void testType5RejectedCommandIsUnsupported() {
+        Type5Tag tag = new Type5Tag(type5Memory(4, 30));
+        tag.multipleBlocks = false;
+
+        assertThat(mReader.readType5(tag, mCollector))
+                .isEqualTo(NdefChunkReader.READ_UNSUPPORTED);
+    }
+
+    @Test
+    public void testType5SilentTagFails() {
+        NdefChunkReader.Transceiver silent = new NdefChunkReader.Transceiver() {
+            @Override
+            public byte[] transceive(byte[] data) {
+                return null;
+            }
+        };
+
+        assertThat(mReader.readType5(silent, mCollector)).isEqualTo(NdefChunkReader.READ_FAILED);
+    }
+
+    @Test
+    public void testType4ReadsInChunksOfMaxLe() {
+        byte[] ndefFile = new byte[2 + 200];
+        ndefFile[1] = (byte) 200;
+        for (int i = 2; i < ndefFile.length; i++) {
+            ndefFile[i] = (byte) i;
+        }
+
+        assertThat(mReader.readType4(new Type4Tag(ndefFile), mCollector))
+                .isEqualTo(NdefChunkReader.READ_COMPLETE);
+        assertThat(mCollector.length).isEqualTo(200);
+        // MLe is 0x3B
+        assertThat(mCollector.chunks).isEqualTo(4);
+        assertThat(mCollector.data.toByteArray())
+                .isEqualTo(Arrays.copyOfRange(ndefFile, 2, ndefFile.length));
+    }
+
+    @Test
+    public void testType4LargeFileIsUnsupported() {
+        byte[] ndefFile = { 0x7F, (byte) 0xFF };
+
+        assertThat(mReader.readType4(new Type4Tag(ndefFile), mCollector))
+                .isEqualTo(NdefChunkReader.READ_UNSUPPORTED);
+        assertThat(mCollector.length).isEqualTo(-1);
+    }
+
+    @Test
+    public void testType4StopsWhenListenerDoes() {
+        byte[] ndefFile = new byte[2 + 200];
+        ndefFile[1] = (byte) 200;
+        NdefChunkReader.ChunkListener once = new NdefChunkReader.ChunkListener() {
+            @Override
+            public void onNdefLength(int length) {
+            }
+
+            @Override
+            public boolean onChunk(ByteBuffer chunk) {
+                return false;
+            }
+        };
+
+        assertThat(mReader.readType4(new Type4Tag(ndefFile), once))
+                .isEqualTo(NdefChunkReader.READ_STOPPED);
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.nfc.dhimpl;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.nfc.tech.TagTechnology;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AndroidJUnit4.class)
+public final class NdefDiscoveryPlannerTest {
+    // A Type 4 tag as reported by the JNI layer: NfcA and IsoDep on one handle
+    private static final int[] TECH_LIST = {TagTechnology.NFC_A, TagTechnology.ISO_DEP};
+    private static final int[] HANDLES = {1, 1};
+    private static final String FINGERPRINT = "t4t";
+
+    private final NdefDiscoveryPlanner mPlanner = new NdefDiscoveryPlanner();
+
+    @Test
+    public void testProbesSameHandleAndInterfaceOnce() {
+        // NfcA and NfcB both use the frame interface; IsoDep the native one
+        int[] techList = {TagTechnology.NFC_A, TagTechnology.NFC_B, TagTechnology.ISO_DEP,
+                TagTechnology.NFC_A};
+        int[] handles = {1, 1, 1, 2};
+
+        assertThat(mPlanner.plan("x", techList, handles)).isEqualTo(new int[] {0, 2, 3});
+    }
+
+    @Test
+    public void testUnknownFingerprintKeepsTechListOrder() {
+        assertThat(mPlanner.plan(FINGERPRINT, TECH_LIST, HANDLES)).isEqualTo(new int[] {0, 1});
+    }
+
+    @Test
+    public void testProbesMostSuccessfulTechnologyFirst() {
+        mPlanner.onProbeResult(FINGERPRINT, TagTechnology.NFC_A, false);
+        mPlanner.onProbeResult(FINGERPRINT, TagTechnology.ISO_DEP, true);
+
+        assertThat(mPlanner.plan(FINGERPRINT, TECH_LIST, HANDLES)).isEqualTo(new int[] {1, 0});
+        // Other tags aren't affected
+        assertThat(mPlanner.plan("other", TECH_LIST, HANDLES)).isEqualTo(new int[] {0, 1});
+    }
+
+    @Test
+    public void testEqualScoresKeepTechListOrder() {
+        // Both untried technologies score the same
+        mPlanner.onProbeResult(FINGERPRINT, TagTechnology.NFC_V, true);
+
+        assertThat(mPlanner.plan(FINGERPRINT, TECH_LIST, HANDLES)).isEqualTo(new int[] {0, 1});
+    }
+
+    @Test
+    public void testOneFailureDoesNotOutweighSuccesses() {
+        for (int i = 0; i < 3; i++) {
+            mPlanner.onProbeResult(FINGERPRINT, TagTechnology.NFC_A, true);
+        }
+        mPlanner.onProbeResult(FINGERPRINT, TagTechnology.NFC_A, false);
+        mPlanner.onProbeResult(FINGERPRINT, TagTechnology.ISO_DEP, false);
+
+        assertThat(mPlanner.plan(FINGERPRINT, TECH_LIST, HANDLES)).isEqualTo(new int[] {0, 1});
+    }
+
+    @Test
+    public void testForgetsLeastRecentlyUsedFingerprint() {
+        mPlanner.onProbeResult(FINGERPRINT, TagTechnology.ISO_DEP, true);
+        for (int i = 0; i < NdefDiscoveryPlanner.MAX_FINGERPRINTS; i++) {
+            mPlanner.onProbeResult("tag" + i, TagTechnology.NFC_A, true);
+        }
+
+        assertThat(mPlanner.plan(FINGERPRINT, TECH_LIST, HANDLES)).isEqualTo(new int[] {0, 1});
+    }
+
+    @Test
+    public void testIgnoresUnknownTechnologies() {
+        mPlanner.onProbeResult(FINGERPRINT, -1, true);
+        mPlanner.onProbeResult(FINGERPRINT, NdefDiscoveryPlanner.MAX_TECHNOLOGY + 1, true);
+
+        assertThat(mPlanner.plan(FINGERPRINT, TECH_LIST, HANDLES)).isEqualTo(new int[] {0, 1});
+    }
+
+    @Test
+    public void testFingerprintIncludesSakAndAtqa() {
+        int[] techList = {TagTechnology.NFC_A};
+        byte[][] pollBytes = {{0x44, 0x00}};
+        String fingerprint = NdefDiscoveryPlanner.fingerprint(techList, pollBytes,
+                new byte[][] {{0x20}});
+
+        assertThat(NdefDiscoveryPlanner.fingerprint(techList, pollBytes, new byte[][] {{0x00}}))
+                .isNotEqualTo(fingerprint);
+        assertThat(NdefDiscoveryPlanner.fingerprint(techList, new byte[][] {{0x04, 0x00}},
+                new byte[][] {{0x20}})).isNotEqualTo(fingerprint);
+        assertThat(NdefDiscoveryPlanner.fingerprint(techList, null, null)).isEqualTo("1,");
+    }
+}
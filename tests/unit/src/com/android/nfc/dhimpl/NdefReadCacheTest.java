@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.nfc.dhimpl;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.nfc.NdefMessage;
+import android.nfc.NdefRecord;
+import android.nfc.tech.Ndef;
+import android.os.SystemClock;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AndroidJUnit4.class)
+public final class NdefReadCacheTest {
+    private static final byte[] UID = {0x04, 0x11, 0x22, 0x33, 0x44, 0x55, 0x66};
+    private static final int TYPE = 2;
+    private static final int MAX_NDEF = 137;
+
+    private static final NdefMessage MESSAGE =
+            new NdefMessage(NdefRecord.createMime("text/plain", new byte[] {'a'}));
+
+    private static String key(int uidByte) {
+        byte[] uid = UID.clone();
+        uid[uid.length - 1] = (byte) uidByte;
+        return NdefReadCache.makeKey(uid, TYPE, MAX_NDEF, Ndef.NDEF_MODE_READ_ONLY);
+    }
+
+    @Test
+    public void testOnlyLockedTagsWithFixedUidAreCached() {
+        assertThat(NdefReadCache.makeKey(UID, TYPE, MAX_NDEF, Ndef.NDEF_MODE_READ_ONLY))
+                .isNotNull();
+        assertThat(NdefReadCache.makeKey(UID, TYPE, MAX_NDEF, Ndef.NDEF_MODE_READ_WRITE))
+                .isNull();
+        assertThat(NdefReadCache.makeKey(new byte[0], TYPE, MAX_NDEF,
+                Ndef.NDEF_MODE_READ_ONLY)).isNull();
+        // Random single size NFC-A UID
+        assertThat(NdefReadCache.makeKey(new byte[] {0x08, 0x01, 0x02, 0x03}, TYPE, MAX_NDEF,
+                Ndef.NDEF_MODE_READ_ONLY)).isNull();
+    }
+
+    @Test
+    public void testKeyIncludesCapabilityContainer() {
+        String key = NdefReadCache.makeKey(UID, TYPE, MAX_NDEF, Ndef.NDEF_MODE_READ_ONLY);
+
+        assertThat(NdefReadCache.makeKey(UID, TYPE + 1, MAX_NDEF, Ndef.NDEF_MODE_READ_ONLY))
+                .isNotEqualTo(key);
+        assertThat(NdefReadCache.makeKey(UID, TYPE, MAX_NDEF + 1, Ndef.NDEF_MODE_READ_ONLY))
+                .isNotEqualTo(key);
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() {
+        NdefReadCache cache = new NdefReadCache(2, NdefReadCache.TTL_MS);
+        cache.put(key(1), MESSAGE);
+        cache.put(key(2), MESSAGE);
+        // Makes the second entry the least recently used one
+        assertThat(cache.get(key(1))).isEqualTo(MESSAGE);
+
+        cache.put(key(3), MESSAGE);
+
+        assertThat(cache.get(key(1))).isEqualTo(MESSAGE);
+        assertThat(cache.get(key(2))).isNull();
+        assertThat(cache.get(key(3))).isEqualTo(MESSAGE);
+    }
+
+    @Test
+    public void testExpiresAfterTtl() {
+        NdefReadCache fresh = new NdefReadCache(NdefReadCache.MAX_ENTRIES, NdefReadCache.TTL_MS);
+        NdefReadCache expiring = new NdefReadCache(NdefReadCache.MAX_ENTRIES, 0);
+        fresh.put(key(1), MESSAGE);
+        expiring.put(key(1), MESSAGE);
+
+        // Also advances the clock under Robolectric
+        SystemClock.sleep(1);
+
+        assertThat(fresh.get(key(1))).isEqualTo(MESSAGE);
+        assertThat(expiring.get(key(1))).isNull();
+    }
+
+    @Test
+    public void testInvalidateDropsEveryEntryOfTag() {
+        NdefReadCache cache = new NdefReadCache();
+        String other = NdefReadCache.makeKey(UID, TYPE + 1, MAX_NDEF, Ndef.NDEF_MODE_READ_ONLY);
+        cache.put(key(UID[UID.length - 1]), MESSAGE);
+        cache.put(other, MESSAGE);
+        cache.put(key(1), MESSAGE);
+
+        cache.invalidate(UID);
+
+        assertThat(cache.get(key(UID[UID.length - 1]))).isNull();
+        assertThat(cache.get(other)).isNull();
+        assertThat(cache.get(key(1))).isEqualTo(MESSAGE);
+    }
+}
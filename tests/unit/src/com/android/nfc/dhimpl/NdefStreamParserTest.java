@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.nfc.dhimpl;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.nfc.NdefMessage;
+import android.nfc.NdefRecord;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import com.android.nfc.DeviceHost;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+@RunWith(AndroidJUnit4.class)
+public final class NdefStreamParserTest {
+    private final List<NdefRecord> mRecords = new ArrayList<NdefRecord>();
+
+    private final DeviceHost.NdefRecordCallback mCollect = new DeviceHost.NdefRecordCallback() {
+        @Override
+        public boolean onNdefRecord(NdefRecord record) {
+            mRecords.add(record);
+            return true;
+        }
+    };
+
+    private static byte[] twoRecordMessage() {
+        return new NdefMessage(
+                NdefRecord.createUri("https://www.android.com/"),
+                NdefRecord.createMime("text/plain", new byte[300])).toByteArray();
+    }
+
+    private int feedInChunks(NdefStreamParser parser, byte[] data, int chunkSize) {
+        int result = NdefStreamParser.RESULT_NEED_MORE;
+        for (int offset = 0; offset < data.length; offset += chunkSize) {
+            int count = Math.min(chunkSize, data.length - offset);
+            result = parser.feed(ByteBuffer.wrap(data, offset, count));
+        }
+        return result;
+    }
+
+    @Test
+    public void testParsesMessageInAnyChunkSize() {
+        byte[] message = twoRecordMessage();
+        for (int chunkSize : new int[] { 1, 2, 7, 255, message.length }) {
+            mRecords.clear();
+            NdefStreamParser parser = new NdefStreamParser(message.length, mCollect);
+
+            assertThat(feedInChunks(parser, message, chunkSize))
+                    .isEqualTo(NdefStreamParser.RESULT_DONE);
+            assertThat(parser.getConsumed()).isEqualTo(message.length);
+            assertThat(new NdefMessage(mRecords.toArray(new NdefRecord[0])).toByteArray())
+                    .isEqualTo(message);
+        }
+    }
+
+    @Test
+    public void testReassemblesChunkedRecord() {
+        byte[] message = {
+            // MB CF SR, TNF well known, type "T", 2 byte payload
+            (byte) 0xB1, 0x01, 0x02, 'T', 0x01, 'a',
+            // CF SR, TNF unchanged, 1 byte payload
+            (byte) 0x36, 0x00, 0x01, 'b',
+            // ME SR, TNF unchanged, 1 byte payload
+            (byte) 0x56, 0x00, 0x01, 'c',
+        };
+        NdefStreamParser parser = new NdefStreamParser(message.length, mCollect);
+
+        assertThat(feedInChunks(parser, message, 3)).isEqualTo(NdefStreamParser.RESULT_DONE);
+        assertThat(mRecords).hasSize(1);
+        assertThat(mRecords.get(0).getType()).isEqualTo(new byte[] { 'T' });
+        assertThat(mRecords.get(0).getPayload()).isEqualTo(new byte[] { 0x01, 'a', 'b', 'c' });
+    }
+
+    @Test
+    public void testStopsAtMessageEndAndLeavesTrailingBytes() {
+        byte[] record = new NdefMessage(NdefRecord.createMime("a/b", new byte[4])).toByteArray();
+        byte[] padded = new byte[record.length + 3];
+        System.arraycopy(record, 0, padded, 0, record.length);
+        NdefStreamParser parser = new NdefStreamParser(padded.length, mCollect);
+        ByteBuffer buffer = ByteBuffer.wrap(padded);
+
+        assertThat(parser.feed(buffer)).isEqualTo(NdefStreamParser.RESULT_DONE);
+        assertThat(parser.getConsumed()).isEqualTo(record.length);
+        assertThat(buffer.remaining()).isEqualTo(3);
+    }
+
+    @Test
+    public void testCallbackStopsParsing() {
+        byte[] message = twoRecordMessage();
+        NdefStreamParser parser = new NdefStreamParser(message.length,
+                new DeviceHost.NdefRecordCallback() {
+                    @Override
+                    public boolean onNdefRecord(NdefRecord record) {
+                        mRecords.add(record);
+                        return false;
+                    }
+                });
+
+        assertThat(parser.feed(ByteBuffer.wrap(message)))
+                .isEqualTo(NdefStreamParser.RESULT_STOPPED);
+        assertThat(mRecords).hasSize(1);
+    }
+
+    @Test
+    public void testRejectsMalformedMessages() {
+        byte[][] malformed = {
+            // First record without MB
+            { (byte) 0x51, 0x01, 0x00, 'T' },
+            // Payload longer than the message
+            { (byte) 0xD1, 0x01, 0x10, 'T', 0x00 },
+            // Long payload length field past the message length
+            { (byte) 0xC1, 0x01, 0x7F, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 'T' },
+            // Message ends without ME
+            { (byte) 0x91, 0x01, 0x00, 'T' },
+            // First chunk carrying ME
+            { (byte) 0xF1, 0x01, 0x00, 'T' },
+            // Middle chunk with a type
+            { (byte) 0xB1, 0x01, 0x00, 'T', (byte) 0x56, 0x01, 0x00, 'T' },
+            // TNF unchanged outside of a chunked record
+            { (byte) 0xD6, 0x00, 0x00 },
+        };
+        for (byte[] message : malformed) {
+            NdefStreamParser parser = new NdefStreamParser(message.length, mCollect);
+
+            assertThat(parser.feed(ByteBuffer.wrap(message)))
+                    .isEqualTo(NdefStreamParser.RESULT_ERROR);
+        }
+    }
+
+    @Test
+    public void testIgnoresInputAfterResult() {
+        byte[] message = twoRecordMessage();
+        NdefStreamParser parser = new NdefStreamParser(message.length, mCollect);
+        parser.feed(ByteBuffer.wrap(message));
+        mRecords.clear();
+
+        assertThat(parser.feed(ByteBuffer.wrap(message))).isEqualTo(NdefStreamParser.RESULT_DONE);
+        assertThat(mRecords).isEmpty();
+    }
+}
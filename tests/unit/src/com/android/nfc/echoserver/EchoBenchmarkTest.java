@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.nfc.echoserver;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import com.android.nfc.loopback.LoopbackDeviceHost;
+import com.android.nfc.loopback.LoopbackLlcpLink;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AndroidJUnit4.class)
+public final class EchoBenchmarkTest {
+    private static final String TAG = EchoBenchmarkTest.class.getSimpleName();
+
+    private static final int MIU = 248;
+    private static final int RW = 4;
+    private static final long PDU_LATENCY_NS = 200000;
+
+    private LoopbackLlcpLink mLink;
+    private EchoServer mServer;
+    private EchoBenchmark mBenchmark;
+
+    @Before
+    public void setUp() {
+        mLink = new LoopbackLlcpLink(MIU, PDU_LATENCY_NS);
+        LoopbackDeviceHost initiator = new LoopbackDeviceHost(mLink, true, MIU, RW);
+        LoopbackDeviceHost target = new LoopbackDeviceHost(mLink, false, MIU, RW);
+        mLink.activate();
+        mServer = new EchoServer(target, MIU, RW, true);
+        mServer.start();
+        mServer.onLlcpActivated();
+        mBenchmark = new EchoBenchmark(initiator, MIU, RW);
+    }
+
+    @After
+    public void tearDown() {
+        mServer.onLlcpDeactivated();
+        mLink.deactivate();
+        mServer.stop();
+    }
+
+    @Test
+    public void testConnectionOrientedEchoesEverything() throws Exception {
+        // Larger than the MIU, so every data unit spans several I-PDUs
+        EchoBenchmark.Result result = mBenchmark.runConnectionOriented(1000, 300);
+        Log.d(TAG, result.toString());
+        assertThat(result.sent).isGreaterThan(0);
+        assertThat(result.getLost()).isEqualTo(0);
+        assertThat(result.getThroughput()).isGreaterThan(0L);
+        assertThat(result.getRttPercentileNs(50)).isAtLeast(2 * PDU_LATENCY_NS);
+        assertThat(result.getRttPercentileNs(99)).isAtLeast(result.getRttPercentileNs(50));
+    }
+
+    @Test
+    public void testConnectionlessEchoes() throws Exception {
+        EchoBenchmark.Result result = mBenchmark.runConnectionless(64, 200, 5);
+        Log.d(TAG, result.toString());
+        assertThat(result.sent).isGreaterThan(0);
+        assertThat(result.received).isGreaterThan(0);
+        assertThat(result.getRttPercentileNs(100)).isAtLeast(2 * PDU_LATENCY_NS);
+    }
+}
@@ -0,0 +1,252 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.nfc.handover;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.bluetooth.BluetoothDevice;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+@RunWith(AndroidJUnit4.class)
+public final class OobTlvCursorTest {
+    // BLE OOB record: LE address, role, local name, TK
+    private static final byte[] BLE_OOB = {
+        0x08, 0x1B, 0x01, 0x02, 0x03, 0x04, 0x05, 0x06, 0x00,
+        0x02, 0x1C, 0x00,
+        0x05, 0x09, 'T', 'e', 's', 't',
+        0x11, 0x10, 0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15,
+    };
+
+    // BT OOB record: length, address, short name, 16 bit UUIDs, class of device
+    private static final byte[] BT_OOB = {
+        0x20, 0x00, 0x01, 0x02, 0x03, 0x04, 0x05, 0x06,
+        0x04, 0x08, 'H', 'S', 'T',
+        0x05, 0x03, 0x0B, 0x11, 0x1E, 0x11,
+        0x04, 0x0D, 0x04, 0x04, 0x20,
+    };
+
+    // Nokia record: address at offset 1, name length at 14 followed by the name
+    private static final byte[] NOKIA = {
+        0x00, 0x01, 0x02, 0x03, 0x04, 0x05, 0x06, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00,
+        0x04, 'N', 'k', 'i', 'a',
+    };
+
+    private static final int FUZZ_ITERATIONS = 20000;
+    private static final int PARSER_FUZZ_ITERATIONS = 5000;
+
+    private OobTlvCursor mCursor;
+
+    // Stands in for the adapter, which the host and most emulators lack
+    private static final class FakeDeviceLookup implements HandoverDataParser.DeviceLookup {
+        int lookups;
+
+        @Override
+        public BluetoothDevice getRemoteDevice(byte[] address) {
+            assertThat(address).hasLength(6);
+            lookups++;
+            return null;
+        }
+    }
+
+    @Before
+    public void setUp() {
+        mCursor = new OobTlvCursor();
+    }
+
+    @Test
+    public void testParseBleOob() {
+        mCursor.reset(ByteBuffer.wrap(BLE_OOB), 0);
+        List<Integer> types = new ArrayList<Integer>();
+        while (mCursor.next()) {
+            types.add(mCursor.getType());
+            if (mCursor.getType() == 0x09) {
+                assertThat(mCursor.getValueAsUtf8()).isEqualTo("Test");
+            }
+        }
+        assertThat(mCursor.isMalformed()).isFalse();
+        assertThat(types).containsExactly(0x1B, 0x1C, 0x09, 0x10).inOrder();
+    }
+
+    @Test
+    public void testParseBtOobAfterAddress() {
+        mCursor.reset(ByteBuffer.wrap(BT_OOB), 8);
+        assertThat(mCursor.next()).isTrue();
+        assertThat(mCursor.getValueAsUtf8()).isEqualTo("HST");
+        assertThat(mCursor.next()).isTrue();
+        assertThat(mCursor.getValueLength()).isEqualTo(4);
+        byte[] uuid = new byte[2];
+        assertThat(mCursor.copyValue(2, uuid, false)).isTrue();
+        assertThat(uuid).isEqualTo(new byte[] {0x1E, 0x11});
+        assertThat(mCursor.next()).isTrue();
+        assertThat(mCursor.getValueByte(2)).isEqualTo(0x20);
+        assertThat(mCursor.getValueByte(3)).isEqualTo(-1);
+        assertThat(mCursor.next()).isFalse();
+        assertThat(mCursor.isMalformed()).isFalse();
+    }
+
+    @Test
+    public void testLengthIsUnsigned() {
+        byte[] payload = new byte[2 + 200];
+        payload[0] = (byte) 201;
+        payload[1] = 0x09;
+        mCursor.reset(ByteBuffer.wrap(payload), 0);
+        assertThat(mCursor.next()).isTrue();
+        assertThat(mCursor.getValueLength()).isEqualTo(200);
+    }
+
+    @Test
+    public void testTruncatedStructureIsMalformed() {
+        byte[] payload = {0x05, 0x09, 'a', 'b'};
+        mCursor.reset(ByteBuffer.wrap(payload), 0);
+        assertThat(mCursor.next()).isFalse();
+        assertThat(mCursor.isMalformed()).isTrue();
+    }
+
+    @Test
+    public void testZeroLengthTerminates() {
+        byte[] payload = {0x00, 0x02, 0x09, 'a'};
+        mCursor.reset(ByteBuffer.wrap(payload), 0);
+        assertThat(mCursor.next()).isFalse();
+        assertThat(mCursor.isMalformed()).isFalse();
+    }
+
+    @Test
+    public void testReadOnlySlice() {
+        ByteBuffer slice = ByteBuffer.wrap(BLE_OOB, 9, 3).slice().asReadOnlyBuffer();
+        mCursor.reset(slice, 0);
+        assertThat(mCursor.next()).isTrue();
+        assertThat(mCursor.getType()).isEqualTo(0x1C);
+        assertThat(mCursor.next()).isFalse();
+        assertThat(mCursor.isMalformed()).isFalse();
+    }
+
+    @Test
+    public void testWorstCaseStructureCount() {
+        // Type-only structures are the densest possible payload
+        byte[] payload = new byte[255];
+        for (int i = 0; i < payload.length; i += 2) {
+            payload[i] = 0x01;
+            if (i + 1 < payload.length) payload[i + 1] = 0x7F;
+        }
+        mCursor.reset(ByteBuffer.wrap(payload), 0);
+        int count = 0;
+        while (mCursor.next()) {
+            count++;
+        }
+        assertThat(count).isEqualTo(127);
+        assertThat(mCursor.isMalformed()).isTrue();
+    }
+
+    @Test
+    public void testFuzzCorpus() {
+        Random random = new Random(0x4E4643);
+        byte[][] seeds = {BLE_OOB, BT_OOB, new byte[0], new byte[] {(byte) 0xFF}};
+        for (int i = 0; i < FUZZ_ITERATIONS; i++) {
+            byte[] seed = seeds[i % seeds.length];
+            byte[] payload = mutate(random, seed);
+            int start = payload.length == 0 ? 0 : random.nextInt(payload.length + 2);
+            mCursor.reset(ByteBuffer.wrap(payload), start);
+            int steps = 0;
+            while (mCursor.next()) {
+                steps++;
+                int length = mCursor.getValueLength();
+                assertThat(length).isAtLeast(0);
+                assertThat(length).isAtMost(OobTlvCursor.MAX_VALUE_LENGTH);
+                assertThat(mCursor.getValueByte(length)).isEqualTo(-1);
+                if (length > 0) {
+                    assertThat(mCursor.getValueByte(length - 1)).isAtLeast(0);
+                }
+                mCursor.getValueAsUtf8();
+                byte[] dest = new byte[random.nextInt(8)];
+                assertThat(mCursor.copyValue(dest, true)).isEqualTo(dest.length <= length);
+                // Every structure consumes at least its length and type bytes
+                assertThat(steps).isAtMost(payload.length / 2 + 1);
+            }
+        }
+    }
+
+    @Test
+    public void testParserFuzzCorpus() {
+        FakeDeviceLookup lookup = new FakeDeviceLookup();
+        HandoverDataParser parser = new HandoverDataParser(lookup);
+
+        // The longest name a Nokia record can declare, complete and cut short
+        byte[] nokiaLongName = new byte[15 + 255];
+        System.arraycopy(NOKIA, 0, nokiaLongName, 0, 14);
+        nokiaLongName[14] = (byte) 0xFF;
+        for (int i = 15; i < nokiaLongName.length; i++) {
+            nokiaLongName[i] = 'n';
+        }
+        byte[] nokiaTruncatedName = new byte[15 + 16];
+        System.arraycopy(nokiaLongName, 0, nokiaTruncatedName, 0, nokiaTruncatedName.length);
+
+        assertThat(parser.parseNokia(ByteBuffer.wrap(NOKIA)).name).isEqualTo("Nkia");
+        assertThat(parser.parseNokia(ByteBuffer.wrap(nokiaLongName)).name).hasLength(255);
+        assertThat(parser.parseNokia(ByteBuffer.wrap(nokiaTruncatedName)).name).isEmpty();
+
+        Random random = new Random(0x4E4644);
+        byte[][] seeds = {BT_OOB, BLE_OOB, NOKIA, nokiaLongName, nokiaTruncatedName,
+                new byte[0]};
+        for (int i = 0; i < PARSER_FUZZ_ITERATIONS; i++) {
+            byte[] payload = mutate(random, seeds[i % seeds.length]);
+            // Also parse from the middle of a larger, read-only buffer
+            int offset = random.nextInt(3);
+            byte[] backing = new byte[offset + payload.length + random.nextInt(3)];
+            System.arraycopy(payload, 0, backing, offset, payload.length);
+            ByteBuffer slice = ByteBuffer.wrap(backing, offset, payload.length).slice()
+                    .asReadOnlyBuffer();
+            for (ByteBuffer buffer : new ByteBuffer[] {ByteBuffer.wrap(payload), slice}) {
+                int lookups = lookup.lookups;
+                assertValid(parser.parseBtOob(buffer.duplicate()), lookup, lookups);
+                lookups = lookup.lookups;
+                assertValid(parser.parseBleOob(buffer.duplicate()), lookup, lookups);
+                lookups = lookup.lookups;
+                assertValid(parser.parseNokia(buffer.duplicate()), lookup, lookups);
+            }
+        }
+    }
+
+    // A valid result must come from a looked up address and carry a name
+    private static void assertValid(HandoverDataParser.BluetoothHandoverData data,
+            FakeDeviceLookup lookup, int lookupsBefore) {
+        assertThat(data).isNotNull();
+        if (data.valid) {
+            assertThat(lookup.lookups).isGreaterThan(lookupsBefore);
+            assertThat(data.name).isNotNull();
+        }
+    }
+
+    private static byte[] mutate(Random random, byte[] seed) {
+        int length = Math.max(0, seed.length + random.nextInt(9) - 4);
+        byte[] payload = new byte[length];
+        System.arraycopy(seed, 0, payload, 0, Math.min(seed.length, length));
+        int flips = random.nextInt(4);
+        for (int i = 0; i < flips && length > 0; i++) {
+            payload[random.nextInt(length)] = (byte) random.nextInt(256);
+        }
+        return payload;
+    }
+}
@@ -0,0 +1,474 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc.loopback;
+
+import com.android.nfc.DeviceHost;
+import com.android.nfc.LlcpException;
+import com.android.nfc.NfcDiscoveryParameters;
+
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+
+/**
+ * A {@link DeviceHost} without a controller, whose LLCP sockets talk over a
+ * {@link LoopbackLlcpLink} to the other host on the link. It lets LLCP
+ * services and their clients, e.g. the echo server and its benchmark, run
+ * against each other on the JVM.
+ *
+ * Everything besides LLCP is a no-op.
+ */
+public class LoopbackDeviceHost implements DeviceHost {
+    static final int DEFAULT_MAX_TRANSCEIVE_LENGTH = 253;
+
+    protected final LoopbackLlcpLink mLink;
+    private final int mSide;
+    private final int mMiu;
+    private final int mRwSize;
+
+    /**
+     * @param initiator which end of the link this host is; the two hosts on
+     *     a link must differ
+     */
+    public LoopbackDeviceHost(LoopbackLlcpLink link, boolean initiator, int miu, int rwSize) {
+        mLink = link;
+        mSide = initiator ? 0 : 1;
+        mMiu = miu;
+        mRwSize = rwSize;
+    }
+
+    public LoopbackLlcpLink getLink() {
+        return mLink;
+    }
+
+    @Override
+    public boolean checkFirmware() {
+        return true;
+    }
+
+    @Override
+    public boolean initialize() {
+        return true;
+    }
+
+    @Override
+    public boolean deinitialize() {
+        mLink.deactivate();
+        return true;
+    }
+
+    @Override
+    public String getName() {
+        return "LoopbackDeviceHost";
+    }
+
+    @Override
+    public void enableDiscovery(NfcDiscoveryParameters params, boolean restart) {
+    }
+
+    @Override
+    public void disableDiscovery() {
+    }
+
+    @Override
+    public int[] doGetActiveSecureElementList() {
+        return null;
+    }
+
+    @Override
+    public boolean sendRawFrame(byte[] data) {
+        return false;
+    }
+
+    @Override
+    public boolean routeAid(byte[] aid, int route, int aidInfo, int power) {
+        return false;
+    }
+
+    @Override
+    public boolean unrouteAid(byte[] aid) {
+        return false;
+    }
+
+    @Override
+    public boolean setRoutingEntry(int type, int value, int route, int power) {
+        return false;
+    }
+
+    @Override
+    public boolean clearRoutingEntry(int type) {
+        return false;
+    }
+
+    @Override
+    public int getDefaultAidRoute() {
+        return 0;
+    }
+
+    @Override
+    public int getDefaultDesfireRoute() {
+        return 0;
+    }
+
+    @Override
+    public int getT4TNfceePowerState() {
+        return 0;
+    }
+
+    @Override
+    public int getDefaultMifareCLTRoute() {
+        return 0;
+    }
+
+    @Override
+    public int getDefaultFelicaCLTRoute() {
+        return 0;
+    }
+
+    @Override
+    public int getDefaultAidPowerState() {
+        return 0;
+    }
+
+    @Override
+    public int getDefaultDesfirePowerState() {
+        return 0;
+    }
+
+    @Override
+    public int getDefaultMifareCLTPowerState() {
+        return 0;
+    }
+
+    @Override
+    public int getDefaultFelicaCLTPowerState() {
+        return 0;
+    }
+
+    @Override
+    public boolean commitRouting() {
+        return false;
+    }
+
+    @Override
+    public void setEmptyAidRoute(int defaultAidRoute) {
+    }
+
+    @Override
+    public void registerT3tIdentifier(byte[] t3tIdentifier) {
+    }
+
+    @Override
+    public void deregisterT3tIdentifier(byte[] t3tIdentifier) {
+    }
+
+    @Override
+    public void clearT3tIdentifiersCache() {
+    }
+
+    @Override
+    public int getLfT3tMax() {
+        return 0;
+    }
+
+    @Override
+    public LlcpConnectionlessSocket createLlcpConnectionlessSocket(int nSap, String sn)
+            throws LlcpException {
+        return mLink.createConnectionlessSocket(mSide, nSap);
+    }
+
+    @Override
+    public LlcpServerSocket createLlcpServerSocket(int nSap, String sn, int miu, int rw,
+            int linearBufferLength) throws LlcpException {
+        return mLink.createServerSocket(mSide, nSap, sn, miu, rw);
+    }
+
+    @Override
+    public LlcpSocket createLlcpSocket(int sap, int miu, int rw, int linearBufferLength)
+            throws LlcpException {
+        return mLink.createSocket(mSide, sap, miu, rw);
+    }
+
+    @Override
+    public boolean doCheckLlcp() {
+        return mLink.isActive();
+    }
+
+    @Override
+    public boolean doActivateLlcp() {
+        return mLink.isActive();
+    }
+
+    @Override
+    public void resetTimeouts() {
+    }
+
+    @Override
+    public boolean setTimeout(int technology, int timeout) {
+        return false;
+    }
+
+    @Override
+    public int getTimeout(int technology) {
+        return 0;
+    }
+
+    @Override
+    public void doAbort(String msg) {
+    }
+
+    @Override
+    public boolean canMakeReadOnly(int technology) {
+        return false;
+    }
+
+    @Override
+    public int getMaxTransceiveLength(int technology) {
+        return DEFAULT_MAX_TRANSCEIVE_LENGTH;
+    }
+
+    @Override
+    public int getAidTableSize() {
+        return 0;
+    }
+
+    @Override
+    public void setP2pInitiatorModes(int modes) {
+    }
+
+    @Override
+    public void setP2pTargetModes(int modes) {
+    }
+
+    @Override
+    public boolean getExtendedLengthApdusSupported() {
+        return false;
+    }
+
+    @Override
+    public int getDefaultLlcpMiu() {
+        return mMiu;
+    }
+
+    @Override
+    public int getDefaultLlcpRwSize() {
+        return mRwSize;
+    }
+
+    @Override
+    public void dump(PrintWriter pw, FileDescriptor fd) {
+    }
+
+    @Override
+    public boolean enableScreenOffSuspend() {
+        return false;
+    }
+
+    @Override
+    public boolean disableScreenOffSuspend() {
+        return false;
+    }
+
+    @Override
+    public void doSetScreenState(int screen_state_mask) {
+    }
+
+    @Override
+    public void doResonantFrequency(boolean isResonantFreq) {
+    }
+
+    @Override
+    public void stopPoll(int mode) {
+    }
+
+    @Override
+    public void startPoll() {
+    }
+
+    @Override
+    public int mposSetReaderMode(boolean on) {
+        return 0;
+    }
+
+    @Override
+    public int configureSecureReaderMode(boolean on, String readerType) {
+        return 0;
+    }
+
+    @Override
+    public boolean mposGetReaderMode() {
+        return false;
+    }
+
+    @Override
+    public int doNfcSelfTest(int type) {
+        return 0;
+    }
+
+    @Override
+    public int getNciVersion() {
+        return 0;
+    }
+
+    @Override
+    public void enableDtaMode() {
+    }
+
+    @Override
+    public void disableDtaMode() {
+    }
+
+    @Override
+    public void factoryReset() {
+    }
+
+    @Override
+    public void shutdown() {
+    }
+
+    @Override
+    public boolean setNfcSecure(boolean enable) {
+        return false;
+    }
+
+    @Override
+    public String getNfaStorageDir() {
+        return null;
+    }
+
+    @Override
+    public byte[] getRoutingTable() {
+        return null;
+    }
+
+    @Override
+    public int getMaxRoutingTableSize() {
+        return 0;
+    }
+
+    @Override
+    public void startStopPolling(boolean enable) {
+    }
+
+    @Override
+    public void doChangeDiscoveryTech(int pollTech, int listenTech) {
+    }
+
+    @Override
+    public boolean accessControlForCOSU(int mode) {
+        return false;
+    }
+
+    @Override
+    public int getFWVersion() {
+        return 0;
+    }
+
+    @Override
+    public boolean isNfccBusy() {
+        return false;
+    }
+
+    @Override
+    public int setTransitConfig(String configs) {
+        return 0;
+    }
+
+    @Override
+    public int getRemainingAidTableSize() {
+        return 0;
+    }
+
+    @Override
+    public int doselectUicc(int uiccSlot) {
+        return 0;
+    }
+
+    @Override
+    public int doGetSelectedUicc() {
+        return 0;
+    }
+
+    @Override
+    public int setPreferredSimSlot(int uiccSlot) {
+        return 0;
+    }
+
+    @Override
+    public int doSetFieldDetectMode(boolean mode) {
+        return 0;
+    }
+
+    @Override
+    public boolean isFieldDetectEnabled() {
+        return false;
+    }
+
+    @Override
+    public int doStartRssiMode(int rssiNtfTimeIntervalInMillisec) {
+        return 0;
+    }
+
+    @Override
+    public int doStopRssiMode() {
+        return 0;
+    }
+
+    @Override
+    public boolean isRssiEnabled() {
+        return false;
+    }
+
+    @Override
+    public int doWriteT4tData(byte[] fileId, byte[] data, int length) {
+        return 0;
+    }
+
+    @Override
+    public byte[] doReadT4tData(byte[] fileId) {
+        return null;
+    }
+
+    @Override
+    public boolean doLockT4tData(boolean lock) {
+        return false;
+    }
+
+    @Override
+    public boolean isLockedT4tData() {
+        return false;
+    }
+
+    @Override
+    public boolean doClearNdefT4tData() {
+        return false;
+    }
+
+    @Override
+    public int doEnableDebugNtf(byte fieldValue) {
+        return 0;
+    }
+
+    @Override
+    public int startExtendedFieldDetectMode(int detectionTimeout) {
+        return 0;
+    }
+
+    @Override
+    public int stopExtendedFieldDetectMode() {
+        return 0;
+    }
+}
@@ -0,0 +1,516 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc.loopback;
+
+import com.android.nfc.DeviceHost.LlcpConnectionlessSocket;
+import com.android.nfc.DeviceHost.LlcpServerSocket;
+import com.android.nfc.DeviceHost.LlcpSocket;
+import com.android.nfc.LlcpException;
+import com.android.nfc.LlcpPacket;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+/**
+ * An in-memory LLCP link between two {@link LoopbackDeviceHost}s.
+ *
+ * The link models what matters for throughput and latency: I-PDUs larger
+ * than the remote MIU are refused, a sender blocks once the remote RW of
+ * its I-PDUs are outstanding, and every PDU takes a fixed one-way latency to
+ * arrive. An I-PDU counts as acknowledged once the receiving application has
+ * read it. Connectionless PDUs are dropped when the receiving queue is full
+ * or nothing is bound to the destination SAP, like on a real link.
+ */
+public final class LoopbackLlcpLink {
+    static final int CONNECTIONLESS_QUEUE_SIZE = 8;
+    // First SAP handed out to client sockets
+    static final int FIRST_DYNAMIC_SAP = 0x20;
+
+    private final int mLinkMiu;
+    private final long mPduLatencyNs;
+
+    // All synchronized on this
+    private final ArrayList<Server> mServers = new ArrayList<Server>();
+    private final ArrayList<Connectionless> mConnectionless = new ArrayList<Connectionless>();
+    private final ArrayList<Endpoint> mEndpoints = new ArrayList<Endpoint>();
+    private final int[] mNextSap = {FIRST_DYNAMIC_SAP, FIRST_DYNAMIC_SAP};
+    private boolean mActive = true;
+    private long mDroppedPdus;
+
+    /**
+     * @param linkMiu MIU of the link, which bounds connectionless PDUs
+     * @param pduLatencyNs one-way latency of every PDU
+     */
+    public LoopbackLlcpLink(int linkMiu, long pduLatencyNs) {
+        mLinkMiu = linkMiu;
+        mPduLatencyNs = pduLatencyNs;
+    }
+
+    public int getLinkMiu() {
+        return mLinkMiu;
+    }
+
+    public synchronized boolean isActive() {
+        return mActive;
+    }
+
+    /**
+     * Returns the number of connectionless PDUs dropped so far.
+     */
+    public synchronized long getDroppedPdus() {
+        return mDroppedPdus;
+    }
+
+    public synchronized void activate() {
+        mActive = true;
+    }
+
+    /**
+     * Takes the link down, closing every socket on both sides.
+     */
+    public void deactivate() {
+        ArrayList<Object> sockets = new ArrayList<Object>();
+        synchronized (this) {
+            mActive = false;
+            sockets.addAll(mServers);
+            sockets.addAll(mConnectionless);
+            sockets.addAll(mEndpoints);
+        }
+        for (Object socket : sockets) {
+            if (socket instanceof Server) {
+                ((Server) socket).close();
+            } else if (socket instanceof Connectionless) {
+                ((Connectionless) socket).close();
+            } else {
+                ((Endpoint) socket).close();
+            }
+        }
+    }
+
+    synchronized LlcpServerSocket createServerSocket(int side, int sap, String serviceName,
+            int miu, int rw) throws LlcpException {
+        for (Server server : mServers) {
+            if (server.mSide == side && (server.mSap == sap
+                    || (serviceName != null && serviceName.equals(server.mServiceName)))) {
+                throw new LlcpException("SAP or service name in use");
+            }
+        }
+        Server server = new Server(side, sap, serviceName, miu, rw);
+        mServers.add(server);
+        return server;
+    }
+
+    synchronized LlcpSocket createSocket(int side, int sap, int miu, int rw) {
+        if (sap == 0) {
+            sap = mNextSap[side]++;
+        }
+        Endpoint endpoint = new Endpoint(side, sap, miu, rw);
+        mEndpoints.add(endpoint);
+        return endpoint;
+    }
+
+    synchronized LlcpConnectionlessSocket createConnectionlessSocket(int side, int sap)
+            throws LlcpException {
+        for (Connectionless socket : mConnectionless) {
+            if (socket.mSide == side && socket.mSap == sap) {
+                throw new LlcpException("SAP in use");
+            }
+        }
+        Connectionless socket = new Connectionless(side, sap);
+        mConnectionless.add(socket);
+        return socket;
+    }
+
+    private void connect(Endpoint client, int sap, String serviceName) throws IOException {
+        Server server = null;
+        Endpoint peer;
+        synchronized (this) {
+            if (!mActive) {
+                throw new IOException("Link down");
+            }
+            for (Server s : mServers) {
+                if (s.mSide != client.mSide && (serviceName != null
+                        ? serviceName.equals(s.mServiceName) : s.mSap == sap)) {
+                    server = s;
+                    break;
+                }
+            }
+            if (server == null) {
+                throw new IOException("No such service");
+            }
+            peer = new Endpoint(server.mSide, server.mSap, server.mMiu, server.mRw);
+            mEndpoints.add(peer);
+        }
+        client.connectTo(peer);
+        peer.connectTo(client);
+        if (!server.offer(peer)) {
+            client.close();
+            throw new IOException("Service closed");
+        }
+    }
+
+    private synchronized void remove(Object socket) {
+        mServers.remove(socket);
+        mConnectionless.remove(socket);
+        mEndpoints.remove(socket);
+    }
+
+    private synchronized Connectionless findConnectionless(int side, int sap) {
+        for (Connectionless socket : mConnectionless) {
+            if (socket.mSide == side && socket.mSap == sap) {
+                return socket;
+            }
+        }
+        return null;
+    }
+
+    private synchronized void onPduDropped() {
+        mDroppedPdus++;
+    }
+
+    private static void waitUntil(Object lock, long deadlineNs) throws InterruptedException {
+        long remainingNs = deadlineNs - System.nanoTime();
+        if (remainingNs > 0) {
+            lock.wait(remainingNs / 1000000, (int) (remainingNs % 1000000));
+        }
+    }
+
+    private static final class Pdu {
+        final byte[] mData;
+        final long mReadyNs;
+        final int mRemoteSap;
+        int mOffset;
+
+        Pdu(byte[] data, long readyNs, int remoteSap) {
+            mData = data;
+            mReadyNs = readyNs;
+            mRemoteSap = remoteSap;
+        }
+    }
+
+    private final class Server implements LlcpServerSocket {
+        final int mSide;
+        final int mSap;
+        final String mServiceName;
+        final int mMiu;
+        final int mRw;
+
+        // Synchronized on this
+        private final ArrayDeque<Endpoint> mBacklog = new ArrayDeque<Endpoint>();
+        private boolean mClosed;
+
+        Server(int side, int sap, String serviceName, int miu, int rw) {
+            mSide = side;
+            mSap = sap;
+            mServiceName = serviceName;
+            mMiu = miu;
+            mRw = rw;
+        }
+
+        synchronized boolean offer(Endpoint endpoint) {
+            if (mClosed) {
+                return false;
+            }
+            mBacklog.addLast(endpoint);
+            notifyAll();
+            return true;
+        }
+
+        @Override
+        public synchronized LlcpSocket accept() throws IOException {
+            while (mBacklog.isEmpty() && !mClosed) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+            if (mClosed) {
+                throw new IOException("Server socket closed");
+            }
+            return mBacklog.removeFirst();
+        }
+
+        @Override
+        public void close() {
+            ArrayList<Endpoint> pending;
+            synchronized (this) {
+                mClosed = true;
+                pending = new ArrayList<Endpoint>(mBacklog);
+                mBacklog.clear();
+                notifyAll();
+            }
+            for (Endpoint endpoint : pending) {
+                endpoint.close();
+            }
+            remove(this);
+        }
+    }
+
+    private final class Endpoint implements LlcpSocket {
+        final int mSide;
+        final int mSap;
+        final int mMiu;
+        final int mRw;
+
+        // Synchronized on this; I-PDUs sent to this endpoint
+        private final ArrayDeque<Pdu> mInbound = new ArrayDeque<Pdu>();
+        private Endpoint mPeer;
+        private boolean mClosed;
+        private boolean mPeerClosed;
+
+        Endpoint(int side, int sap, int miu, int rw) {
+            mSide = side;
+            mSap = sap;
+            mMiu = miu;
+            mRw = Math.max(rw, 1);
+        }
+
+        synchronized void connectTo(Endpoint peer) {
+            mPeer = peer;
+        }
+
+        private synchronized Endpoint getPeer() throws IOException {
+            if (mClosed) {
+                throw new IOException("Socket closed");
+            }
+            if (mPeer == null) {
+                throw new IOException("Socket not connected");
+            }
+            return mPeer;
+        }
+
+        @Override
+        public void connectToSap(int sap) throws IOException {
+            connect(this, sap, null);
+        }
+
+        @Override
+        public void connectToService(String serviceName) throws IOException {
+            connect(this, 0, serviceName);
+        }
+
+        @Override
+        public void close() {
+            Endpoint peer;
+            synchronized (this) {
+                if (mClosed) {
+                    return;
+                }
+                mClosed = true;
+                peer = mPeer;
+                mInbound.clear();
+                notifyAll();
+            }
+            if (peer != null) {
+                peer.onPeerClosed();
+            }
+            remove(this);
+        }
+
+        synchronized void onPeerClosed() {
+            mPeerClosed = true;
+            notifyAll();
+        }
+
+        @Override
+        public void send(byte[] data) throws IOException {
+            send(data, 0, data.length);
+        }
+
+        @Override
+        public void send(byte[] data, int offset, int length) throws IOException {
+            if (offset < 0 || length < 0 || offset > data.length - length) {
+                throw new IndexOutOfBoundsException();
+            }
+            Endpoint peer = getPeer();
+            if (length > peer.mMiu) {
+                throw new IOException("I-PDU larger than remote MIU");
+            }
+            byte[] copy = new byte[length];
+            System.arraycopy(data, offset, copy, 0, length);
+            peer.deliver(this, copy);
+        }
+
+        synchronized void deliver(Endpoint sender, byte[] data) throws IOException {
+            // Wait for the window to open, like a congested stack
+            while (mInbound.size() >= mRw && !mClosed && !mPeerClosed) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+            if (mClosed || mPeerClosed) {
+                throw new IOException("Socket closed");
+            }
+            mInbound.addLast(new Pdu(data, System.nanoTime() + mPduLatencyNs, sender.mSap));
+            notifyAll();
+        }
+
+        @Override
+        public synchronized int receive(byte[] recvBuff) throws IOException {
+            while (true) {
+                if (mClosed) {
+                    throw new IOException("Socket closed");
+                }
+                Pdu pdu = mInbound.peekFirst();
+                if (pdu == null && mPeerClosed) {
+                    throw new IOException("Connection closed by peer");
+                }
+                try {
+                    if (pdu == null) {
+                        wait();
+                        continue;
+                    }
+                    if (pdu.mReadyNs > System.nanoTime()) {
+                        waitUntil(this, pdu.mReadyNs);
+                        continue;
+                    }
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                int length = Math.min(recvBuff.length, pdu.mData.length - pdu.mOffset);
+                System.arraycopy(pdu.mData, pdu.mOffset, recvBuff, 0, length);
+                pdu.mOffset += length;
+                if (pdu.mOffset == pdu.mData.length) {
+                    // Acknowledge, opening the window for the sender
+                    mInbound.removeFirst();
+                    notifyAll();
+                }
+                return length;
+            }
+        }
+
+        @Override
+        public int getRemoteMiu() {
+            Endpoint peer;
+            synchronized (this) {
+                peer = mPeer;
+            }
+            return peer != null ? peer.mMiu : 0;
+        }
+
+        @Override
+        public int getRemoteRw() {
+            Endpoint peer;
+            synchronized (this) {
+                peer = mPeer;
+            }
+            return peer != null ? peer.mRw : 0;
+        }
+
+        @Override
+        public int getLocalSap() {
+            return mSap;
+        }
+
+        @Override
+        public int getLocalMiu() {
+            return mMiu;
+        }
+
+        @Override
+        public int getLocalRw() {
+            return mRw;
+        }
+    }
+
+    private final class Connectionless implements LlcpConnectionlessSocket {
+        final int mSide;
+        final int mSap;
+
+        // Synchronized on this
+        private final ArrayDeque<Pdu> mInbound = new ArrayDeque<Pdu>();
+        private boolean mClosed;
+
+        Connectionless(int side, int sap) {
+            mSide = side;
+            mSap = sap;
+        }
+
+        @Override
+        public int getLinkMiu() {
+            return mLinkMiu;
+        }
+
+        @Override
+        public int getSap() {
+            return mSap;
+        }
+
+        @Override
+        public void send(int sap, byte[] data) throws IOException {
+            synchronized (this) {
+                if (mClosed) {
+                    throw new IOException("Socket closed");
+                }
+            }
+            if (data.length > mLinkMiu) {
+                throw new IOException("UI PDU larger than link MIU");
+            }
+            Connectionless peer = findConnectionless(1 - mSide, sap);
+            if (peer == null || !peer.deliver(data.clone(), mSap)) {
+                onPduDropped();
+            }
+        }
+
+        synchronized boolean deliver(byte[] data, int remoteSap) {
+            if (mClosed || mInbound.size() >= CONNECTIONLESS_QUEUE_SIZE) {
+                return false;
+            }
+            mInbound.addLast(new Pdu(data, System.nanoTime() + mPduLatencyNs, remoteSap));
+            notifyAll();
+            return true;
+        }
+
+        @Override
+        public synchronized LlcpPacket receive() throws IOException {
+            while (true) {
+                if (mClosed) {
+                    throw new IOException("Socket closed");
+                }
+                Pdu pdu = mInbound.peekFirst();
+                try {
+                    if (pdu == null) {
+                        wait();
+                        continue;
+                    }
+                    if (pdu.mReadyNs > System.nanoTime()) {
+                        waitUntil(this, pdu.mReadyNs);
+                        continue;
+                    }
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                mInbound.removeFirst();
+                return new LlcpPacket(pdu.mRemoteSap, pdu.mData);
+            }
+        }
+
+        @Override
+        public void close() {
+            synchronized (this) {
+                mClosed = true;
+                mInbound.clear();
+                notifyAll();
+            }
+            remove(this);
+        }
+    }
+}
@@ -0,0 +1,303 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc.loopback;
+
+import com.android.nfc.DeviceHost;
+import com.android.nfc.NfcDiscoveryParameters;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link DeviceHost} backed by a simulated controller instead of hardware,
+ * so that routing, tag dispatch, HCE and P2P can be driven from a plain JVM.
+ *
+ * The controller keeps a {@link SimulatedRoutingTable} of limited size, and
+ * the test drives the field: {@link #discoverTag} brings a
+ * {@link SimulatedTag} in while polling is enabled, a
+ * {@link SimulatedHceReader} replays APDUs against the host, and
+ * {@link #activateLlcp} brings up the LLCP link to the other host on the
+ * {@link LoopbackLlcpLink}.
+ *
+ * Events are delivered to the {@link DeviceHostListener} on the thread that
+ * triggers them.
+ */
+public class SimulatedDeviceHost extends LoopbackDeviceHost {
+    static final int DEFAULT_MIU = 248;
+    static final int DEFAULT_RW = 4;
+    static final int NCI_VERSION_2_0 = 0x20;
+    static final byte LLCP_VERSION = 0x12;
+
+    private final DeviceHostListener mListener;
+    private final SimulatedRoutingTable mRoutingTable;
+    private final LinkedBlockingQueue<byte[]> mHostResponses = new LinkedBlockingQueue<byte[]>();
+    private final P2pDevice mP2pDevice;
+
+    // Synchronized on this
+    private boolean mInitialized;
+    private NfcDiscoveryParameters mDiscoveryParams;
+    private int mDefaultAidRoute = SimulatedRoutingTable.ROUTE_HOST;
+    private int mScreenState;
+    private int mTagsDiscovered;
+
+    /**
+     * Creates a host with its own LLCP link, with nothing on the other end.
+     */
+    public SimulatedDeviceHost(DeviceHostListener listener, int routingTableSize) {
+        this(listener, new LoopbackLlcpLink(DEFAULT_MIU, 0), true, routingTableSize);
+    }
+
+    /**
+     * Creates a host whose LLCP peer is the other host on {@code link}.
+     */
+    public SimulatedDeviceHost(DeviceHostListener listener, LoopbackLlcpLink link,
+            boolean initiator, int routingTableSize) {
+        super(link, initiator, link.getLinkMiu(), DEFAULT_RW);
+        mListener = listener;
+        mRoutingTable = new SimulatedRoutingTable(routingTableSize);
+        mP2pDevice = new P2pDevice(initiator ? NfcDepEndpoint.MODE_P2P_INITIATOR
+                : NfcDepEndpoint.MODE_P2P_TARGET);
+    }
+
+    public SimulatedRoutingTable getSimulatedRoutingTable() {
+        return mRoutingTable;
+    }
+
+    public synchronized int getTagsDiscovered() {
+        return mTagsDiscovered;
+    }
+
+    public synchronized int getScreenState() {
+        return mScreenState;
+    }
+
+    /**
+     * Brings {@code tag} into the field. Returns false if the controller
+     * isn't polling, in which case the tag isn't reported.
+     */
+    public boolean discoverTag(SimulatedTag tag) {
+        synchronized (this) {
+            if (!mInitialized || mDiscoveryParams == null
+                    || mDiscoveryParams.getTechMask() == 0) {
+                return false;
+            }
+            mTagsDiscovered++;
+        }
+        mListener.onRemoteEndpointDiscovered(tag);
+        return true;
+    }
+
+    /**
+     * Brings up the LLCP link, as if a P2P device was tapped.
+     */
+    public boolean activateLlcp() {
+        synchronized (this) {
+            if (!mInitialized || mDiscoveryParams == null
+                    || !mDiscoveryParams.shouldEnableP2p()) {
+                return false;
+            }
+        }
+        mLink.activate();
+        mListener.onLlcpLinkActivated(mP2pDevice);
+        mListener.onLlcpFirstPacketReceived(mP2pDevice);
+        return true;
+    }
+
+    public void deactivateLlcp() {
+        mLink.deactivate();
+        mListener.onLlcpLinkDeactivated(mP2pDevice);
+    }
+
+    void onReaderActivated(int technology) {
+        mHostResponses.clear();
+        mListener.onRemoteFieldActivated();
+        mListener.onHostCardEmulationActivated(technology);
+    }
+
+    void onReaderDeactivated(int technology) {
+        mListener.onHostCardEmulationDeactivated(technology);
+        mListener.onRemoteFieldDeactivated();
+    }
+
+    /**
+     * Hands {@code command} to the host and waits for its answer, or returns
+     * null after {@code timeoutMs}.
+     */
+    byte[] exchangeWithHost(int technology, byte[] command, long timeoutMs)
+            throws InterruptedException {
+        mListener.onHostCardEmulationData(technology, command);
+        return mHostResponses.poll(timeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public synchronized boolean initialize() {
+        mInitialized = true;
+        return true;
+    }
+
+    @Override
+    public boolean deinitialize() {
+        synchronized (this) {
+            mInitialized = false;
+            mDiscoveryParams = null;
+        }
+        return super.deinitialize();
+    }
+
+    @Override
+    public String getName() {
+        return "SimulatedDeviceHost";
+    }
+
+    @Override
+    public synchronized void enableDiscovery(NfcDiscoveryParameters params, boolean restart) {
+        mDiscoveryParams = params;
+    }
+
+    @Override
+    public synchronized void disableDiscovery() {
+        mDiscoveryParams = null;
+    }
+
+    @Override
+    public boolean sendRawFrame(byte[] data) {
+        return mHostResponses.offer(data);
+    }
+
+    @Override
+    public boolean routeAid(byte[] aid, int route, int aidInfo, int power) {
+        return mRoutingTable.addAid(aid, route, aidInfo, power);
+    }
+
+    @Override
+    public boolean unrouteAid(byte[] aid) {
+        return mRoutingTable.removeAid(aid);
+    }
+
+    @Override
+    public boolean setRoutingEntry(int type, int value, int route, int power) {
+        return mRoutingTable.setEntry(type, value, route, power);
+    }
+
+    @Override
+    public boolean clearRoutingEntry(int type) {
+        return mRoutingTable.clearEntries(type);
+    }
+
+    @Override
+    public boolean commitRouting() {
+        return mRoutingTable.commit();
+    }
+
+    @Override
+    public synchronized void setEmptyAidRoute(int defaultAidRoute) {
+        mDefaultAidRoute = defaultAidRoute;
+        mRoutingTable.addAid(new byte[0], defaultAidRoute, 0, 0x01);
+    }
+
+    @Override
+    public synchronized int getDefaultAidRoute() {
+        return mDefaultAidRoute;
+    }
+
+    @Override
+    public byte[] getRoutingTable() {
+        return mRoutingTable.getTable();
+    }
+
+    @Override
+    public int getMaxRoutingTableSize() {
+        return mRoutingTable.getMaxSize();
+    }
+
+    @Override
+    public int getAidTableSize() {
+        return mRoutingTable.getMaxSize();
+    }
+
+    @Override
+    public int getRemainingAidTableSize() {
+        return mRoutingTable.getRemainingSize();
+    }
+
+    @Override
+    public synchronized void doSetScreenState(int screen_state_mask) {
+        mScreenState = screen_state_mask;
+    }
+
+    @Override
+    public int getNciVersion() {
+        return NCI_VERSION_2_0;
+    }
+
+    /**
+     * The remote P2P device; its traffic goes through the LLCP sockets.
+     */
+    final class P2pDevice implements NfcDepEndpoint {
+        final int mMode;
+
+        P2pDevice(int mode) {
+            mMode = mode;
+        }
+
+        @Override
+        public byte[] receive() {
+            return null;
+        }
+
+        @Override
+        public boolean send(byte[] data) {
+            return false;
+        }
+
+        @Override
+        public boolean connect() {
+            return mLink.isActive();
+        }
+
+        @Override
+        public boolean disconnect() {
+            deactivateLlcp();
+            return true;
+        }
+
+        @Override
+        public byte[] transceive(byte[] data) {
+            return null;
+        }
+
+        @Override
+        public int getHandle() {
+            return 0;
+        }
+
+        @Override
+        public int getMode() {
+            return mMode;
+        }
+
+        @Override
+        public byte[] getGeneralBytes() {
+            return null;
+        }
+
+        @Override
+        public byte getLlcpVersion() {
+            return LLCP_VERSION;
+        }
+    }
+}
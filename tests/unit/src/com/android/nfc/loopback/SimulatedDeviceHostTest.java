@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.nfc.loopback;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.nfc.NdefMessage;
+import android.nfc.NdefRecord;
+import android.nfc.tech.TagTechnology;
+import android.os.Bundle;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import com.android.nfc.DeviceHost;
+import com.android.nfc.NfcDiscoveryParameters;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+@RunWith(AndroidJUnit4.class)
+public final class SimulatedDeviceHostTest {
+    private static final int ROUTING_TABLE_SIZE = 64;
+    private static final int NFC_POLL_A = 0x01;
+    private static final byte[] AID_HOST = {(byte) 0xA0, 0x00, 0x00, 0x00, 0x03, 0x10, 0x10};
+    private static final byte[] AID_SE = {(byte) 0xA0, 0x00, 0x00, 0x00, 0x04, 0x10, 0x10};
+    private static final byte[] SW_SUCCESS = {(byte) 0x90, 0x00};
+
+    private Listener mListener;
+    private SimulatedDeviceHost mHost;
+
+    @Before
+    public void setUp() {
+        mListener = new Listener();
+        mHost = new SimulatedDeviceHost(mListener, ROUTING_TABLE_SIZE);
+        mListener.mHost = mHost;
+        mHost.initialize();
+    }
+
+    @Test
+    public void testRoutingTableIsBoundBySize() {
+        // 4 bytes of header and 7 bytes of AID each
+        int added = 0;
+        for (int i = 0; i < 10; i++) {
+            byte[] aid = AID_HOST.clone();
+            aid[6] = (byte) i;
+            if (mHost.routeAid(aid, SimulatedRoutingTable.ROUTE_HOST, 0, 0x01)) {
+                added++;
+            }
+        }
+        assertThat(added).isEqualTo(ROUTING_TABLE_SIZE / 11);
+        assertThat(mHost.getRemainingAidTableSize()).isLessThan(11);
+        assertThat(mHost.getRoutingTable()).isEmpty();
+
+        assertThat(mHost.commitRouting()).isTrue();
+        assertThat(mHost.getRoutingTable()).hasLength(added * 11);
+    }
+
+    @Test
+    public void testTagIsOnlyDiscoveredWhilePolling() {
+        SimulatedTag tag = new SimulatedTag(1, new byte[] {1, 2, 3, 4},
+                new int[] {TagTechnology.NFC_A, TagTechnology.NDEF}, new Bundle[2]);
+        NdefMessage message = new NdefMessage(NdefRecord.createUri("https://www.android.com"));
+        tag.setNdef(message, 128, true);
+
+        assertThat(mHost.discoverTag(tag)).isFalse();
+        mHost.enableDiscovery(NfcDiscoveryParameters.newBuilder()
+                .setTechMask(NFC_POLL_A).build(), false);
+        assertThat(mHost.discoverTag(tag)).isTrue();
+        assertThat(mListener.mTags).containsExactly(tag);
+
+        assertThat(tag.connect(TagTechnology.NFC_A)).isTrue();
+        assertThat(tag.findAndReadNdef()).isEqualTo(message);
+        assertThat(tag.writeNdef(message.toByteArray())).isFalse();
+        tag.remove();
+        assertThat(tag.presenceCheck()).isFalse();
+        assertThat(tag.findAndReadNdef()).isNull();
+    }
+
+    @Test
+    public void testHceReaderFollowsRouting() throws Exception {
+        mHost.routeAid(AID_HOST, SimulatedRoutingTable.ROUTE_HOST, 0, 0x01);
+        mHost.routeAid(AID_SE, 0x82, 0, 0x01);
+        mHost.commitRouting();
+
+        SimulatedHceReader.Result result = new SimulatedHceReader(mHost)
+                .add(select(AID_HOST), SW_SUCCESS)
+                .add(new byte[] {0x00, (byte) 0xB0, 0x00, 0x00, 0x00}, SW_SUCCESS)
+                .add(select(AID_SE), SW_SUCCESS)
+                .run(1000);
+
+        assertThat(result.exchanges).isEqualTo(3);
+        assertThat(result.offHost).isEqualTo(1);
+        assertThat(result.mismatches).isEqualTo(0);
+        assertThat(result.timeouts).isEqualTo(0);
+        assertThat(mListener.mApdus).hasSize(2);
+        assertThat(mListener.mHceActivations).isEqualTo(1);
+    }
+
+    private static byte[] select(byte[] aid) {
+        byte[] apdu = Arrays.copyOf(new byte[] {0x00, (byte) 0xA4, 0x04, 0x00,
+                (byte) aid.length}, 5 + aid.length);
+        System.arraycopy(aid, 0, apdu, 5, aid.length);
+        return apdu;
+    }
+
+    /**
+     * Answers every APDU with success, like an HCE service would.
+     */
+    private static final class Listener implements DeviceHost.DeviceHostListener {
+        SimulatedDeviceHost mHost;
+        final ArrayList<DeviceHost.TagEndpoint> mTags = new ArrayList<>();
+        final ArrayList<byte[]> mApdus = new ArrayList<>();
+        int mHceActivations;
+
+        @Override
+        public void onRemoteEndpointDiscovered(DeviceHost.TagEndpoint tag) {
+            mTags.add(tag);
+        }
+
+        @Override
+        public void onHostCardEmulationActivated(int technology) {
+            mHceActivations++;
+        }
+
+        @Override
+        public void onHostCardEmulationData(int technology, byte[] data) {
+            mApdus.add(data);
+            mHost.sendRawFrame(SW_SUCCESS);
+        }
+
+        @Override
+        public void onHostCardEmulationDeactivated(int technology) {}
+
+        @Override
+        public void onSeListenActivated() {}
+
+        @Override
+        public void onSeListenDeactivated() {}
+
+        @Override
+        public void onNotifySrdEvt(int event) {}
+
+        @Override
+        public void onNotifyEfdmEvt(int efdmEvt) {}
+
+        @Override
+        public void onLlcpLinkActivated(DeviceHost.NfcDepEndpoint device) {}
+
+        @Override
+        public void onLlcpLinkDeactivated(DeviceHost.NfcDepEndpoint device) {}
+
+        @Override
+        public void onLlcpFirstPacketReceived(DeviceHost.NfcDepEndpoint device) {}
+
+        @Override
+        public void onRemoteFieldActivated() {}
+
+        @Override
+        public void onRemoteFieldDeactivated() {}
+
+        @Override
+        public void onEeUpdated() {}
+
+        @Override
+        public void onHwErrorReported() {}
+
+        @Override
+        public void onScrNotifyEvents(int event) {}
+
+        @Override
+        public void onNfcTransactionEvent(byte[] aid, byte[] data, String seName) {}
+
+        @Override
+        public void onLxDebugConfigData(int len, byte[] data) {}
+
+        @Override
+        public void notifyTagAbort() {}
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc.loopback;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A reader in the field of a {@link SimulatedDeviceHost}, replaying a script
+ * of APDUs against it.
+ *
+ * Each SELECT by AID is routed through the committed routing table, like the
+ * controller would: to the host, whose answer comes back through
+ * {@link SimulatedDeviceHost#sendRawFrame}, or to a secure element, which is
+ * simulated by answering every command with success. The other commands
+ * follow the last SELECT.
+ */
+public final class SimulatedHceReader {
+    // CardEmulationManager.NFC_HCE_APDU
+    static final int TECHNOLOGY_APDU = 0x01;
+
+    static final byte[] SW_SUCCESS = {(byte) 0x90, 0x00};
+    static final byte[] SW_FILE_NOT_FOUND = {0x6A, (byte) 0x82};
+
+    static final class Exchange {
+        final byte[] command;
+        final byte[] expectedResponse; // null if any response will do
+
+        Exchange(byte[] command, byte[] expectedResponse) {
+            this.command = command;
+            this.expectedResponse = expectedResponse;
+        }
+    }
+
+    public static final class Result {
+        public int exchanges;
+        public int mismatches;
+        public int timeouts;
+        public int offHost;
+        public long totalHostNs;
+        public long maxHostNs;
+        public final List<byte[]> responses = new ArrayList<byte[]>();
+
+        @Override
+        public String toString() {
+            int host = exchanges - offHost;
+            return "exchanges=" + exchanges + " offHost=" + offHost
+                    + " mismatches=" + mismatches + " timeouts=" + timeouts
+                    + " avgHost=" + (host > 0 ? totalHostNs / host / 1000 : 0) + "us"
+                    + " maxHost=" + (maxHostNs / 1000) + "us";
+        }
+    }
+
+    private final SimulatedDeviceHost mHost;
+    private final ArrayList<Exchange> mScript = new ArrayList<Exchange>();
+
+    public SimulatedHceReader(SimulatedDeviceHost host) {
+        mHost = host;
+    }
+
+    /**
+     * Adds a command to the script. {@code expectedResponse} may be null.
+     */
+    public SimulatedHceReader add(byte[] command, byte[] expectedResponse) {
+        mScript.add(new Exchange(command, expectedResponse));
+        return this;
+    }
+
+    /**
+     * Brings the reader into the field, replays the script and leaves.
+     */
+    public Result run(long responseTimeoutMs) throws InterruptedException {
+        Result result = new Result();
+        mHost.onReaderActivated(TECHNOLOGY_APDU);
+        try {
+            int route = SimulatedRoutingTable.ROUTE_HOST;
+            for (Exchange exchange : mScript) {
+                byte[] aid = getSelectedAid(exchange.command);
+                if (aid != null) {
+                    route = mHost.getSimulatedRoutingTable().resolveAid(aid);
+                }
+                byte[] response;
+                if (route == SimulatedRoutingTable.ROUTE_HOST) {
+                    long start = System.nanoTime();
+                    response = mHost.exchangeWithHost(TECHNOLOGY_APDU, exchange.command,
+                            responseTimeoutMs);
+                    long ns = System.nanoTime() - start;
+                    result.totalHostNs += ns;
+                    result.maxHostNs = Math.max(result.maxHostNs, ns);
+                } else if (route == SimulatedRoutingTable.ROUTE_NONE) {
+                    response = SW_FILE_NOT_FOUND;
+                    result.offHost++;
+                } else {
+                    response = SW_SUCCESS;
+                    result.offHost++;
+                }
+                result.exchanges++;
+                if (response == null) {
+                    result.timeouts++;
+                    break;
+                }
+                result.responses.add(response);
+                if (exchange.expectedResponse != null
+                        && !Arrays.equals(exchange.expectedResponse, response)) {
+                    result.mismatches++;
+                }
+            }
+        } finally {
+            mHost.onReaderDeactivated(TECHNOLOGY_APDU);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the AID of a SELECT by name command, or null.
+     */
+    static byte[] getSelectedAid(byte[] apdu) {
+        if (apdu.length < 5 || apdu[1] != (byte) 0xA4 || apdu[2] != 0x04) {
+            return null;
+        }
+        int length = apdu[4] & 0xFF;
+        if (apdu.length < 5 + length) {
+            return null;
+        }
+        return Arrays.copyOfRange(apdu, 5, 5 + length);
+    }
+}
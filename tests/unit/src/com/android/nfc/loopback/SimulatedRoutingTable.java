@@ -0,0 +1,276 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc.loopback;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * The listen mode routing table of a simulated controller.
+ *
+ * Entries are kept the way an NCI controller stores them, as
+ * {@code RF_SET_LISTEN_MODE_ROUTING} TLVs: qualifier and type, length, NFCEE
+ * id, power state and value. An entry is only accepted while the encoded
+ * table fits in the controller's memory; {@link #commit} makes the pending
+ * entries the ones used for routing, and the ones returned by
+ * {@link #getTable}, which the routing table parser reads.
+ */
+public final class SimulatedRoutingTable {
+    static final int TYPE_TECHNOLOGY = 0;
+    static final int TYPE_PROTOCOL = 1;
+    static final int TYPE_AID = 2;
+
+    static final int QUALIFIER_PREFIX = 0x10;
+    static final int QUALIFIER_SUBSET = 0x20;
+
+    // Entry types of DeviceHost.setRoutingEntry(), see NfcService
+    static final int ENTRY_TECH = 1;
+    static final int ENTRY_PROTOCOL = 2;
+    static final int ENTRY_AID = 4;
+
+    // Listen protocol bits of DeviceHost.setRoutingEntry(), and the NCI
+    // protocol each one stands for
+    static final int[][] LISTEN_PROTOCOLS = {
+            {0x01, 0x04}, // ISO-DEP
+            {0x02, 0x05}, // NFC-DEP
+            {0x04, 0x03}, // T3T
+            {0x20, 0x80}, // ISO 7816, proprietary
+    };
+
+    public static final int ROUTE_HOST = 0x00;
+    public static final int ROUTE_NONE = -1;
+
+    static final int TLV_HEADER_SIZE = 4;
+
+    static final class Entry {
+        final int type;
+        final int qualifier;
+        final int route;
+        final int power;
+        final byte[] value;
+
+        Entry(int type, int qualifier, int route, int power, byte[] value) {
+            this.type = type;
+            this.qualifier = qualifier;
+            this.route = route;
+            this.power = power;
+            this.value = value;
+        }
+
+        int getSize() {
+            return TLV_HEADER_SIZE + value.length;
+        }
+    }
+
+    private final int mMaxSize;
+
+    // Synchronized on this
+    private final LinkedHashMap<String, Entry> mPending = new LinkedHashMap<String, Entry>();
+    private List<Entry> mCommitted = new ArrayList<Entry>();
+    private int mPendingSize;
+    private int mCommits;
+    private int mRejected;
+
+    public SimulatedRoutingTable(int maxSize) {
+        mMaxSize = maxSize;
+    }
+
+    public int getMaxSize() {
+        return mMaxSize;
+    }
+
+    /**
+     * Adds an AID entry. {@code aidInfo} carries the prefix and subset
+     * qualifiers. Returns false if the table is full.
+     */
+    public synchronized boolean addAid(byte[] aid, int route, int aidInfo, int power) {
+        int qualifier = aidInfo & (QUALIFIER_PREFIX | QUALIFIER_SUBSET);
+        return put(new Entry(TYPE_AID, qualifier, route, power, aid.clone()));
+    }
+
+    public synchronized boolean removeAid(byte[] aid) {
+        return remove(getKey(TYPE_AID, aid));
+    }
+
+    /**
+     * Adds the entries of {@link com.android.nfc.DeviceHost#setRoutingEntry}.
+     * Returns false if the table is full.
+     */
+    public synchronized boolean setEntry(int type, int value, int route, int power) {
+        boolean added = true;
+        if (type == ENTRY_TECH) {
+            // One entry for each of A, B and F
+            for (int tech = 0; tech < 3; tech++) {
+                if ((value & (1 << tech)) != 0) {
+                    added &= put(new Entry(TYPE_TECHNOLOGY, 0, route, power,
+                            new byte[] {(byte) tech}));
+                }
+            }
+        } else if (type == ENTRY_PROTOCOL) {
+            for (int[] protocol : LISTEN_PROTOCOLS) {
+                if ((value & protocol[0]) != 0) {
+                    added &= put(new Entry(TYPE_PROTOCOL, 0, route, power,
+                            new byte[] {(byte) protocol[1]}));
+                }
+            }
+        } else {
+            return false;
+        }
+        return added;
+    }
+
+    public synchronized boolean clearEntries(int type) {
+        int entryType;
+        if (type == ENTRY_TECH) {
+            entryType = TYPE_TECHNOLOGY;
+        } else if (type == ENTRY_PROTOCOL) {
+            entryType = TYPE_PROTOCOL;
+        } else if (type == ENTRY_AID) {
+            entryType = TYPE_AID;
+        } else {
+            return false;
+        }
+        List<String> keys = new ArrayList<String>();
+        for (String key : mPending.keySet()) {
+            if (mPending.get(key).type == entryType) {
+                keys.add(key);
+            }
+        }
+        for (String key : keys) {
+            remove(key);
+        }
+        return true;
+    }
+
+    /**
+     * Makes the pending entries the ones used for routing.
+     */
+    public synchronized boolean commit() {
+        mCommitted = new ArrayList<Entry>(mPending.values());
+        mCommits++;
+        return true;
+    }
+
+    /**
+     * Returns the committed table, encoded as NCI TLVs.
+     */
+    public synchronized byte[] getTable() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (Entry entry : mCommitted) {
+            out.write(entry.qualifier | entry.type);
+            out.write(2 + entry.value.length);
+            out.write(entry.route);
+            out.write(entry.power);
+            out.write(entry.value, 0, entry.value.length);
+        }
+        return out.toByteArray();
+    }
+
+    public synchronized int getRemainingSize() {
+        return mMaxSize - mPendingSize;
+    }
+
+    public synchronized int getCommits() {
+        return mCommits;
+    }
+
+    /**
+     * Returns how many entries didn't fit in the table.
+     */
+    public synchronized int getRejected() {
+        return mRejected;
+    }
+
+    /**
+     * Returns where the committed table sends a SELECT of {@code aid}: an
+     * exact match wins over a prefix or subset match, which wins over the
+     * empty AID entry and the ISO-DEP protocol entry. Returns
+     * {@link #ROUTE_NONE} if nothing matches.
+     */
+    public synchronized int resolveAid(byte[] aid) {
+        Entry best = null;
+        int bestRank = Integer.MAX_VALUE;
+        for (Entry entry : mCommitted) {
+            int rank;
+            if (entry.type == TYPE_AID) {
+                if (entry.value.length == 0) {
+                    rank = 3;
+                } else if (Arrays.equals(entry.value, aid)) {
+                    rank = 0;
+                } else if ((entry.qualifier & QUALIFIER_PREFIX) != 0
+                        && startsWith(aid, entry.value)) {
+                    rank = 1;
+                } else if ((entry.qualifier & QUALIFIER_SUBSET) != 0
+                        && startsWith(entry.value, aid)) {
+                    rank = 2;
+                } else {
+                    continue;
+                }
+            } else if (entry.type == TYPE_PROTOCOL && entry.value[0] == 0x04) {
+                rank = 4;
+            } else {
+                continue;
+            }
+            if (rank < bestRank) {
+                best = entry;
+                bestRank = rank;
+            }
+        }
+        return best != null ? best.route : ROUTE_NONE;
+    }
+
+    private boolean put(Entry entry) {
+        String key = getKey(entry.type, entry.value);
+        Entry old = mPending.get(key);
+        int size = mPendingSize + entry.getSize() - (old != null ? old.getSize() : 0);
+        if (size > mMaxSize) {
+            mRejected++;
+            return false;
+        }
+        mPending.put(key, entry);
+        mPendingSize = size;
+        return true;
+    }
+
+    private boolean remove(String key) {
+        Entry old = mPending.remove(key);
+        if (old == null) {
+            return false;
+        }
+        mPendingSize -= old.getSize();
+        return true;
+    }
+
+    private static String getKey(int type, byte[] value) {
+        return type + ":" + Arrays.toString(value);
+    }
+
+    private static boolean startsWith(byte[] data, byte[] prefix) {
+        if (data.length < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (data[i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
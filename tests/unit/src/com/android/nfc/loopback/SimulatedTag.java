@@ -0,0 +1,323 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc.loopback;
+
+import android.annotation.Nullable;
+import android.nfc.FormatException;
+import android.nfc.NdefMessage;
+import android.nfc.NdefRecord;
+import android.nfc.tech.Ndef;
+import android.nfc.tech.TagTechnology;
+import android.os.Bundle;
+
+import com.android.nfc.DeviceHost;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A tag in the field of a {@link SimulatedDeviceHost}, with a configurable
+ * tech list and NDEF message. Raw commands are answered by a
+ * {@link Responder}, if one is set.
+ *
+ * The tag stays in the field until {@link #remove} is called; from then on
+ * every operation fails as if the tag was lost.
+ */
+public class SimulatedTag implements DeviceHost.TagEndpoint {
+    /**
+     * Answers the commands sent to the tag.
+     */
+    public interface Responder {
+        /**
+         * @return the response, or null to fail the exchange
+         */
+        byte[] onCommand(int technology, byte[] command);
+    }
+
+    private final int mHandle;
+    private final byte[] mUid;
+    private final Bundle[] mTechExtras;
+    private final ThreadPoolExecutor mTransceiveExecutor;
+
+    // Synchronized on this
+    private int[] mTechList;
+    private int mConnectedTechnology = -1;
+    private boolean mPresent = true;
+    private byte[] mNdef;
+    private boolean mNdefReadOnly;
+    private int mNdefMaxSize;
+    private Responder mResponder;
+    private Thread mPresenceCheckThread;
+    private int mTransceives;
+
+    public SimulatedTag(int handle, byte[] uid, int[] techList, Bundle[] techExtras) {
+        mHandle = handle;
+        mUid = uid;
+        mTechList = techList;
+        mTechExtras = techExtras;
+        mTransceiveExecutor = new ThreadPoolExecutor(1, 1, 1, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>());
+        mTransceiveExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Formats the tag with {@code message}, or makes it NDEF formatable if null.
+     */
+    public synchronized void setNdef(@Nullable NdefMessage message, int maxSize,
+            boolean readOnly) {
+        mNdef = message != null ? message.toByteArray() : null;
+        mNdefMaxSize = maxSize;
+        mNdefReadOnly = readOnly;
+    }
+
+    public synchronized void setResponder(Responder responder) {
+        mResponder = responder;
+    }
+
+    /**
+     * Takes the tag out of the field.
+     */
+    public synchronized void remove() {
+        mPresent = false;
+        mConnectedTechnology = -1;
+        notifyAll();
+    }
+
+    public synchronized int getTransceiveCount() {
+        return mTransceives;
+    }
+
+    @Override
+    public synchronized boolean connect(int technology) {
+        if (!mPresent || !hasTech(technology)) {
+            return false;
+        }
+        mConnectedTechnology = technology;
+        return true;
+    }
+
+    @Override
+    public synchronized boolean reconnect() {
+        return mPresent && mConnectedTechnology != -1;
+    }
+
+    @Override
+    public synchronized boolean disconnect() {
+        stopPresenceChecking();
+        mConnectedTechnology = -1;
+        return true;
+    }
+
+    @Override
+    public synchronized boolean presenceCheck() {
+        return mPresent;
+    }
+
+    @Override
+    public synchronized boolean isPresent() {
+        return mPresent;
+    }
+
+    @Override
+    public synchronized void startPresenceChecking(final int presenceCheckDelay,
+            @Nullable final DeviceHost.TagDisconnectedCallback callback) {
+        if (mPresenceCheckThread != null) {
+            return;
+        }
+        mPresenceCheckThread = new Thread("SimulatedTagPresence-" + mHandle) {
+            @Override
+            public void run() {
+                synchronized (SimulatedTag.this) {
+                    try {
+                        while (mPresent && mPresenceCheckThread == this) {
+                            SimulatedTag.this.wait(presenceCheckDelay);
+                        }
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    if (mPresenceCheckThread != this) {
+                        return;
+                    }
+                    mPresenceCheckThread = null;
+                }
+                if (callback != null) {
+                    callback.onTagDisconnected(mHandle);
+                }
+            }
+        };
+        mPresenceCheckThread.start();
+    }
+
+    @Override
+    public synchronized void stopPresenceChecking() {
+        mPresenceCheckThread = null;
+        notifyAll();
+    }
+
+    @Override
+    public synchronized int[] getTechList() {
+        return mTechList;
+    }
+
+    @Override
+    public synchronized void removeTechnology(int tech) {
+        int count = 0;
+        for (int t : mTechList) {
+            if (t != tech) count++;
+        }
+        int[] techList = new int[count];
+        int i = 0;
+        for (int t : mTechList) {
+            if (t != tech) techList[i++] = t;
+        }
+        mTechList = techList;
+    }
+
+    @Override
+    public Bundle[] getTechExtras() {
+        return mTechExtras;
+    }
+
+    @Override
+    public byte[] getUid() {
+        return mUid;
+    }
+
+    @Override
+    public int getHandle() {
+        return mHandle;
+    }
+
+    @Override
+    public byte[] transceive(byte[] data, boolean raw, int[] returnCode) {
+        Responder responder;
+        int technology;
+        synchronized (this) {
+            if (!mPresent) {
+                if (returnCode != null) returnCode[0] = 1; // target lost
+                return null;
+            }
+            responder = mResponder;
+            technology = mConnectedTechnology;
+            mTransceives++;
+        }
+        byte[] response = responder != null ? responder.onCommand(technology, data) : null;
+        if (returnCode != null) returnCode[0] = 0;
+        return response;
+    }
+
+    @Override
+    public void transceiveAsync(final byte[] data, final boolean raw,
+            final DeviceHost.TransceiveCallback callback) {
+        mTransceiveExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                int[] returnCode = new int[1];
+                byte[] response = transceive(data, raw, returnCode);
+                callback.onTransceiveComplete(response, returnCode[0] == 1);
+            }
+        });
+    }
+
+    @Override
+    public synchronized boolean checkNdef(int[] out) {
+        if (!mPresent || mNdef == null) {
+            return false;
+        }
+        out[0] = mNdefMaxSize;
+        out[1] = mNdefReadOnly ? Ndef.NDEF_MODE_READ_ONLY : Ndef.NDEF_MODE_READ_WRITE;
+        return true;
+    }
+
+    @Override
+    public synchronized byte[] readNdef() {
+        return mPresent ? mNdef : null;
+    }
+
+    @Override
+    public boolean readNdefRecords(DeviceHost.NdefRecordCallback callback) {
+        NdefMessage message = findAndReadNdef();
+        if (message == null) {
+            return false;
+        }
+        for (NdefRecord record : message.getRecords()) {
+            if (!callback.onNdefRecord(record)) {
+                break;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized boolean writeNdef(byte[] data) {
+        if (!mPresent || mNdef == null || mNdefReadOnly || data.length > mNdefMaxSize) {
+            return false;
+        }
+        mNdef = data;
+        return true;
+    }
+
+    @Override
+    public synchronized NdefMessage findAndReadNdef() {
+        if (!mPresent || mNdef == null || mNdef.length == 0) {
+            return null;
+        }
+        try {
+            return new NdefMessage(mNdef);
+        } catch (FormatException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public synchronized boolean formatNdef(byte[] key) {
+        if (!mPresent || mNdef != null) {
+            return false;
+        }
+        mNdef = new byte[0];
+        return true;
+    }
+
+    @Override
+    public synchronized boolean isNdefFormatable() {
+        return mPresent && mNdef == null && hasTech(TagTechnology.NDEF_FORMATABLE);
+    }
+
+    @Override
+    public synchronized boolean makeReadOnly() {
+        if (!mPresent || mNdef == null) {
+            return false;
+        }
+        mNdefReadOnly = true;
+        return true;
+    }
+
+    @Override
+    public synchronized int getConnectedTechnology() {
+        return mConnectedTechnology;
+    }
+
+    private boolean hasTech(int technology) {
+        for (int tech : mTechList) {
+            if (tech == technology) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
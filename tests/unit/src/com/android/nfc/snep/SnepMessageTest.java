@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.nfc.snep;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.nfc.NdefMessage;
+import android.nfc.NdefRecord;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+@RunWith(AndroidJUnit4.class)
+public final class SnepMessageTest {
+    private static NdefMessage createNdef(int payloadLength) {
+        return new NdefMessage(NdefRecord.createMime("application/octet-stream",
+                new byte[payloadLength]));
+    }
+
+    @Test
+    public void testGetRequestHeader() {
+        NdefMessage ndef = createNdef(20);
+        byte[] ndefBytes = ndef.toByteArray();
+        SnepMessage request = SnepMessage.getGetRequest(0x01020304, ndef);
+
+        byte[] expected = ByteBuffer.allocate(10 + ndefBytes.length)
+                .put(SnepMessage.VERSION)
+                .put(SnepMessage.REQUEST_GET)
+                .putInt(4 + ndefBytes.length)
+                .putInt(0x01020304)
+                .put(ndefBytes)
+                .array();
+        assertThat(request.getEncodedLength()).isEqualTo(expected.length);
+        assertThat(request.toByteArray()).isEqualTo(expected);
+
+        // Fragments that split the header still add up to the same bytes
+        for (int fragmentLength : new int[] {1, 3, 7, expected.length}) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] fragment = new byte[fragmentLength];
+            int offset = 0;
+            while (offset < expected.length) {
+                int length = request.writeFragment(offset, fragment, fragmentLength);
+                out.write(fragment, 0, length);
+                offset += length;
+            }
+            assertThat(out.toByteArray()).isEqualTo(expected);
+        }
+    }
+
+    @Test
+    public void testFragmentsPastEndAreEmpty() {
+        SnepMessage put = SnepMessage.getPutRequest(createNdef(20));
+        byte[] fragment = new byte[16];
+
+        assertThat(put.writeFragment(put.getEncodedLength(), fragment, fragment.length))
+                .isEqualTo(0);
+    }
+
+    @Test
+    public void testParsesGetRequest() throws Exception {
+        NdefMessage ndef = createNdef(20);
+        SnepMessage request = SnepMessage.fromByteArray(
+                SnepMessage.getGetRequest(1024, ndef).toByteArray());
+
+        assertThat(request.getField()).isEqualTo(SnepMessage.REQUEST_GET);
+        assertThat(request.getLength()).isEqualTo(4 + ndef.toByteArray().length);
+        assertThat(request.getAcceptableLength()).isEqualTo(1024);
+        assertThat(request.getNdefMessage()).isEqualTo(ndef);
+    }
+}
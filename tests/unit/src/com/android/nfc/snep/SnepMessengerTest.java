@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.nfc.snep;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.junit.Assert.fail;
+
+import android.nfc.NdefMessage;
+import android.nfc.NdefRecord;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import com.android.nfc.DeviceHost.LlcpServerSocket;
+import com.android.nfc.DeviceHost.LlcpSocket;
+import com.android.nfc.loopback.LoopbackDeviceHost;
+import com.android.nfc.loopback.LoopbackLlcpLink;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+@RunWith(AndroidJUnit4.class)
+public final class SnepMessengerTest {
+    private static final int MIU = 128;
+    private static final int RW = 2;
+    private static final int SAP = 4;
+    private static final long TIMEOUT_S = 5;
+
+    private LoopbackLlcpLink mLink;
+    private LlcpServerSocket mServerSocket;
+    private LlcpSocket mClientSocket;
+    private LlcpSocket mServerConnection;
+    private ExecutorService mExecutor;
+
+    @Before
+    public void setUp() throws Exception {
+        mLink = new LoopbackLlcpLink(MIU, 0);
+        LoopbackDeviceHost initiator = new LoopbackDeviceHost(mLink, true, MIU, RW);
+        LoopbackDeviceHost target = new LoopbackDeviceHost(mLink, false, MIU, RW);
+        mLink.activate();
+        mServerSocket = target.createLlcpServerSocket(SAP, null, MIU, RW, 1024);
+        mClientSocket = initiator.createLlcpSocket(0, MIU, RW, 1024);
+        mClientSocket.connectToSap(SAP);
+        mServerConnection = mServerSocket.accept();
+        mExecutor = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        mExecutor.shutdownNow();
+        mLink.deactivate();
+    }
+
+    private static NdefMessage createNdef(int payloadLength) {
+        byte[] payload = new byte[payloadLength];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte) i;
+        }
+        return new NdefMessage(NdefRecord.createMime("application/octet-stream", payload));
+    }
+
+    // Sends from the client side while the test receives on the server side
+    private Future<Void> sendFromClient(final SnepMessage message) {
+        final SnepMessenger client = new SnepMessenger(true, mClientSocket, MIU);
+        return mExecutor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                client.sendMessage(message);
+                return null;
+            }
+        });
+    }
+
+    private static void assertSendFailed(Future<Void> send) throws Exception {
+        try {
+            send.get(TIMEOUT_S, TimeUnit.SECONDS);
+            fail("Send succeeded");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause()).isInstanceOf(IOException.class);
+        }
+    }
+
+    @Test
+    public void testGetRequestRoundTrip() throws Exception {
+        NdefMessage ndef = createNdef(20);
+        Future<Void> send = sendFromClient(SnepMessage.getGetRequest(1024, ndef));
+
+        SnepMessage received = new SnepMessenger(false, mServerConnection, MIU).getMessage();
+        send.get(TIMEOUT_S, TimeUnit.SECONDS);
+        assertThat(received.getField()).isEqualTo(SnepMessage.REQUEST_GET);
+        assertThat(received.getAcceptableLength()).isEqualTo(1024);
+        assertThat(received.getNdefMessage()).isEqualTo(ndef);
+    }
+
+    @Test
+    public void testMultiFragmentRoundTrip() throws Exception {
+        // Spans several I-PDUs
+        for (int payloadLength : new int[] {MIU, 1000}) {
+            NdefMessage ndef = createNdef(payloadLength);
+            Future<Void> send = sendFromClient(SnepMessage.getPutRequest(ndef));
+            SnepMessage put = new SnepMessenger(false, mServerConnection, MIU).getMessage();
+            send.get(TIMEOUT_S, TimeUnit.SECONDS);
+            assertThat(put.getField()).isEqualTo(SnepMessage.REQUEST_PUT);
+            assertThat(put.getNdefMessage()).isEqualTo(ndef);
+        }
+
+        // Reads of 8 bytes split the acceptable length of the GET request
+        NdefMessage ndef = createNdef(1000);
+        Future<Void> send = sendFromClient(SnepMessage.getGetRequest(4096, ndef));
+        SnepMessage get = new SnepMessenger(false, mServerConnection, 8).getMessage();
+        send.get(TIMEOUT_S, TimeUnit.SECONDS);
+        assertThat(get.getAcceptableLength()).isEqualTo(4096);
+        assertThat(get.getNdefMessage()).isEqualTo(ndef);
+    }
+
+    @Test
+    public void testRejectsTooLongMessage() throws Exception {
+        Future<Void> send = sendFromClient(SnepMessage.getPutRequest(createNdef(1000)));
+        SnepMessenger server = new SnepMessenger(false, mServerConnection, MIU, 256);
+
+        try {
+            server.getMessage();
+            fail("Accepted a message longer than the maximum");
+        } catch (IOException e) {
+            // Expected
+        }
+        // The client is told to stop instead of being asked for the rest
+        assertSendFailed(send);
+    }
+
+    @Test
+    public void testRejectsMoreDataThanAnnounced() throws Exception {
+        final byte[] header = ByteBuffer.allocate(10)
+                .put(SnepMessage.VERSION)
+                .put(SnepMessage.REQUEST_PUT)
+                .putInt(10)
+                .putInt(0)
+                .array();
+        Future<byte[]> peer = mExecutor.submit(new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws IOException {
+                mClientSocket.send(header);
+                byte[] response = new byte[MIU];
+                mClientSocket.receive(response);
+                if (response[1] != SnepMessage.RESPONSE_CONTINUE) {
+                    throw new IOException("No continue");
+                }
+                // 6 bytes left to send, but 20 more arrive
+                mClientSocket.send(new byte[20]);
+                int length = mClientSocket.receive(response);
+                return Arrays.copyOf(response, length);
+            }
+        });
+
+        try {
+            new SnepMessenger(false, mServerConnection, MIU).getMessage();
+            fail("Accepted more data than announced");
+        } catch (IOException e) {
+            assertThat(e).hasMessageThat().contains("more data than announced");
+        }
+        byte[] reject = peer.get(TIMEOUT_S, TimeUnit.SECONDS);
+        assertThat(reject).hasLength(6);
+        assertThat(reject[1]).isEqualTo(SnepMessage.RESPONSE_REJECT);
+    }
+}